@@ -391,6 +391,15 @@ public final class Code {
                 RegisterSpecList.make(toThrow.spec()), catches));
     }
 
+    /**
+     * Copies the currently-thrown exception into {@code result}. This must be
+     * the first instruction of a block {@link #addCatchClause catching} it.
+     */
+    public void moveException(Local<?> result) {
+        addInstruction(new PlainInsn(Rops.opMoveException(android.cglib.dx.rop.type.Type.THROWABLE),
+                sourcePosition, result.spec(), RegisterSpecList.EMPTY));
+    }
+
     private StdTypeList toTypeList(List<TypeId<?>> types) {
         StdTypeList result = new StdTypeList(types.size());
         for (int i = 0; i < types.size(); i++) {
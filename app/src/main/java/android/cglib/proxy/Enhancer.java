@@ -40,16 +40,11 @@ public class Enhancer {
 		Random random = new Random();
 		String superClsName = superclass.getName().replace(".", "/");
 		String subClsName = superClsName + Const.SUBCLASS_SUFFIX+"_"+Integer.toHexString(random.nextInt(Integer.MAX_VALUE));
-		TypeId<?> superType = TypeId.get("L" + superClsName + ";");
-		TypeId<?> subType = TypeId.get("L" + subClsName + ";");
-		TypeId<?> interfaceTypeId = TypeId.get(EnhancerInterface.class);
 
 		String cacheDir = context.getExternalFilesDir("dexfiles").getAbsolutePath();
 //		System.out.println("[Enhancer::create()] Create class extends from \"" + superclass.getName() + "\" stored in " + cacheDir);
 
-		DexMaker dexMaker = new DexMaker();
-		dexMaker.declare(subType, superClsName + ".proxy", Modifier.PUBLIC, superType, interfaceTypeId);
-		generateFieldsAndMethods(dexMaker, superType, subType);
+		DexMaker dexMaker = declare(subClsName);
 		try {
 			ClassLoader loader = dexMaker.generateAndLoad(Enhancer.class.getClassLoader(), new File(cacheDir));
 			return loader.loadClass(subClsName);//superclass.getName() + Const.SUBCLASS_SUFFIX);
@@ -65,6 +60,22 @@ public class Enhancer {
 		}
 		return null;
 	}
+
+	/**
+	 * Declares the proxy class named {@code subClsName} on a new DexMaker.
+	 */
+	DexMaker declare(String subClsName) {
+		String superClsName = superclass.getName().replace(".", "/");
+		TypeId<?> superType = TypeId.get("L" + superClsName + ";");
+		TypeId<?> subType = TypeId.get("L" + subClsName + ";");
+		TypeId<?> interfaceTypeId = TypeId.get(EnhancerInterface.class);
+
+		DexMaker dexMaker = new DexMaker();
+		dexMaker.declare(subType, superClsName + ".proxy", Modifier.PUBLIC, superType, interfaceTypeId);
+		generateFieldsAndMethods(dexMaker, superType, subType);
+		return dexMaker;
+	}
+
 	public static boolean rmDir(File dir) {
 		if (dir.isDirectory()) {
 			File[] fs = dir.listFiles();
@@ -151,8 +162,11 @@ public class Enhancer {
 			}
 
 		}
+		// the public ones were hooked above, getMethods() returns them all
 		methods = superclass.getDeclaredMethods();
 		for (Method method : methods) {
+			if ((method.getModifiers() & Modifier.PUBLIC) != 0)
+				continue;
 			methodName = method.getName();
 			if (methodName.contains(Const.SUBCLASS_SUFFIX)) {
 				continue ;
@@ -84,6 +84,8 @@ public class LuaHook implements IXposedHookLoadPackage, IXposedHookInitPackageRe
         globals.set("ArgBuilder", CoerceJavaToLua.coerce(ArgBuilder.class));
         globals.set("XCMethodHook", new XCMethodHook());
         globals.load(new XpBase());
+        // hook callbacks run on whatever thread the hooked method is called on
+        globals.concurrent();
     }
 
     @Override
@@ -108,8 +108,11 @@ public final class Buffer {
 	 * @return the value as a {@link LuaString}
 	 */
 	public final LuaString tostring() {
-		realloc( length, 0 );
-		return LuaString.valueOf( bytes, offset, length );
+		// the buffer only ever writes outside the bytes in use, so the string
+		// can share them, as long as that does not pin much unused room
+		if ( length < bytes.length / 2 )
+			realloc( length, 0 );
+		return LuaString.valueUsing( bytes, offset, length );
 	}
 	
 	/** 
@@ -0,0 +1,81 @@
+package luaj;
+
+import java.util.Arrays;
+
+/**
+ * Per-thread pool of register frames used by {@link LuaClosure}.
+ * <p>
+ * Each call depth owns one {@link LuaValue} array which is reused by every
+ * closure called at that depth, and only reallocated when a prototype needs
+ * more registers than the previous one. Frames are handed out cleared and
+ * must be returned cleared, so they look exactly like a freshly allocated
+ * {@code new LuaValue[p.maxstacksize]} to the interpreter.
+ * <p>
+ * Coroutines run on their own Java thread and hook callbacks may enter the
+ * main {@link LuaThread} from any app thread, so the pool is kept per Java
+ * thread rather than on {@link Globals#running}.
+ */
+public final class FrameStack {
+
+    /**
+     * frames deeper than this are allocated and dropped as before
+     */
+    public static final int MAX_POOLED_DEPTH = LuaThread.MAX_CALLSTACK;
+
+    private static final ThreadLocal<FrameStack> frameStack = new ThreadLocal<FrameStack>() {
+        @Override
+        protected FrameStack initialValue() {
+            return new FrameStack();
+        }
+    };
+
+    private LuaValue[][] frames = new LuaValue[16][];
+
+    private int depth;
+
+    private FrameStack() {
+    }
+
+    /**
+     * Get the frame pool of the calling thread.
+     */
+    public static FrameStack current() {
+        return frameStack.get();
+    }
+
+    /**
+     * Enter a new call depth and get a cleared frame of at least {@code size} registers.
+     *
+     * @param size number of registers required, normally {@link Prototype#maxstacksize}
+     * @return frame to use for the call, to be given back through {@link #pop(LuaValue[], int)}
+     */
+    public LuaValue[] push(int size) {
+        int d = depth++;
+        if (d >= MAX_POOLED_DEPTH)
+            return new LuaValue[size];
+        if (d == frames.length)
+            frames = Arrays.copyOf(frames, Math.min(d * 2, MAX_POOLED_DEPTH));
+        LuaValue[] frame = frames[d];
+        if (frame == null || frame.length < size)
+            frames[d] = frame = new LuaValue[size];
+        return frame;
+    }
+
+    /**
+     * Leave the current call depth, clearing the registers used by the call.
+     *
+     * @param frame frame returned by the matching {@link #push(int)}
+     * @param size  number of registers that were requested
+     */
+    public void pop(LuaValue[] frame, int size) {
+        if (--depth < MAX_POOLED_DEPTH)
+            Arrays.fill(frame, 0, size, null);
+    }
+
+    /**
+     * Current call depth of this thread.
+     */
+    public int depth() {
+        return depth;
+    }
+}
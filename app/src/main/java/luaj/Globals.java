@@ -29,6 +29,9 @@ public class Globals extends LuaTable {
 
     public DebugLib debuglib;
 
+    /** profiler counting the closures run on these globals, null when not profiling */
+    public Profiler profiler;
+
     public StringLib stringlib;
 
     public LuajavaLib luajavaLib;
@@ -40,6 +43,21 @@ public class Globals extends LuaTable {
         return this;
     }
 
+    /**
+     * Make the globals and {@code package.loaded} safe to use from several
+     * threads at once, for callbacks run on threads other than the one that
+     * loaded the scripts; see {@link LuaTable#concurrent()}.
+     */
+    public void concurrent() {
+        super.concurrent();
+        LuaValue p = rawget("package");
+        if (p.istable()) {
+            LuaValue loaded = p.rawget("loaded");
+            if (loaded.istable())
+                loaded.checktable().concurrent();
+        }
+    }
+
     public LuaValue loadfile(String filename) {
         try {
             InputStream is = finder.findResource(filename);
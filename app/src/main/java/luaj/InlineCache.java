@@ -0,0 +1,141 @@
+package luaj;
+
+/**
+ * Per-instruction cache for table reads with a constant key, used by
+ * {@link LuaClosure} for {@link Lua#OP_GETTABLE}, {@link Lua#OP_SELF},
+ * {@link Lua#OP_GETTABUP} and {@link Lua#OP_GETGLOBAL}.
+ * <p>
+ * A site remembers the hash slot found for the last table it was run on,
+ * either directly in that table or one level up through a table
+ * {@code __index}. The slot stays valid for as long as the structural
+ * {@link LuaTable#version()} of every table on the way is unchanged, so a hit
+ * costs two identity checks and an array read instead of hashing the key.
+ * A key of a {@link LuaTable#concurrent()} table is cached as the entry holding
+ * its value, which is emptied when the key is removed, so it needs no version
+ * check and keys added by other threads do not evict it; lookups through the
+ * {@code __index} of a concurrent table are not cached. Weak tables are never
+ * cached.
+ * <p>
+ * Instances are immutable and replaced as a whole on a miss, so sites may be
+ * shared by coroutines running the same {@link Prototype} on other threads.
+ * Sites that keep seeing different tables give up after {@link #MAX_MISSES}
+ * and fall back to {@link LuaValue#get(LuaValue)}; a site keeps at most one
+ * receiver and one {@code __index} table reachable.
+ */
+final class InlineCache {
+
+    /**
+     * number of times a site may be re-learned before it stops caching
+     */
+    static final int MAX_MISSES = 8;
+
+    private static final InlineCache MEGAMORPHIC = new InlineCache(null, null, -1, null, null, -1, null, MAX_MISSES);
+
+    private final LuaTable table;
+    private final int version;
+    /* metatable of table and the holder found through its __index, null for direct hits */
+    private final LuaTable meta;
+    private final int metaVersion;
+    /* slot of __index in the values of meta */
+    private final LuaValue[] indexValues;
+    private final int index;
+    private final LuaTable holder;
+    private final int holderVersion;
+    /* hash values of the table holding the key, and the slot of the key */
+    private final LuaValue[] values;
+    private final int slot;
+    /* entry of the key in a concurrent table, null for every other table */
+    private final LuaTable.SharedEntry entry;
+    private final int misses;
+
+    private InlineCache(LuaTable table, LuaTable meta, int index, LuaTable holder,
+                        LuaValue[] values, int slot, LuaTable.SharedEntry entry, int misses) {
+        this.table = table;
+        this.version = table != null ? table.version : 0;
+        this.meta = meta;
+        this.metaVersion = meta != null ? meta.version : 0;
+        this.indexValues = meta != null ? meta.hashValues : null;
+        this.index = index;
+        this.holder = holder;
+        this.holderVersion = holder != null ? holder.version : 0;
+        this.values = values;
+        this.slot = slot;
+        this.entry = entry;
+        this.misses = misses;
+    }
+
+    /**
+     * Look up {@code t[key]} with metatag processing, going through the cache kept for {@code pc}.
+     *
+     * @param t     value being indexed
+     * @param key   constant key of the instruction
+     * @param sites caches of the running prototype, see {@link Prototype#inlineCaches()}
+     * @param pc    index of the instruction
+     * @return the same value as {@code t.get(key)}
+     */
+    static LuaValue get(LuaValue t, LuaValue key, InlineCache[] sites, int pc) {
+        InlineCache ic = sites[pc];
+        if (ic != null) {
+            if (ic.table == t) {
+                if (ic.entry != null) {
+                    LuaValue v = ic.entry.get();
+                    if (v != null)
+                        return v;
+                } else if (ic.table.version == ic.version) {
+                    if (ic.meta == null)
+                        return ic.values[ic.slot];
+                    if (ic.meta.version == ic.metaVersion && ic.indexValues[ic.index] == ic.holder
+                            && ic.holder.version == ic.holderVersion)
+                        return ic.values[ic.slot];
+                }
+            }
+            if (ic.misses >= MAX_MISSES)
+                return t.get(key);
+        }
+        return learn(t, key, sites, pc, ic == null ? 0 : ic.misses + 1);
+    }
+
+    /**
+     * Whether this site gave up caching, see {@link #MAX_MISSES}.
+     */
+    boolean megamorphic() {
+        return misses >= MAX_MISSES;
+    }
+
+    private static LuaValue learn(LuaValue t, LuaValue key, InlineCache[] sites, int pc, int misses) {
+        if (misses >= MAX_MISSES) {
+            sites[pc] = MEGAMORPHIC;
+            return t.get(key);
+        }
+        if (t instanceof LuaTable) {
+            LuaTable table = (LuaTable) t;
+            int e = table.hashentry(key);
+            if (e >= 0) {
+                sites[pc] = new InlineCache(table, null, -1, null, table.hashValues, e, null, misses);
+                return table.hashValues[e];
+            }
+            LuaTable.SharedEntry entry = table.sharedentry(key);
+            if (entry != null) {
+                LuaValue v = entry.get();
+                if (v != null) {
+                    sites[pc] = new InlineCache(table, null, -1, null, null, -1, entry, misses);
+                    return v;
+                }
+            }
+            if (table.m_metatable instanceof LuaTable && !table.isconcurrent() && table.rawget(key).isnil()) {
+                LuaTable meta = (LuaTable) table.m_metatable;
+                int index = meta.hashentry(LuaValue.INDEX);
+                if (index >= 0 && meta.hashValues[index] instanceof LuaTable) {
+                    LuaTable holder = (LuaTable) meta.hashValues[index];
+                    if ((e = holder.hashentry(key)) >= 0) {
+                        sites[pc] = new InlineCache(table, meta, index, holder, holder.hashValues, e, null, misses);
+                        return holder.hashValues[e];
+                    }
+                }
+            }
+        }
+        // remember the miss so sites that can never be cached stop trying
+        sites[pc] = new InlineCache(null, null, -1, null, null, -1, null, misses);
+        return t.get(key);
+    }
+}
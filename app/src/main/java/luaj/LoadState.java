@@ -361,6 +361,7 @@ public class LoadState {
 		loadConstants(f);
 		loadUpvalues(f);
 		loadDebug(f);
+		f.flags = codeFlags(f);
 		
 		// TODO: add check here, for debugging purposes, I believe
 		// see ldebug.c
@@ -370,6 +371,36 @@ public class LoadState {
 		 return f;
 	}
 
+	/**
+	 * Compute the {@link Prototype#flags} that the compiler records while coding,
+	 * since they are not part of the binary chunk format.
+	 * @param f the fully loaded {@link Prototype}
+	 * @return the flags for f
+	 */
+	private static int codeFlags(Prototype f) {
+		int flags = 0;
+		for ( int i=0; i<f.code.length; ++i ) {
+			switch ( Lua.GET_OPCODE(f.code[i]) ) {
+			case Lua.OP_DEFER:
+				flags |= Prototype.USES_DEFER;
+				break;
+			case Lua.OP_FORPREP:
+			case Lua.OP_FORLOOP:
+				flags |= Prototype.USES_NUMERIC_FOR;
+				break;
+			case Lua.OP_TFORCALL:
+			case Lua.OP_TFOREACH:
+				flags |= Prototype.USES_GENERIC_FOR;
+				break;
+			}
+		}
+		for ( int i=0; i<f.p.length; ++i )
+			for ( int j=0; j<f.p[i].upvalues.length; ++j )
+				if ( f.p[i].upvalues[j].instack )
+					flags |= Prototype.HAS_CAPTURED_LOCALS;
+		return flags;
+	}
+
 	/**
 	 * Load the lua chunk header values. 
 	 * @throws IOException if an i/o exception occurs. 
@@ -174,6 +174,13 @@ public class Lua {
 		return ((x) | BITRK);
 	}
 
+	/** decode a "floating point byte" (eeeeexxx), the table sizes of
+	 * OP_NEWTABLE and OP_NEWLIST, to at least the size it was made from */
+	public static int fb2int(int x) {
+		int e = (x >>> 3) & 0x1f;
+		return e == 0 ? x : ((x & 7) + 8) << (e - 1);
+	}
+
 
 	/**
 	** invalid register that fits in 8 bits
@@ -273,12 +280,35 @@ public class Lua {
 
 	public static final int NUM_OPCODES	= OP_EXTRAARG + 1;
 
-	/* pseudo-opcodes used in parsing only.  */
-	public static final int OP_GT  = 63; // > 
-	public static final int OP_GE  = 62; // >=
-	public static final int OP_NEQ = 61; // ~= 
-	public static final int OP_AND = 60; // and 
-	public static final int OP_OR  = 59; // or 
+	/* superinstructions, written by the compiler over the first instruction
+	   of a pair, see FuncState.fuse() and FuncState.codearith(); the second
+	   instruction stays in place and runs alone when jumped to. unfuse()
+	   gives back the first one. */
+	public static final int OP_CMPJMP = 59; /*	A B C	OP_EQ + (A>>1) with A&1, then the OP_JMP that follows	*/
+	public static final int OP_TESTJMP = 60; /*	A C	OP_TEST, then the OP_JMP that follows	*/
+	public static final int OP_GETTABLE2 = 61; /*	A B C	OP_GETTABLE, then the OP_GETTABLE that follows	*/
+	public static final int OP_GETTABLECALL = 62; /*	A B C	OP_GETTABLE, then the OP_CALL that follows	*/
+	public static final int OP_ARITHCHAIN = 63; /*	A B C	OP_ADD + (A&3) into R(A>>2), then the OP_ADD..OP_DIV that follows reading it	*/
+
+	public static final int NUM_FUSED_OPCODES = OP_ARITHCHAIN + 1;
+
+	/** get the plain instruction a superinstruction was made from,
+	 * or {@code i} itself if it is not one. */
+	public static int unfuse(int i) {
+		switch (GET_OPCODE(i)) {
+		case OP_CMPJMP:
+			return (i & (MASK_B | MASK_C)) | ((GETARG_A(i) & 1) << POS_A) | (OP_EQ + (GETARG_A(i) >> 1));
+		case OP_TESTJMP:
+			return (i & MASK_NOT_OP) | OP_TEST;
+		case OP_GETTABLE2:
+		case OP_GETTABLECALL:
+			return (i & MASK_NOT_OP) | OP_GETTABLE;
+		case OP_ARITHCHAIN:
+			return (i & (MASK_B | MASK_C)) | ((GETARG_A(i) >> 2) << POS_A) | (OP_ADD + (GETARG_A(i) & 3));
+		default:
+			return i;
+		}
+	}
 
 	/*===========================================================================
 	  Notes:
@@ -378,6 +408,11 @@ public class Lua {
 			  (0<<7) | (1<<6) | (OpArgK<<4) | (OpArgN<<2) | (iABx),		/* OP_LOAKP */
 
 			  (0<<7) | (0<<6) | (OpArgU<<4) | (OpArgU<<2) | (iAx),		/* OP_EXTRAARG */
+
+			  (1<<7) | (0<<6) | (OpArgK<<4) | (OpArgK<<2) | (iABC),		/* OP_CMPJMP */
+			  (1<<7) | (0<<6) | (OpArgN<<4) | (OpArgU<<2) | (iABC),		/* OP_TESTJMP */
+			  (0<<7) | (1<<6) | (OpArgR<<4) | (OpArgK<<2) | (iABC),		/* OP_GETTABLE2 */
+			  (0<<7) | (1<<6) | (OpArgR<<4) | (OpArgK<<2) | (iABC),		/* OP_GETTABLECALL */
 	  };
 
 	public static int getOpMode(int m) {
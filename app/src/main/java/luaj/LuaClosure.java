@@ -21,6 +21,7 @@
  ******************************************************************************/
 package luaj;
 
+import luaj.lib.BaseLib;
 import luaj.lib.DebugLib;
 import luaj.lib.jse.CoerceJavaToLua;
 import luaj.lib.jse.JavaPackage;
@@ -95,7 +96,7 @@ public class LuaClosure extends LuaFunction {
 
     public UpValue[] upValues;
 
-    final Globals globals;
+    protected final Globals globals;
 
     /**
      * Create a closure around a Prototype with a specific environment.
@@ -116,6 +117,16 @@ public class LuaClosure extends LuaFunction {
         this.globals = globals;
     }
 
+    /**
+     * Create a closure of {@code p} as {@link Lua#OP_CLOSURE} does, through its
+     * {@link Prototype#factory} when a loader compiled it, so that functions
+     * created by interpreted code still run compiled.
+     */
+    public static LuaClosure instantiate(Prototype p, Globals globals, LuaValue env) {
+        Prototype.ClosureFactory f = p.factory;
+        return f != null ? f.newClosure(globals, env) : new LuaClosure(p, globals, env);
+    }
+
     public boolean isclosure() {
         return true;
     }
@@ -137,43 +148,47 @@ public class LuaClosure extends LuaFunction {
     }
 
     public final LuaValue call() {
-        LuaValue[] stack = new LuaValue[p.maxstacksize];
+        final FrameStack frames = FrameStack.current();
+        LuaValue[] stack = frames.push(p.maxstacksize);
         for (int i = 0; i < p.numparams; ++i)
             stack[i] = NIL;
-        return execute(stack, NONE).arg1();
+        return execute(frames, stack, NONE).arg1();
     }
 
     public final LuaValue call(LuaValue arg) {
-        LuaValue[] stack = new LuaValue[p.maxstacksize];
+        final FrameStack frames = FrameStack.current();
+        LuaValue[] stack = frames.push(p.maxstacksize);
         System.arraycopy(NILS, 0, stack, 0, p.maxstacksize);
         for (int i = 1; i < p.numparams; ++i)
             stack[i] = NIL;
         if (p.numparams == 0) {
-            return execute(stack, arg).arg1();
+            return execute(frames, stack, arg).arg1();
         }
         stack[0] = arg;
-        return execute(stack, NONE).arg1();
+        return execute(frames, stack, NONE).arg1();
     }
 
     public final LuaValue call(LuaValue arg1, LuaValue arg2) {
-        LuaValue[] stack = new LuaValue[p.maxstacksize];
+        final FrameStack frames = FrameStack.current();
+        LuaValue[] stack = frames.push(p.maxstacksize);
         for (int i = 2; i < p.numparams; ++i)
             stack[i] = NIL;
         switch (p.numparams) {
             default:
                 stack[0] = arg1;
                 stack[1] = arg2;
-                return execute(stack, NONE).arg1();
+                return execute(frames, stack, NONE).arg1();
             case 1:
                 stack[0] = arg1;
-                return execute(stack, arg2).arg1();
+                return execute(frames, stack, arg2).arg1();
             case 0:
-                return execute(stack, p.is_vararg != 0 ? varargsOf(arg1, arg2) : NONE).arg1();
+                return execute(frames, stack, p.is_vararg != 0 ? varargsOf(arg1, arg2) : NONE).arg1();
         }
     }
 
     public final LuaValue call(LuaValue arg1, LuaValue arg2, LuaValue arg3) {
-        LuaValue[] stack = new LuaValue[p.maxstacksize];
+        final FrameStack frames = FrameStack.current();
+        LuaValue[] stack = frames.push(p.maxstacksize);
         for (int i = 3; i < p.numparams; ++i)
             stack[i] = NIL;
         switch (p.numparams) {
@@ -181,16 +196,16 @@ public class LuaClosure extends LuaFunction {
                 stack[0] = arg1;
                 stack[1] = arg2;
                 stack[2] = arg3;
-                return execute(stack, NONE).arg1();
+                return execute(frames, stack, NONE).arg1();
             case 2:
                 stack[0] = arg1;
                 stack[1] = arg2;
-                return execute(stack, arg3).arg1();
+                return execute(frames, stack, arg3).arg1();
             case 1:
                 stack[0] = arg1;
-                return execute(stack, p.is_vararg != 0 ? varargsOf(arg2, arg3) : NONE).arg1();
+                return execute(frames, stack, p.is_vararg != 0 ? varargsOf(arg2, arg3) : NONE).arg1();
             case 0:
-                return execute(stack, p.is_vararg != 0 ? varargsOf(arg1, arg2, arg3) : NONE).arg1();
+                return execute(frames, stack, p.is_vararg != 0 ? varargsOf(arg1, arg2, arg3) : NONE).arg1();
         }
     }
 
@@ -199,30 +214,45 @@ public class LuaClosure extends LuaFunction {
     }
 
     public final Varargs onInvoke(Varargs varargs) {
-        LuaValue[] stack = new LuaValue[p.maxstacksize];
+        final FrameStack frames = FrameStack.current();
+        LuaValue[] stack = frames.push(p.maxstacksize);
         for (int i = 0; i < p.numparams; i++)
             stack[i] = varargs.arg(i + 1);
-        return execute(stack, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE);
+        return execute(frames, stack, p.is_vararg != 0 ? varargs.subargs(p.numparams + 1) : NONE);
     }
 
-    protected Varargs execute(final LuaValue[] stack, Varargs varargs) {
+    /**
+     * Run the bytecode of {@link #p} on a frame taken from {@code frames}.
+     * <p>
+     * The frame is given back to {@code frames} before returning, so the
+     * result never aliases {@code stack}.
+     */
+    @SuppressWarnings("fallthrough") // superinstructions run their first half, then fall into the second
+    protected Varargs execute(final FrameStack frames, final LuaValue[] stack, Varargs varargs) {
         // loop through instructions
         int i, a, b, c, pc = 0, top = 0;
         LuaValue ra, rb, rc;
         LuaValue o;
         Varargs v = NONE;
         final int[] code = p.code;
-        final double[] istack = new double[stack.length];
-        final LuaVarDouble[] vstack = new LuaVarDouble[stack.length];
+        final int size = p.maxstacksize;
+        final int flags = p.flags;
+        // side state is only created for prototypes whose code needs it
+        final double[] istack = (flags & Prototype.USES_NUMERIC_FOR) != 0 ? new double[size] : null;
+        final long[] lstack = (flags & Prototype.USES_NUMERIC_FOR) != 0 ? new long[size] : null;
+        // generic for loops over tables keep their traversal position here
+        final int[] cursors = (flags & Prototype.USES_GENERIC_FOR) != 0 ? new int[size] : null;
         final DebugLib debuglib = globals.debuglib;
         final LuaValue[] k = p.k;
-        // upvalues are only possible when closures create closures
+        final InlineCache[] sites = p.inlineCaches();
+        final Profiler.Frame profile = globals.profiler != null ? globals.profiler.enter(p) : null;
+        // upvalues are only possible when closures capture locals
         // TODO: use linked list.
-        final UpValue[] openups = p.p.length > 0 ? new UpValue[stack.length] : null;
+        final UpValue[] openups = (flags & Prototype.HAS_CAPTURED_LOCALS) != 0 ? new UpValue[size] : null;
         // allow for debug hooks
         if (debuglib != null)
             debuglib.onCall(this, varargs, stack);
-        final ArrayList<LuaValue> deferList = new ArrayList<>();
+        final ArrayList<LuaValue> deferList = (flags & Prototype.USES_DEFER) != 0 ? new ArrayList<LuaValue>() : null;
         // process instructions
         try {
             for (; true; ++pc) {
@@ -231,6 +261,8 @@ public class LuaClosure extends LuaFunction {
 
                 // pull out instruction
                 i = code[pc];
+                if (profile != null)
+                    profile.instruction(i, pc, sites);
                 a = ((i >> 6) & 0xff);
                 //Log.i("luaj", "execute: "+(i & 0x3f));
                 // process the op code
@@ -284,7 +316,7 @@ public class LuaClosure extends LuaFunction {
                         setfenv(stack[a]);
                         continue;
                     case Lua.OP_GETGLOBAL: /*	A Bx	R(A):= Gbl[Kst(Bx)]				*/
-                        stack[a] = getfenv().get(k[i >>> 14]);
+                        stack[a] = InlineCache.get(getfenv(), k[i >>> 14], sites, pc);
                         continue;
                     case Lua.OP_SETGLOBAL: /*	A Bx	Gbl[Kst(Bx)]:= R(A)				*/
                         getfenv().set(k[i >>> 14], stack[a]);
@@ -295,11 +327,21 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_GETTABUP: /*	A B C	R(A) := UpValue[B][RK(C)]			*/
-                        stack[a] = upValues[i >>> 23].getValue().get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        o = upValues[i >>> 23].getValue();
+                        stack[a] = (c = (i >> 14) & 0x1ff) > 0xff ? InlineCache.get(o, k[c & 0x0ff], sites, pc) : o.get(stack[c]);
                         continue;
 
+                    case Lua.OP_GETTABLE2: /*	A B C	R(A):= R(B)[RK(C)], then the OP_GETTABLE that follows	*/
+                        o = stack[i >>> 23];
+                        stack[a] = (c = (i >> 14) & 0x1ff) > 0xff ? InlineCache.get(o, k[c & 0x0ff], sites, pc) : o.get(stack[c]);
+                        i = code[++pc];
+                        if (debuglib != null)
+                            debuglib.onInstruction(pc, top);
+                        a = ((i >> 6) & 0xff);
+                        // fall through
                     case Lua.OP_GETTABLE: /*	A B C	R(A):= R(B)[RK(C)]				*/
-                        stack[a] = stack[i >>> 23].get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        o = stack[i >>> 23];
+                        stack[a] = (c = (i >> 14) & 0x1ff) > 0xff ? InlineCache.get(o, k[c & 0x0ff], sites, pc) : o.get(stack[c]);
                         continue;
 
                     case Lua.OP_SETTABUP: /*	A B C	UpValue[A][RK(B)] := RK(C)	*/
@@ -317,16 +359,16 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_NEWTABLE: /*	A B C	R(A):= {} (size = B,C)				*/
-                        stack[a] = new LuaTable(globals, i >>> 23, (i >> 14) & 0x1ff);
+                        stack[a] = new LuaTable(globals, Lua.fb2int(i >>> 23), Lua.fb2int((i >> 14) & 0x1ff));
                         continue;
 
                     case Lua.OP_NEWLIST: /*	A B C	R(A):= {} (size = B,C)				*/
-                        stack[a] = new LuaList(i >>> 23);
+                        stack[a] = new LuaList(Lua.fb2int(i >>> 23));
                         continue;
 
                     case Lua.OP_SELF: /*	A B C	R(A+1):= R(B): R(A):= R(B)[RK(C)]		*/
                         stack[a + 1] = (o = stack[i >>> 23]);
-                        stack[a] = o.get((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        stack[a] = (c = (i >> 14) & 0x1ff) > 0xff ? InlineCache.get(o, k[c & 0x0ff], sites, pc) : o.get(stack[c]);
                         continue;
 
                     case Lua.OP_IDIV: /*	A B C	R(A):= RK(B) + RK(C)				*/
@@ -358,22 +400,53 @@ public class LuaClosure extends LuaFunction {
                         continue;
 
                     case Lua.OP_ADD: /*	A B C	R(A):= RK(B) + RK(C)				*/
-                        /*rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
                         rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
-                        stack[a] = (rb).add(rc);*/
-                        stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).add((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        /* same-typed number operands skip the double dispatch through LuaNumber */
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+                            stack[a] = LuaInteger.valueOf(((LuaInteger) rb).v + ((LuaInteger) rc).v);
+                        else if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+                            stack[a] = LuaDouble.valueOf(((LuaDouble) rb).v + ((LuaDouble) rc).v);
+                        else
+                            stack[a] = rb.add(rc);
                         continue;
 
                     case Lua.OP_SUB: /*	A B C	R(A):= RK(B) - RK(C)				*/
-                        stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).sub((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+                            stack[a] = LuaInteger.valueOf(((LuaInteger) rb).v - ((LuaInteger) rc).v);
+                        else if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+                            stack[a] = LuaDouble.valueOf(((LuaDouble) rb).v - ((LuaDouble) rc).v);
+                        else
+                            stack[a] = rb.sub(rc);
                         continue;
 
                     case Lua.OP_MUL: /*	A B C	R(A):= RK(B) * RK(C)				*/
-                        stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).mul((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+                            stack[a] = LuaInteger.valueOf(((LuaInteger) rb).v * ((LuaInteger) rc).v);
+                        else if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+                            stack[a] = LuaDouble.valueOf(((LuaDouble) rb).v * ((LuaDouble) rc).v);
+                        else
+                            stack[a] = rb.mul(rc);
                         continue;
 
                     case Lua.OP_DIV: /*	A B C	R(A):= RK(B) / RK(C)				*/
-                        stack[a] = ((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).div((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]);
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+                            stack[a] = LuaDouble.ddiv(((LuaInteger) rb).v, ((LuaInteger) rc).v);
+                        else if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+                            stack[a] = LuaDouble.ddiv(((LuaDouble) rb).v, ((LuaDouble) rc).v);
+                        else
+                            stack[a] = rb.div(rc);
+                        continue;
+
+                    case Lua.OP_ARITHCHAIN: /*	A B C	R(A>>2):= RK(B) op RK(C), then the arithmetic that follows	*/
+                        /* hooks see every instruction, so they only get the first one here */
+                        pc = arithchain(code, pc, k, stack, debuglib == null && profile == null);
                         continue;
 
                     case Lua.OP_MOD: /*	A B C	R(A):= RK(B) % RK(C)				*/
@@ -401,38 +474,95 @@ public class LuaClosure extends LuaFunction {
                         c = (i >> 14) & 0x1ff;
                         if (c > b + 1) {
                             Buffer sb = stack[c].buffer();
-                            while (--c >= b)
+                            while (--c > b)
                                 sb = stack[c].concat(sb);
-                            stack[a] = sb.value();
+                            // the first operand last, so that it can be appended to in place
+                            stack[a] = stack[b].concat(sb.value());
                         } else {
                             stack[a] = stack[c - 1].concat(stack[c]);
                         }
                         continue;
 
+                    case Lua.OP_TESTJMP: /*	A C	if not (R(A) <=> C) then pc++ else the OP_JMP that follows	*/
+                        if (stack[a].toboolean() != ((i & (0x1ff << 14)) != 0)) {
+                            ++pc;
+                            continue;
+                        }
+                        i = code[++pc];
+                        if (debuglib != null)
+                            debuglib.onInstruction(pc, top);
+                        a = ((i >> 6) & 0xff);
+                        // fall through
                     case Lua.OP_JMP: /*	sBx	pc+=sBx					*/
                         pc += (i >>> 14) - 0x1ffff;
-                        if (a > 0) {
-                            for (--a, b = openups.length; --b >= 0; )
-                                if (openups[b] != null && openups[b].index >= a) {
-                                    openups[b].close();
-                                    openups[b] = null;
-                                }
-                        }
+                        if (a > 0)
+                            closeUpvalues(openups, a - 1);
                         continue;
 
                     case Lua.OP_EQ: /*	A B C	if ((RK(B) == RK(C)) ~= A) then pc++		*/
-                        if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).eq_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((((LuaInteger) rb).v == ((LuaInteger) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+                            if ((((LuaDouble) rb).v == ((LuaDouble) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb.eq_b(rc) != (a != 0))
                             ++pc;
                         continue;
 
                     case Lua.OP_LT: /*	A B C	if ((RK(B) <  RK(C)) ~= A) then pc++  		*/
-                        if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).lt_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((((LuaInteger) rb).v < ((LuaInteger) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+                            if ((((LuaDouble) rb).v < ((LuaDouble) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb.lt_b(rc) != (a != 0))
                             ++pc;
                         continue;
 
                     case Lua.OP_LE: /*	A B C	if ((RK(B) <= RK(C)) ~= A) then pc++  		*/
-                        if (((b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b]).lteq_b((c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c]) != (a != 0))
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            if ((((LuaInteger) rb).v <= ((LuaInteger) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+                            if ((((LuaDouble) rb).v <= ((LuaDouble) rc).v) != (a != 0))
+                                ++pc;
+                        } else if (rb.lteq_b(rc) != (a != 0))
+                            ++pc;
+                        continue;
+
+                    case Lua.OP_CMPJMP: /*	A B C	if (compare(RK(B), RK(C)) ~= A&1) then pc++ else the OP_JMP that follows	*/
+                        rb = (b = i >>> 23) > 0xff ? k[b & 0x0ff] : stack[b];
+                        rc = (c = (i >> 14) & 0x1ff) > 0xff ? k[c & 0x0ff] : stack[c];
+                        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+                            long x = ((LuaInteger) rb).v, y = ((LuaInteger) rc).v;
+                            if ((a < 2 ? x == y : a < 4 ? x < y : x <= y) != ((a & 1) != 0)) {
+                                ++pc;
+                                continue;
+                            }
+                        } else if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+                            double x = ((LuaDouble) rb).v, y = ((LuaDouble) rc).v;
+                            if ((a < 2 ? x == y : a < 4 ? x < y : x <= y) != ((a & 1) != 0)) {
+                                ++pc;
+                                continue;
+                            }
+                        } else if (compare(a >> 1, rb, rc) != ((a & 1) != 0)) {
                             ++pc;
+                            continue;
+                        }
+                        i = code[++pc];
+                        if (debuglib != null)
+                            debuglib.onInstruction(pc, top);
+                        pc += (i >>> 14) - 0x1ffff;
+                        if ((a = ((i >> 6) & 0xff)) > 0)
+                            closeUpvalues(openups, a - 1);
                         continue;
 
                     case Lua.OP_TEST: /*	A C	if not (R(A) <=> C) then pc++			*/
@@ -448,28 +578,21 @@ public class LuaClosure extends LuaFunction {
                             stack[a] = o; // TODO: should be sBx?
                         continue;
 
-                    case Lua.OP_TCALL:
-                        b = i >>> 23;
-                        c = (i >> 14) & 0x1ff;
-                        try {
-                            Varargs ret = stack[a].invoke();
-                            if (ret != null && ret != NONE)
-                                return ret;
-                        } catch (Exception e) {
-                            if (b > 0) {
-                                Varargs ret = stack[b].invoke(CoerceJavaToLua.coerce(e.getMessage()));
-                                if (ret != null && ret != NONE)
-                                    return ret;
-                            }
-                        } finally {
-                            if (c > 0) {
-                                Varargs ret = stack[c].invoke();
-                                if (ret != null && ret != NONE)
-                                    return ret;
-                            }
-                        }
-                        continue;
+                    case Lua.OP_TCALL: {
+                        Varargs ret = tcall(stack, a, i >>> 23, (i >> 14) & 0x1ff);
+                        if (ret != null)
+                            return ret;
+                    }
+                    continue;
 
+                    case Lua.OP_GETTABLECALL: /*	A B C	R(A):= R(B)[RK(C)], then the OP_CALL that follows	*/
+                        o = stack[i >>> 23];
+                        stack[a] = (c = (i >> 14) & 0x1ff) > 0xff ? InlineCache.get(o, k[c & 0x0ff], sites, pc) : o.get(stack[c]);
+                        i = code[++pc];
+                        if (debuglib != null)
+                            debuglib.onInstruction(pc, top);
+                        a = ((i >> 6) & 0xff);
+                        // fall through
                     case Lua.OP_CALL: /*	A B C	R(A), ... ,R(A+C-2):= R(A)(R(A+1), ... ,R(A+B-1)) */
 
                         switch (i & (Lua.MASK_B | Lua.MASK_C)) {
@@ -538,38 +661,41 @@ public class LuaClosure extends LuaFunction {
                                 v = b > 0 ?
                                         varargsOf(stack, a + 1, b - 1) : // exact arg count
                                         varargsOf(stack, a + 1, top - v.narg() - (a + 1), v); // from prev top
-                                return new TailcallVarargs(stack[a], v);
+                                return new TailcallVarargs(stack[a], v.dealias());
                         }
 
                     case Lua.OP_RETURN: /*	A B	return R(A), ... ,R(A+B-2)	(see note)	*/
                         b = i >>> 23;
                         switch (b) {
                             case 0:
-                                return varargsOf(stack, a, top - v.narg() - a, v);
+                                return varargsOf(stack, a, top - v.narg() - a, v).dealias();
                             case 1:
                                 return NONE;
                             case 2:
                                 return stack[a];
                             default:
-                                return varargsOf(stack, a, b - 1);
+                                return varargsOf(stack, a, b - 1).dealias();
                         }
 
-                    case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/ {
-                        double limit = istack[a + 1];
-                        double step = istack[a + 2];
-                        double idx = istack[a] + step;
-                        int a3 = a + 3;
-                        if (step > 0 ? idx <= limit : idx >= limit) {
-                            istack[a] = idx;
-                            stack[a3] = LuaDouble.valueOf(idx);
-                            //istack[a3] = idx;
-                            /*if (stack[a3] instanceof LuaVarDouble)
-                                ((LuaVarDouble) stack[a3]).setValue(idx);
-                            else
-                                stack[a3] = vstack[a3].setValue(idx);*/
-
-                            /*stack[a3] = vstack[a3].setValue(idx);*/
-                            pc += (i >>> 14) - 0x1ffff;
+                    case Lua.OP_FORLOOP: /*	A sBx	R(A)+=R(A+2): if R(A) <?= R(A+1) then { pc+=sBx: R(A+3)=R(A) }*/
+                        if (stack[a + 2] instanceof LuaInteger) {
+                            /* integer loop: lstack[a] is the index, lstack[a + 1] the iterations left */
+                            if (lstack[a + 1] != 0) {
+                                --lstack[a + 1];
+                                stack[a + 3] = LuaInteger.valueOf(lstack[a] += lstack[a + 2]);
+                                pc += (i >>> 14) - 0x1ffff;
+                            }
+                            continue;
+                        } else {
+                            double limit = istack[a + 1];
+                            double step = istack[a + 2];
+                            double idx = istack[a] + step;
+                            int a3 = a + 3;
+                            if (step > 0 ? idx <= limit : idx >= limit) {
+                                istack[a] = idx;
+                                stack[a3] = LuaDouble.valueOf(idx);
+                                pc += (i >>> 14) - 0x1ffff;
+                            }
                         }
                         /*LuaValue limit = stack[a + 1];
                         LuaValue step = stack[a + 2];
@@ -579,18 +705,47 @@ public class LuaClosure extends LuaFunction {
                             stack[a + 3] = idx;
                             pc += (i >>> 14) - 0x1ffff;
                         }*/
-                    }
                     continue;
 
                     case Lua.OP_FORPREP: /*	A sBx	R(A)-=R(A+2): pc+=sBx				*/ {
                         LuaValue init = stack[a].checknumber("'for' initial value must be a number");
                         LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
                         LuaValue step = stack[a + 2].checknumber("'for' step must be a number");
+                        if (init instanceof LuaInteger && step instanceof LuaInteger && ((LuaInteger) step).v != 0) {
+                            /* integer loop: count the iterations up front so the index never overflows */
+                            long istart = ((LuaInteger) init).v;
+                            long istep = ((LuaInteger) step).v;
+                            long ilimit;
+                            if (limit instanceof LuaInteger) {
+                                ilimit = ((LuaInteger) limit).v;
+                            } else {
+                                double d = limit.todouble();
+                                if (Double.isNaN(d)) {
+                                    pc += (i >>> 14) - 0x1ffff + 1; /* skip the loop */
+                                    continue;
+                                }
+                                ilimit = (long) (istep > 0 ? Math.floor(d) : Math.ceil(d));
+                            }
+                            if (istep > 0 ? istart > ilimit : istart < ilimit) {
+                                pc += (i >>> 14) - 0x1ffff + 1; /* skip the loop */
+                                continue;
+                            }
+                            lstack[a] = istart;
+                            lstack[a + 1] = istep > 0 ?
+                                    Long.divideUnsigned(ilimit - istart, istep) :
+                                    Long.divideUnsigned(istart - ilimit, -(istep + 1) + 1);
+                            lstack[a + 2] = istep;
+                            stack[a] = init;
+                            stack[a + 1] = LuaInteger.valueOf(ilimit);
+                            stack[a + 2] = step;
+                            stack[a + 3] = init;
+                            /* fall through into the loop body */
+                            continue;
+                        }
                         stack[a] = init.sub(step);
                         stack[a + 1] = limit;
-                        stack[a + 2] = step;
-                        /*vstack[a + 3] = new LuaVarDouble(0);
-                        stack[a + 3] = vstack[a + 3];*/
+                        /* a float step marks the loop as a double loop for OP_FORLOOP */
+                        stack[a + 2] = new LuaDouble(step.todouble());
                         istack[a] = stack[a].todouble();
                         istack[a + 1] = stack[a + 1].todouble();
                         istack[a + 2] = stack[a + 2].todouble();
@@ -599,16 +754,22 @@ public class LuaClosure extends LuaFunction {
                     continue;
 
                     case Lua.OP_TFOREACH: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-                        v = stack[a].next(stack[a + 2]);
                         c = (i >> 14) & 0x1ff;
+                        if (stack[a] instanceof LuaTable && ((LuaTable) stack[a]).iterable()) {
+                            cursors[a] = ((LuaTable) stack[a]).next(stack[a + 2], cursors[a], stack, a + 3, c);
+                            continue;
+                        }
+                        v = stack[a].next(stack[a + 2]);
                         while (--c >= 0)
                             stack[a + 3 + c] = v.arg(c + 1);
                         v = NONE;
                         continue;
 
                     case Lua.OP_TFORCALL: /* A C	R(A+3), ... ,R(A+2+C) := R(A)(R(A+1), R(A+2));	*/
-                        v = stack[a].invoke(varargsOf(stack[a + 1], stack[a + 2]));
                         c = (i >> 14) & 0x1ff;
+                        if (tforcall(stack, a, c, cursors))
+                            continue;
+                        v = stack[a].invoke(varargsOf(stack[a + 1], stack[a + 2]));
                         while (--c >= 0)
                             stack[a + 3 + c] = v.arg(c + 1);
                         v = NONE;
@@ -627,24 +788,19 @@ public class LuaClosure extends LuaFunction {
                         int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
                         o = stack[a];
                         if ((b = i >>> 23) == 0) {
-                            b = top - a - 1;
-                            int m = b - v.narg();
-                            int j = 1;
-                            for (; j <= m; j++)
-                                o.set(offset + j, stack[a + j]);
-                            for (; j <= b; j++)
-                                o.set(offset + j, v.arg(j - m));
+                            int m = top - a - 1 - v.narg();
+                            if (m > 0)
+                                o.checktable().setlist(offset, stack, a + 1, m);
+                            o.checktable().setlist(offset + Math.max(m, 0), v);
                         } else {
-                            o.presize(offset + b);
-                            for (int j = 1; j <= b; j++)
-                                o.set(offset + j, stack[a + j]);
+                            o.checktable().setlist(offset, stack, a + 1, b);
                         }
                     }
                     continue;
 
                     case Lua.OP_CLOSURE: /*	A Bx	R(A):= closure(KPROTO[Bx])	*/ {
                         Prototype newp = p.p[i >>> 14];
-                        LuaClosure ncl = new LuaClosure(newp, globals, getfenv());
+                        LuaClosure ncl = instantiate(newp, globals, getfenv());
                         Upvaldesc[] uv = newp.upvalues;
                         for (int j = 0, nup = uv.length; j < nup; ++j) {
                             if (uv[j].instack)  /* upvalue refes to local variable? */
@@ -676,28 +832,8 @@ public class LuaClosure extends LuaFunction {
                         throw new IllegalArgumentException("Illegal opcode: " + (i & 0x3f));
                 }
             }
-        } catch (LuaError le) {
-                le.printStackTrace();
-            le.varname = getVarName(p, pc, stack);
-            callDefer(deferList, CoerceJavaToLua.coerce(le.getMessage()));
-            if (le.traceback == null)
-                processErrorHooks(le, p, pc);
-
-            throw le;
-        } catch (Exception e) {
-                e.printStackTrace();
-            callDefer(deferList, CoerceJavaToLua.coerce(e.getMessage()));
-            LuaError le = new LuaError(e);
-            le.varname = getVarName(p, pc, stack);
-            processErrorHooks(le, p, pc);
-            throw le;
         } catch (Throwable t) {
-                t.printStackTrace();
-            callDefer(deferList, CoerceJavaToLua.coerce(t.getMessage()));
-            LuaError le = new LuaError(t);
-            le.varname = getVarName(p, pc, stack);
-            processErrorHooks(le, p, pc);
-            throw le;
+            throw fail(t, pc, stack, deferList);
         } finally {
             callDefer(deferList, this);
             if (openups != null)
@@ -706,10 +842,178 @@ public class LuaClosure extends LuaFunction {
                         openups[u].close();
             if (globals != null && globals.debuglib != null)
                 globals.debuglib.onReturn();
+            if (profile != null)
+                profile.exit();
+            frames.pop(stack, size);
         }
     }
 
-    private void callDefer(ArrayList<LuaValue> deferList, LuaValue value) {
+    /**
+     * Evaluate the comparison of a {@link Lua#OP_CMPJMP}, {@link Lua#OP_EQ} when
+     * {@code kind} is 0, {@link Lua#OP_LT} when 1 and {@link Lua#OP_LE} when 2.
+     */
+    private static boolean compare(int kind, LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            long x = ((LuaInteger) rb).v, y = ((LuaInteger) rc).v;
+            return kind == 0 ? x == y : kind == 1 ? x < y : x <= y;
+        }
+        if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+            double x = ((LuaDouble) rb).v, y = ((LuaDouble) rc).v;
+            return kind == 0 ? x == y : kind == 1 ? x < y : x <= y;
+        }
+        return kind == 0 ? rb.eq_b(rc) : kind == 1 ? rb.lt_b(rc) : rb.lteq_b(rc);
+    }
+
+    /**
+     * Run the {@link Lua#OP_ARITHCHAIN} at {@code pc} and, if {@code chain} is
+     * set, the arithmetic that follows it for as long as both operands are
+     * numbers of the same type. The compiler only writes one when its result
+     * is a temporary read by the next instruction alone, so intermediate results
+     * are handed on as a long or a double and only the last one is boxed. A
+     * double holding an int stops the chain, as boxing makes it a LuaInteger.
+     *
+     * @return the pc of the last instruction run
+     */
+    private static int arithchain(int[] code, int pc, LuaValue[] k, LuaValue[] stack, boolean chain) {
+        int i = Lua.unfuse(code[pc]);
+        int op = i & 0x3f, a = (i >> 6) & 0xff, b = i >>> 23, c = (i >> 14) & 0x1ff;
+        LuaValue rb = b > 0xff ? k[b & 0x0ff] : stack[b];
+        LuaValue rc = c > 0xff ? k[c & 0x0ff] : stack[c];
+        long l = 0;
+        double d = 0;
+        boolean integer;
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger) {
+            long x = ((LuaInteger) rb).v, y = ((LuaInteger) rc).v;
+            if (integer = op != Lua.OP_DIV)
+                l = op == Lua.OP_ADD ? x + y : op == Lua.OP_SUB ? x - y : x * y;
+            else
+                d = LuaDouble.ddiv_d(x, y);
+        } else if (rb instanceof LuaDouble && rc instanceof LuaDouble) {
+            double x = ((LuaDouble) rb).v, y = ((LuaDouble) rc).v;
+            d = op == Lua.OP_ADD ? x + y : op == Lua.OP_SUB ? x - y : op == Lua.OP_MUL ? x * y : LuaDouble.ddiv_d(x, y);
+            integer = false;
+        } else {
+            stack[a] = op == Lua.OP_ADD ? rb.add(rc) : op == Lua.OP_SUB ? rb.sub(rc) : op == Lua.OP_MUL ? rb.mul(rc) : rb.div(rc);
+            return pc;
+        }
+        while (chain && (code[pc] & 0x3f) == Lua.OP_ARITHCHAIN && (integer || (int) d != d)) {
+            i = Lua.unfuse(code[pc + 1]);
+            b = i >>> 23;
+            c = (i >> 14) & 0x1ff;
+            /* R(a) is one operand, the other one is loaded as usual */
+            LuaValue o = b == a ? (c > 0xff ? k[c & 0x0ff] : stack[c]) : (b > 0xff ? k[b & 0x0ff] : stack[b]);
+            if (integer ? !(o instanceof LuaInteger) : !(o instanceof LuaDouble))
+                break;
+            op = i & 0x3f;
+            if (integer) {
+                long x = b == a ? l : ((LuaInteger) o).v, y = b == a ? ((LuaInteger) o).v : l;
+                if (integer = op != Lua.OP_DIV)
+                    l = op == Lua.OP_ADD ? x + y : op == Lua.OP_SUB ? x - y : x * y;
+                else
+                    d = LuaDouble.ddiv_d(x, y);
+            } else {
+                double x = b == a ? d : ((LuaDouble) o).v, y = b == a ? ((LuaDouble) o).v : d;
+                d = op == Lua.OP_ADD ? x + y : op == Lua.OP_SUB ? x - y : op == Lua.OP_MUL ? x * y : LuaDouble.ddiv_d(x, y);
+            }
+            a = (i >> 6) & 0xff;
+            pc++;
+        }
+        stack[a] = integer ? LuaInteger.valueOf(l) : LuaDouble.valueOf(d);
+        return pc;
+    }
+
+    /**
+     * Run a {@link Lua#OP_TFORCALL} without calling the generator when it is the
+     * {@code next} or {@code inext} of the base library on a table, writing the
+     * {@code c} loop variables straight into the registers. The position of a
+     * {@code next} traversal is kept in {@code cursors[a]}.
+     *
+     * @return false if the generator has to be called
+     */
+    private static boolean tforcall(LuaValue[] stack, int a, int c, int[] cursors) {
+        final LuaValue f = stack[a], s = stack[a + 1];
+        if (!(s instanceof LuaTable))
+            return false;
+        if (f instanceof BaseLib.next) {
+            if (!((LuaTable) s).iterable())
+                return false;
+            cursors[a] = ((LuaTable) s).next(stack[a + 2], cursors[a], stack, a + 3, c);
+            return true;
+        }
+        if (f instanceof BaseLib.inext && stack[a + 2] instanceof LuaInteger) {
+            long k = ((LuaInteger) stack[a + 2]).v;
+            if (k < 0 || k >= Integer.MAX_VALUE)
+                return false;
+            LuaValue v = ((LuaTable) s).rawget((int) ++k);
+            if (v.isnil()) {
+                while (--c >= 0)
+                    stack[a + 3 + c] = NIL;
+                return true;
+            }
+            stack[a + 3] = LuaInteger.valueOf(k);
+            for (int j = 1; j < c; j++)
+                stack[a + 3 + j] = j == 1 ? v : NIL;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Run a {@link Lua#OP_TCALL} block: call {@code stack[a]}, on error the
+     * handler {@code stack[b]} and in any case the finalizer {@code stack[c]}.
+     *
+     * @return the values to return from the enclosing function, or null to go on
+     */
+    protected final Varargs tcall(LuaValue[] stack, int a, int b, int c) {
+        try {
+            Varargs ret = stack[a].invoke();
+            if (ret != null && ret != NONE)
+                return ret;
+        } catch (Exception e) {
+            if (b > 0) {
+                Varargs ret = stack[b].invoke(CoerceJavaToLua.coerce(e.getMessage()));
+                if (ret != null && ret != NONE)
+                    return ret;
+            }
+        } finally {
+            if (c > 0) {
+                Varargs ret = stack[c].invoke();
+                if (ret != null && ret != NONE)
+                    return ret;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Read {@code t[key]} for a constant key through the {@link InlineCache} of instruction {@code pc}.
+     */
+    protected final LuaValue getcached(LuaValue t, LuaValue key, int pc) {
+        return InlineCache.get(t, key, p.inlineCaches(), pc);
+    }
+
+    /**
+     * Turn an error raised at {@code pc} into the {@link LuaError} to throw,
+     * running the deferred functions and error hooks on the way.
+     */
+    protected LuaError fail(Throwable t, int pc, LuaValue[] stack, ArrayList<LuaValue> deferList) {
+        t.printStackTrace();
+        if (t instanceof LuaError) {
+            LuaError le = (LuaError) t;
+            le.varname = getVarName(p, pc, stack);
+            callDefer(deferList, CoerceJavaToLua.coerce(le.getMessage()));
+            if (le.traceback == null)
+                processErrorHooks(le, p, pc);
+            return le;
+        }
+        callDefer(deferList, CoerceJavaToLua.coerce(t.getMessage()));
+        LuaError le = new LuaError(t);
+        le.varname = getVarName(p, pc, stack);
+        processErrorHooks(le, p, pc);
+        return le;
+    }
+
+    protected final void callDefer(ArrayList<LuaValue> deferList, LuaValue value) {
         if(deferList==null||deferList.isEmpty())
             return;
         for (int i1 = deferList.size() - 1; i1 >= 0; i1--) {
@@ -776,7 +1080,7 @@ public class LuaClosure extends LuaFunction {
             return "'?'";
         }
 
-        i = p.code[pc];
+        i = Lua.unfuse(p.code[pc]);
         a = ((i >> 6) & 0xff);
         b = i >>> 23;
         c = (i >> 14) & 0x1ff;
@@ -803,7 +1107,18 @@ public class LuaClosure extends LuaFunction {
         }
     }
 
-    private UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
+    /**
+     * Close the open upvalues of registers {@code a} and above, as done by {@link Lua#OP_JMP}.
+     */
+    protected static void closeUpvalues(UpValue[] openups, int a) {
+        for (int b = openups.length; --b >= 0; )
+            if (openups[b] != null && openups[b].index >= a) {
+                openups[b].close();
+                openups[b] = null;
+            }
+    }
+
+    protected final UpValue findupval(LuaValue[] stack, short idx, UpValue[] openups) {
         final int n = openups.length;
         for (int i = 0; i < n; ++i)
             if (openups[i] != null && openups[i].index == idx)
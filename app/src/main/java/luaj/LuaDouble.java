@@ -498,6 +498,13 @@ public class LuaDouble extends LuaNumber {
     }
 
     public String tojstring() {
+        return tojstring(v);
+    }
+
+    /**
+     * Format a float the way {@link #tojstring()} does, without boxing it.
+     */
+    static String tojstring(double v) {
 		/*
 		if ( v == 0.0 ) { // never occurs in J2me 
 			long bits = Double.doubleToLongBits( v );
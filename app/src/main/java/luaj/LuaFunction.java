@@ -41,6 +41,9 @@ public class LuaFunction extends LuaValue {
 	public static LuaValue s_metatable;
 	private LuaValue env;
 
+	/** values of weak tables this function is a key of, see {@link WeakTable.Ephemeron} */
+	WeakTable.Ephemeron ephemerons;
+
 	public LuaFunction() {
 		this.env = NIL;
 	}
@@ -42,11 +42,34 @@ import luaj.lib.MathLib;
  */
 public class LuaInteger extends LuaNumber {
 
-    private static final LuaInteger[] intValues = new LuaInteger[512];
+    /**
+     * Smallest value held in the small integer cache.
+     */
+    public static final int CACHE_LOW = -256;
+
+    /**
+     * Largest value held in the small integer cache, 1023 unless the
+     * {@code luaj.integer.cache.high} system property asks for more.
+     */
+    public static final int CACHE_HIGH = cacheHigh();
+
+    private static final LuaInteger[] intValues = new LuaInteger[CACHE_HIGH - CACHE_LOW + 1];
 
     static {
-        for (int i = 0; i < 512; i++)
-            intValues[i] = new LuaInteger(i - 256);
+        for (int i = 0; i < intValues.length; i++)
+            intValues[i] = new LuaInteger(i + CACHE_LOW);
+    }
+
+    private static int cacheHigh() {
+        int high = 1023;
+        try {
+            String prop = System.getProperty("luaj.integer.cache.high");
+            if (prop != null)
+                high = Math.max(high, Math.min(Integer.parseInt(prop.trim()), 1 << 20));
+        } catch (RuntimeException e) {
+            // keep the default
+        }
+        return high;
     }
 
     /**
@@ -68,7 +91,7 @@ public class LuaInteger extends LuaNumber {
     }
 
     public static LuaInteger valueOf(int i) {
-        return i <= 255 && i >= -256 ? intValues[i + 256] : new LuaInteger(i);
+        return i <= CACHE_HIGH && i >= CACHE_LOW ? intValues[i - CACHE_LOW] : new LuaInteger(i);
     }
 
     /**
@@ -80,15 +103,19 @@ public class LuaInteger extends LuaNumber {
      * @see LuaValue#valueOf(double)
      */
     public static LuaInteger valueOf(long i) {
-        return i <= 255 && i >= -256 ? intValues[(int) (i + 256)] : new LuaInteger(i);
+        return i <= CACHE_HIGH && i >= CACHE_LOW ? intValues[(int) i - CACHE_LOW] : new LuaInteger(i);
     }
 
     public static LuaInteger valueOf(double i) {
-        return i <= 255 && i >= -256 ? intValues[(int) (i + 256)] : new LuaInteger((long) i);
+        return i <= CACHE_HIGH && i >= CACHE_LOW ? intValues[(int) i - CACHE_LOW] : new LuaInteger((long) i);
     }
 
+    /**
+     * Get the hash code of the integer {@code x} without boxing it, the same
+     * as {@link #hashCode()} of its {@link LuaInteger}.
+     */
     public static int hashCode(int x) {
-        return x;
+        return (int) (x ^ (long) x >>> 32);
     }
 
     public boolean isint() {
@@ -96,7 +123,7 @@ public class LuaInteger extends LuaNumber {
     }
 
     public boolean isinttype() {
-        return true;
+        return v == (int) v;
     }
 
     public boolean islong() {
@@ -4,7 +4,7 @@ import luaj.compiler.DumpState;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Vector;
 
@@ -16,9 +16,14 @@ public class LuaList extends LuaTable implements Metatable {
     private static final LuaString N = valueOf("n");
 
     /**
-     * the array values
+     * the array values, nil kept as null; slots from {@link #size} on are null
      */
-    private ArrayList<LuaValue> array = new ArrayList<>();
+    private LuaValue[] array = NOVALS;
+
+    /**
+     * number of used slots of {@link #array}
+     */
+    private int size;
 
     /**
      * metatable for this table, or null
@@ -29,7 +34,6 @@ public class LuaList extends LuaTable implements Metatable {
      * Construct empty table
      */
     public LuaList() {
-        array = new ArrayList<>();
     }
 
     /**
@@ -38,12 +42,12 @@ public class LuaList extends LuaTable implements Metatable {
      * @param narray capacity of array part
      */
     public LuaList(int narray) {
-        array = new ArrayList<>(narray);
         presize(narray);
     }
 
     public LuaList(LuaList array) {
-        this.array = new ArrayList<>(array.array);
+        this.array = Arrays.copyOf(array.array, array.size);
+        this.size = array.size;
     }
 
     /**
@@ -62,12 +66,7 @@ public class LuaList extends LuaTable implements Metatable {
      * @param firstarg the index in varargs of the first argument to include in the table
      */
     public LuaList(Varargs varargs, int firstarg) {
-        int nskip = firstarg - 1;
-        int n = Math.max(varargs.narg() - nskip, 0);
-        presize(n, 1);
-        set(N, valueOf(n));
-        for (int i = 1; i <= n; i++)
-            set(i, varargs.arg(i + nskip));
+        addAll(varargs, firstarg);
     }
 
     public LuaTable clone() {
@@ -75,13 +74,18 @@ public class LuaList extends LuaTable implements Metatable {
     }
 
     public void clear() {
-        array.clear();
+        Arrays.fill(array, 0, size, null);
+        size = 0;
     }
 
     public void _const() {
         mConst = true;
     }
 
+    public void concurrent() {
+        throw new LuaError("a list can not be concurrent");
+    }
+
     public LuaValue find(LuaValue v, LuaValue k) {
         Varargs a;
         while (!(a = next(k)).isnil(1)) {
@@ -100,8 +104,8 @@ public class LuaList extends LuaTable implements Metatable {
         int i = 0;
         // check array part
         LuaValue value;
-        for (; i < array.size(); ++i) {
-            if ((value = array.get(i)) != null) {
+        for (; i < size; ++i) {
+            if ((value = array[i]) != null) {
                 func.invoke(LuaInteger.valueOf(i + 1), value);
             }
         }
@@ -130,9 +134,16 @@ public class LuaList extends LuaTable implements Metatable {
     }
 
     public void presize(int narray) {
-        /*for (int i = array.size(); i < narray; i++) {
-            array.add(LuaValue.NIL);
-        }*/
+        if (narray > array.length)
+            array = Arrays.copyOf(array, narray);
+    }
+
+    /**
+     * Make room for {@code n} values, growing the capacity by half at least.
+     */
+    private void ensureCapacity(int n) {
+        if (n > array.length)
+            array = Arrays.copyOf(array, Math.max(n, array.length + (array.length >> 1) + 4));
     }
 
     /**
@@ -141,7 +152,7 @@ public class LuaList extends LuaTable implements Metatable {
      * @return length of the array part, does not relate to count of objects in the table.
      */
     protected int getArrayLength() {
-        return array.size();
+        return size;
     }
 
     /**
@@ -159,6 +170,7 @@ public class LuaList extends LuaTable implements Metatable {
 
     public LuaValue setmetatable(LuaValue metatable) {
         m_metatable = metatableOf(metatable);
+        ++version;
         return this;
     }
 
@@ -173,27 +185,21 @@ public class LuaList extends LuaTable implements Metatable {
     }
 
     public LuaValue rawget(int key) {
-        if (key > 0 && key <= array.size()) {
-            LuaValue v = array.get(key - 1);
+        if (key > 0 && key <= size) {
+            LuaValue v = array[key - 1];
             return v != null ? v : NIL;
         }
         return NIL;
     }
 
     public LuaValue rawget(LuaValue key) {
-        if (key.eq_b(N)) {
+        if (key.isinttype())
+            return rawget(key.toint());
+        if (key instanceof LuaInteger)
+            return NIL;
+        if (key.eq_b(N))
             return LuaInteger.valueOf(rawlen());
-        }
-        if (!key.isinttype())
-            throw new LuaError("array key only integer");
-
-        int ikey = key.toint();
-        if (ikey > 0 && ikey <= array.size()) {
-            LuaValue v = array.get(ikey - 1);
-            return v != null ? v : NIL;
-        } else {
-            return LuaValue.NIL;
-        }
+        throw new LuaError("array key only integer");
     }
 
 
@@ -241,26 +247,81 @@ public class LuaList extends LuaTable implements Metatable {
      * Set an array element
      */
     private boolean arrayset(int key, LuaValue value) {
-        //fullList(key);
-        if (key - 1 == array.size()) {
-            array.add(value);
+        if (key > 0 && key <= size) {
+            array[key - 1] = slot(value);
             return true;
         }
-        if (key > 0 && key <= array.size()) {
-            array.set(key - 1, value.isnil() ? null : value);
+        if (key == size + 1) {
+            ensureCapacity(key);
+            array[size++] = slot(value);
             return true;
         }
         throw new LuaError("array insert position out of bounds");
-        //    return false;
+    }
+
+    /**
+     * Get what to keep in {@link #array} for {@code value}: null for nil.
+     * Tested by identity, as looking into every stored value costs a cache
+     * miss per element when filling large lists.
+     */
+    private static LuaValue slot(LuaValue value) {
+        return value == NIL || value == NONE ? null : value;
     }
 
     private void fullList(int key) {
-        for (int i = array.size(); i < key; i++) {
-            array.add(LuaValue.NIL);
+        if (key > size) {
+            ensureCapacity(key);
+        } else if (key >= 0) {
+            Arrays.fill(array, key, size, null);
+        } else {
+            return;
+        }
+        size = key;
+    }
+
+    /**
+     * Append {@code n} values of {@code values} from {@code offset} on.
+     */
+    public void addAll(LuaValue[] values, int offset, int n) {
+        if (mConst)
+            throw new LuaError("can not be set a const table");
+        ensureCapacity(size + n);
+        System.arraycopy(values, offset, array, size, n);
+        for (int i = size, j = size + n; i < j; i++)
+            array[i] = slot(array[i]);
+        size += n;
+    }
+
+    /**
+     * Append the values of {@code varargs} from index {@code firstarg} on.
+     */
+    public void addAll(Varargs varargs, int firstarg) {
+        if (mConst)
+            throw new LuaError("can not be set a const table");
+        int n = Math.max(varargs.narg() - firstarg + 1, 0);
+        ensureCapacity(size + n);
+        for (int i = 0; i < n; i++) {
+            array[size + i] = slot(varargs.arg(firstarg + i));
         }
-        for (int i = array.size() - 1; i >= key; i--) {
-            array.remove(i);
+        size += n;
+    }
+
+    public void setlist(int offset, LuaValue[] values, int from, int n) {
+        if (offset == size && m_metatable == null) {
+            addAll(values, from, n);
+            return;
+        }
+        for (int j = 0; j < n; j++)
+            set(offset + j + 1, values[from + j]);
+    }
+
+    public void setlist(int offset, Varargs values) {
+        if (offset == size && m_metatable == null) {
+            addAll(values, 1);
+            return;
         }
+        for (int j = 1, n = values.narg(); j <= n; j++)
+            set(offset + j, values.arg(j));
     }
 
     /**
@@ -275,9 +336,12 @@ public class LuaList extends LuaTable implements Metatable {
             pos = n;
         else if (pos > n)
             return NONE;
-        LuaValue v = rawget(pos);
-        array.remove(pos - 1);
-        return v.isnil() ? NONE : v;
+        if (pos < 1 || pos > size)
+            return NONE;
+        LuaValue v = array[pos - 1];
+        System.arraycopy(array, pos, array, pos - 1, size - pos);
+        array[--size] = null;
+        return v == null ? NONE : v;
     }
 
     /**
@@ -289,12 +353,12 @@ public class LuaList extends LuaTable implements Metatable {
     public void insert(int pos, LuaValue value) {
         if (pos == 0)
             pos = rawlen() + 1;
-        if (pos == array.size() + 1)
-            array.add(value);
-        else if (pos > 0 && pos <= array.size())
-            array.add(pos, value);
-        else
+        if (pos <= 0 || pos > size + 1)
             throw new LuaError("array insert position out of bounds");
+        ensureCapacity(size + 1);
+        System.arraycopy(array, pos - 1, array, pos, size - pos + 1);
+        array[pos - 1] = slot(value);
+        ++size;
     }
 
     /**
@@ -307,6 +371,15 @@ public class LuaList extends LuaTable implements Metatable {
      */
     public LuaValue concat(LuaString sep, int i, int j) {
         Buffer sb = new Buffer();
+        if (i > 0 && j <= size && m_metatable == null) {
+            for (int k = i; k <= j; k++) {
+                if (k > i)
+                    sb.append(sep);
+                LuaValue v = array[k - 1];
+                sb.append((v != null ? v : NIL).checkstring());
+            }
+            return sb.tostring();
+        }
         if (i <= j) {
             sb.append(get(i).checkstring());
             while (++i <= j) {
@@ -329,8 +402,9 @@ public class LuaList extends LuaTable implements Metatable {
     }
 
     public int rawlen() {
-        int a = getArrayLength();
-        int n = a + 1, m = 0;
+        if (size == 0 || array[size - 1] != null)
+            return size;
+        int n = size, m = 0;
         while (n > m + 1) {
             int k = (n + m) / 2;
             if (!rawget(k).isnil())
@@ -341,6 +415,10 @@ public class LuaList extends LuaTable implements Metatable {
         return m;
     }
 
+    boolean iterable() {
+        return false;
+    }
+
     /**
      * Get the next element after a particular key in the table
      *
@@ -349,12 +427,10 @@ public class LuaList extends LuaTable implements Metatable {
     public Varargs next(LuaValue key) {
         int i = key.isnil() ? 0 : key.checkint();
         // check array part
-        for (; i < array.size(); ++i) {
-            if (array.get(i) != null) {
-                LuaValue value = array.get(i);
-                if (value != null) {
-                    return varargsOf(LuaInteger.valueOf(i + 1), value);
-                }
+        for (; i < size; ++i) {
+            LuaValue value = array[i];
+            if (value != null) {
+                return varargsOf(LuaInteger.valueOf(i + 1), value);
             }
         }
 
@@ -377,7 +453,7 @@ public class LuaList extends LuaTable implements Metatable {
 
     // ----------------- sort support -----------------------------
     //
-    // implemented heap sort from wikipedia
+    // sorted in place by LuaTable.sort(LuaValue[], int, LuaValue)
     //
     // Only sorts the contiguous array part.
     //
@@ -388,55 +464,11 @@ public class LuaList extends LuaTable implements Metatable {
      * @param comparator {@link LuaValue} to be called to compare elements.
      */
     public void sort(LuaValue comparator) {
-        int n = array.size();
-        while (n > 0 && array.get(n - 1) == null)
+        int n = size;
+        while (n > 0 && array[n - 1] == null)
             --n;
         if (n > 1)
-            heapSort(n, comparator);
-    }
-
-    private void heapSort(int count, LuaValue cmpfunc) {
-        heapify(count, cmpfunc);
-        for (int end = count - 1; end > 0; ) {
-            swap(end, 0);
-            siftDown(0, --end, cmpfunc);
-        }
-    }
-
-    private void heapify(int count, LuaValue cmpfunc) {
-        for (int start = count / 2 - 1; start >= 0; --start)
-            siftDown(start, count - 1, cmpfunc);
-    }
-
-    private void siftDown(int start, int end, LuaValue cmpfunc) {
-        for (int root = start; root * 2 + 1 <= end; ) {
-            int child = root * 2 + 1;
-            if (child < end && compare(child, child + 1, cmpfunc))
-                ++child;
-            if (compare(root, child, cmpfunc)) {
-                swap(root, child);
-                root = child;
-            } else
-                return;
-        }
-    }
-
-    private boolean compare(int i, int j, LuaValue cmpfunc) {
-        LuaValue a = array.get(i);
-        LuaValue b = array.get(j);
-        if (a == null || b == null)
-            return false;
-        if (!cmpfunc.isnil()) {
-            return cmpfunc.call(a, b).toboolean();
-        } else {
-            return a.lt_b(b);
-        }
-    }
-
-    private void swap(int i, int j) {
-        LuaValue a = array.get(i);
-        array.set(i, array.get(j));
-        array.set(j, a);
+            sort(array, n, comparator.isnil() ? null : comparator);
     }
 
     /**
@@ -490,14 +522,14 @@ public class LuaList extends LuaTable implements Metatable {
      * Unpack all the elements of this table
      */
     public Varargs unpack() {
-        return unpack(1, array.size());
+        return unpack(1, size);
     }
 
     /**
      * Unpack all the elements of this table from element i
      */
     public Varargs unpack(int i) {
-        return unpack(i, array.size());
+        return unpack(i, size);
     }
 
     /**
@@ -516,6 +548,13 @@ public class LuaList extends LuaTable implements Metatable {
                 if (n < 0)
                     return NONE;
                 LuaValue[] v = new LuaValue[n];
+                if (i > 0 && j <= size && m_metatable == null) {
+                    System.arraycopy(array, i - 1, v, 0, n);
+                    while (--n >= 0)
+                        if (v[n] == null)
+                            v[n] = NIL;
+                    return varargsOf(v);
+                }
                 while (--n >= 0)
                     v[n] = get(i + n);
                 return varargsOf(v);
@@ -525,9 +564,8 @@ public class LuaList extends LuaTable implements Metatable {
     public int size() {
         int len = 0;
         // check array part
-        int i = 0;
-        for (; i < array.size(); ++i) {
-            if (array.get(i) != null) {
+        for (int i = 0; i < size; ++i) {
+            if (array[i] != null) {
                 len++;
             }
         }
@@ -586,8 +624,8 @@ public class LuaList extends LuaTable implements Metatable {
         LuaValue value;
         // check array part
         int i = 0;
-        for (; i < array.size(); ++i) {
-            if ((value = array.get(i)) != null) {
+        for (; i < size; ++i) {
+            if ((value = array[i]) != null) {
                 if (value != null) {
                     for (int i1 = 0; i1 < idx; i1++) {
                         buf.append(" ");
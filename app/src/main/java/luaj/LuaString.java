@@ -29,6 +29,11 @@ import java.io.DataOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.PrintStream;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
  * Subclass of {@link LuaValue} for representing lua strings.
@@ -45,6 +50,11 @@ import java.io.PrintStream;
  * Constructors are not exposed directly.  As with number, booleans, and nil,
  * instance construction should be via {@link LuaValue#valueOf(byte[])} or similar API.
  * <p>
+ * Strings made from short Java Strings by {@link #valueOf(String)} are interned:
+ * as long as one is alive, the same Java String gives the same {@link LuaString},
+ * so that the names converted again and again at the Java boundary are
+ * neither encoded nor allocated twice and compare by identity.
+ * <p>
  * Because of this pooling, users of LuaString <em>must not directly alter the
  * bytes in a LuaString</em>, or undefined behavior will result.
  * <p>
@@ -89,7 +99,9 @@ public class LuaString extends LuaValue {
     public final int m_length;
 
     /**
-     * The hashcode for this string.  Computed at construct time.
+     * The hashcode for this string, computed on first use; 0 until then.
+     * A single field, so that a string shared between threads never shows
+     * a hash code that is not computed yet.
      */
     private int m_hashcode;
 
@@ -106,9 +118,36 @@ public class LuaString extends LuaValue {
      * Exposed to package for testing.
      */
     static final int RECENT_STRINGS_MAX_LENGTH = 32;
+
+    /**
+     * Maximum length of a Java String to be interned by {@link #valueOf(String)}.
+     */
+    static final int INTERN_MAX_LENGTH = 256;
+
+    /**
+     * Maximum number of interned strings; past it new strings are still
+     * made, just not interned until some of the others are collected.
+     */
+    static final int INTERN_MAX_SIZE = 1 << 16;
+
+    /**
+     * Size of the cache of strings recently converted to Java Strings.
+     */
+    static final int JAVA_STRINGS_CACHE_SIZE = 1024;
+
+    /**
+     * Maximum length of a string to go in the cache of strings recently
+     * converted to Java Strings.
+     */
+    static final int JAVA_STRINGS_MAX_LENGTH = 64;
+
+    /**
+     * Number of code points between two entries of the code point index.
+     */
+    static final int CODEPOINT_STRIDE = 32;
     private char[] m_chars;
     private String m_string;
-    private boolean isHascode;
+    private CodePoints m_codepoints;
 
     public char[] toCharArray() {
         if (m_chars == null)
@@ -128,6 +167,99 @@ public class LuaString extends LuaValue {
                 new LuaString[RECENT_STRINGS_CACHE_SIZE];
     }
 
+    /**
+     * Simple cache of strings recently converted to Java Strings, indexed
+     * like {@link RecentShortStrings}. A string made anew from bytes that
+     * some other string with the same bytes was already converted from
+     * picks up that one's Java String instead of decoding it again.
+     */
+    private static final class RecentJavaStrings {
+        private static final LuaString recent_java_strings[] =
+                new LuaString[JAVA_STRINGS_CACHE_SIZE];
+    }
+
+    /**
+     * Index of the code points of a string, built the first time a code point
+     * is looked up by its position. It holds the byte offset of every
+     * {@link #CODEPOINT_STRIDE}th code point, so that finding any one decodes
+     * at most that many others; a string of ASCII characters needs no offsets.
+     */
+    private static final class CodePoints {
+        final int count;
+        final int[] offsets;
+        final boolean wellFormed;
+
+        CodePoints(byte[] bytes, int offset, int length) {
+            final int j = offset + length;
+            if (isAscii(bytes, offset, length)) {
+                count = length;
+                offsets = null;
+                wellFormed = true;
+                return;
+            }
+            int n = 0;
+            boolean w = true;
+            for (int i = offset, l; i < j; n++, i += l) {
+                l = codePointLength(bytes, i, j);
+                if (w && bytes[i] < 0 && decodeCodePoint(bytes, i, l) == 0xFFFD)
+                    w = l == 3 && bytes[i + 1] == (byte) 0xBF && bytes[i + 2] == (byte) 0xBD; // U+FFFD itself
+            }
+            count = n;
+            wellFormed = w;
+            offsets = new int[n / CODEPOINT_STRIDE + 1];
+            n = 0;
+            for (int i = offset; i < j; n++) {
+                if (n % CODEPOINT_STRIDE == 0)
+                    offsets[n / CODEPOINT_STRIDE] = i - offset;
+                i += codePointLength(bytes, i, j);
+            }
+            if (n % CODEPOINT_STRIDE == 0)
+                offsets[n / CODEPOINT_STRIDE] = length;
+        }
+    }
+
+    /**
+     * Table of the interned strings, keyed by the Java String they were made
+     * from. Lookups take no lock. The table only holds weak references, so
+     * a string nobody uses any more is collected and its entry is dropped
+     * by the next insertion, when its reference comes off the queue.
+     */
+    private static final class Interned extends WeakReference<LuaString> {
+        private static final ConcurrentHashMap<String, Interned> table =
+                new ConcurrentHashMap<String, Interned>(256);
+        private static final ReferenceQueue<LuaString> queue = new ReferenceQueue<LuaString>();
+
+        private final String key;
+
+        private Interned(String key, LuaString s) {
+            super(s, queue);
+            this.key = key;
+        }
+
+        static LuaString get(String key) {
+            final Interned ref = table.get(key);
+            return ref != null ? ref.get() : null;
+        }
+
+        static LuaString put(String key, LuaString s) {
+            for (Object ref; (ref = queue.poll()) != null; )
+                table.remove(((Interned) ref).key, ref);
+            if (table.size() >= INTERN_MAX_SIZE)
+                return s;
+            final Interned ref = new Interned(key, s);
+            for (;;) {
+                final Interned old = table.putIfAbsent(key, ref);
+                if (old == null)
+                    return s;
+                final LuaString t = old.get();
+                if (t != null)
+                    return t; // interned by another thread meanwhile
+                if (table.replace(key, old, ref))
+                    return s;
+            }
+        }
+    }
+
     /**
      * Get a {@link LuaString} instance whose bytes match
      * the supplied Java String using the UTF8 encoding.
@@ -136,7 +268,15 @@ public class LuaString extends LuaValue {
      * @return {@link LuaString} with UTF8 bytes corresponding to the supplied String
      */
     public static LuaString valueOf(String string) {
-        return valueUsing(string.getBytes());
+        if (string.length() > INTERN_MAX_LENGTH)
+            return valueUsing(encodeAsUtf8(string));
+        LuaString s = Interned.get(string);
+        if (s != null)
+            return s;
+        final byte[] b = encodeAsUtf8(string);
+        s = new LuaString(b, 0, b.length);
+        s.m_string = string;
+        return Interned.put(string, s);
         /*char[] c = string.toCharArray();
         byte[] b = new byte[lengthAsUtf8(c)];
         encodeToUtf8(c, c.length, b, 0);
@@ -298,9 +438,19 @@ public class LuaString extends LuaValue {
     }
 
     public String tojstring() {
-        if (m_string == null)
-            m_string = decodeAsUtf8(m_bytes, m_offset, m_length);
-        return m_string;
+        String s = m_string;
+        if (s != null)
+            return s;
+        if (m_length > JAVA_STRINGS_MAX_LENGTH)
+            return m_string = decodeAsUtf8(m_bytes, m_offset, m_length);
+        final int bucket = hashCode() & (JAVA_STRINGS_CACHE_SIZE - 1);
+        final LuaString t = RecentJavaStrings.recent_java_strings[bucket];
+        if (t != null && t.m_hashcode == m_hashcode && (s = t.m_string) != null
+                && t.byteseq(m_bytes, m_offset, m_length))
+            return m_string = s;
+        m_string = s = decodeAsUtf8(m_bytes, m_offset, m_length);
+        RecentJavaStrings.recent_java_strings[bucket] = this;
+        return s;
     }
 
     public int lengthAsUtf8() {
@@ -316,6 +466,166 @@ public class LuaString extends LuaValue {
         return n;
     }
 
+    private CodePoints codePoints() {
+        CodePoints c = m_codepoints;
+        if (c == null)
+            m_codepoints = c = new CodePoints(m_bytes, m_offset, m_length);
+        return c;
+    }
+
+    /**
+     * Count the code points in the string, taking it as UTF-8.
+     * Each byte that is not part of a valid sequence counts as one,
+     * the way {@link #tojstring()} replaces it with U+FFFD.
+     *
+     * @return number of code points in the string
+     * @see #codePointOffset(int)
+     */
+    public int codePointCount() {
+        return codePoints().count;
+    }
+
+    /**
+     * Check if every code point of the string is a single byte, that is
+     * if code point and byte positions are the same.
+     */
+    public boolean isAscii() {
+        return codePoints().offsets == null;
+    }
+
+    /**
+     * Check that the string is well-formed UTF-8, so that its code points and
+     * their bytes match one for one. Unlike {@link #isValidUtf8()} this takes
+     * four byte sequences, and not surrogates or overlong forms, as Java does.
+     */
+    public boolean isWellFormedUtf8() {
+        return codePoints().wellFormed;
+    }
+
+    /**
+     * Find the byte offset of a code point of the string.
+     *
+     * @param index zero-based index of the code point, up to {@link #codePointCount()}
+     * @return offset from the start of the string of the first byte of the code point,
+     * or the length of the string for the index one past the last code point
+     * @see #codePointAt(int)
+     */
+    public int codePointOffset(int index) {
+        final CodePoints c = codePoints();
+        if (c.offsets == null)
+            return index;
+        final int j = m_offset + m_length;
+        int i = m_offset + c.offsets[index / CODEPOINT_STRIDE];
+        for (int k = index % CODEPOINT_STRIDE; k > 0; k--)
+            i += codePointLength(m_bytes, i, j);
+        return i - m_offset;
+    }
+
+    /**
+     * Find the index of the code point that starts at a byte offset.
+     *
+     * @param offset offset from the start of the string of a code point,
+     *               or the length of the string
+     * @return zero-based index of the code point
+     * @see #codePointOffset(int)
+     */
+    public int codePointIndex(int offset) {
+        final CodePoints c = codePoints();
+        final int[] offsets = c.offsets;
+        if (offsets == null)
+            return offset;
+        int lo = 0, hi = offsets.length - 1;
+        while (lo < hi) {
+            final int mid = (lo + hi + 1) >>> 1;
+            if (offsets[mid] <= offset)
+                lo = mid;
+            else
+                hi = mid - 1;
+        }
+        int index = lo * CODEPOINT_STRIDE;
+        for (int i = offsets[lo]; i < offset; index++)
+            i = nextCodePoint(i);
+        return index;
+    }
+
+    /**
+     * Find the byte offset of the code point after the one at an offset.
+     *
+     * @param offset offset from the start of the string of a code point
+     * @return offset of the next code point, or the length of the string after the last one
+     */
+    public int nextCodePoint(int offset) {
+        return offset + codePointLength(m_bytes, m_offset + offset, m_offset + m_length);
+    }
+
+    /**
+     * Find the byte offset of the code point before the one at an offset.
+     *
+     * @param offset offset from the start of the string of a code point, past the first one
+     * @return offset of the previous code point
+     */
+    public int previousCodePoint(int offset) {
+        final int j = m_offset + offset;
+        for (int i = j - 1; i >= m_offset && i >= j - 4; i--)
+            if ((m_bytes[i] & 0xC0) != 0x80)
+                // continuation bytes the sequence from i does not take are one code point each
+                return (i + codePointLength(m_bytes, i, m_offset + m_length) == j ? i : j - 1) - m_offset;
+        return offset - 1;
+    }
+
+    /**
+     * Decode the code point whose first byte is at an offset.
+     *
+     * @param offset offset from the start of the string of a code point
+     * @return the code point, or U+FFFD for a byte that is not part of a valid sequence
+     * @see #codePointOffset(int)
+     */
+    public int codePointAt(int offset) {
+        final int i = m_offset + offset;
+        return decodeCodePoint(m_bytes, i, codePointLength(m_bytes, i, m_offset + m_length));
+    }
+
+    /**
+     * Decode code points one after the other.
+     *
+     * @param offset     offset from the start of the string of the first code point
+     * @param codepoints array to fill with as many code points as it holds
+     */
+    public void decodeCodePoints(int offset, int[] codepoints) {
+        final byte[] b = m_bytes;
+        final int j = m_offset + m_length;
+        for (int i = m_offset + offset, k = 0, n = codepoints.length; k < n; k++) {
+            final int c = b[i];
+            int d;
+            if (c >= 0) {
+                codepoints[k] = c;
+                i++;
+            } else if ((c & 0xF0) == 0xE0 && i + 2 < j && (b[i + 1] & 0xC0) == 0x80 && (b[i + 2] & 0xC0) == 0x80
+                    && (d = ((c & 0x0F) << 12) | ((b[i + 1] & 0x3F) << 6) | (b[i + 2] & 0x3F)) >= 0x800
+                    && (d < 0xD800 || d > 0xDFFF)) {
+                // most non-ASCII text is three byte sequences, CJK in particular
+                codepoints[k] = d;
+                i += 3;
+            } else {
+                final int l = codePointLength(b, i, j);
+                codepoints[k] = decodeCodePoint(b, i, l);
+                i += l;
+            }
+        }
+    }
+
+    /**
+     * Take a substring using zero-based code point indexes for begin and end.
+     *
+     * @param beginIndex The zero-based index of the first code point to include.
+     * @param endIndex   The zero-based index of the code point after the last one.
+     * @return LuaString holding the bytes of the code points from beginIndex to endIndex.
+     * @see #substring(int, int)
+     */
+    public LuaString codePointSubstring(int beginIndex, int endIndex) {
+        return substring(codePointOffset(beginIndex), codePointOffset(endIndex));
+    }
+
     @Override
     public LuaValue get(int key) {
         return LuaValue.valueOf(m_bytes[m_offset+posrelat(key,m_length)-1]);
@@ -524,10 +834,56 @@ public class LuaString extends LuaValue {
     }
 
     public LuaValue concatTo(LuaString lhs) {
-        byte[] b = new byte[lhs.m_length + this.m_length];
+        final int n = lhs.m_length + this.m_length;
+        if (n <= RECENT_STRINGS_MAX_LENGTH) {
+            byte[] b = new byte[n];
+            System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
+            System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
+            return valueUsing(b, 0, n);
+        }
+        if (lhs instanceof Tail) {
+            LuaString s = ((Tail) lhs).append(this);
+            if (s != null)
+                return s;
+        }
+        // a concatenation of a concatenation is likely to be appended to again
+        byte[] b = new byte[lhs instanceof Tail && n < Integer.MAX_VALUE / 2 ? n * 2 : n];
         System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
         System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
-        return valueUsing(b, 0, b.length);
+        return new Tail(b, 0, n, new AtomicInteger(n));
+    }
+
+    /**
+     * String made by concatenation, which may have room left in its backing
+     * array after its bytes. The string ending where the bytes in use end
+     * is appended to in place: the result is a longer view of the same array,
+     * so that building a string by {@code s = s .. x} in a loop copies each
+     * byte a few times in all instead of once per step. The array is twice
+     * as large as the first string made in it and every later one is
+     * longer, so no string pins more than twice its length.
+     */
+    private static final class Tail extends LuaString {
+        /** bytes of the array in use, shared by all the strings of the array */
+        private final AtomicInteger end;
+
+        Tail(byte[] bytes, int offset, int length, AtomicInteger end) {
+            super(bytes, offset, length);
+            this.end = end;
+        }
+
+        /**
+         * Append {@code rhs} in place.
+         *
+         * @return the concatenation, or null if the array has no room after this string
+         */
+        LuaString append(LuaString rhs) {
+            final int from = m_offset + m_length;
+            final int to = from + rhs.m_length;
+            if (to > m_bytes.length || to < 0 || !end.compareAndSet(from, to))
+                return null;
+            System.arraycopy(rhs.m_bytes, rhs.m_offset, m_bytes, from, rhs.m_length);
+            return new Tail(m_bytes, m_offset, m_length + rhs.m_length, end);
+        }
     }
 
     // string comparison
@@ -681,17 +1037,38 @@ public class LuaString extends LuaValue {
     public LuaString substring(int beginIndex, int endIndex) {
         final int off = m_offset + beginIndex;
         final int len = endIndex - beginIndex;
-        return len >= m_length / 2 ?
+        // share the bytes, unless that pins an array much larger than the substring
+        return len >= m_bytes.length / 4 ?
                 valueUsing(m_bytes, off, len) :
                 valueOf(m_bytes, off, len);
     }
 
     public int hashCode() {
-        if (isHascode)
-            return m_hashcode;
-        m_hashcode = hashCode(m_bytes, m_offset, m_length);
-        isHascode = true;
-        return m_hashcode;
+        int h = m_hashcode;
+        if (h == 0)
+            m_hashcode = h = hashCode(m_bytes, m_offset, m_length);
+        return h;
+    }
+
+    /**
+     * Get the interned string with the same bytes, as {@link #valueOf(String)}
+     * returns it, interning this one if there is none yet. Only strings of
+     * ASCII characters, which a Java String gives back byte for byte, and no
+     * longer than {@link #INTERN_MAX_LENGTH} are interned; any other string
+     * is returned as it is.
+     */
+    public LuaString intern() {
+        if (m_length > INTERN_MAX_LENGTH)
+            return this;
+        if (!isAscii(m_bytes, m_offset, m_length))
+            return this;
+        final String key = m_string != null ? m_string : new String(m_bytes, m_offset, m_length, StandardCharsets.ISO_8859_1);
+        final LuaString s = Interned.get(key);
+        if (s != null)
+            return s;
+        if (m_string == null)
+            m_string = key;
+        return Interned.put(key, this);
     }
 
     /**
@@ -713,6 +1090,8 @@ public class LuaString extends LuaValue {
 
     // object comparison, used in key comparison
     public boolean equals(Object o) {
+        if (o == this)
+            return true;
         if (o instanceof LuaString) {
             return raweq((LuaString) o);
         }
@@ -730,7 +1109,7 @@ public class LuaString extends LuaValue {
 
     // equality w/o metatable processing
     public boolean raweq(LuaValue val) {
-        return val.raweq(this);
+        return val == this || val.raweq(this);
     }
 
     public boolean raweq(LuaString s) {
@@ -895,6 +1274,88 @@ public class LuaString extends LuaValue {
     }
 
 
+    /**
+     * Check if a run of bytes is all ASCII, so that it decodes byte for byte
+     * without going through the UTF-8 decoder.
+     */
+    static boolean isAscii(byte[] bytes, int offset, int length) {
+        for (int i = offset, j = offset + length; i < j; i++)
+            if (bytes[i] < 0)
+                return false;
+        return true;
+    }
+
+    /**
+     * Measure the UTF-8 sequence that starts at a byte. A sequence cut short
+     * by a byte that cannot follow is measured up to that byte, so that as
+     * with the Java decoder it decodes to a single U+FFFD, as does a whole
+     * sequence for a surrogate.
+     *
+     * @param bytes array holding the sequence
+     * @param i     index of the first byte of the sequence
+     * @param j     index of the first byte after the string
+     * @return number of bytes in the sequence, 1 to 4
+     */
+    static int codePointLength(byte[] bytes, int i, int j) {
+        final int c = bytes[i] & 0xff;
+        int n, lo = 0x80, hi = 0xBF;
+        if (c < 0xC2)
+            return 1;
+        else if (c < 0xE0)
+            n = 2;
+        else if (c < 0xF0) {
+            n = 3;
+            if (c == 0xE0) lo = 0xA0;
+        } else if (c < 0xF5) {
+            n = 4;
+            if (c == 0xF0) lo = 0x90;
+            else if (c == 0xF4) hi = 0x8F;
+        } else
+            return 1;
+        for (int k = 1; k < n; k++, lo = 0x80, hi = 0xBF) {
+            if (i + k >= j)
+                return k;
+            final int d = bytes[i + k] & 0xff;
+            if (d < lo || d > hi)
+                return k;
+        }
+        return n;
+    }
+
+    /**
+     * Decode a UTF-8 sequence measured by {@link #codePointLength(byte[], int, int)}.
+     */
+    static int decodeCodePoint(byte[] bytes, int i, int n) {
+        final int c = bytes[i];
+        switch (n) {
+            case 1:
+                return c >= 0 ? c : 0xFFFD;
+            case 2:
+                return (c & 0xE0) != 0xC0 ? 0xFFFD :
+                        ((c & 0x1F) << 6) | (bytes[i + 1] & 0x3F);
+            case 3:
+                if ((c & 0xF0) != 0xE0)
+                    return 0xFFFD;
+                final int d = ((c & 0x0F) << 12) | ((bytes[i + 1] & 0x3F) << 6) | (bytes[i + 2] & 0x3F);
+                return d >= 0xD800 && d <= 0xDFFF ? 0xFFFD : d;
+            default:
+                return ((c & 0x07) << 18) | ((bytes[i + 1] & 0x3F) << 12)
+                        | ((bytes[i + 2] & 0x3F) << 6) | (bytes[i + 3] & 0x3F);
+        }
+    }
+
+    /**
+     * Convert a Java String to its bytes in UTF-8. The encoder copies ASCII
+     * straight across by itself, so the string is not checked for it first.
+     *
+     * @param string Java String to convert
+     * @return new byte array holding the UTF-8 encoding of the string
+     * @see #decodeAsUtf8(byte[], int, int)
+     */
+    public static byte[] encodeAsUtf8(String string) {
+        return string.getBytes(StandardCharsets.UTF_8);
+    }
+
     /**
      * Convert to Java String interpreting as utf8 characters.
      *
@@ -907,7 +1368,9 @@ public class LuaString extends LuaValue {
      * @see #isValidUtf8()
      */
     public static String decodeAsUtf8(byte[] bytes, int offset, int length) {
-        return new String(bytes,offset,length);
+        if (isAscii(bytes, offset, length))
+            return new String(bytes, offset, length, StandardCharsets.ISO_8859_1);
+        return new String(bytes, offset, length, StandardCharsets.UTF_8);
         /*int i, j, n, b;
         for (i = offset, j = offset + length, n = 0; i < j; ++n) {
             switch (0xE0 & bytes[i++]) {
@@ -928,7 +1391,13 @@ public class LuaString extends LuaValue {
     }
 
     public static char[] toCharAsUtf8(byte[] bytes, int offset, int length) {
-        return new String(bytes,offset,length).toCharArray();
+        if (isAscii(bytes, offset, length)) {
+            final char[] chars = new char[length];
+            for (int i = 0; i < length; i++)
+                chars[i] = (char) bytes[offset + i];
+            return chars;
+        }
+        return new String(bytes, offset, length, StandardCharsets.UTF_8).toCharArray();
         /*int i, j, n, b;
         for (i = offset, j = offset + length, n = 0; i < j; ++n) {
             switch (0xE0 & bytes[i++]) {
@@ -24,11 +24,17 @@ package luaj;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
 import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Map;
 import java.util.Set;
 import java.util.Vector;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
 
 import luaj.compiler.DumpState;
 import luaj.lib.StringLib;
@@ -36,15 +42,79 @@ import luaj.lib.jse.CoerceLuaToJava;
 
 public class LuaTable extends LuaValue implements Metatable {
     private static final int MIN_HASH_CAPACITY = 2;
+    /**
+     * free slot of {@link #intKeys}; the one integer it stands for is kept in {@link #hashKeys}
+     */
+    private static final long NOKEY = Long.MIN_VALUE;
+    private static final long[] NOKEYS = {};
     private static final LuaString N = valueOf("n");
     private static volatile Set<LuaTable> dumped = new HashSet<>();
     private final Globals globals;
 
     protected LuaValue[] array;
+    /**
+     * unboxed array part, used instead of {@link #array} while every array
+     * value is an integer, or every one a float, and there are no holes: the
+     * first {@link #numberCount} elements hold the values of keys 1 to
+     * numberCount and {@link #array} is left empty. The first store that does
+     * not fit boxes the values back into {@link #array}; see {@link #box()}.
+     */
+    private long[] longs;
+    private double[] doubles;
+    private int numberCount;
+    /**
+     * chained hash part, only used while the metatable has weak keys or values
+     */
     protected Slot[] hash;
+    /**
+     * open-addressing hash part used by every other table: keys and values
+     * side by side, with linear probing from {@link #hashIndex(LuaValue, int)}.
+     * A removed key keeps its slot with a null value, so that next() can
+     * still find it, until the next rehash.
+     */
+    protected LuaValue[] hashKeys;
+    protected LuaValue[] hashValues;
+    /**
+     * entries in {@link #hash}, or used slots of {@link #hashKeys}, removed keys included
+     */
     protected int hashEntries;
+    /**
+     * integer keys of the open-addressing hash part, unboxed and probed
+     * linearly from {@link #intIndex(long, int)}: every integer key that is
+     * not in the array part, and every float key of integral value, lives
+     * here instead of in {@link #hashKeys}. {@link #NOKEY} marks a free slot;
+     * a removed key keeps its slot with a null value like in {@link #hashKeys}.
+     */
+    private long[] intKeys;
+    private LuaValue[] intValues;
+    /**
+     * used slots of {@link #intKeys}, removed keys included
+     */
+    private int intEntries;
     protected Metatable m_metatable;
+    /**
+     * whether {@link #m_metatable} has weak keys or values, so {@link #hash} is in use
+     */
+    private boolean weak;
+    /**
+     * entries of a table made safe for several threads by {@link #concurrent()},
+     * null for every other table; the array and hash parts stay empty while it is set
+     */
+    private ConcurrentHashMap<LuaValue, SharedEntry> shared;
+    /**
+     * sorted keys of the latest traversal of {@link #shared}, see {@link #sharednext(LuaValue)}
+     */
+    private volatile LuaValue[] sharedKeys;
     protected boolean mConst;
+    /**
+     * values of weak tables this table is a key of, see {@link WeakTable.Ephemeron}
+     */
+    WeakTable.Ephemeron ephemerons;
+    /**
+     * bumped whenever a key is added to or removed from the hash part, the
+     * hash part is rebuilt or the metatable changes; see {@link #version()}
+     */
+    int version;
 
     public LuaTable() {
         this(null);
@@ -53,6 +123,10 @@ public class LuaTable extends LuaValue implements Metatable {
     public LuaTable(Globals globals) {
         array = NOVALS;
         hash = NOBUCKETS;
+        hashKeys = NOVALS;
+        hashValues = NOVALS;
+        intKeys = NOKEYS;
+        intValues = NOVALS;
         this.globals = globals;
     }
 
@@ -101,11 +175,10 @@ public class LuaTable extends LuaValue implements Metatable {
         int nu = (unnamed != null ? unnamed.length : 0);
         int nl = (lastarg != null ? lastarg.narg() : 0);
         presize(nu + nl, nn >> 1);
-        for (int i = 0; i < nu; i++)
-            rawset(i + 1, unnamed[i]);
-        if (lastarg != null)
-            for (int i = 1, n = lastarg.narg(); i <= n; ++i)
-                rawset(nu + i, lastarg.arg(i));
+        if (nu > 0)
+            setlist(0, unnamed, 0, nu);
+        if (nl > 0)
+            setlist(nu, lastarg);
         for (int i = 0; i < nn; i += 2)
             if (!named[i + 1].isnil())
                 rawset(named[i], named[i + 1]);
@@ -155,13 +228,75 @@ public class LuaTable extends LuaValue implements Metatable {
 
     public void clear() {
         array = NOVALS;
+        longs = null;
+        doubles = null;
+        numberCount = 0;
         hash = NOBUCKETS;
+        hashKeys = NOVALS;
+        hashValues = NOVALS;
+        hashEntries = 0;
+        intKeys = NOKEYS;
+        intValues = NOVALS;
+        intEntries = 0;
+        if (shared != null) {
+            for (LuaValue key : shared.keySet())
+                sharedset(key, NIL);
+            sharedKeys = null;
+        }
+        ++version;
     }
 
     public void _const() {
         mConst = true;
     }
 
+    /**
+     * Make the table safe to read and write from several threads at once,
+     * such as {@link Globals} shared by callbacks running on other threads.
+     * <p>
+     * The entries move to a {@link ConcurrentHashMap}: reads never block and
+     * writes only lock the bin of their key, so writes of different keys do
+     * not wait on each other and no update is lost. Lookups that miss the
+     * (then empty) array and hash parts go to it, so other tables pay nothing
+     * on the hot path. Each value sits in an entry of its own, which the
+     * {@link InlineCache} of the interpreter holds on to, so reads of a cached
+     * key skip the map. The table loses its array part and its unboxed
+     * numbers, and a weak mode set by its metatable is ignored. A traversal by
+     * {@link #next(LuaValue)} visits the keys present when it started.
+     * <p>
+     * Call this before the table is handed to other threads; there is no way
+     * back.
+     */
+    public void concurrent() {
+        if (shared != null)
+            return;
+        if (weak)
+            throw new LuaError("a weak table can not be concurrent");
+        ConcurrentHashMap<LuaValue, SharedEntry> map = new ConcurrentHashMap<>();
+        for (Varargs n = next(NIL); !n.arg1().isnil(); n = next(n.arg1()))
+            map.put(sharedkey(n.arg1()), new SharedEntry(n.arg(2)));
+        array = NOVALS;
+        longs = null;
+        doubles = null;
+        numberCount = 0;
+        hash = NOBUCKETS;
+        hashKeys = NOVALS;
+        hashValues = NOVALS;
+        hashEntries = 0;
+        intKeys = NOKEYS;
+        intValues = NOVALS;
+        intEntries = 0;
+        shared = map;
+        ++version;
+    }
+
+    /**
+     * Whether {@link #concurrent()} was called on the table.
+     */
+    public boolean isconcurrent() {
+        return shared != null;
+    }
+
     public LuaValue find(LuaValue v, LuaValue k) {
         Varargs a;
         while (!(a = next(k)).isnil(1)) {
@@ -173,16 +308,28 @@ public class LuaTable extends LuaValue implements Metatable {
     }
 
     public Varargs foreach(LuaValue key, LuaValue func) {
+        if (shared != null) {
+            for (Varargs n = sharednext(key); !n.arg1().isnil(); n = sharednext(n.arg1()))
+                func.invoke(n);
+            return NONE;
+        }
+        final int alen = arrayCapacity();
         int i = 0;
         do {
             // find current key index
             if (!key.isnil()) {
                 if (key.isinttype()) {
                     i = key.toint();
-                    if (i > 0 && i <= array.length) {
+                    if (i > 0 && i <= alen) {
                         break;
                     }
                 }
+                if (!weak) {
+                    if ((i = hashPosition(key)) < 0)
+                        error("invalid key to 'next' 2: " + key);
+                    i += 1 + alen;
+                    break;
+                }
                 if (hash.length == 0)
                     error("invalid key to 'next' 1: " + key);
                 i = hashSlot(key);
@@ -200,22 +347,31 @@ public class LuaTable extends LuaValue implements Metatable {
                 if (!found) {
                     error("invalid key to 'next' 2: " + key);
                 }
-                i += 1 + array.length;
+                i += 1 + alen;
             }
         } while (false);
 
         // check array part
-        for (; i < array.length; ++i) {
-            if (array[i] != null) {
-                LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
-                if (value != null) {
-                    func.invoke(LuaInteger.valueOf(i + 1), value);
-                }
+        for (; i < alen; ++i) {
+            LuaValue value = arrayValue(i);
+            if (value != null) {
+                func.invoke(LuaInteger.valueOf(i + 1), value);
             }
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
+        final LuaValue[] ivalues = intValues;
+        final int ilen = ivalues.length;
+        for (int j = i - alen; j < ilen; ++j) {
+            if (ivalues[j] != null)
+                func.invoke(LuaInteger.valueOf(intKeys[j]), ivalues[j]);
+        }
+        final LuaValue[] values = hashValues;
+        for (int j = Math.max(i - alen - ilen, 0); j < values.length; ++j) {
+            if (values[j] != null)
+                func.invoke(hashKeys[j], values[j]);
+        }
+        for (i -= alen; i < hash.length; ++i) {
             Slot slot = hash[i];
             while (slot != null) {
                 StrongSlot first = slot.first();
@@ -230,12 +386,10 @@ public class LuaTable extends LuaValue implements Metatable {
     public Varargs foreachi(LuaValue key, LuaValue func) {
         int i = 0;
         // check array part
-        for (; i < array.length; ++i) {
-            if (array[i] != null) {
-                LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
-                if (value != null) {
-                    func.invoke(LuaInteger.valueOf(i + 1), value);
-                }
+        for (final int alen = arrayCapacity(); i < alen; ++i) {
+            LuaValue value = arrayValue(i);
+            if (value != null) {
+                func.invoke(LuaInteger.valueOf(i + 1), value);
             }
         }
         return NONE;
@@ -263,17 +417,73 @@ public class LuaTable extends LuaValue implements Metatable {
     }
 
     public void presize(int narray) {
-        if (narray > array.length)
+        if (narray <= arrayCapacity() || shared != null)
+            return;
+        if (unboxed() && !growNumbers(1 << log2(narray)))
+            box();
+        if (!unboxed())
             array = resize(array, 1 << log2(narray));
     }
 
     public void presize(int narray, int nhash) {
-        if (nhash > 0 && nhash < MIN_HASH_CAPACITY)
-            nhash = MIN_HASH_CAPACITY;
+        if (shared != null)
+            return;
         // Size of both parts must be a power of two.
         array = (narray > 0 ? new LuaValue[1 << log2(narray)] : NOVALS);
-        hash = (nhash > 0 ? new Slot[1 << log2(nhash)] : NOBUCKETS);
+        longs = null;
+        doubles = null;
+        numberCount = 0;
+        if (weak) {
+            if (nhash > 0 && nhash < MIN_HASH_CAPACITY)
+                nhash = MIN_HASH_CAPACITY;
+            hash = (nhash > 0 ? new Slot[1 << log2(nhash)] : NOBUCKETS);
+            hashKeys = hashValues = NOVALS;
+        } else {
+            hash = NOBUCKETS;
+            hashKeys = (nhash > 0 ? new LuaValue[hashCapacity(nhash)] : NOVALS);
+            hashValues = (nhash > 0 ? new LuaValue[hashKeys.length] : NOVALS);
+        }
         hashEntries = 0;
+        intKeys = NOKEYS;
+        intValues = NOVALS;
+        intEntries = 0;
+        ++version;
+    }
+
+    /**
+     * Store {@code n} values of {@code values} from index {@code from} on at
+     * keys {@code offset + 1} to {@code offset + n}, as OP_SETLIST does.
+     * Without a metatable the values are copied into the array part at once.
+     */
+    public void setlist(int offset, LuaValue[] values, int from, int n) {
+        if (m_metatable != null || mConst || weak || shared != null || offset < 0) {
+            for (int j = 0; j < n; j++)
+                set(offset + j + 1, values[from + j]);
+            return;
+        }
+        presize(offset + n);
+        if (unboxed()) {
+            for (int j = 0; j < n; j++)
+                rawset(offset + j + 1, values[from + j]);
+            return;
+        }
+        final LuaValue[] a = array;
+        System.arraycopy(values, from, a, offset, n);
+        for (int i = offset, j = offset + n; i < j; i++)
+            if (a[i] == NIL || a[i] == NONE)
+                a[i] = null;
+    }
+
+    /**
+     * Store the values of {@code values} at keys {@code offset + 1} on,
+     * as OP_SETLIST does with the results of a call or vararg.
+     */
+    public void setlist(int offset, Varargs values) {
+        final int n = values.narg();
+        if (m_metatable == null && !mConst && offset >= 0)
+            presize(offset + n);
+        for (int j = 1; j <= n; j++)
+            set(offset + j, values.arg(j));
     }
 
     /**
@@ -291,7 +501,7 @@ public class LuaTable extends LuaValue implements Metatable {
      * @return length of the array part, does not relate to count of objects in the table.
      */
     protected int getArrayLength() {
-        return array.length;
+        return arrayCapacity();
     }
 
     /**
@@ -300,7 +510,29 @@ public class LuaTable extends LuaValue implements Metatable {
      * @return length of the hash part, does not relate to count of objects in the table.
      */
     protected int getHashLength() {
-        return hash.length;
+        return hash.length + intKeys.length + hashKeys.length + (shared != null ? shared.size() : 0);
+    }
+
+    /**
+     * Get the structural version of the table, for layers caching lookups
+     * against it such as {@link InlineCache}.
+     * <p>
+     * The version changes whenever a key is added to or removed from the hash
+     * part, the hash part is rebuilt or the metatable changes, so a cached
+     * lookup of a hash key or through the metatable stays valid for as long as
+     * the version is the same. Assigning a new value to a key already present
+     * and changes to the array part leave it alone, as do entries of weak
+     * tables disappearing after a collection. Reading it allocates nothing and
+     * is not synchronized.
+     * <p>
+     * A {@link #concurrent()} table changes its version once, when it is made
+     * concurrent, and no more after that for its keys: nothing caches it by
+     * version, see {@link #sharedentry(LuaValue)}.
+     *
+     * @return the version, to be compared for equality only
+     */
+    public int version() {
+        return version;
     }
 
     public LuaValue getmetatable() {
@@ -310,15 +542,39 @@ public class LuaTable extends LuaValue implements Metatable {
     public LuaValue setmetatable(LuaValue metatable) {
         boolean hadWeakKeys = m_metatable != null && m_metatable.useWeakKeys();
         boolean hadWeakValues = m_metatable != null && m_metatable.useWeakValues();
-        m_metatable = metatableOf(metatable);
-        if ((hadWeakKeys != (m_metatable != null && m_metatable.useWeakKeys())) ||
-                (hadWeakValues != (m_metatable != null && m_metatable.useWeakValues()))) {
-            // force a rehash
-            rehash(0);
+        Metatable previous = m_metatable;
+        Metatable next = metatableOf(metatable);
+        // entries keep the mode they were stored with, so a new mode stores them again
+        LuaValue[] entries = shared == null && (hadWeakKeys != (next != null && next.useWeakKeys()) ||
+                hadWeakValues != (next != null && next.useWeakValues())) ? entries() : null;
+        m_metatable = next;
+        if (previous instanceof WeakTable && m_metatable instanceof WeakTable)
+            ((WeakTable) m_metatable).adopt((WeakTable) previous);
+        weak = shared == null && m_metatable != null && (m_metatable.useWeakKeys() || m_metatable.useWeakValues());
+        if (weak && unboxed())
+            box();
+        ++version;
+        if (entries != null) {
+            presize(arrayCapacity(), entries.length / 2);
+            for (int i = 0; i < entries.length; i += 2)
+                if (!entries[i].isinttype() || !arrayset(entries[i].toint(), entries[i + 1]))
+                    hashset(entries[i], entries[i + 1]);
         }
         return this;
     }
 
+    /**
+     * Get the live keys and values of the table, one after the other.
+     */
+    private LuaValue[] entries() {
+        ArrayList<LuaValue> entries = new ArrayList<>();
+        for (Varargs n = next(NIL); !n.arg1().isnil(); n = next(n.arg1())) {
+            entries.add(n.arg1());
+            entries.add(n.arg(2));
+        }
+        return entries.toArray(new LuaValue[0]);
+    }
+
     public LuaValue get(int key) {
         LuaValue v = rawget(key);
         return v.isnil() && m_metatable != null ? gettable(this, valueOf(key)) : v;
@@ -334,7 +590,9 @@ public class LuaTable extends LuaValue implements Metatable {
             LuaValue v = m_metatable == null ? array[key - 1] : m_metatable.arrayget(array, key - 1);
             return v != null ? v : NIL;
         }
-        return hashget(LuaInteger.valueOf(key));
+        if (key > 0 && key <= numberCount)
+            return longs != null ? LuaInteger.valueOf(longs[key - 1]) : new LuaDouble(doubles[key - 1]);
+        return weak || shared != null ? hashget(LuaInteger.valueOf(key)) : intget(key);
     }
 
     public LuaValue rawget(LuaValue key) {
@@ -345,12 +603,31 @@ public class LuaTable extends LuaValue implements Metatable {
                         ? array[ikey - 1] : m_metatable.arrayget(array, ikey - 1);
                 return v != null ? v : NIL;
             }
+            if (ikey > 0 && ikey <= numberCount)
+                return longs != null ? LuaInteger.valueOf(longs[ikey - 1]) : new LuaDouble(doubles[ikey - 1]);
         }
         return hashget(key);
     }
 
     protected LuaValue hashget(LuaValue key) {
+        if (intEntries > 0) {
+            final long k = intkey(key);
+            if (k != NOKEY)
+                return intget(k);
+        }
         if (hashEntries > 0) {
+            if (!weak) {
+                final LuaValue[] keys = hashKeys;
+                final int mask = keys.length - 1;
+                LuaValue k;
+                for (int i = hashIndex(key, mask); (k = keys[i]) != null; i = (i + 1) & mask) {
+                    if (k == key || key.raweq(k)) {
+                        LuaValue v = hashValues[i];
+                        return v != null ? v : NIL;
+                    }
+                }
+                return NIL;
+            }
             for (Slot slot = hash[hashSlot(key)]; slot != null; slot = slot.rest()) {
                 StrongSlot foundSlot;
                 if ((foundSlot = slot.find(key)) != null) {
@@ -358,9 +635,299 @@ public class LuaTable extends LuaValue implements Metatable {
                 }
             }
         }
+        return shared != null ? sharedget(key) : NIL;
+    }
+
+    /**
+     * Get a value of a concurrent table.
+     */
+    private LuaValue sharedget(LuaValue key) {
+        SharedEntry e = shared.get(sharedkey(key));
+        LuaValue v = e != null ? e.get() : null;
+        return v != null ? v : NIL;
+    }
+
+    /**
+     * Find the entry of a live key of a concurrent table, for {@link InlineCache}.
+     *
+     * @return the entry, which holds the value of the key until it is
+     * removed, or null if the key is absent or the table is not concurrent
+     */
+    SharedEntry sharedentry(LuaValue key) {
+        if (shared == null)
+            return null;
+        SharedEntry e = shared.get(sharedkey(key));
+        return e != null && e.get() != null ? e : null;
+    }
+
+    /**
+     * Set or remove a value of a concurrent table. A value is only ever
+     * swapped into a live entry, and a removed entry is emptied for good
+     * before it leaves the map, so an entry held on to by a cache never sees
+     * a value of the key again once the key was removed.
+     */
+    private void sharedset(LuaValue key, LuaValue value) {
+        key = sharedkey(key);
+        for (; ; ) {
+            SharedEntry e = shared.get(key);
+            if (e == null) {
+                if (value.isnil())
+                    return;
+                if (shared.putIfAbsent(key, new SharedEntry(value)) == null)
+                    return;
+                continue;
+            }
+            LuaValue v = e.get();
+            if (v == null) {
+                // removed by another thread that has not taken it out of the map yet
+                shared.remove(key, e);
+            } else if (e.compareAndSet(v, value.isnil() ? null : value)) {
+                if (value.isnil())
+                    shared.remove(key, e);
+                return;
+            }
+        }
+    }
+
+    /**
+     * Get the key a concurrent table stores {@code key} under: integral
+     * floats are the same key as the integer of the same value.
+     */
+    private static LuaValue sharedkey(LuaValue key) {
+        return key instanceof LuaDouble && key.isinttype() ? LuaInteger.valueOf(key.toint()) : key;
+    }
+
+    /**
+     * Step a traversal of a concurrent table. The keys are visited in
+     * {@link #SHARED_ORDER}, from a sorted copy taken when a traversal starts.
+     * Since the order does not depend on the copy, a traversal may go on
+     * with a copy taken by another one, nested or on another thread, and
+     * from a key removed meanwhile: keys present throughout are visited once,
+     * keys added after the traversal started may or may not be.
+     */
+    private Varargs sharednext(LuaValue key) {
+        LuaValue[] keys = sharedKeys;
+        if (key.isnil() || keys == null)
+            sharedKeys = keys = sharedkeys(shared);
+        for (int i = key.isnil() ? 0 : sharedsuccessor(keys, sharedkey(key)); i < keys.length; ++i) {
+            SharedEntry e = shared.get(keys[i]);
+            LuaValue v = e != null ? e.get() : null;
+            if (v != null)
+                return varargsOf(keys[i], v);
+        }
+        return NIL;
+    }
+
+    /**
+     * Get the keys of a concurrent table sorted in {@link #SHARED_ORDER}.
+     */
+    private static LuaValue[] sharedkeys(ConcurrentHashMap<LuaValue, SharedEntry> map) {
+        LuaValue[] keys = map.keySet().toArray(new LuaValue[0]);
+        Arrays.sort(keys, SHARED_ORDER);
+        return keys;
+    }
+
+    /**
+     * Find the index of the first key of {@code keys} after {@code key},
+     * which need not be one of them.
+     */
+    private static int sharedsuccessor(LuaValue[] keys, LuaValue key) {
+        int lo = 0, hi = keys.length;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (SHARED_ORDER.compare(keys[mid], key) < 0)
+                lo = mid + 1;
+            else
+                hi = mid;
+        }
+        // keys the order can not tell apart are in the order of the copy
+        for (int i = lo; i < keys.length && SHARED_ORDER.compare(keys[i], key) == 0; i++)
+            if (keys[i].raweq(key))
+                return i + 1;
+        return lo;
+    }
+
+    /**
+     * Order of the keys of a traversal of a concurrent table: by type, then
+     * numbers by value, strings by their bytes, false before true and other
+     * values by identity hash code.
+     */
+    private static final Comparator<LuaValue> SHARED_ORDER = new Comparator<LuaValue>() {
+        public int compare(LuaValue a, LuaValue b) {
+            int ta = a.type(), tb = b.type();
+            if (ta != tb)
+                return ta < tb ? -1 : 1;
+            switch (ta) {
+                case TNUMBER:
+                    return a instanceof LuaInteger && b instanceof LuaInteger
+                            ? Long.compare(((LuaInteger) a).v, ((LuaInteger) b).v)
+                            : Double.compare(a.todouble(), b.todouble());
+                case TSTRING:
+                    return a.strvalue().strcmp(b.strvalue());
+                case TBOOLEAN:
+                    return Boolean.compare(a.toboolean(), b.toboolean());
+                default:
+                    return Integer.compare(System.identityHashCode(a), System.identityHashCode(b));
+            }
+        }
+    };
+
+    /**
+     * Value of a key of a concurrent table, null once the key was removed.
+     */
+    static final class SharedEntry extends AtomicReference<LuaValue> {
+        private static final long serialVersionUID = 1L;
+
+        SharedEntry(LuaValue value) {
+            super(value);
+        }
+    }
+
+    /**
+     * Find the slot of a live key in {@link #hashValues}, for {@link InlineCache}.
+     *
+     * @return the slot, which holds the value of the key until {@link #version()}
+     * changes, or -1 if the key is absent or the table is weak
+     */
+    int hashentry(LuaValue key) {
+        if (weak || hashEntries == 0)
+            return -1;
+        int i = hashFind(key);
+        return i >= 0 && hashValues[i] != null ? i : -1;
+    }
+
+    /**
+     * Find the slot of a key in the open-addressing hash part, even if its value was removed.
+     *
+     * @return the slot or -1
+     */
+    private int hashFind(LuaValue key) {
+        final LuaValue[] keys = hashKeys;
+        if (keys.length == 0)
+            return -1;
+        final int mask = keys.length - 1;
+        LuaValue k;
+        for (int i = hashIndex(key, mask); (k = keys[i]) != null; i = (i + 1) & mask)
+            if (k == key || key.raweq(k))
+                return i;
+        return -1;
+    }
+
+    /**
+     * Find the first slot to probe for a key in the open-addressing hash part.
+     * Integral doubles hash like the integer of the same value, as they are
+     * the same key.
+     *
+     * @param key  the key to look for
+     * @param mask N-1 where N is the number of slots (must be power of 2)
+     * @return the slot index
+     */
+    static int hashIndex(LuaValue key, int mask) {
+        int h;
+        if (key instanceof LuaDouble) {
+            double d = ((LuaDouble) key).v;
+            long l = (long) d;
+            h = l == d ? (int) (l ^ (l >>> 32)) : key.hashCode();
+        } else {
+            h = key.hashCode();
+        }
+        return (h ^ (h >>> 16)) & mask;
+    }
+
+    /**
+     * Get the key of {@link #intKeys} a key is stored under: the value of an
+     * integer, or of a float of integral value.
+     *
+     * @return the key, or {@link #NOKEY} if {@code key} belongs to {@link #hashKeys}
+     */
+    private static long intkey(LuaValue key) {
+        if (key instanceof LuaInteger)
+            return ((LuaInteger) key).v;
+        if (key instanceof LuaDouble) {
+            double d = ((LuaDouble) key).v;
+            long l = (long) d;
+            // 2^63 saturates to Long.MAX_VALUE
+            if (l == d && l != Long.MAX_VALUE)
+                return l;
+        }
+        return NOKEY;
+    }
+
+    /**
+     * Find the first slot to probe for a key of {@link #intKeys}, by
+     * Fibonacci hashing: the top bits of the key times 2^64/phi, which spread
+     * sparse ids, power-of-two strides and timestamps evenly over the slots
+     * instead of clustering them like their low bits would.
+     *
+     * @param key  the key to look for
+     * @param mask N-1 where N is the number of slots (must be power of 2)
+     * @return the slot index
+     */
+    static int intIndex(long key, int mask) {
+        return (int) ((key * 0x9E3779B97F4A7C15L) >>> Long.numberOfLeadingZeros(mask)) & mask;
+    }
+
+    /**
+     * Get the value of an integer key of the open-addressing hash part.
+     */
+    private LuaValue intget(long key) {
+        if (intEntries == 0)
+            return NIL;
+        final long[] keys = intKeys;
+        final int mask = keys.length - 1;
+        long k;
+        for (int i = intIndex(key, mask); (k = keys[i]) != NOKEY; i = (i + 1) & mask) {
+            if (k == key) {
+                LuaValue v = intValues[i];
+                return v != null ? v : NIL;
+            }
+        }
         return NIL;
     }
 
+    /**
+     * Find the slot of a key in {@link #intKeys}, even if its value was removed.
+     *
+     * @return the slot or -1
+     */
+    private int intFind(long key) {
+        final long[] keys = intKeys;
+        if (keys.length == 0)
+            return -1;
+        final int mask = keys.length - 1;
+        long k;
+        for (int i = intIndex(key, mask); (k = keys[i]) != NOKEY; i = (i + 1) & mask)
+            if (k == key)
+                return i;
+        return -1;
+    }
+
+    /**
+     * Find the position of a key in the open-addressing hash part, even if
+     * its value was removed: the slots of {@link #intKeys} come first, then
+     * those of {@link #hashKeys}.
+     *
+     * @return the position or -1
+     */
+    private int hashPosition(LuaValue key) {
+        final long k = intkey(key);
+        if (k != NOKEY)
+            return intFind(k);
+        final int i = hashFind(key);
+        return i >= 0 ? intKeys.length + i : -1;
+    }
+
+    /**
+     * Get the number of open-addressing slots needed for {@code n} keys,
+     * a power of two which keeps a quarter of the slots free.
+     */
+    static int hashCapacity(int n) {
+        int capacity = MIN_HASH_CAPACITY;
+        while ((capacity * 3 >> 2) < n)
+            capacity <<= 1;
+        return capacity;
+    }
+
     public void set(int key, LuaValue value) {
         if (mConst)
             throw new LuaError("can not be set a const table");
@@ -402,11 +969,137 @@ public class LuaTable extends LuaValue implements Metatable {
      */
     private boolean arrayset(int key, LuaValue value) {
         if (key > 0 && key <= array.length) {
-            array[key - 1] = value.isnil() ? null :
-                    (m_metatable != null ? m_metatable.wrap(value) : value);
+            if (key != 1 || array[0] != null || !unbox(value))
+                array[key - 1] = value.isnil() ? null :
+                        (m_metatable != null ? m_metatable.wrap(value) : value);
             return true;
         }
-        return false;
+        if (unboxed())
+            return numberset(key, value);
+        return key == 1 && array.length == 0 && unbox(value);
+    }
+
+    /**
+     * Whether the array part is kept in {@link #longs} or {@link #doubles}.
+     */
+    private boolean unboxed() {
+        return longs != null || doubles != null;
+    }
+
+    /**
+     * Get the number of slots of the array part, boxed or not.
+     */
+    private int arrayCapacity() {
+        return longs != null ? longs.length : doubles != null ? doubles.length : array.length;
+    }
+
+    /**
+     * Get the value of slot {@code i} of the array part, boxed or not.
+     *
+     * @return the value, or null if there is none
+     */
+    private LuaValue arrayValue(int i) {
+        if (longs != null)
+            return i < numberCount ? LuaInteger.valueOf(longs[i]) : null;
+        if (doubles != null)
+            return i < numberCount ? new LuaDouble(doubles[i]) : null;
+        return array[i] == null || m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
+    }
+
+    /**
+     * Start keeping an empty array part unboxed, with {@code value} at key 1.
+     *
+     * @return false if the value is not a number, the table is weak or the
+     * array part is not empty
+     */
+    private boolean unbox(LuaValue value) {
+        if (weak || shared != null || !(value instanceof LuaInteger || value instanceof LuaDouble))
+            return false;
+        for (int i = 0; i < array.length; ++i)
+            if (array[i] != null)
+                return false;
+        if (array.length == 0 && !intget(1).isnil())
+            return false;
+        if (value instanceof LuaInteger)
+            (longs = new long[Math.max(array.length, 1)])[0] = ((LuaInteger) value).v;
+        else
+            (doubles = new double[Math.max(array.length, 1)])[0] = ((LuaDouble) value).v;
+        numberCount = 1;
+        array = NOVALS;
+        return true;
+    }
+
+    /**
+     * Set an element of the unboxed array part, appending to it or boxing
+     * it first if the value does not fit.
+     *
+     * @return false if the key belongs to the hash part
+     */
+    private boolean numberset(int key, LuaValue value) {
+        final int n = numberCount;
+        final int capacity = arrayCapacity();
+        if (key <= 0 || key > (n < capacity ? capacity : capacity + 1))
+            return false;
+        if (value.isnil()) {
+            if (key > n)
+                return key <= capacity;
+            if (key == n) {
+                numberCount = n - 1;
+                return true;
+            }
+        } else if (key <= n + 1 && (longs != null ? value instanceof LuaInteger : value instanceof LuaDouble)) {
+            if (key > capacity && !growNumbers(capacity << 1)) {
+                box();
+                return false;
+            }
+            if (longs != null)
+                longs[key - 1] = ((LuaInteger) value).v;
+            else
+                doubles[key - 1] = ((LuaDouble) value).v;
+            if (key > n)
+                numberCount = key;
+            return true;
+        } else if (key > capacity) {
+            return false;
+        }
+        box();
+        return arrayset(key, value);
+    }
+
+    /**
+     * Grow the unboxed array part to {@code capacity} slots, unless the hash
+     * part holds keys of the new slots.
+     */
+    private boolean growNumbers(int capacity) {
+        if (intEntries > 0)
+            for (int i = 0; i < intKeys.length; ++i)
+                if (intValues[i] != null && intKeys[i] >= 1 && intKeys[i] <= capacity)
+                    return false;
+        if (longs != null)
+            longs = Arrays.copyOf(longs, capacity);
+        else
+            doubles = Arrays.copyOf(doubles, capacity);
+        return true;
+    }
+
+    /**
+     * Move the unboxed array part back into {@link #array}.
+     */
+    private void box() {
+        final LuaValue[] a = new LuaValue[arrayCapacity()];
+        for (int i = 0; i < numberCount; ++i)
+            a[i] = arrayValue(i);
+        longs = null;
+        doubles = null;
+        numberCount = 0;
+        array = a;
+    }
+
+    /**
+     * Whether the unboxed array part holds all the values 1 to {@link #rawlen()}.
+     */
+    private boolean dense() {
+        return unboxed() && (numberCount < arrayCapacity() || intget(numberCount + 1).isnil());
     }
 
     /**
@@ -421,6 +1114,15 @@ public class LuaTable extends LuaValue implements Metatable {
             pos = n;
         else if (pos > n)
             return NONE;
+        if (pos > 0 && pos <= numberCount && m_metatable == null && dense()) {
+            LuaValue v = arrayValue(pos - 1);
+            if (longs != null)
+                System.arraycopy(longs, pos, longs, pos - 1, numberCount - pos);
+            else
+                System.arraycopy(doubles, pos, doubles, pos - 1, numberCount - pos);
+            --numberCount;
+            return v;
+        }
         LuaValue v = get(pos);
         for (LuaValue r = v; !r.isnil(); ) {
             r = get(pos + 1);
@@ -438,6 +1140,19 @@ public class LuaTable extends LuaValue implements Metatable {
     public void insert(int pos, LuaValue value) {
         if (pos == 0)
             pos = length() + 1;
+        if (pos > 0 && pos <= numberCount + 1 && m_metatable == null && dense()
+                && (longs != null ? value instanceof LuaInteger : value instanceof LuaDouble)
+                && (numberCount < arrayCapacity() || growNumbers(arrayCapacity() << 1))) {
+            if (longs != null) {
+                System.arraycopy(longs, pos - 1, longs, pos, numberCount - pos + 1);
+                longs[pos - 1] = ((LuaInteger) value).v;
+            } else {
+                System.arraycopy(doubles, pos - 1, doubles, pos, numberCount - pos + 1);
+                doubles[pos - 1] = ((LuaDouble) value).v;
+            }
+            ++numberCount;
+            return;
+        }
         while (!value.isnil()) {
             LuaValue v = get(pos);
             set(pos++, value);
@@ -455,6 +1170,14 @@ public class LuaTable extends LuaValue implements Metatable {
      */
     public LuaValue concat(LuaString sep, int i, int j) {
         Buffer sb = new Buffer();
+        if (i > 0 && j <= numberCount) {
+            for (int k = i; k <= j; k++) {
+                if (k > i)
+                    sb.append(sep);
+                sb.append(longs != null ? Long.toString(longs[k - 1]) : LuaDouble.tojstring(doubles[k - 1]));
+            }
+            return sb.tostring();
+        }
         if (i <= j) {
             sb.append(get(i).checkstring());
             while (++i <= j) {
@@ -482,6 +1205,8 @@ public class LuaTable extends LuaValue implements Metatable {
     }
 
     public int rawlen() {
+        if (dense())
+            return numberCount;
         int a = getArrayLength();
         int n = a + 1, m = 0;
         while (!rawget(n).isnil()) {
@@ -504,16 +1229,25 @@ public class LuaTable extends LuaValue implements Metatable {
      * @return key, value or nil
      */
     public Varargs next(LuaValue key) {
+        if (shared != null)
+            return sharednext(key);
+        final int alen = arrayCapacity();
         int i = 0;
         do {
             // find current key index
             if (!key.isnil()) {
                 if (key.isinttype()) {
                     i = key.toint();
-                    if (i > 0 && i <= array.length) {
+                    if (i > 0 && i <= alen) {
                         break;
                     }
                 }
+                if (!weak) {
+                    if ((i = hashPosition(key)) < 0)
+                        error("invalid key to 'next' 2: " + key);
+                    i += 1 + alen;
+                    break;
+                }
                 if (hash.length == 0)
                     error("invalid key to 'next' 1: " + key);
                 i = hashSlot(key);
@@ -531,22 +1265,31 @@ public class LuaTable extends LuaValue implements Metatable {
                 if (!found) {
                     error("invalid key to 'next' 2: " + key);
                 }
-                i += 1 + array.length;
+                i += 1 + alen;
             }
         } while (false);
 
         // check array part
-        for (; i < array.length; ++i) {
-            if (array[i] != null) {
-                LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
-                if (value != null) {
-                    return varargsOf(LuaInteger.valueOf(i + 1), value);
-                }
+        for (; i < alen; ++i) {
+            LuaValue value = arrayValue(i);
+            if (value != null) {
+                return varargsOf(LuaInteger.valueOf(i + 1), value);
             }
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
+        final LuaValue[] ivalues = intValues;
+        final int ilen = ivalues.length;
+        for (int j = i - alen; j < ilen; ++j) {
+            if (ivalues[j] != null)
+                return varargsOf(LuaInteger.valueOf(intKeys[j]), ivalues[j]);
+        }
+        final LuaValue[] values = hashValues;
+        for (int j = Math.max(i - alen - ilen, 0); j < values.length; ++j) {
+            if (values[j] != null)
+                return varargsOf(hashKeys[j], values[j]);
+        }
+        for (i -= alen; i < hash.length; ++i) {
             Slot slot = hash[i];
             while (slot != null) {
                 StrongSlot first = slot.first();
@@ -560,6 +1303,89 @@ public class LuaTable extends LuaValue implements Metatable {
         return NIL;
     }
 
+    /**
+     * Whether the interpreter may traverse this table by position with
+     * {@link #next(LuaValue, int, LuaValue[], int, int)}.
+     */
+    boolean iterable() {
+        return !weak && shared == null;
+    }
+
+    /**
+     * Step a traversal kept at a position instead of re-finding the previous
+     * key, for the generic for loops of {@link LuaClosure}. Positions 1 to
+     * {@link #arrayCapacity()} are the array part, the ones after it the slots of the
+     * open-addressing hash part, {@link #intKeys} first. The entries are visited in the same order
+     * as by {@link #next(LuaValue)}.
+     *
+     * @param key previous key, nil to start
+     * @param pos position returned for {@code key}, only trusted while that key is still there
+     * @param out registers receiving the key at {@code at} and the value at {@code at + 1}
+     * @param at  first register to write
+     * @param n   number of registers to write, those past the value are set to nil,
+     *            all of them at the end of the traversal
+     * @return position of the key written to out
+     */
+    int next(LuaValue key, int pos, LuaValue[] out, int at, int n) {
+        final int alen = arrayCapacity();
+        final int ilen = intKeys.length;
+        if (key.isnil()) {
+            pos = 0;
+        } else if (pos <= 0 || (pos <= alen
+                ? !(key instanceof LuaInteger) || ((LuaInteger) key).v != pos
+                : pos - alen <= ilen
+                ? !(key instanceof LuaInteger) || ((LuaInteger) key).v != intKeys[pos - alen - 1]
+                : pos - alen - ilen > hashKeys.length || hashKeys[pos - alen - ilen - 1] != key)) {
+            // the table was rebuilt, or the key does not come from this traversal
+            if (key.isinttype() && (pos = key.toint()) > 0 && pos <= alen) {
+                // key of the array part
+            } else if ((pos = hashPosition(key)) >= 0) {
+                pos += 1 + alen;
+            } else {
+                error("invalid key to 'next' 2: " + key);
+            }
+        }
+        LuaValue k = null, v = null;
+        for (; pos < alen; ++pos) {
+            if ((v = arrayValue(pos)) != null) {
+                k = LuaInteger.valueOf(++pos);
+                break;
+            }
+        }
+        if (k == null) {
+            final LuaValue[] values = intValues;
+            for (int j = pos - alen; j < ilen; ++j) {
+                if ((v = values[j]) != null) {
+                    k = LuaInteger.valueOf(intKeys[j]);
+                    pos = alen + j + 1;
+                    break;
+                }
+            }
+        }
+        if (k == null) {
+            final LuaValue[] values = hashValues;
+            for (int j = Math.max(pos - alen - ilen, 0); j < values.length; ++j) {
+                if ((v = values[j]) != null) {
+                    k = hashKeys[j];
+                    pos = alen + ilen + j + 1;
+                    break;
+                }
+            }
+        }
+        if (k == null) {
+            while (--n >= 0)
+                out[at + n] = NIL;
+            return 0;
+        }
+        out[at] = k;
+        if (n > 1) {
+            out[at + 1] = v;
+            for (int j = 2; j < n; j++)
+                out[at + j] = NIL;
+        }
+        return pos;
+    }
+
     /**
      * Get the next element after a particular key in the
      * contiguous array part of a table
@@ -579,6 +1405,15 @@ public class LuaTable extends LuaValue implements Metatable {
      * @param value value to set
      */
     public void hashset(LuaValue key, LuaValue value) {
+        if (shared != null) {
+            sharedset(key, value);
+            return;
+        }
+        if (!weak) {
+            flatset(key, value);
+            return;
+        }
+        dropCollected();
         if (value.isnil())
             hashRemove(key);
         else {
@@ -601,6 +1436,9 @@ public class LuaTable extends LuaValue implements Metatable {
                         return;
                 } else {
                     rehash(-1);
+                    // the array portion may have grown over this key all the same
+                    if (key.isinttype() && arrayset(key.toint(), value))
+                        return;
                 }
                 index = hashSlot(key);
             }
@@ -609,9 +1447,116 @@ public class LuaTable extends LuaValue implements Metatable {
                     : defaultEntry(key, value);
             hash[index] = (hash[index] != null) ? hash[index].add(entry) : entry;
             ++hashEntries;
+            ++version;
         }
     }
 
+    /**
+     * Set a value in the open-addressing hash part.
+     */
+    private void flatset(LuaValue key, LuaValue value) {
+        final long ik = intkey(key);
+        if (ik != NOKEY) {
+            intset(ik, value);
+            return;
+        }
+        LuaValue[] keys = hashKeys;
+        int mask = keys.length - 1;
+        int free = -1;
+        if (keys.length > 0) {
+            LuaValue k;
+            int i = hashIndex(key, mask);
+            for (; (k = keys[i]) != null; i = (i + 1) & mask) {
+                if (k == key || key.raweq(k)) {
+                    if (value.isnil()) {
+                        if (hashValues[i] != null) {
+                            hashValues[i] = null;
+                            ++version;
+                        }
+                    } else {
+                        if (hashValues[i] == null)
+                            ++version;
+                        hashValues[i] = value;
+                    }
+                    return;
+                }
+                if (free < 0 && hashValues[i] == null)
+                    free = i; /* removed key, reused if this one is new */
+            }
+            if (free < 0)
+                free = i;
+        }
+        if (value.isnil())
+            return;
+        if (free < 0 || keys[free] == null) {
+            if (checkLoadFactor()) {
+                rehash(-1, false);
+                keys = hashKeys;
+                mask = keys.length - 1;
+                for (free = hashIndex(key, mask); keys[free] != null; free = (free + 1) & mask)
+                    ;
+            }
+            ++hashEntries;
+        }
+        keys[free] = key;
+        hashValues[free] = value;
+        ++version;
+    }
+
+    /**
+     * Set a value of an integer key in the open-addressing hash part.
+     */
+    private void intset(long key, LuaValue value) {
+        long[] keys = intKeys;
+        int mask = keys.length - 1;
+        int free = -1;
+        if (keys.length > 0) {
+            long k;
+            int i = intIndex(key, mask);
+            for (; (k = keys[i]) != NOKEY; i = (i + 1) & mask) {
+                if (k == key) {
+                    if (value.isnil()) {
+                        if (intValues[i] != null) {
+                            intValues[i] = null;
+                            ++version;
+                        }
+                    } else {
+                        if (intValues[i] == null)
+                            ++version;
+                        intValues[i] = value;
+                    }
+                    return;
+                }
+                if (free < 0 && intValues[i] == null)
+                    free = i; /* removed key, reused if this one is new */
+            }
+            if (free < 0)
+                free = i;
+        }
+        if (value.isnil())
+            return;
+        if (free < 0 || keys[free] == NOKEY) {
+            if (intEntries >= (keys.length * 3 >> 2)) {
+                if (key > 0 && key <= Integer.MAX_VALUE) {
+                    // a rehash might make room in the array portion for this key.
+                    rehash((int) key, true);
+                    if (arrayset((int) key, value))
+                        return;
+                } else {
+                    rehash(-1, true);
+                }
+                keys = intKeys;
+                mask = keys.length - 1;
+                for (free = intIndex(key, mask); keys[free] != NOKEY; free = (free + 1) & mask)
+                    ;
+            }
+            ++intEntries;
+        }
+        keys[free] = key;
+        intValues[free] = value;
+        ++version;
+    }
+
     public static int hashpow2(int hashCode, int mask) {
         return hashCode & mask;
     }
@@ -628,15 +1573,23 @@ public class LuaTable extends LuaValue implements Metatable {
      * @return the slot index
      */
     public static int hashSlot(LuaValue key, int hashMask) {
-        switch (key.type()) {
+        return hashSlot(key.type(), key.hashCode(), hashMask);
+    }
+
+    /**
+     * Find the hashtable slot of a key from its type and hash code, for the
+     * weak slots which no longer hold the key
+     */
+    static int hashSlot(int type, int hashCode, int hashMask) {
+        switch (type) {
             case TNUMBER:
             case TTABLE:
             case TTHREAD:
             case TLIGHTUSERDATA:
             case TUSERDATA:
-                return hashmod(key.hashCode(), hashMask);
+                return hashmod(hashCode, hashMask);
             default:
-                return hashpow2(key.hashCode(), hashMask);
+                return hashpow2(hashCode, hashMask);
         }
     }
 
@@ -658,6 +1611,7 @@ public class LuaTable extends LuaValue implements Metatable {
                 if ((foundSlot = slot.find(key)) != null) {
                     hash[index] = hash[index].remove(foundSlot);
                     --hashEntries;
+                    ++version;
                     return;
                 }
             }
@@ -665,18 +1619,66 @@ public class LuaTable extends LuaValue implements Metatable {
     }
 
     private boolean checkLoadFactor() {
-        return hashEntries >= hash.length;
+        return weak ? hashEntries >= hash.length : hashEntries >= (hashKeys.length * 3 >> 2);
     }
 
     private int countHashKeys() {
-        int keys = 0;
+        final int[] counts = new int[2];
+        countHashKeys(counts);
+        return counts[0] + counts[1];
+    }
+
+    /*
+     * Count the live keys of the hash part, into counts[0] the integer keys
+     * and into counts[1] the others.
+     */
+    private void countHashKeys(int[] counts) {
+        for (int i = 0; i < intValues.length; ++i) {
+            if (intValues[i] != null)
+                counts[0]++;
+        }
+        for (int i = 0; i < hashValues.length; ++i) {
+            if (hashValues[i] != null)
+                counts[1]++;
+        }
         for (int i = 0; i < hash.length; ++i) {
             for (Slot slot = hash[i]; slot != null; slot = slot.rest()) {
-                if (slot.first() != null)
-                    keys++;
+                StrongSlot entry = slot.first();
+                if (entry != null)
+                    counts[intkey(entry.key()) != NOKEY ? 0 : 1]++;
             }
         }
-        return keys;
+    }
+
+    /**
+     * Drop the entries of the weak keys and values collected since the last
+     * call, as queued by the {@link WeakTable}: only the buckets that held
+     * them are walked.
+     */
+    private void dropCollected() {
+        final WeakTable mt = (WeakTable) m_metatable;
+        boolean arrayValues = false;
+        for (WeakTable.Ref ref; (ref = mt.poll()) != null; ) {
+            if (ref.array()) {
+                arrayValues = true;
+            } else if (hash.length > 0) {
+                int i = ref.keyindex(hash.length - 1);
+                hash[i] = dropCollected(hash[i]);
+            }
+        }
+        if (arrayValues)
+            dropWeakArrayValues();
+    }
+
+    /* hashEntries stays an upper bound, like after a lazy drop by first() */
+    private static Slot dropCollected(Slot slot) {
+        if (slot == null)
+            return null;
+        Slot rest = dropCollected(slot.rest());
+        if (slot instanceof WeakTable.WeakSlot ? ((WeakTable.WeakSlot) slot).collected()
+                : slot instanceof DeadSlot && ((DeadSlot) slot).key() == null)
+            return rest;
+        return rest == slot.rest() ? slot : slot.relink(rest);
     }
 
     private void dropWeakArrayValues() {
@@ -689,6 +1691,13 @@ public class LuaTable extends LuaValue implements Metatable {
         int total = 0;
         int i = 1;
 
+        // Count integer keys in the unboxed array part, 1 to numberCount
+        for (int bit = 0; bit < 31 && numberCount >= 1 << bit >> 1; ++bit) {
+            int c = Math.min(numberCount, 1 << bit) - (1 << bit >> 1);
+            nums[bit] = c;
+            total += c;
+        }
+
         // Count integer keys in array part
         for (int bit = 0; bit < 31; ++bit) {
             if (i > array.length)
@@ -704,6 +1713,13 @@ public class LuaTable extends LuaValue implements Metatable {
         }
 
         // Count integer keys in hash part
+        for (i = 0; i < intKeys.length; ++i) {
+            long k;
+            if (intValues[i] != null && (k = intKeys[i]) >= 1 && k <= Integer.MAX_VALUE) {
+                nums[log2((int) k)]++;
+                total++;
+            }
+        }
         for (i = 0; i < hash.length; ++i) {
             for (Slot s = hash[i]; s != null; s = s.rest()) {
                 int k;
@@ -788,18 +1804,27 @@ public class LuaTable extends LuaValue implements Metatable {
         return lg;
     }
 
+    private void rehash(int newKey) {
+        rehash(newKey, newKey > 0);
+    }
+
     /*
      * newKey > 0 is next key to insert
      * newKey == 0 means number of keys not changing (__mode changed)
      * newKey < 0 next key will go in hash part
+     * intKey whether the next key is an integer, so goes in intKeys if not in the array part
      */
-    private void rehash(int newKey) {
-        if (m_metatable != null && (m_metatable.useWeakKeys() || m_metatable.useWeakValues())) {
-            // If this table has weak entries, hashEntries is just an upper bound.
-            hashEntries = countHashKeys();
-            if (m_metatable.useWeakValues()) {
-                dropWeakArrayValues();
-            }
+    private void rehash(int newKey, boolean intKey) {
+        // hashEntries is just an upper bound: weak entries may be gone
+        // and removed keys keep their open-addressing slot.
+        if (weak)
+            while (((WeakTable) m_metatable).poll() != null)
+                ; // rebuilding the buckets drops every collected entry
+        final int[] counts = new int[2];
+        countHashKeys(counts);
+        hashEntries = counts[0] + counts[1];
+        if (m_metatable != null && m_metatable.useWeakValues()) {
+            dropWeakArrayValues();
         }
         int[] nums = new int[32];
         int total = countIntKeys(nums);
@@ -821,10 +1846,18 @@ public class LuaTable extends LuaValue implements Metatable {
             }
         }
 
+        // An unboxed array part is kept as it is, unless keys of the hash
+        // part should move into a larger one.
+        if (unboxed()) {
+            if (newArraySize > arrayCapacity())
+                box();
+            else
+                newArraySize = 0;
+        }
+
         final LuaValue[] oldArray = array;
         final Slot[] oldHash = hash;
         final LuaValue[] newArray;
-        final Slot[] newHash;
 
         // Copy existing array entries and compute number of moving entries.
         int movingToArray = 0;
@@ -847,23 +1880,41 @@ public class LuaTable extends LuaValue implements Metatable {
             newArray = array;
         }
 
-        final int newHashSize = hashEntries - movingToArray
-                + ((newKey < 0 || newKey > newArraySize) ? 1 : 0); // Make room for the new entry
+        // Make room for the new entry
+        final boolean newEntry = newKey < 0 || newKey > newArraySize;
+        final int newHashSize = weak ? hashEntries - movingToArray + (newEntry ? 1 : 0)
+                : counts[1] + (newEntry && !intKey ? 1 : 0);
+        final int newIntSize = weak ? 0 : counts[0] - movingToArray + (newEntry && intKey ? 1 : 0);
         final int oldCapacity = oldHash.length;
-        final int newCapacity;
-        final int newHashMask;
+        final LuaValue[] oldKeys = hashKeys;
+        final LuaValue[] oldValues = hashValues;
+        final long[] oldIntKeys = intKeys;
+        final LuaValue[] oldIntValues = intValues;
+        Slot[] newHash = NOBUCKETS;
+        LuaValue[] newKeys = NOVALS;
+        LuaValue[] newValues = NOVALS;
+        long[] newIntKeys = NOKEYS;
+        LuaValue[] newIntValues = NOVALS;
+        int newHashMask = 0;
 
         if (newHashSize > 0) {
-            // round up to next power of 2.
-            newCapacity = (newHashSize < MIN_HASH_CAPACITY)
-                    ? MIN_HASH_CAPACITY
-                    : 1 << log2(newHashSize);
-            newHashMask = newCapacity - 1;
-            newHash = new Slot[newCapacity];
-        } else {
-            newCapacity = 0;
-            newHashMask = 0;
-            newHash = NOBUCKETS;
+            if (weak) {
+                // round up to next power of 2.
+                int newCapacity = (newHashSize < MIN_HASH_CAPACITY)
+                        ? MIN_HASH_CAPACITY
+                        : 1 << log2(newHashSize);
+                newHashMask = newCapacity - 1;
+                newHash = new Slot[newCapacity];
+            } else {
+                newKeys = new LuaValue[hashCapacity(newHashSize)];
+                newValues = new LuaValue[newKeys.length];
+                newHashMask = newKeys.length - 1;
+            }
+        }
+        if (newIntSize > 0) {
+            newIntKeys = new long[hashCapacity(newIntSize)];
+            Arrays.fill(newIntKeys, NOKEY);
+            newIntValues = new LuaValue[newIntKeys.length];
         }
 
         // Move hash buckets
@@ -874,34 +1925,119 @@ public class LuaTable extends LuaValue implements Metatable {
                     StrongSlot entry = slot.first();
                     if (entry != null)
                         newArray[k - 1] = entry.value();
-                } else {
+                } else if (weak) {
                     int j = slot.keyindex(newHashMask);
                     newHash[j] = slot.relink(newHash[j]);
+                } else {
+                    StrongSlot entry = slot.first();
+                    if (entry != null) {
+                        long ik = intkey(entry.key());
+                        if (ik != NOKEY)
+                            intInsert(newIntKeys, newIntValues, ik, entry.value());
+                        else
+                            hashInsert(newKeys, newValues, entry.key(), entry.value());
+                    }
                 }
             }
         }
+        for (int i = 0; i < oldIntKeys.length; ++i) {
+            LuaValue v;
+            if ((v = oldIntValues[i]) == null)
+                continue;
+            long key = oldIntKeys[i];
+            if (key >= 1 && key <= newArraySize) {
+                newArray[(int) key - 1] = v;
+            } else if (weak) {
+                Slot entry = m_metatable.entry(LuaInteger.valueOf(key), v);
+                if (entry == null)
+                    continue;
+                int j = entry.keyindex(newHashMask);
+                newHash[j] = (newHash[j] != null) ? newHash[j].add(entry) : entry;
+            } else {
+                intInsert(newIntKeys, newIntValues, key, v);
+            }
+        }
+        for (int i = 0; i < oldKeys.length; ++i) {
+            LuaValue v;
+            if ((v = oldValues[i]) == null)
+                continue;
+            LuaValue key = oldKeys[i];
+            int k;
+            if ((k = arraykey(key, newArraySize)) > 0) {
+                newArray[k - 1] = v;
+            } else if (weak) {
+                Slot entry = m_metatable.entry(key, v);
+                if (entry == null)
+                    continue;
+                int j = entry.keyindex(newHashMask);
+                newHash[j] = (newHash[j] != null) ? newHash[j].add(entry) : entry;
+            } else {
+                hashInsert(newKeys, newValues, key, v);
+            }
+        }
 
         // Move array values into hash portion
         for (int i = newArraySize; i < oldArray.length; ) {
             LuaValue v;
             if ((v = oldArray[i++]) != null) {
-                int slot = hashmod(LuaInteger.hashCode(i), newHashMask);
-                Slot newEntry;
-                if (m_metatable != null) {
-                    newEntry = m_metatable.entry(valueOf(i), v);
-                    if (newEntry == null)
-                        continue;
-                } else {
-                    newEntry = defaultEntry(valueOf(i), v);
+                if (!weak) {
+                    intInsert(newIntKeys, newIntValues, i, v);
+                    continue;
                 }
+                int slot = hashmod(LuaInteger.hashCode(i), newHashMask);
+                Slot entry = m_metatable.entry(valueOf(i), v);
+                if (entry == null)
+                    continue;
                 newHash[slot] = (newHash[slot] != null)
-                        ? newHash[slot].add(newEntry) : newEntry;
+                        ? newHash[slot].add(entry) : entry;
             }
         }
 
         hash = newHash;
+        hashKeys = newKeys;
+        hashValues = newValues;
+        intKeys = newIntKeys;
+        intValues = newIntValues;
         array = newArray;
-        hashEntries -= movingToArray;
+        hashEntries = weak ? hashEntries - movingToArray : counts[1];
+        intEntries = weak ? 0 : counts[0] - movingToArray;
+        ++version;
+    }
+
+    /**
+     * Add a key known to be absent to an open-addressing hash part with a free slot.
+     */
+    private static void hashInsert(LuaValue[] keys, LuaValue[] values, LuaValue key, LuaValue value) {
+        final int mask = keys.length - 1;
+        int i = hashIndex(key, mask);
+        while (keys[i] != null)
+            i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * Add a key known to be absent to an integer-keyed hash part with a free slot.
+     */
+    private static void intInsert(long[] keys, LuaValue[] values, long key, LuaValue value) {
+        final int mask = keys.length - 1;
+        int i = intIndex(key, mask);
+        while (keys[i] != NOKEY)
+            i = (i + 1) & mask;
+        keys[i] = key;
+        values[i] = value;
+    }
+
+    /**
+     * Return the key of an open-addressing slot if it is an integer between 1
+     * and max, inclusive, or zero otherwise.
+     */
+    private static int arraykey(LuaValue key, int max) {
+        if (key instanceof LuaInteger) {
+            long k = ((LuaInteger) key).v;
+            return k >= 1 && k <= max ? (int) k : 0;
+        }
+        return 0;
     }
 
     public Slot entry(LuaValue key, LuaValue value) {
@@ -933,11 +2069,17 @@ public class LuaTable extends LuaValue implements Metatable {
 
     // ----------------- sort support -----------------------------
     //
-    // implemented heap sort from wikipedia
+    // introsort: quicksort on the median of three, insertion sort for
+    // short ranges and heapsort once the partitions get too deep.
     //
     // Only sorts the contiguous array part.
     //
 
+    /**
+     * ranges this short are left to the insertion sort
+     */
+    private static final int INSERTION_SORT_MAX = 12;
+
     /**
      * Sort the table using a comparator.
      *
@@ -950,49 +2092,188 @@ public class LuaTable extends LuaValue implements Metatable {
             dropWeakArrayValues();
         }
         int n = length();
-        if (n > 1)
-            heapSort(n, comparator.isnil() ? null : comparator);
+        if (n > 1 && n <= numberCount && comparator.isnil()) {
+            if (longs != null)
+                Arrays.sort(longs, 0, n);
+            else
+                Arrays.sort(doubles, 0, n);
+        } else if (n > 1) {
+            LuaValue[] a = new LuaValue[n];
+            for (int i = 0; i < n; i++)
+                a[i] = get(i + 1);
+            sort(a, n, comparator.isnil() ? null : comparator);
+            for (int i = 0; i < n; i++)
+                set(i + 1, a[i]);
+        }
     }
 
-    private void heapSort(int count, LuaValue cmpfunc) {
-        heapify(count, cmpfunc);
-        for (int end = count; end > 1; ) {
-            LuaValue a = get(end); // swap(end, 1)
-            set(end, get(1));
-            set(1, a);
-            siftDown(1, --end, cmpfunc);
+    /**
+     * Sort the first {@code n} values of {@code a} in place. Without a
+     * comparator, values that are all integers, all floats or all strings
+     * are compared without going through {@link LuaValue#lt_b(LuaValue)}.
+     * Null values are never less than another value.
+     *
+     * @param cmpfunc the comparator, or null for the {@code <} operator
+     */
+    static void sort(LuaValue[] a, int n, LuaValue cmpfunc) {
+        if (n < 2)
+            return;
+        Order order;
+        if (cmpfunc != null) {
+            order = new FunctionOrder(cmpfunc);
+        } else if (a[0] instanceof LuaInteger) {
+            long[] keys = new long[n];
+            for (int i = 0; i < n; i++) {
+                if (!(a[i] instanceof LuaInteger)) {
+                    keys = null;
+                    break;
+                }
+                keys[i] = ((LuaInteger) a[i]).v;
+            }
+            if (keys != null) {
+                Arrays.sort(keys);
+                for (int i = 0; i < n; i++)
+                    a[i] = LuaInteger.valueOf(keys[i]);
+                return;
+            }
+            order = Order.VALUES;
+        } else if (a[0] instanceof LuaDouble) {
+            double[] keys = new double[n];
+            for (int i = 0; i < n; i++) {
+                if (!(a[i] instanceof LuaDouble)) {
+                    keys = null;
+                    break;
+                }
+                keys[i] = ((LuaDouble) a[i]).v;
+            }
+            if (keys != null) {
+                Arrays.sort(keys);
+                for (int i = 0; i < n; i++)
+                    a[i] = new LuaDouble(keys[i]);
+                return;
+            }
+            order = Order.VALUES;
+        } else {
+            order = Order.STRINGS;
+            for (int i = 0; i < n; i++) {
+                if (!(a[i] instanceof LuaString)) {
+                    order = Order.VALUES;
+                    break;
+                }
+            }
         }
+        introsort(a, 0, n - 1, 2 * (32 - Integer.numberOfLeadingZeros(n)), order);
     }
 
-    private void heapify(int count, LuaValue cmpfunc) {
-        for (int start = count / 2; start > 0; --start)
-            siftDown(start, count, cmpfunc);
+    /**
+     * Strict order to sort by.
+     */
+    private static abstract class Order {
+        static final Order VALUES = new Order() {
+            boolean lt(LuaValue a, LuaValue b) {
+                return a != null && b != null && a.lt_b(b);
+            }
+        };
+        static final Order STRINGS = new Order() {
+            boolean lt(LuaValue a, LuaValue b) {
+                return ((LuaString) a).strcmp((LuaString) b) < 0;
+            }
+        };
+
+        abstract boolean lt(LuaValue a, LuaValue b);
     }
 
-    private void siftDown(int start, int end, LuaValue cmpfunc) {
-        for (int root = start; root * 2 <= end; ) {
-            int child = root * 2;
-            if (child < end && compare(child, child + 1, cmpfunc))
+    /**
+     * Order of a comparator function, called with the two values only so no
+     * argument list is allocated.
+     */
+    private static final class FunctionOrder extends Order {
+        private final LuaValue cmpfunc;
+
+        FunctionOrder(LuaValue cmpfunc) {
+            this.cmpfunc = cmpfunc;
+        }
+
+        boolean lt(LuaValue a, LuaValue b) {
+            return a != null && b != null && cmpfunc.call(a, b).toboolean();
+        }
+    }
+
+    private static void introsort(LuaValue[] a, int lo, int hi, int depth, Order order) {
+        while (hi - lo > INSERTION_SORT_MAX) {
+            if (--depth < 0) {
+                heapSort(a, lo, hi, order);
+                return;
+            }
+            // order a[lo], a[mid] and a[hi], which then bound the scans below
+            int mid = (lo + hi) >>> 1;
+            if (order.lt(a[mid], a[lo]))
+                swap(a, mid, lo);
+            if (order.lt(a[hi], a[mid])) {
+                swap(a, hi, mid);
+                if (order.lt(a[mid], a[lo]))
+                    swap(a, mid, lo);
+            }
+            LuaValue pivot = a[mid];
+            swap(a, mid, hi - 1);
+            int i = lo, j = hi - 1;
+            for (; ; ) {
+                while (order.lt(a[++i], pivot))
+                    if (i == hi - 1)
+                        throw new LuaError("invalid order function for sorting");
+                while (order.lt(pivot, a[--j]))
+                    if (j < i)
+                        throw new LuaError("invalid order function for sorting");
+                if (j < i)
+                    break;
+                swap(a, i, j);
+            }
+            swap(a, i, hi - 1);
+            // recurse into the smaller part, loop on the larger one
+            if (i - lo < hi - i) {
+                introsort(a, lo, i - 1, depth, order);
+                lo = i + 1;
+            } else {
+                introsort(a, i + 1, hi, depth, order);
+                hi = i - 1;
+            }
+        }
+        for (int i = lo + 1; i <= hi; i++) {
+            LuaValue v = a[i];
+            int j = i;
+            for (; j > lo && order.lt(v, a[j - 1]); j--)
+                a[j] = a[j - 1];
+            a[j] = v;
+        }
+    }
+
+    private static void heapSort(LuaValue[] a, int lo, int hi, Order order) {
+        int count = hi - lo + 1;
+        for (int start = count / 2 - 1; start >= 0; --start)
+            siftDown(a, lo, start, count - 1, order);
+        for (int end = count - 1; end > 0; ) {
+            swap(a, lo, lo + end);
+            siftDown(a, lo, 0, --end, order);
+        }
+    }
+
+    private static void siftDown(LuaValue[] a, int lo, int start, int end, Order order) {
+        for (int root = start; root * 2 + 1 <= end; ) {
+            int child = root * 2 + 1;
+            if (child < end && order.lt(a[lo + child], a[lo + child + 1]))
                 ++child;
-            if (compare(root, child, cmpfunc)) {
-                LuaValue a = get(root); // swap(root, child)
-                set(root, get(child));
-                set(child, a);
+            if (order.lt(a[lo + root], a[lo + child])) {
+                swap(a, lo + root, lo + child);
                 root = child;
             } else
                 return;
         }
     }
 
-    private boolean compare(int i, int j, LuaValue cmpfunc) {
-        LuaValue a = get(i), b = get(j);
-        if (a == null || b == null)
-            return false;
-        if (cmpfunc != null) {
-            return cmpfunc.call(a, b).toboolean();
-        } else {
-            return a.lt_b(b);
-        }
+    private static void swap(LuaValue[] a, int i, int j) {
+        LuaValue v = a[i];
+        a[i] = a[j];
+        a[j] = v;
     }
 
     /**
@@ -1092,25 +2373,16 @@ public class LuaTable extends LuaValue implements Metatable {
     public int size() {
         int len = 0;
         // check array part
-        int i = 0;
-        for (; i < array.length; ++i) {
+        if (unboxed())
+            len = numberCount;
+        for (int i = 0; i < array.length; ++i) {
             if (array[i] != null) {
                 len++;
             }
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
-            Slot slot = hash[i];
-            while (slot != null) {
-                StrongSlot first = slot.first();
-                if (first != null) {
-                    len++;
-                }
-                slot = slot.rest();
-            }
-        }
-        return len;
+        return len + countHashKeys() + (shared != null ? shared.size() : 0);
     }
 
     public LuaValue dump() {
@@ -1164,64 +2436,54 @@ public class LuaTable extends LuaValue implements Metatable {
         buf.append("{\n");
 
         // check array part
+        final int alen = arrayCapacity();
         int i = 0;
-        for (; i < array.length; ++i) {
-            if (array[i] != null) {
-                LuaValue value = m_metatable == null ? array[i] : m_metatable.arrayget(array, i);
-                if (value != null) {
-                    for (int i1 = 0; i1 < idx; i1++) {
-                        buf.append(" ");
-                    }
-                    buf.append("[").append(i + 1).append("]").append(" = ");
-                    if (value.istable()) {
-                        if (cache.containsKey(value)) {
-                            buf.append(cache.get(value));
-                        } else {
-                            cache.put(value, "[" + (i + 1) + "]");
-                            dump(buf, value, idx, cache);
-                        }
+        for (; i < alen; ++i) {
+            LuaValue value = arrayValue(i);
+            if (value != null) {
+                for (int i1 = 0; i1 < idx; i1++) {
+                    buf.append(" ");
+                }
+                buf.append("[").append(i + 1).append("]").append(" = ");
+                if (value.istable()) {
+                    if (cache.containsKey(value)) {
+                        buf.append(cache.get(value));
                     } else {
+                        cache.put(value, "[" + (i + 1) + "]");
                         dump(buf, value, idx, cache);
                     }
-
-                    buf.append(";\n");
+                } else {
+                    dump(buf, value, idx, cache);
                 }
+
+                buf.append(";\n");
             }
         }
 
         // check hash part
-        for (i -= array.length; i < hash.length; ++i) {
+        for (int j = 0; j < intValues.length; ++j) {
+            if (intValues[j] != null)
+                dump(buf, LuaInteger.valueOf(intKeys[j]), intValues[j], idx, cache);
+        }
+        for (int j = 0; j < hashValues.length; ++j) {
+            if (hashValues[j] != null)
+                dump(buf, hashKeys[j], hashValues[j], idx, cache);
+        }
+        for (i -= alen; i < hash.length; ++i) {
             Slot slot = hash[i];
             while (slot != null) {
                 StrongSlot first = slot.first();
-                if (first != null) {
-                    LuaValue k = first.key();
-                    LuaValue v = first.value();
-                    for (int i1 = 0; i1 < idx; i1++) {
-                        buf.append(" ");
-                    }
-                    if (k.isstring())
-                        buf.append(k.tojstring());
-                    else if (k.isnumber())
-                        buf.append("[").append(k.tonumber()).append("]");
-                    else
-                        buf.append("[").append(k.tojstring()).append("]");
-                    buf.append(" = ");
-                    if (v.istable()) {
-                        if (cache.containsKey(v)) {
-                            buf.append(cache.get(v));
-                        } else {
-                            cache.put(v, "[" + (k) + "]");
-                            dump(buf, v, idx, cache);
-                        }
-                    } else {
-                        dump(buf, v, idx, cache);
-                    }
-                    buf.append(";\n");
-                }
+                if (first != null)
+                    dump(buf, first.key(), first.value(), idx, cache);
                 slot = slot.rest();
             }
         }
+        if (shared != null)
+            for (Map.Entry<LuaValue, SharedEntry> e : shared.entrySet()) {
+                LuaValue v = e.getValue().get();
+                if (v != null)
+                    dump(buf, e.getKey(), v, idx, cache);
+            }
 
         idx = idx - 2;
         for (int i1 = 0; i1 < idx; i1++) {
@@ -1233,6 +2495,30 @@ public class LuaTable extends LuaValue implements Metatable {
         }
     }
 
+    private void dump(StringBuilder buf, LuaValue k, LuaValue v, int idx, HashMap<LuaValue, String> cache) {
+        for (int i1 = 0; i1 < idx; i1++) {
+            buf.append(" ");
+        }
+        if (k.isstring())
+            buf.append(k.tojstring());
+        else if (k.isnumber())
+            buf.append("[").append(k.tonumber()).append("]");
+        else
+            buf.append("[").append(k.tojstring()).append("]");
+        buf.append(" = ");
+        if (v.istable()) {
+            if (cache.containsKey(v)) {
+                buf.append(cache.get(v));
+            } else {
+                cache.put(v, "[" + (k) + "]");
+                dump(buf, v, idx, cache);
+            }
+        } else {
+            dump(buf, v, idx, cache);
+        }
+        buf.append(";\n");
+    }
+
     static void addquoted(StringBuilder buf, LuaString s) {
         Buffer result = new Buffer();
         StringLib.addquoted(result, s);
@@ -108,6 +108,9 @@ public class LuaThread extends LuaValue {
     public final LuaTable registry=new LuaTable();
 	/** Error message handler for this thread, if any.  */
 	public LuaValue errorfunc;
+
+	/** values of weak tables this coroutine is a key of, see {@link WeakTable.Ephemeron} */
+	WeakTable.Ephemeron ephemerons;
 	
 	/** Private constructor for main thread only */
 	public LuaThread(Globals globals) {
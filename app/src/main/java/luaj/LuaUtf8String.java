@@ -20,28 +20,22 @@ public class LuaUtf8String extends LuaValue {
     public static LuaValue s_metatable;
 
     /**
-     * The bytes for the string.  These <em><b>must not be mutated directly</b></em> because
-     * the backing may be shared by multiple LuaUtf8Strings, and the hash code is
-     * computed only at construction time.
-     * It is exposed only for performance and legacy reasons.
+     * The UTF-8 bytes of the string. The code points are decoded from them as
+     * they are asked for, so a string made from a {@link LuaString} shares
+     * its bytes rather than holding a code point per int.
      */
-    public final int[] m_bytes;
+    public final LuaString m_utf8;
 
     /**
-     * The offset into the byte array, 0 means start at the first byte
+     * The offset into the code points of {@link #m_utf8}, 0 means start at the first code point
      */
     public final int m_offset;
 
     /**
-     * The number of bytes that comprise this string
+     * The number of code points that comprise this string
      */
     public final int m_length;
 
-    /**
-     * The hashcode for this string.  Computed at construct time.
-     */
-    private int m_hashcode;
-
     /**
      * Size of cache of recent short strings. This is the maximum number of LuaUtf8Strings that
      * will be retained in the cache of recent short strings.  Exposed to package for testing.
@@ -55,10 +49,23 @@ public class LuaUtf8String extends LuaValue {
      * Exposed to package for testing.
      */
     static final int RECENT_STRINGS_MAX_LENGTH = 32;
-    private boolean isHascode;
-    private String m_string;
+    private final boolean m_ascii;
     private LuaString m_lua_string;
 
+    /**
+     * The code points decoded up front by {@link #decoded()}, or null.
+     */
+    private final int[] m_codepoints;
+
+    /**
+     * The code point last looked up and its byte offset in {@link #m_utf8},
+     * as (index << 32 | offset). Pattern matching mostly steps from one code
+     * point to the next, which this turns into decoding just one sequence.
+     * Both are kept in one field so that no thread sees the index of one
+     * code point with the offset of another.
+     */
+    private long m_cursor;
+
     /**
      * Get a {@link LuaUtf8String} instance whose bytes match
      * the supplied Java String using the UTF8 encoding.
@@ -67,43 +74,32 @@ public class LuaUtf8String extends LuaValue {
      * @return {@link LuaUtf8String} with UTF8 bytes corresponding to the supplied String
      */
     public static LuaUtf8String valueOfString(String string) {
-        int len = string.codePointCount(0, string.length());
-        int[] cs = new int[len];
-        int n = 0;
-        for (int i = 0; i < len; i++) {
-            cs[i] = string.codePointAt(n);
-            n += Character.charCount(cs[i]);
-        }
-        return valueUsing(cs, 0, cs.length);
-    }
-
-    public static LuaUtf8String valueOfString(LuaString string) {
-        return valueOfString(string.tojstring());
+        return valueOfString(LuaString.valueOf(string));
     }
 
     /**
-     * Construct a new LuaUtf8String using a copy of the bytes array supplied
+     * Get a {@link LuaUtf8String} instance for the code points of a {@link LuaString},
+     * sharing its bytes.
+     *
+     * @param string LuaString whose bytes are taken as UTF8
+     * @return {@link LuaUtf8String} with the code points of the string
      */
-    private static LuaUtf8String valueFromCopy(int[] bytes, int off, int len) {
-        final int[] copy = new int[len];
-        System.arraycopy(bytes, off, copy, 0, len);
-        return new LuaUtf8String(copy, 0, len);
+    public static LuaUtf8String valueOfString(LuaString string) {
+        return new LuaUtf8String(string, 0, string.codePointCount());
     }
 
     /**
      * Construct a {@link LuaUtf8String} around, possibly using the the supplied
      * byte array as the backing store.
      * <p>
-     * The caller must ensure that the array is not mutated after the call.
-     * However, if the string is short enough the short-string cache is checked
-     * for a match which may be used instead of the supplied byte array.
+     * The code points are encoded into UTF-8 bytes, so the array is not kept.
      * <p>
      *
      * @param bytes byte buffer
      * @return {@link LuaUtf8String} wrapping the byte buffer, or an equivalent string.
      */
     static public LuaUtf8String valueUsing(int[] bytes, int off, int len) {
-        return new LuaUtf8String(bytes, off, len);
+        return valueOfString(toLuaString(bytes, off, len));
     }
 
     /**
@@ -153,20 +149,63 @@ public class LuaUtf8String extends LuaValue {
     }
 
     /**
-     * Construct a {@link LuaUtf8String} around a byte array without copying the contents.
-     * <p>
-     * The array is used directly after this is called, so clients must not change contents.
+     * Construct a {@link LuaUtf8String} over a range of the code points of a string.
      * <p>
      *
-     * @param bytes  byte buffer
-     * @param offset offset into the byte buffer
-     * @param length length of the byte buffer
-     * @return {@link LuaUtf8String} wrapping the byte buffer
+     * @param utf8   string holding the bytes
+     * @param offset index of the first code point
+     * @param length number of code points
      */
-    private LuaUtf8String(int[] bytes, int offset, int length) {
-        this.m_bytes = bytes;
+    private LuaUtf8String(LuaString utf8, int offset, int length) {
+        this(utf8, offset, length, null);
+    }
+
+    private LuaUtf8String(LuaString utf8, int offset, int length, int[] codepoints) {
+        this.m_utf8 = utf8;
         this.m_offset = offset;
         this.m_length = length;
+        this.m_ascii = utf8.isAscii();
+        this.m_codepoints = codepoints;
+    }
+
+    /**
+     * Get this string with all its code points decoded into an array, for
+     * pattern matching, which reads them over and over in no fixed order.
+     * Substrings taken from the result do not keep the array.
+     *
+     * @return LuaUtf8String equal to this one
+     */
+    public LuaUtf8String decoded() {
+        if (m_ascii || m_codepoints != null)
+            return this;
+        final int[] c = new int[m_length];
+        m_utf8.decodeCodePoints(offsetOf(0), c);
+        return new LuaUtf8String(m_utf8, m_offset, m_length, c);
+    }
+
+    /**
+     * Find the byte offset in {@link #m_utf8} of a code point of this string.
+     *
+     * @param index zero-based index of the code point, up to {@link #length()}
+     */
+    private int offsetOf(int index) {
+        final int k = m_offset + index;
+        if (m_ascii)
+            return k;
+        final long c = m_cursor;
+        int at = (int) (c >>> 32), off = (int) c;
+        if (k == at)
+            return off;
+        if (k > at + LuaString.CODEPOINT_STRIDE || k < at - 4) {
+            off = m_utf8.codePointOffset(k);
+        } else {
+            for (; at < k; at++)
+                off = m_utf8.nextCodePoint(off);
+            for (; at > k; at--)
+                off = m_utf8.previousCodePoint(off);
+        }
+        m_cursor = (long) k << 32 | off;
+        return off;
     }
 
     public boolean isstring() {
@@ -186,14 +225,12 @@ public class LuaUtf8String extends LuaValue {
     }
 
     public String tojstring() {
-        if (m_string == null)
-            m_string = decodeAsUtf8(m_bytes, m_offset, m_length);
-        return m_string;
+        return strvalue().tojstring();
     }
 
     @Override
     public LuaValue get(int key) {
-        return LuaValue.valueOf(m_bytes[m_offset + posrelat(key, m_length) - 1]);
+        return LuaValue.valueOf(luaByte(posrelat(key, m_length) - 1));
     }
 
     @Override
@@ -387,22 +424,23 @@ public class LuaUtf8String extends LuaValue {
 
     // concatenation
     public LuaValue concat(LuaValue rhs) {
-        return rhs.concatTo(this);
+        return strvalue().concat(rhs);
     }
 
     public Buffer concat(Buffer rhs) {
-        return rhs.concatTo(this);
+        return strvalue().concat(rhs);
     }
 
     public LuaValue concatTo(LuaNumber lhs) {
-        return concatTo(lhs.strvalue());
+        return strvalue().concatTo(lhs);
+    }
+
+    public LuaValue concatTo(LuaString lhs) {
+        return strvalue().concatTo(lhs);
     }
 
     public LuaValue concatTo(LuaUtf8String lhs) {
-        int[] b = new int[lhs.m_length + this.m_length];
-        System.arraycopy(lhs.m_bytes, lhs.m_offset, b, 0, lhs.m_length);
-        System.arraycopy(this.m_bytes, this.m_offset, b, lhs.m_length, this.m_length);
-        return valueUsing(b, 0, b.length);
+        return valueOfString(strvalue().concatTo(lhs.strvalue()).strvalue());
     }
 
     // string comparison
@@ -412,8 +450,9 @@ public class LuaUtf8String extends LuaValue {
 
     public int strcmp(LuaUtf8String rhs) {
         for (int i = 0, j = 0; i < m_length && j < rhs.m_length; ++i, ++j) {
-            if (m_bytes[m_offset + i] != rhs.m_bytes[rhs.m_offset + j]) {
-                return ((int) m_bytes[m_offset + i]) - ((int) rhs.m_bytes[rhs.m_offset + j]);
+            final int a = luaByte(i), b = rhs.luaByte(j);
+            if (a != b) {
+                return a - b;
             }
         }
         return m_length - rhs.m_length;
@@ -542,9 +581,13 @@ public class LuaUtf8String extends LuaValue {
     }
 
     public LuaString strvalue() {
-        if (m_lua_string == null)
-            m_lua_string = toLuaString(m_bytes, m_offset, m_length);
-        return m_lua_string;
+        LuaString s = m_lua_string;
+        if (s == null) {
+            s = m_offset == 0 && m_length == m_utf8.codePointCount() ? m_utf8 :
+                    m_utf8.substring(offsetOf(0), offsetOf(m_length));
+            m_lua_string = s;
+        }
+        return s;
     }
 
     public static LuaString toLuaString(int[] bytes, int off, int len) {
@@ -561,19 +604,14 @@ public class LuaUtf8String extends LuaValue {
      * beginIndex and extending for (endIndex - beginIndex ) characters.
      */
     public LuaUtf8String substring(int beginIndex, int endIndex) {
-        final int off = m_offset + beginIndex;
-        final int len = endIndex - beginIndex;
-        return len >= m_length / 2 ?
-                valueUsing(m_bytes, off, len) :
-                valueOf(m_bytes, off, len);
+        final LuaUtf8String s = new LuaUtf8String(m_utf8, m_offset + beginIndex, endIndex - beginIndex);
+        if (!m_ascii)
+            s.m_cursor = (long) (m_offset + beginIndex) << 32 | offsetOf(beginIndex);
+        return s;
     }
 
     public int hashCode() {
-        if (isHascode)
-            return m_hashcode;
-        m_hashcode = tostring().hashCode();
-        isHascode = true;
-        return m_hashcode;
+        return strvalue().hashCode();
     }
 
     /**
@@ -626,25 +664,18 @@ public class LuaUtf8String extends LuaValue {
             return true;
         if (s.m_length != m_length)
             return false;
-        if (s.m_bytes == m_bytes && s.m_offset == m_offset)
+        if (s.m_utf8 == m_utf8 && s.m_offset == m_offset)
             return true;
-        if (s.hashCode() != hashCode())
-            return false;
-        for (int i = 0; i < m_length; i++)
-            if (s.m_bytes[s.m_offset + i] != m_bytes[m_offset + i])
-                return false;
-        return true;
+        return strvalue().raweq(s.strvalue());
     }
 
     public static boolean equals(LuaUtf8String a, int i, LuaUtf8String b, int j, int n) {
-        return equals(a.m_bytes, a.m_offset + i, b.m_bytes, b.m_offset + j, n);
-    }
-
-    /**
-     * Return true if the bytes in the supplied range match this LuaUtf8Strings bytes.
-     */
-    private boolean byteseq(int[] bytes, int off, int len) {
-        return (m_length == len && equals(m_bytes, m_offset, bytes, off, len));
+        if (a.m_length < i + n || b.m_length < j + n)
+            return false;
+        while (--n >= 0)
+            if (a.luaByte(i++) != b.luaByte(j++))
+                return false;
+        return true;
     }
 
     public static boolean equals(int[] a, int i, int[] b, int j, int n) {
@@ -670,7 +701,11 @@ public class LuaUtf8String extends LuaValue {
     }
 
     public int luaByte(int index) {
-        return m_bytes[m_offset + index];
+        if (m_codepoints != null)
+            return m_codepoints[index];
+        if (m_ascii)
+            return m_utf8.luaByte(m_offset + index);
+        return m_utf8.codePointAt(offsetOf(index));
     }
 
     public int charAt(int index) {
@@ -697,7 +732,8 @@ public class LuaUtf8String extends LuaValue {
      * @param len         number of bytes to copy
      */
     public void copyInto(int strOffset, int[] bytes, int arrayOffset, int len) {
-        System.arraycopy(m_bytes, m_offset + strOffset, bytes, arrayOffset, len);
+        for (int i = 0; i < len; i++)
+            bytes[arrayOffset + i] = luaByte(strOffset + i);
     }
 
     /**
@@ -707,12 +743,11 @@ public class LuaUtf8String extends LuaValue {
      * @return index of first match in the {@code accept} string, or -1 if not found.
      */
     public int indexOfAny(LuaUtf8String accept) {
-        final int ilimit = m_offset + m_length;
-        final int jlimit = accept.m_offset + accept.m_length;
-        for (int i = m_offset; i < ilimit; ++i) {
-            for (int j = accept.m_offset; j < jlimit; ++j) {
-                if (m_bytes[i] == accept.m_bytes[j]) {
-                    return i - m_offset;
+        for (int i = 0; i < m_length; ++i) {
+            final int c = luaByte(i);
+            for (int j = 0; j < accept.m_length; ++j) {
+                if (c == accept.luaByte(j)) {
+                    return i;
                 }
             }
         }
@@ -728,7 +763,7 @@ public class LuaUtf8String extends LuaValue {
      */
     public int indexOf(byte b, int start) {
         for (int i = start; i < m_length; ++i) {
-            if (m_bytes[m_offset + i] == b)
+            if (luaByte(i) == b)
                 return i;
         }
         return -1;
@@ -745,7 +780,7 @@ public class LuaUtf8String extends LuaValue {
         final int slen = s.length();
         final int limit = m_length - slen;
         for (int i = start; i <= limit; ++i) {
-            if (equals(m_bytes, m_offset + i, s.m_bytes, s.m_offset, slen))
+            if (equals(this, i, s, 0, slen))
                 return i;
         }
         return -1;
@@ -761,7 +796,7 @@ public class LuaUtf8String extends LuaValue {
         final int slen = s.length();
         final int limit = m_length - slen;
         for (int i = limit; i >= 0; --i) {
-            if (equals(m_bytes, m_offset + i, s.m_bytes, s.m_offset, slen))
+            if (equals(this, i, s, 0, slen))
                 return i;
         }
         return -1;
@@ -803,27 +838,17 @@ public class LuaUtf8String extends LuaValue {
 
 
     /**
-     * Check that a byte sequence is valid UTF-8
+     * Check that a byte sequence is valid UTF-8, that is that none of the
+     * code points is a U+FFFD read from malformed bytes.
      *
      * @return true if it is valid UTF-8, otherwise false
      * @see #lengthAsUtf8(int[])
      * @see #encodeToUtf8(int[], int, int[], int)
      * @see #decodeAsUtf8(int[], int, int)
+     * @see LuaString#isWellFormedUtf8()
      */
     public boolean isValidUtf8() {
-        for (int i = m_offset, j = m_offset + m_length; i < j; ) {
-            int c = m_bytes[i++];
-            if (c >= 0) continue;
-            if (((c & 0xE0) == 0xC0)
-                    && i < j
-                    && (m_bytes[i++] & 0xC0) == 0x80) continue;
-            if (((c & 0xF0) == 0xE0)
-                    && i + 1 < j
-                    && (m_bytes[i++] & 0xC0) == 0x80
-                    && (m_bytes[i++] & 0xC0) == 0x80) continue;
-            return false;
-        }
-        return true;
+        return strvalue().isWellFormedUtf8();
     }
 
     // --------------------- number conversion -----------------------
@@ -859,15 +884,7 @@ public class LuaUtf8String extends LuaValue {
      * @return double value if conversion is valid, or Double.NaN if not
      */
     public double scannumber() {
-        int i = m_offset, j = m_offset + m_length;
-        while (i < j && m_bytes[i] == ' ') ++i;
-        while (i < j && m_bytes[j - 1] == ' ') --j;
-        if (i >= j)
-            return Double.NaN;
-        if (m_bytes[i] == '0' && i + 1 < j && (m_bytes[i + 1] == 'x' || m_bytes[i + 1] == 'X'))
-            return scanlong(16, i + 2, j);
-        double l = scanlong(10, i, j);
-        return Double.isNaN(l) ? scandouble(i, j) : l;
+        return strvalue().scannumber();
     }
 
     /**
@@ -877,80 +894,7 @@ public class LuaUtf8String extends LuaValue {
      * @return double value if conversion is valid, or Double.NaN if not
      */
     public double scannumber(int base) {
-        if (base < 2 || base > 36)
-            return Double.NaN;
-        int i = m_offset, j = m_offset + m_length;
-        while (i < j && m_bytes[i] == ' ') ++i;
-        while (i < j && m_bytes[j - 1] == ' ') --j;
-        if (i >= j)
-            return Double.NaN;
-        return scanlong(base, i, j);
-    }
-
-    /**
-     * Scan and convert a long value, or return Double.NaN if not found.
-     *
-     * @param base  the base to use, such as 10
-     * @param start the index to start searching from
-     * @param end   the first index beyond the search range
-     * @return double value if conversion is valid,
-     * or Double.NaN if not
-     */
-    private double scanlong(int base, int start, int end) {
-        long x = 0;
-        boolean neg = (m_bytes[start] == '-');
-        for (int i = (neg ? start + 1 : start); i < end; i++) {
-            int digit = m_bytes[i] - (base <= 10 || (m_bytes[i] >= '0' && m_bytes[i] <= '9') ? '0' :
-                    m_bytes[i] >= 'A' && m_bytes[i] <= 'Z' ? ('A' - 10) : ('a' - 10));
-            if (digit < 0 || digit >= base)
-                return Double.NaN;
-            x = x * base + digit;
-            if (x < 0)
-                return Double.NaN; // overflow
-        }
-        return neg ? -x : x;
-    }
-
-    /**
-     * Scan and convert a double value, or return Double.NaN if not a double.
-     *
-     * @param start the index to start searching from
-     * @param end   the first index beyond the search range
-     * @return double value if conversion is valid,
-     * or Double.NaN if not
-     */
-    private double scandouble(int start, int end) {
-        if (end > start + 64) end = start + 64;
-        for (int i = start; i < end; i++) {
-            switch (m_bytes[i]) {
-                case '-':
-                case '+':
-                case '.':
-                case 'e':
-                case 'E':
-                case '0':
-                case '1':
-                case '2':
-                case '3':
-                case '4':
-                case '5':
-                case '6':
-                case '7':
-                case '8':
-                case '9':
-                    break;
-                default:
-                    return Double.NaN;
-            }
-        }
-        int[] c = new int[end - start];
-        for (int i = start; i < end; i++)
-            c[i - start] = m_bytes[i];
-        try {
-            return Double.parseDouble(new String(c, start, end));
-        } catch (Exception e) {
-            return Double.NaN;
-        }
+        return strvalue().scannumber(base);
     }
 
     /**
@@ -961,7 +905,7 @@ public class LuaUtf8String extends LuaValue {
      */
     public void printToStream(PrintStream ps) {
         for (int i = 0, n = m_length; i < n; i++) {
-            int c = m_bytes[m_offset + i];
+            int c = luaByte(i);
             ps.print((char) c);
         }
     }
@@ -351,11 +351,12 @@ public class LuaValue extends Varargs {
 	 */
 	public boolean isint()               { return false; }
 
-	/** Check if {@code this} is a {@link LuaInteger}
+	/** Check if {@code this} is a number whose value is a java int, such as
+	 * the keys of the array part of tables
 	 * <p>
 	 * No attempt to convert from string will be made by this call. 
-	 * @return true if this is a {@code LuaInteger}, 
-	 * otherwise false
+	 * @return true if this is a {@code LuaInteger} or integral {@code LuaDouble}
+	 * in the range of int, otherwise false
 	 * @see #isint()
 	 * @see #isnumber()
 	 * @see #tonumber()
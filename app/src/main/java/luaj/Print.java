@@ -96,6 +96,11 @@ public class Print extends Lua {
 			"LOADC",
 			"LOADP",
 			"EXTRAARG",
+			"CMPJMP",
+			"TESTJMP",
+			"GETTABLE2",
+			"GETTABLECALL",
+			"ARITHCHAIN",
 		  null,
 	};
 
@@ -194,6 +199,16 @@ public class Print extends Lua {
 		int[] code = f.code;
 		int i = code[pc];
 		int o = GET_OPCODE(i);
+		String name = OPNAMES[o];
+		if (o >= NUM_OPCODES) {
+			/* superinstructions show the operands of their first instruction */
+			i = unfuse(i);
+			if (o == OP_CMPJMP)
+				name = OPNAMES[GET_OPCODE(i)] + "JMP";
+			else if (o == OP_ARITHCHAIN)
+				name = OPNAMES[GET_OPCODE(i)] + "CHAIN";
+			o = GET_OPCODE(i);
+		}
 		int a = GETARG_A(i);
 		int b = GETARG_B(i);
 		int c = GETARG_C(i);
@@ -205,7 +220,7 @@ public class Print extends Lua {
 			ps.print("[" + line + "]  ");
 		else
 			ps.print("[-]  ");
-		ps.print(OPNAMES[o] + "  ");
+		ps.print(name + "  ");
 		switch (getOpMode(o)) {
 		case iABC:
 			ps.print( a );
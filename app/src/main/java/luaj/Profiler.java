@@ -0,0 +1,296 @@
+package luaj;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counter-based profiler for {@link LuaClosure}, installed through
+ * {@link Globals#profiler}.
+ * <p>
+ * While installed, the interpreter counts every instruction it dispatches
+ * per opcode, the calls, instructions and self-time of each call path
+ * of {@link Prototype}s, and how often the {@link InlineCache} of a
+ * constant-key table read has to look the key up again. Self-time is the
+ * wall time spent in a closure, including the Java functions it calls but
+ * not the Lua closures. With {@link Globals#profiler} left null the only
+ * cost is a null check per call and per instruction. Calls already running
+ * when the profiler is installed are not counted.
+ * <p>
+ * The results are reported as a flat profile by {@link #flat()} and in the
+ * collapsed-stack format read by flamegraph tools by {@link #collapsed()}.
+ * Every Java thread, so every coroutine, keeps its own call path, rooted at
+ * the function it started with. Counters are not synchronized, so they may
+ * lose a few counts when several threads run Lua code at the same time.
+ * <p>
+ * Only the interpreter is profiled; closures compiled by the luajc backends
+ * are not counted.
+ */
+public final class Profiler {
+
+    private final long[] opcodes = new long[64];
+
+    private final Node root = new Node(null);
+
+    private final ThreadLocal<Frame> top = new ThreadLocal<Frame>();
+
+    private long lookups;
+
+    private long misses;
+
+    /**
+     * Start profiling {@code globals} with a new profiler, replacing the one
+     * installed before.
+     *
+     * @return the new profiler
+     */
+    public static Profiler start(Globals globals) {
+        Profiler profiler = new Profiler();
+        globals.profiler = profiler;
+        return profiler;
+    }
+
+    /**
+     * Stop profiling {@code globals}, keeping the counts of its profiler.
+     *
+     * @return the profiler that was installed, or null
+     */
+    public static Profiler stop(Globals globals) {
+        Profiler profiler = globals.profiler;
+        globals.profiler = null;
+        return profiler;
+    }
+
+    /**
+     * Enter a call of {@code p}.
+     *
+     * @return the frame to count the instructions of the call on,
+     * to be given back through {@link Frame#exit()}
+     */
+    Frame enter(Prototype p) {
+        long now = System.nanoTime();
+        Frame parent = top.get();
+        Node node;
+        if (parent != null) {
+            parent.pause(now);
+            node = parent.node.child(p);
+        } else {
+            node = root.child(p);
+        }
+        node.calls++;
+        Frame frame = new Frame(this, parent, node, now);
+        top.set(frame);
+        return frame;
+    }
+
+    /**
+     * A running call of a profiled {@link Prototype}.
+     */
+    static final class Frame {
+        private final Profiler profiler;
+        private final Frame parent;
+        private final Node node;
+        private long resumed;
+        /* constant-key site run by the previous instruction, checked on the next one */
+        private InlineCache[] sites;
+        private int site;
+        private InlineCache cache;
+
+        private Frame(Profiler profiler, Frame parent, Node node, long now) {
+            this.profiler = profiler;
+            this.parent = parent;
+            this.node = node;
+            this.resumed = now;
+        }
+
+        /**
+         * Count instruction {@code i} about to run at {@code pc}.
+         */
+        void instruction(int i, int pc, InlineCache[] sites) {
+            if (this.sites != null)
+                checkSite();
+            profiler.opcodes[i & 0x3f]++;
+            node.instructions++;
+            switch (i & 0x3f) {
+                case Lua.OP_GETTABLE:
+                case Lua.OP_GETTABLE2:
+                case Lua.OP_GETTABLECALL:
+                case Lua.OP_SELF:
+                case Lua.OP_GETTABUP:
+                    if (((i >> 14) & 0x1ff) > 0xff)
+                        watch(sites, pc);
+                    break;
+                case Lua.OP_GETGLOBAL:
+                    watch(sites, pc);
+                    break;
+            }
+        }
+
+        /* check the constant-key site at pc once its instruction has run */
+        private void watch(InlineCache[] sites, int pc) {
+            this.sites = sites;
+            this.site = pc;
+            this.cache = sites[pc];
+        }
+
+        /* a site missed if it had to learn a new entry or gave up caching */
+        private void checkSite() {
+            InlineCache now = sites[site];
+            profiler.lookups++;
+            if (now != cache || now.megamorphic())
+                profiler.misses++;
+            sites = null;
+            cache = null;
+        }
+
+        private void pause(long now) {
+            node.self += now - resumed;
+        }
+
+        /**
+         * Leave the call, charging its self-time.
+         */
+        void exit() {
+            long now = System.nanoTime();
+            if (sites != null)
+                checkSite();
+            pause(now);
+            if (parent != null)
+                parent.resumed = now;
+            profiler.top.set(parent);
+        }
+    }
+
+    /**
+     * Counts of a {@link Prototype} reached through one call path.
+     */
+    private static final class Node {
+        final Prototype p;
+        private Map<Prototype, Node> children;
+        long calls;
+        long instructions;
+        long self;
+
+        Node(Prototype p) {
+            this.p = p;
+        }
+
+        synchronized Node child(Prototype p) {
+            if (children == null)
+                children = new IdentityHashMap<Prototype, Node>();
+            Node n = children.get(p);
+            if (n == null)
+                children.put(p, n = new Node(p));
+            return n;
+        }
+
+        synchronized List<Node> children() {
+            return children == null ? Collections.<Node>emptyList() : new ArrayList<Node>(children.values());
+        }
+    }
+
+    /**
+     * Get the number of instructions run per opcode, indexed by opcode.
+     */
+    public long[] opcodeCounts() {
+        return opcodes.clone();
+    }
+
+    /**
+     * Get the number of constant-key table reads.
+     */
+    public long tableLookups() {
+        return lookups;
+    }
+
+    /**
+     * Get the number of constant-key table reads not served by their cache.
+     */
+    public long tableMisses() {
+        return misses;
+    }
+
+    /**
+     * Format the flat profile: instructions per opcode, calls, self-time and
+     * instructions per {@link Prototype} and the table read miss rate.
+     */
+    public String flat() {
+        StringBuilder sb = new StringBuilder();
+        long total = 0;
+        Integer[] ops = new Integer[opcodes.length];
+        for (int op = 0; op < ops.length; op++) {
+            ops[op] = op;
+            total += opcodes[op];
+        }
+        Arrays.sort(ops, new Comparator<Integer>() {
+            public int compare(Integer a, Integer b) {
+                return Long.compare(opcodes[b], opcodes[a]);
+            }
+        });
+        sb.append("instructions: ").append(total).append('\n');
+        for (Integer op : ops) {
+            if (opcodes[op] == 0)
+                break;
+            sb.append(String.format("%12d %6.2f%%  %s\n", opcodes[op], 100.0 * opcodes[op] / total, Print.OPNAMES[op]));
+        }
+
+        final Map<Prototype, long[]> functions = new HashMap<Prototype, long[]>();
+        sum(root, functions);
+        List<Prototype> order = new ArrayList<Prototype>(functions.keySet());
+        Collections.sort(order, new Comparator<Prototype>() {
+            public int compare(Prototype a, Prototype b) {
+                return Long.compare(functions.get(b)[2], functions.get(a)[2]);
+            }
+        });
+        sb.append("\n       calls    self ms  instructions  function\n");
+        for (Prototype p : order) {
+            long[] f = functions.get(p);
+            sb.append(String.format("%12d %10.3f %13d  %s\n", f[0], f[2] / 1e6, f[1], name(p)));
+        }
+
+        sb.append(String.format("\ntable reads: %d, cache misses: %d (%.2f%%)\n",
+                lookups, misses, lookups == 0 ? 0.0 : 100.0 * misses / lookups));
+        return sb.toString();
+    }
+
+    private static void sum(Node node, Map<Prototype, long[]> functions) {
+        for (Node n : node.children()) {
+            long[] f = functions.get(n.p);
+            if (f == null)
+                functions.put(n.p, f = new long[3]);
+            f[0] += n.calls;
+            f[1] += n.instructions;
+            f[2] += n.self;
+            sum(n, functions);
+        }
+    }
+
+    /**
+     * Format the self-time of every call path in the collapsed-stack format,
+     * one {@code outer;...;inner microseconds} line per path.
+     */
+    public String collapsed() {
+        StringBuilder sb = new StringBuilder();
+        collapse(root, "", sb);
+        return sb.toString();
+    }
+
+    private static void collapse(Node node, String path, StringBuilder sb) {
+        for (Node n : node.children()) {
+            String p = path.length() == 0 ? name(n.p) : path + ';' + name(n.p);
+            long us = n.self / 1000;
+            if (us > 0)
+                sb.append(p).append(' ').append(us).append('\n');
+            collapse(n, p, sb);
+        }
+    }
+
+    private static String name(Prototype p) {
+        return p.shortsource() + ":" + p.linedefined;
+    }
+}
@@ -83,6 +83,15 @@ package luaj;
  */
 
 public class Prototype {
+	/** {@link #flags} bit: code contains {@link Lua#OP_DEFER} */
+	public static final int USES_DEFER = 1;
+	/** {@link #flags} bit: code contains {@link Lua#OP_FORPREP} / {@link Lua#OP_FORLOOP} */
+	public static final int USES_NUMERIC_FOR = 2;
+	/** {@link #flags} bit: some local is captured as an upvalue by a nested function */
+	public static final int HAS_CAPTURED_LOCALS = 4;
+	/** {@link #flags} bit: code contains {@link Lua#OP_TFORCALL} / {@link Lua#OP_TFOREACH} */
+	public static final int USES_GENERIC_FOR = 8;
+
 	/* constants used by the function */
 	public LuaValue[] k; 
 	public int[] code;
@@ -100,6 +109,13 @@ public class Prototype {
 	public int numparams;
 	public int is_vararg;
 	public int maxstacksize;
+	/* interpreter side state needed by the code, see USES_DEFER ... */
+	public int flags;
+	/* per-instruction table read caches, created on first run */
+	private InlineCache[] inlineCaches;
+	/* makes the closures of this prototype when a loader compiled it,
+	   see LuaClosure.instantiate() */
+	public ClosureFactory factory;
 	private static final Upvaldesc[] NOUPVALUES = {};
 	private static final Prototype[] NOSUBPROTOS = {};
 	public int endidx;
@@ -119,6 +135,25 @@ public class Prototype {
 	public String toString() {
 		return source + ":" + linedefined+"-"+lastlinedefined;
 	}
+
+	/** Makes the closures of a compiled prototype instead of a plain
+	 * {@link LuaClosure}, see {@link #factory}.
+	 */
+	public interface ClosureFactory {
+		LuaClosure newClosure(Globals globals, LuaValue env);
+	}
+
+	/** Get the {@link InlineCache} sites of this prototype, one per instruction.
+	 * 
+	 * @return array indexed by pc, shared by every closure of this prototype
+	 */
+	InlineCache[] inlineCaches() {
+		InlineCache[] c = inlineCaches;
+		if (c == null)
+			inlineCaches = c = new InlineCache[code.length];
+		return c;
+	}
+
 	
 	/** Get the name of a local variable.
 	 * 
@@ -24,6 +24,7 @@ package luaj;
 import luaj.LuaTable.Slot;
 import luaj.LuaTable.StrongSlot;
 
+import java.lang.ref.ReferenceQueue;
 import java.lang.ref.WeakReference;
 
 /**
@@ -34,11 +35,22 @@ import java.lang.ref.WeakReference;
  * <p>
  * However, calling the constructors directly when weak tables are required from 
  * Java will reduce overhead.  
+ * <p>
+ * The weak references of the table are registered on a {@link ReferenceQueue},
+ * which {@link LuaTable} drains whenever it is modified, so the entries of
+ * collected keys and values are dropped in time proportional to their
+ * number and the values they held are released at once.
+ * <p>
+ * A table, function or coroutine used as a weak key keeps its value itself,
+ * in an {@link Ephemeron}, so that a value referring back to its key does not
+ * keep the key alive.
  */
 public class WeakTable implements Metatable {
 
 	private boolean weakkeys, weakvalues;
 	private LuaValue backing;
+	/** queue of the cleared {@link Ref}s of the table */
+	private ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
 
 	public static LuaTable make(boolean weakkeys, boolean weakvalues) {
 		LuaString mode;
@@ -80,23 +92,142 @@ public class WeakTable implements Metatable {
 		return backing;
 	}
 
+	/**
+	 * Take over the reference queue of the weak metatable the table had
+	 * before this one, whose references its entries still use.
+	 */
+	void adopt(WeakTable previous) {
+		queue = previous.queue;
+	}
+
+	/**
+	 * Get a reference of the table cleared since the last call, if any.
+	 */
+	Ref poll() {
+		return (Ref) queue.poll();
+	}
+
 	public Slot entry(LuaValue key, LuaValue value) {
 		value = value.strongvalue();
 		if ( value == null )
 			return null;
 		if ( weakkeys && !( key.isnumber() || key.isstring() || key.isboolean() )) {
 			if ( weakvalues && !( value.isnumber() || value.isstring() || value.isboolean() )) {
-				return new WeakKeyAndValueSlot( key, value, null );
+				return new WeakKeyAndValueSlot( this, key, value, null );
 			} else {
-				return new WeakKeySlot( key, value, null );
+				return new WeakKeySlot( this, key, value, null );
 			}
 		}
 		if ( weakvalues && ! (value.isnumber() || value.isstring() || value.isboolean() )) {
-			return new WeakValueSlot( key, value, null );
+			return new WeakValueSlot( this, key, value, null );
 		}
 		return LuaTable.defaultEntry( key, value );
 	}
 
+	/**
+	 * Weak reference to a key or a value of a weak table, queued once cleared
+	 * with what {@link LuaTable} needs to find the bucket of its entry.
+	 */
+	static final class Ref extends WeakReference<Object> {
+		/** type and hash code of the key of the entry, type -1 for a value of the array part */
+		final int keytype, keyhash;
+
+		Ref(Object referent, ReferenceQueue<Object> queue, int keytype, int keyhash) {
+			super(referent, queue);
+			this.keytype = keytype;
+			this.keyhash = keyhash;
+		}
+
+		/** Whether the reference was to a value of the array part. */
+		boolean array() {
+			return keytype < 0;
+		}
+
+		int keyindex(int hashMask) {
+			return LuaTable.hashSlot(keytype, keyhash, hashMask);
+		}
+	}
+
+	/**
+	 * Value of a weak table for a key, kept by the key instead of the table so
+	 * that it lives exactly as long as the key: a value referring back to the
+	 * key does not keep it alive. Every {@link LuaTable}, {@link LuaFunction}
+	 * and {@link LuaThread} has a list of them, one per weak table it is a key
+	 * of, told apart by the token of the table's slot. The entries of slots
+	 * that are gone are dropped as the list is walked.
+	 */
+	static final class Ephemeron {
+		private final WeakReference<Object> token;
+		private LuaValue value;
+		private Ephemeron next;
+
+		private Ephemeron(Object token, LuaValue value, Ephemeron next) {
+			this.token = new WeakReference<Object>(token);
+			this.value = value;
+			this.next = next;
+		}
+
+		/** Whether {@code key} can keep ephemerons. */
+		static boolean supports(LuaValue key) {
+			return key instanceof LuaTable || key instanceof LuaFunction || key instanceof LuaThread;
+		}
+
+		private static Ephemeron list(LuaValue key) {
+			return key instanceof LuaTable ? ((LuaTable) key).ephemerons
+					: key instanceof LuaFunction ? ((LuaFunction) key).ephemerons
+					: ((LuaThread) key).ephemerons;
+		}
+
+		private static void list(LuaValue key, Ephemeron list) {
+			if ( key instanceof LuaTable )
+				((LuaTable) key).ephemerons = list;
+			else if ( key instanceof LuaFunction )
+				((LuaFunction) key).ephemerons = list;
+			else
+				((LuaThread) key).ephemerons = list;
+		}
+
+		/** Find the entry of {@code token}, dropping those of slots that are gone on the way. */
+		private static Ephemeron find(LuaValue key, Object token) {
+			Ephemeron prev = null;
+			for ( Ephemeron e = list(key); e != null; e = e.next ) {
+				Object t = e.token.get();
+				if ( t == token )
+					return e;
+				if ( t == null ) {
+					if ( prev == null )
+						list(key, e.next);
+					else
+						prev.next = e.next;
+				} else {
+					prev = e;
+				}
+			}
+			return null;
+		}
+
+		static LuaValue get(LuaValue key, Object token) {
+			Ephemeron e = find(key, token);
+			return e != null ? e.value : null;
+		}
+
+		static void put(LuaValue key, Object token, LuaValue value) {
+			Ephemeron e = find(key, token);
+			if ( e != null )
+				e.value = value;
+			else
+				list(key, new Ephemeron(token, value, list(key)));
+		}
+
+		static void remove(LuaValue key, Object token) {
+			Ephemeron e = find(key, token);
+			if ( e != null ) {
+				e.value = null;
+				e.token.clear();
+			}
+		}
+	}
+
 	public static abstract class WeakSlot implements Slot {
 
 		protected Object key;
@@ -118,10 +249,13 @@ public class WeakTable implements Metatable {
 			LuaValue value = strongvalue();
 			if ( key != null && value != null ) {
 				return new LuaTable.NormalEntry(key, value);
-			} else {
+			} else if ( key == null || collected() ) {
 				this.key = null;
 				this.value = null;
 				return null;
+			} else {
+				// removed from the table: keep the key, next() may still be given it
+				return null;
 			}
 		}
 
@@ -131,8 +265,8 @@ public class WeakTable implements Metatable {
 		}
 
 		public boolean keyeq(LuaValue key) {
-			StrongSlot first = first();
-			return ( first != null ) && first.keyeq( key );
+			LuaValue k = strongkey();
+			return k != null && k.raweq( key );
 		}
 
 		public Slot rest() {
@@ -172,7 +306,7 @@ public class WeakTable implements Metatable {
 			if ( key == null ) {
 				return next.remove( target );
 			} else if ( target.keyeq( key ) ) {
-				this.value = null;
+				clear();
 				return this;
 			} else {
 				next = next.remove( target );
@@ -200,29 +334,58 @@ public class WeakTable implements Metatable {
 			return (LuaValue) value;
 		}
 
+		/**
+		 * Whether the key or the value of the entry was collected. An entry
+		 * removed from the table is not, as next() may still be given its key.
+		 */
+		boolean collected() {
+			return strongkey() == null || ( value != null && strongvalue() == null );
+		}
+
+		/** Drop the value of the entry, which is removed from the table. */
+		protected void clear() {
+			this.value = null;
+		}
+
 		protected abstract WeakSlot copy( Slot next );
 	}
 
 	static class WeakKeySlot extends WeakSlot {
 
-		private final int keyhash;
+		private final int keytype, keyhash;
+		/** identity of the {@link Ephemeron} holding the value, null if the value is kept here */
+		private final Object token;
 
-		protected WeakKeySlot( LuaValue key, LuaValue value, Slot next ) {
-			super(weaken(key), value, next);
+		protected WeakKeySlot( WeakTable table, LuaValue key, LuaValue value, Slot next ) {
+			super(table.weaken(key, key), null, next);
+			keytype = key.type();
 			keyhash = key.hashCode();
+			if ( Ephemeron.supports(key) ) {
+				token = new Object();
+				Ephemeron.put(key, token, value);
+			} else {
+				token = null;
+				this.value = value;
+			}
 		}
 
 		protected WeakKeySlot( WeakKeySlot copyFrom, Slot next ) {
 			super( copyFrom.key, copyFrom.value, next );
+			this.keytype = copyFrom.keytype;
 			this.keyhash = copyFrom.keyhash;
+			this.token = copyFrom.token;
 		}
 
 		public int keyindex( int mask ) {
-			return LuaTable.hashmod( keyhash, mask );
+			return LuaTable.hashSlot( keytype, keyhash, mask );
 		}
 
 		public Slot set(LuaValue value) {
-			this.value = value;
+			LuaValue key;
+			if ( token == null )
+				this.value = value;
+			else if ( (key = strongkey()) != null )
+				Ephemeron.put(key, token, value);
 			return this;
 		}
 
@@ -230,6 +393,20 @@ public class WeakTable implements Metatable {
 			return strengthen( key );
 		}
 
+		public LuaValue strongvalue() {
+			if ( token == null )
+				return (LuaValue) value;
+			LuaValue key = strongkey();
+			return key != null ? Ephemeron.get(key, token) : null;
+		}
+
+		protected void clear() {
+			LuaValue key;
+			if ( token != null && (key = strongkey()) != null )
+				Ephemeron.remove(key, token);
+			super.clear();
+		}
+
 		protected WeakSlot copy( Slot rest ) {
 			return new WeakKeySlot( this, rest );
 		}
@@ -237,12 +414,16 @@ public class WeakTable implements Metatable {
 
 	static class WeakValueSlot extends WeakSlot {
 
-		protected WeakValueSlot( LuaValue key, LuaValue value, Slot next ) {
-			super( key, weaken(value), next);
+		private final WeakTable table;
+
+		protected WeakValueSlot( WeakTable table, LuaValue key, LuaValue value, Slot next ) {
+			super( key, table.weaken(value, key), next);
+			this.table = table;
 		}
 
 		protected WeakValueSlot( WeakValueSlot copyFrom, Slot next ) {
 			super( copyFrom.key, copyFrom.value, next );
+			this.table = copyFrom.table;
 		}
 
 		public int keyindex( int mask ) {
@@ -250,7 +431,7 @@ public class WeakTable implements Metatable {
 		}
 
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			this.value = table.weaken(value, strongkey());
 			return this;
 		}
 
@@ -265,24 +446,30 @@ public class WeakTable implements Metatable {
 
 	static class WeakKeyAndValueSlot extends WeakSlot {
 
-		private final int keyhash;
+		private final WeakTable table;
+		private final int keytype, keyhash;
 
-		protected WeakKeyAndValueSlot( LuaValue key, LuaValue value, Slot next ) {
-			super( weaken(key), weaken(value), next );
+		protected WeakKeyAndValueSlot( WeakTable table, LuaValue key, LuaValue value, Slot next ) {
+			super( table.weaken(key, key), table.weaken(value, key), next );
+			this.table = table;
+			keytype = key.type();
 			keyhash = key.hashCode();
 		}
 
 		protected WeakKeyAndValueSlot(WeakKeyAndValueSlot copyFrom, Slot next) {
 			super( copyFrom.key, copyFrom.value, next );
+			table = copyFrom.table;
+			keytype = copyFrom.keytype;
 			keyhash = copyFrom.keyhash;
 		}
 
 		public int keyindex( int hashMask ) {
-			return LuaTable.hashmod( keyhash, hashMask );
+			return LuaTable.hashSlot( keytype, keyhash, hashMask );
 		}
 
 		public Slot set(LuaValue value) {
-			this.value = weaken(value);
+			LuaValue key = strongkey();
+			this.value = key != null ? table.weaken(value, key) : null;
 			return this;
 		}
 
@@ -302,21 +489,26 @@ public class WeakTable implements Metatable {
 	/**
 	 * Self-sent message to convert a value to its weak counterpart
 	 * @param value value to convert
+	 * @param key key of the entry, or null for a value of the array part
 	 * @return {@link LuaValue} that is a strong or weak reference, depending on type of {@code value}
 	 */
-	protected static LuaValue weaken( LuaValue value ) {
+	protected LuaValue weaken( LuaValue value, LuaValue key ) {
 		switch ( value.type() ) {
 			case LuaValue.TFUNCTION:
 			case LuaValue.TTHREAD:
 			case LuaValue.TTABLE:
-				return new WeakValue(value);
+				return new WeakValue(ref(value, key));
 			case LuaValue.TUSERDATA:
-				return new WeakUserdata(value);
+				return new WeakUserdata(value, ref(value.touserdata(), key));
 			default:
 				return value;
 		}
 	}
 
+	private Ref ref( Object referent, LuaValue key ) {
+		return key != null ? new Ref(referent, queue, key.type(), key.hashCode()) : new Ref(referent, queue, -1, 0);
+	}
+
 	/**
 	 * Unwrap a LuaValue from a WeakReference and/or WeakUserdata.
 	 * @param ref reference to convert
@@ -339,8 +531,8 @@ public class WeakTable implements Metatable {
 	static class WeakValue extends LuaValue {
 		WeakReference ref;
 
-		protected WeakValue(LuaValue value) {
-			ref = new WeakReference(value);
+		protected WeakValue(WeakReference ref) {
+			this.ref = ref;
 		}
 
 		public int type() {
@@ -375,9 +567,9 @@ public class WeakTable implements Metatable {
 		private final WeakReference ob;
 		private final LuaValue mt;
 
-		private WeakUserdata(LuaValue value) {
-			super(value);
-			ob = new WeakReference(value.touserdata());
+		private WeakUserdata(LuaValue value, WeakReference ob) {
+			super(new WeakReference(value));
+			this.ob = ob;
 			mt = value.getmetatable();
 		}
 
@@ -397,7 +589,7 @@ public class WeakTable implements Metatable {
 	}
 
 	public LuaValue wrap(LuaValue value) {
-		return weakvalues ? weaken( value ) : value;
+		return weakvalues ? weaken( value, null ) : value;
 	}
 
 	public LuaValue arrayget(LuaValue[] array, int index) {
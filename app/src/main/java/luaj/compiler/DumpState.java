@@ -24,6 +24,7 @@ package luaj.compiler;
 import luaj.Globals;
 import luaj.LoadState;
 import luaj.LocVars;
+import luaj.Lua;
 import luaj.LuaString;
 import luaj.LuaValue;
 import luaj.Prototype;
@@ -155,8 +156,14 @@ public class DumpState {
 		final int[] code = f.code;
 		int n = code.length;
 		dumpInt( n );
-		for ( int i=0; i<n; i++ )
-			dumpInt( code[i] );
+		boolean argument = false;
+		for ( int i=0; i<n; i++ ) {
+			/* superinstructions are private to the interpreter, dump the plain pair */
+			int insn = argument ? code[i] : Lua.unfuse(code[i]);
+			dumpInt( insn );
+			int op = Lua.GET_OPCODE(insn);
+			argument = !argument && (op == Lua.OP_LOADKX || op == Lua.OP_SETLIST && Lua.GETARG_C(insn) == 0);
+		}
 	}
 	
 	private void dumpConstants(final Prototype f) throws IOException {
@@ -988,12 +988,31 @@ public class FuncState extends Constants {
 				this.freeexp(e2);
 				this.freeexp(e1);
 			}
+			if (op >= OP_ADD && op <= OP_DIV)
+				this.chainarith(o1, o2);
 			e1.u.info = this.codeABC(op, 0, o1, o2);
 			e1.k = LexState.VRELOCABLE;
 			fixline(line);
 		}
 	}
 
+	/* the arithmetic about to be coded reads o1 and o2: when one of them is a
+	   temporary just written by the arithmetic before it, nothing else reads
+	   that register, so its result can go straight into this one unboxed */
+	void chainarith(int o1, int o2) {
+		if (this.pc == 0)
+			return;
+		final int[] code = this.f.code;
+		int i = code[this.pc - 1];
+		int op = GET_OPCODE(i);
+		int a = GETARG_A(i);
+		if (op < OP_ADD || op > OP_DIV || a >= 64 || a < this.nactvar)
+			return;
+		if (a == o1 || a == o2)
+			code[this.pc - 1] = (i & (MASK_B | MASK_C)) | CREATE_ABC(OP_ARITHCHAIN,
+					a << 2 | (op - OP_ADD), 0, 0);
+	}
+
 	void codecomp(int /* OpCode */op, int cond, expdesc e1, expdesc e2) {
 		//int o1 = (e1.k == LexState.VK) ? RKASK(e1.u.info) : e1.u.info;
 		int o1 = this.exp2RK(e1);
@@ -1192,6 +1211,19 @@ public class FuncState extends Constants {
 		if (f.code == null || this.pc + 1 > f.code.length)
 			f.code = LuaC.realloc(f.code, this.pc * 2 + 1);
 		f.code[this.pc] = instruction;
+		switch (GET_OPCODE(instruction)) {
+			case OP_DEFER:
+				f.flags |= Prototype.USES_DEFER;
+				break;
+			case OP_FORPREP:
+			case OP_FORLOOP:
+				f.flags |= Prototype.USES_NUMERIC_FOR;
+				break;
+			case OP_TFORCALL:
+			case OP_TFOREACH:
+				f.flags |= Prototype.USES_GENERIC_FOR;
+				break;
+		}
 		/* save corresponding line information */
 		if (f.lineinfo == null || this.pc + 1 > f.lineinfo.length)
 			f.lineinfo = LuaC.realloc(f.lineinfo,
@@ -1243,5 +1275,48 @@ public class FuncState extends Constants {
 		}
 		this.freereg = (short) (base + 1); /* free registers with list values */
 	}
+
+	/**
+	 * Fuse common instruction pairs of the finished function into the
+	 * superinstructions {@link Lua#OP_CMPJMP} to {@link Lua#OP_GETTABLECALL},
+	 * chosen from the pairs most often run in sample scripts. Only the first
+	 * instruction of a pair is rewritten, keeping its operands, so pcs, jump
+	 * targets and line info stay valid. {@link Lua#OP_ARITHCHAIN} needs to
+	 * know which registers hold temporaries, so it is written as the code is
+	 * generated instead, see chainarith().
+	 */
+	void fuse() {
+		final int[] code = this.f.code;
+		for (int pc = 0; pc + 1 < this.pc; pc++) {
+			int i = code[pc];
+			int next = GET_OPCODE(code[pc + 1]);
+			switch (GET_OPCODE(i)) {
+			case OP_LOADKX:
+				pc++; /* skip the extra argument */
+				break;
+			case OP_SETLIST:
+				if (GETARG_C(i) == 0)
+					pc++; /* skip the real C */
+				break;
+			case OP_EQ:
+			case OP_LT:
+			case OP_LE:
+				if (next == OP_JMP)
+					code[pc] = (i & (MASK_B | MASK_C)) | CREATE_ABC(OP_CMPJMP,
+							(GET_OPCODE(i) - OP_EQ) << 1 | GETARG_A(i), 0, 0);
+				break;
+			case OP_TEST:
+				if (next == OP_JMP)
+					code[pc] = (i & MASK_NOT_OP) | OP_TESTJMP;
+				break;
+			case OP_GETTABLE:
+				if (next == OP_GETTABLE)
+					code[pc] = (i & MASK_NOT_OP) | OP_GETTABLE2;
+				else if (next == OP_CALL)
+					code[pc] = (i & MASK_NOT_OP) | OP_GETTABLECALL;
+				break;
+			}
+		}
+	}
 	  
 }
@@ -32,6 +32,7 @@ import luaj.LuaString;
 import luaj.LuaSyntaxError;
 import luaj.LuaValue;
 import luaj.Prototype;
+import luaj.Upvaldesc;
 import luaj.compiler.FuncState.BlockCnt;
 
 import java.io.IOException;
@@ -1529,10 +1530,17 @@ public class LexState extends Constants {
         fs.leaveblock();
         f.code = realloc(f.code, fs.pc);
         f.lineinfo = realloc(f.lineinfo, fs.pc);
+        fs.fuse();
         f.k = realloc(f.k, fs.nk);
         f.p = realloc(f.p, fs.np);
         f.locvars = realloc(f.locvars, fs.nlocvars);
         f.upvalues = realloc(f.upvalues, fs.nups);
+        for (int i = 0; i < fs.np; i++) {
+            Upvaldesc[] uv = f.p[i].upvalues;
+            for (int j = 0; j < uv.length; j++)
+                if (uv[j].instack)
+                    f.flags |= Prototype.HAS_CAPTURED_LOCALS;
+        }
         _assert(fs.bl == null);
         this.fs = fs.prev;
         // last token read was anchored in defunct function; must reanchor it
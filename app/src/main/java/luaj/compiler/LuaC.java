@@ -81,6 +81,8 @@ public class LuaC extends Constants implements Globals.Compiler, Globals.Loader
 			LuaString c = (LuaString) strings.get(s);
 			if (c != null) 
 				return c;
+			// names shared with the Java side then compare by identity
+			s = s.intern();
 			strings.put(s, s);
 			return s;
 		}
@@ -487,14 +487,15 @@ public class BaseLib extends TwoArgFunction implements ResourceFinder {
     }
 
     // "next"  ( table, [index] ) -> next-index, next-value
-    static final class next extends VarArgFunction {
+    // public so the interpreter can run generic for loops over it without calling it
+    public static final class next extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             return args.checktable(1).next(args.arg(2));
         }
     }
 
     // "inext" ( table, [int-index] ) -> next-index, next-value
-    static final class inext extends VarArgFunction {
+    public static final class inext extends VarArgFunction {
         public Varargs invoke(Varargs args) {
             return args.checktable(1).inext(args.arg(2));
         }
@@ -35,6 +35,7 @@ import luaj.LuaThread;
 import luaj.LuaUserdata;
 import luaj.LuaValue;
 import luaj.Print;
+import luaj.Profiler;
 import luaj.Prototype;
 import luaj.Varargs;
 
@@ -103,6 +104,8 @@ public class DebugLib extends TwoArgFunction {
 
     Globals globals;
     private boolean mDebug;
+    /* last profiler started by debug.profile, kept for reports after stopping */
+    private Profiler profiler;
 
     /**
      * Perform one-time initialization on the library by creating a table
@@ -124,6 +127,7 @@ public class DebugLib extends TwoArgFunction {
         debug.set("getregistry", new getregistry());
         debug.set("getupvalue", new getupvalue());
         debug.set("getuservalue", new getuservalue());
+        debug.set("profile", new profile());
         debug.set("sethook", new sethook());
         debug.set("setlocal", new setlocal());
         debug.set("setmetatable", new setmetatable());
@@ -271,6 +275,23 @@ public class DebugLib extends TwoArgFunction {
         }
     }
 
+    //	debug.profile ([what])
+    final class profile extends VarArgFunction {
+        public Varargs invoke(Varargs args) {
+            String what = args.optjstring(1, "flat");
+            if (what.equals("start")) {
+                profiler = Profiler.start(globals);
+                return NONE;
+            }
+            if (what.equals("stop"))
+                Profiler.stop(globals);
+            else if (!what.equals("flat") && !what.equals("collapsed"))
+                argerror(1, "invalid option '" + what + "'");
+            if (profiler == null)
+                return NIL;
+            return valueOf(what.equals("collapsed") ? profiler.collapsed() : profiler.flat());
+        }
+    }
 
     // debug.sethook ([thread,] hook, mask [, count])
     final class sethook extends VarArgFunction {
@@ -808,7 +829,7 @@ public class DebugLib extends TwoArgFunction {
             return new NameWhat(frame.f.classnamestub(), "Java");
         Prototype p = frame.f.checkclosure().p;
         int pc = frame.pc;
-        int i = p.code[pc]; /* calling instruction */
+        int i = Lua.unfuse(p.code[pc]); /* calling instruction */
         LuaString tm;
         switch (Lua.GET_OPCODE(i)) {
             case Lua.OP_TCALL:
@@ -901,7 +922,7 @@ public class DebugLib extends TwoArgFunction {
         /* else try symbolic execution */
         pc = findsetreg(p, lastpc, reg);
         if (pc != -1) { /* could find instruction? */
-            int i = p.code[pc];
+            int i = Lua.unfuse(p.code[pc]);
             switch (Lua.GET_OPCODE(i)) {
                 case Lua.OP_GETGLOBAL: {
                     int g = Lua.GETARG_Bx(i); /* global index */
@@ -985,7 +1006,7 @@ public class DebugLib extends TwoArgFunction {
         int pc;
         int setreg = -1;  /* keep last instruction that changed 'reg' */
         for (pc = 0; pc < lastpc; pc++) {
-            int i = p.code[pc];
+            int i = Lua.unfuse(p.code[pc]);
             int op = Lua.GET_OPCODE(i);
             int a = Lua.GETARG_A(i);
             switch (op) {
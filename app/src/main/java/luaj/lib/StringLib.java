@@ -798,7 +798,7 @@ public class StringLib extends TwoArgFunction {
 
     static final class toutf8 extends OneArgFunction {
         public LuaValue call(LuaValue arg) {
-            return LuaUtf8String.valueOfString(arg.tojstring());
+            return arg.isstring() ? LuaUtf8String.valueOfString(arg.strvalue()) : LuaUtf8String.valueOfString(arg.tojstring());
         }
     }
 
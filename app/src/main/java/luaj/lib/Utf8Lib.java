@@ -11,6 +11,10 @@ import java.util.Arrays;
 
 /**
  * Created by nirenr on 2020/1/4.
+ * <p>
+ * Strings are taken as UTF-8 whatever the default charset. A byte that is not
+ * part of a valid sequence counts as one code point, U+FFFD, the way the Java
+ * decoder reads it, and substrings and captures keep such bytes as they are.
  */
 
 public class Utf8Lib extends TwoArgFunction {
@@ -77,11 +81,11 @@ public class Utf8Lib extends TwoArgFunction {
     @SuppressWarnings("JavadocReference")
     static final class _byte extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            LuaUtf8String s = LuaUtf8String.valueOfString(args.checkstring(1));
-            int l = s.m_length;
+            LuaString s = args.checkstring(1);
+            int l = s.codePointCount();
             int posi = posrelat(args.optint(2, 1), l);
             int pose = posrelat(args.optint(3, posi), l);
-            int n, i;
+            int n, i, offset;
             if (posi <= 0) posi = 1;
             if (pose > l) pose = l;
             if (posi > pose) return NONE;  /* empty interval; return no values */
@@ -89,8 +93,8 @@ public class Utf8Lib extends TwoArgFunction {
             if (posi + n <= pose)  /* overflow? */
                 error("string slice too long");
             LuaValue[] v = new LuaValue[n];
-            for (i = 0; i < n; i++)
-                v[i] = valueOf(s.luaByte(posi + i - 1));
+            for (i = 0, offset = s.codePointOffset(posi - 1); i < n; i++, offset = s.nextCodePoint(offset))
+                v[i] = valueOf(s.codePointAt(offset));
             return varargsOf(v);
         }
     }
@@ -193,7 +197,7 @@ public class Utf8Lib extends TwoArgFunction {
 
         public GMatchAux(Varargs args, LuaString src, LuaString pat, boolean find) {
             this.srclen = src.length();
-            this.ms = new MatchState(args, LuaUtf8String.valueOfString(src), LuaUtf8String.valueOfString(pat));
+            this.ms = new MatchState(args, LuaUtf8String.valueOfString(src).decoded(), LuaUtf8String.valueOfString(pat).decoded());
             this.soffset = 0;
             this.lastmatch = -1;
             this.find = find;
@@ -264,9 +268,9 @@ public class Utf8Lib extends TwoArgFunction {
      */
     static final class gsub extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            LuaUtf8String src = LuaUtf8String.valueOfString(args.checkstring(1));
+            LuaUtf8String src = LuaUtf8String.valueOfString(args.checkstring(1)).decoded();
             final int srclen = src.length();
-            LuaUtf8String p = LuaUtf8String.valueOfString(args.checkstring(2));
+            LuaUtf8String p = LuaUtf8String.valueOfString(args.checkstring(2)).decoded();
             int lastmatch = -1; /* end of last match */
             LuaValue repl = args.arg(3);
             int max_s = args.optint(4, srclen + 1);
@@ -302,7 +306,7 @@ public class Utf8Lib extends TwoArgFunction {
      */
     static final class len extends OneArgFunction {
         public LuaValue call(LuaValue arg) {
-            return LuaUtf8String.valueOfString(arg.checkstring()).len();
+            return valueOf(arg.checkstring().codePointCount());
         }
     }
 
@@ -381,8 +385,8 @@ public class Utf8Lib extends TwoArgFunction {
      */
     static final class sub extends VarArgFunction {
         public Varargs invoke(Varargs args) {
-            final LuaUtf8String s = LuaUtf8String.valueOfString(args.checkstring(1));
-            final int l = s.length();
+            final LuaString s = args.checkstring(1);
+            final int l = s.codePointCount();
 
             int start = posrelat(args.checkint(2), l);
             int end = posrelat(args.optint(3, -1), l);
@@ -393,7 +397,7 @@ public class Utf8Lib extends TwoArgFunction {
                 end = l;
 
             if (start <= end) {
-                return s.substring(start - 1, end).tostring();
+                return s.codePointSubstring(start - 1, end);
             } else {
                 return EMPTYSTRING;
             }
@@ -417,10 +421,30 @@ public class Utf8Lib extends TwoArgFunction {
      * This utility method implements both string.find and string.match.
      */
     static Varargs str_find_aux(Varargs args, boolean find) {
-        LuaUtf8String s = LuaUtf8String.valueOfString(args.checkstring(1));
-        LuaUtf8String pat = LuaUtf8String.valueOfString(args.checkstring(2));
+        final LuaString str = args.checkstring(1);
+        final LuaString sub = args.checkstring(2);
         int init = args.optint(3, 1);
 
+        if (find && str.isWellFormedUtf8() && sub.isWellFormedUtf8()
+                && (args.arg(4).toboolean() || sub.indexOfAny(SPECIALS.strvalue()) == -1)) {
+            // well-formed, the bytes match where the code points do: search them as they are
+            final int l = str.codePointCount();
+            if (init > 0) {
+                init = Math.min(init - 1, l);
+            } else if (init < 0) {
+                init = Math.max(0, l + init);
+            }
+            int result = str.indexOf(sub, str.codePointOffset(init));
+            if (result != -1) {
+                result = str.codePointIndex(result);
+                return varargsOf(valueOf(result + 1), valueOf(result + sub.codePointCount()));
+            }
+            return NIL;
+        }
+
+        LuaUtf8String s = LuaUtf8String.valueOfString(str).decoded();
+        LuaUtf8String pat = LuaUtf8String.valueOfString(sub).decoded();
+
         if (init > 0) {
             init = Math.min(init - 1, s.length());
         } else if (init < 0) {
@@ -0,0 +1,342 @@
+package luaj.luajc;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Minimal class file writer for the classes generated by {@link JavaGen}.
+ * <p>
+ * Classes are written as version 49 (Java 5) so the JVM verifies them by
+ * type inference and no stack map frames have to be computed.
+ */
+final class ClassFile {
+
+    static final int ACC_PUBLIC = 0x0001;
+    static final int ACC_PROTECTED = 0x0004;
+    static final int ACC_FINAL = 0x0010;
+    static final int ACC_SUPER = 0x0020;
+
+    private static final int CONSTANT_Utf8 = 1;
+    private static final int CONSTANT_Integer = 3;
+    private static final int CONSTANT_Class = 7;
+    private static final int CONSTANT_Fieldref = 9;
+    private static final int CONSTANT_Methodref = 10;
+    private static final int CONSTANT_NameAndType = 12;
+
+    private final ByteArrayOutputStream poolBytes = new ByteArrayOutputStream();
+    private final DataOutputStream pool = new DataOutputStream(poolBytes);
+    private final HashMap<String, Integer> poolIndex = new HashMap<>();
+    private int poolCount = 1;
+
+    private final ByteArrayOutputStream methodBytes = new ByteArrayOutputStream();
+    private final DataOutputStream methods = new DataOutputStream(methodBytes);
+    private int methodCount;
+
+    private final int thisClass;
+    private final int superClass;
+
+    /**
+     * @param name      internal name of the class, e.g. {@code "luaj/luajc/Foo"}
+     * @param superName internal name of the super class
+     */
+    ClassFile(String name, String superName) {
+        thisClass = cls(name);
+        superClass = cls(superName);
+    }
+
+    int utf8(String s) {
+        Integer i = poolIndex.get("U" + s);
+        if (i != null)
+            return i;
+        try {
+            pool.writeByte(CONSTANT_Utf8);
+            pool.writeUTF(s);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put("U" + s, poolCount);
+        return poolCount++;
+    }
+
+    int cls(String internalName) {
+        String key = "C" + internalName;
+        Integer i = poolIndex.get(key);
+        if (i != null)
+            return i;
+        int name = utf8(internalName);
+        entry(CONSTANT_Class, name, -1);
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int integer(int value) {
+        String key = "I" + value;
+        Integer i = poolIndex.get(key);
+        if (i != null)
+            return i;
+        try {
+            pool.writeByte(CONSTANT_Integer);
+            pool.writeInt(value);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    int field(String owner, String name, String desc) {
+        return member(CONSTANT_Fieldref, owner, name, desc);
+    }
+
+    int method(String owner, String name, String desc) {
+        return member(CONSTANT_Methodref, owner, name, desc);
+    }
+
+    private int member(int tag, String owner, String name, String desc) {
+        String key = "M" + tag + owner + '.' + name + desc;
+        Integer i = poolIndex.get(key);
+        if (i != null)
+            return i;
+        int c = cls(owner);
+        String ntKey = "N" + name + desc;
+        Integer nt = poolIndex.get(ntKey);
+        if (nt == null) {
+            int n = utf8(name), d = utf8(desc);
+            entry(CONSTANT_NameAndType, n, d);
+            poolIndex.put(ntKey, nt = poolCount++);
+        }
+        entry(tag, c, nt);
+        poolIndex.put(key, poolCount);
+        return poolCount++;
+    }
+
+    private void entry(int tag, int u2a, int u2b) {
+        try {
+            pool.writeByte(tag);
+            pool.writeShort(u2a);
+            if (u2b >= 0)
+                pool.writeShort(u2b);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Add a method with the given code.
+     */
+    void addMethod(int access, String name, String desc, Code code) {
+        int n = utf8(name), d = utf8(desc), attr = utf8("Code");
+        byte[] bytes = code.toByteArray();
+        try {
+            methods.writeShort(access);
+            methods.writeShort(n);
+            methods.writeShort(d);
+            methods.writeShort(1);
+            methods.writeShort(attr);
+            methods.writeInt(bytes.length);
+            methods.write(bytes);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        methodCount++;
+    }
+
+    byte[] toByteArray() {
+        ByteArrayOutputStream baos = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(baos);
+        try {
+            out.writeInt(0xCAFEBABE);
+            out.writeShort(0);
+            out.writeShort(49);
+            out.writeShort(poolCount);
+            out.write(poolBytes.toByteArray());
+            out.writeShort(ACC_PUBLIC | ACC_FINAL | ACC_SUPER);
+            out.writeShort(thisClass);
+            out.writeShort(superClass);
+            out.writeShort(0); // interfaces
+            out.writeShort(0); // fields
+            out.writeShort(methodCount);
+            out.write(methodBytes.toByteArray());
+            out.writeShort(0); // attributes
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+        return baos.toByteArray();
+    }
+
+    /**
+     * Jump target inside a {@link Code} body.
+     */
+    static final class Label {
+        int position = -1;
+        private int[] fixups = new int[2];
+        private int nfixups;
+    }
+
+    /**
+     * Body of one method: bytecode, exception table and limits.
+     */
+    static final class Code {
+        private final ClassFile cf;
+        private byte[] buf = new byte[256];
+        private int len;
+        private final ArrayList<int[]> handlers = new ArrayList<>();
+        int maxStack = 16;
+        int maxLocals;
+
+        Code(ClassFile cf) {
+            this.cf = cf;
+        }
+
+        int position() {
+            return len;
+        }
+
+        void op(int opcode) {
+            u1(opcode);
+        }
+
+        void op(int opcode, int u1) {
+            u1(opcode);
+            u1(u1);
+        }
+
+        void u1(int b) {
+            if (len == buf.length) {
+                byte[] n = new byte[len * 2];
+                System.arraycopy(buf, 0, n, 0, len);
+                buf = n;
+            }
+            buf[len++] = (byte) b;
+        }
+
+        void u2(int s) {
+            u1(s >> 8);
+            u1(s);
+        }
+
+        /**
+         * Push an int constant.
+         */
+        void iconst(int value) {
+            if (value >= -1 && value <= 5)
+                op(0x03 + value); // iconst_<n>
+            else if (value >= Byte.MIN_VALUE && value <= Byte.MAX_VALUE)
+                op(0x10, value); // bipush
+            else if (value >= Short.MIN_VALUE && value <= Short.MAX_VALUE) {
+                op(0x11); // sipush
+                u2(value);
+            } else
+                ldc(cf.integer(value));
+        }
+
+        void ldc(int index) {
+            if (index < 256)
+                op(0x12, index);
+            else {
+                op(0x13);
+                u2(index);
+            }
+        }
+
+        /**
+         * Instruction taking a local variable index, widened when needed.
+         */
+        void local(int opcode, int index) {
+            if (index >= maxLocals)
+                maxLocals = index + 1;
+            if (index < 256)
+                op(opcode, index);
+            else {
+                op(0xc4); // wide
+                op(opcode);
+                u2(index);
+            }
+        }
+
+        void field(int opcode, String owner, String name, String desc) {
+            op(opcode);
+            u2(cf.field(owner, name, desc));
+        }
+
+        void invoke(int opcode, String owner, String name, String desc) {
+            op(opcode);
+            u2(cf.method(owner, name, desc));
+        }
+
+        void type(int opcode, String internalName) {
+            op(opcode);
+            u2(cf.cls(internalName));
+        }
+
+        /**
+         * Emit a branch with a 16 bit offset to {@code label}.
+         */
+        void jump(int opcode, Label label) {
+            int at = len;
+            op(opcode);
+            if (label.position >= 0) {
+                u2(offset(label.position - at));
+            } else {
+                if (label.nfixups == label.fixups.length) {
+                    int[] n = new int[label.nfixups * 2];
+                    System.arraycopy(label.fixups, 0, n, 0, label.nfixups);
+                    label.fixups = n;
+                }
+                label.fixups[label.nfixups++] = at;
+                u2(0);
+            }
+        }
+
+        void mark(Label label) {
+            label.position = len;
+            for (int i = 0; i < label.nfixups; i++) {
+                int at = label.fixups[i];
+                int off = offset(len - at);
+                buf[at + 1] = (byte) (off >> 8);
+                buf[at + 2] = (byte) off;
+            }
+            label.nfixups = 0;
+        }
+
+        private static int offset(int off) {
+            if (off < Short.MIN_VALUE || off > Short.MAX_VALUE)
+                throw new IllegalStateException("method too large");
+            return off;
+        }
+
+        /**
+         * Add an exception table entry catching any throwable.
+         */
+        void handler(Label start, Label end, Label handler) {
+            handlers.add(new int[]{start.position, end.position, handler.position});
+        }
+
+        byte[] toByteArray() {
+            if (len >= 65535)
+                throw new IllegalStateException("method too large");
+            ByteArrayOutputStream baos = new ByteArrayOutputStream(len + 32);
+            DataOutputStream out = new DataOutputStream(baos);
+            try {
+                out.writeShort(maxStack);
+                out.writeShort(maxLocals);
+                out.writeInt(len);
+                out.write(buf, 0, len);
+                out.writeShort(handlers.size());
+                for (int[] h : handlers) {
+                    out.writeShort(h[0]);
+                    out.writeShort(h[1]);
+                    out.writeShort(h[2]);
+                    out.writeShort(0);
+                }
+                out.writeShort(0); // attributes
+            } catch (IOException e) {
+                throw new IllegalStateException(e);
+            }
+            return baos.toByteArray();
+        }
+    }
+}
@@ -0,0 +1,941 @@
+package luaj.luajc;
+
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+
+import android.cglib.dx.BinaryOp;
+import android.cglib.dx.Code;
+import android.cglib.dx.Comparison;
+import android.cglib.dx.DexMaker;
+import android.cglib.dx.FieldId;
+import android.cglib.dx.Label;
+import android.cglib.dx.Local;
+import android.cglib.dx.MethodId;
+import android.cglib.dx.TypeId;
+import luaj.Globals;
+import luaj.Lua;
+import luaj.LuaBoolean;
+import luaj.LuaClosure;
+import luaj.LuaDouble;
+import luaj.LuaError;
+import luaj.LuaInteger;
+import luaj.LuaNumber;
+import luaj.LuaValue;
+import luaj.Prototype;
+import luaj.TailcallVarargs;
+import luaj.UpValue;
+import luaj.Varargs;
+import luaj.lib.DebugLib;
+
+/**
+ * Translate the bytecode of one {@link Prototype} into a dex class extending
+ * {@link JavaClosure}, declared on a {@link DexMaker}.
+ * <p>
+ * The translation follows {@link JavaGen} opcode for opcode: Lua registers
+ * stay in the frame array shared with upvalues and the debug library, while
+ * operands, the call state and the numeric for loop counters live in dex
+ * registers that the dx register allocator is free to assign.
+ */
+@SuppressWarnings({"unchecked", "rawtypes"})
+final class DexGen {
+
+    private static final TypeId<JavaClosure> JAVA_CLOSURE = TypeId.get(JavaClosure.class);
+    private static final TypeId<LuaClosure> LUA_CLOSURE = TypeId.get(LuaClosure.class);
+    private static final TypeId<Prototype> PROTOTYPE = TypeId.get(Prototype.class);
+    private static final TypeId<Globals> GLOBALS = TypeId.get(Globals.class);
+    private static final TypeId<LuaValue> LUA_VALUE = TypeId.get(LuaValue.class);
+    private static final TypeId<LuaValue[]> STACK = TypeId.get(LuaValue[].class);
+    private static final TypeId<Varargs> VARARGS = TypeId.get(Varargs.class);
+    private static final TypeId<UpValue> UP_VALUE = TypeId.get(UpValue.class);
+    private static final TypeId<UpValue[]> UP_VALUES = TypeId.get(UpValue[].class);
+    private static final TypeId<ArrayList> ARRAY_LIST = TypeId.get(ArrayList.class);
+    private static final TypeId<DebugLib> DEBUG_LIB = TypeId.get(DebugLib.class);
+    private static final TypeId<LuaInteger> LUA_INTEGER = TypeId.get(LuaInteger.class);
+    private static final TypeId<LuaDouble> LUA_DOUBLE = TypeId.get(LuaDouble.class);
+    private static final TypeId<LuaNumber> LUA_NUMBER = TypeId.get(LuaNumber.class);
+    private static final TypeId<LuaBoolean> LUA_BOOLEAN = TypeId.get(LuaBoolean.class);
+    private static final TypeId<LuaError> LUA_ERROR = TypeId.get(LuaError.class);
+    private static final TypeId<Throwable> THROWABLE = TypeId.get(Throwable.class);
+    private static final TypeId<Object> OBJECT = TypeId.OBJECT;
+    private static final TypeId<TailcallVarargs> TAILCALL = TypeId.get(TailcallVarargs.class);
+    private static final TypeId<IllegalStateException> ILLEGAL_STATE = TypeId.get(IllegalStateException.class);
+    private static final TypeId<Integer> INT = TypeId.INT;
+    private static final TypeId<Long> LONG = TypeId.LONG;
+    private static final TypeId<Double> DOUBLE = TypeId.DOUBLE;
+    private static final TypeId<Boolean> BOOLEAN = TypeId.BOOLEAN;
+
+    private static final FieldId<LuaValue, LuaBoolean> TRUE = LUA_VALUE.getField(LUA_BOOLEAN, "TRUE");
+    private static final FieldId<LuaValue, LuaBoolean> FALSE = LUA_VALUE.getField(LUA_BOOLEAN, "FALSE");
+    private static final FieldId<LuaValue, LuaValue> NIL = LUA_VALUE.getField(LUA_VALUE, "NIL");
+    private static final FieldId<LuaValue, LuaValue> NONE = LUA_VALUE.getField(LUA_VALUE, "NONE");
+    private static final FieldId<Prototype, LuaValue[]> K = PROTOTYPE.getField(STACK, "k");
+    private static final FieldId<Globals, DebugLib> DEBUGLIB = GLOBALS.getField(DEBUG_LIB, "debuglib");
+    private static final FieldId<LuaInteger, Long> INTEGER_V = LUA_INTEGER.getField(LONG, "v");
+
+    private static final MethodId ON_INSTRUCTION = DEBUG_LIB.getMethod(TypeId.VOID, "onInstruction", INT, INT);
+    private static final MethodId GET_VALUE = UP_VALUE.getMethod(LUA_VALUE, "getValue");
+    private static final MethodId SET_VALUE = UP_VALUE.getMethod(TypeId.VOID, "setValue", LUA_VALUE);
+    private static final MethodId GET = LUA_VALUE.getMethod(LUA_VALUE, "get", LUA_VALUE);
+    private static final MethodId SET = LUA_VALUE.getMethod(TypeId.VOID, "set", LUA_VALUE, LUA_VALUE);
+    private static final MethodId TOBOOLEAN = LUA_VALUE.getMethod(BOOLEAN, "toboolean");
+    private static final MethodId ISNIL = LUA_VALUE.getMethod(BOOLEAN, "isnil");
+    private static final MethodId TODOUBLE = LUA_VALUE.getMethod(DOUBLE, "todouble");
+    private static final MethodId INVOKE = LUA_VALUE.getMethod(VARARGS, "invoke", VARARGS);
+    private static final MethodId NARG = VARARGS.getMethod(INT, "narg");
+    private static final MethodId DEALIAS = VARARGS.getMethod(VARARGS, "dealias");
+    private static final MethodId VARARGS_OF = LUA_VALUE.getMethod(VARARGS, "varargsOf", STACK, INT, INT);
+    private static final MethodId VARARGS_OF_MORE = LUA_VALUE.getMethod(VARARGS, "varargsOf", STACK, INT, INT, VARARGS);
+    private static final MethodId VARARGS_OF_2 = LUA_VALUE.getMethod(VARARGS, "varargsOf", LUA_VALUE, VARARGS);
+    private static final MethodId VARARGS_OF_3 = LUA_VALUE.getMethod(VARARGS, "varargsOf", LUA_VALUE, LUA_VALUE, VARARGS);
+    private static final MethodId[] CALL = {
+            LUA_VALUE.getMethod(LUA_VALUE, "call"),
+            LUA_VALUE.getMethod(LUA_VALUE, "call", LUA_VALUE),
+            LUA_VALUE.getMethod(LUA_VALUE, "call", LUA_VALUE, LUA_VALUE),
+            LUA_VALUE.getMethod(LUA_VALUE, "call", LUA_VALUE, LUA_VALUE, LUA_VALUE),
+    };
+    private static final MethodId ADD = JAVA_CLOSURE.getMethod(LUA_VALUE, "add", LUA_VALUE, LUA_VALUE);
+    private static final MethodId SUB = JAVA_CLOSURE.getMethod(LUA_VALUE, "sub", LUA_VALUE, LUA_VALUE);
+    private static final MethodId MUL = JAVA_CLOSURE.getMethod(LUA_VALUE, "mul", LUA_VALUE, LUA_VALUE);
+    private static final MethodId DIV = JAVA_CLOSURE.getMethod(LUA_VALUE, "div", LUA_VALUE, LUA_VALUE);
+    private static final MethodId EQ = JAVA_CLOSURE.getMethod(BOOLEAN, "eq", LUA_VALUE, LUA_VALUE);
+    private static final MethodId LT = JAVA_CLOSURE.getMethod(BOOLEAN, "lt", LUA_VALUE, LUA_VALUE);
+    private static final MethodId LE = JAVA_CLOSURE.getMethod(BOOLEAN, "le", LUA_VALUE, LUA_VALUE);
+    private static final MethodId CONCAT = JAVA_CLOSURE.getMethod(LUA_VALUE, "concat", STACK, INT, INT);
+    private static final MethodId RESULTS = JAVA_CLOSURE.getMethod(TypeId.VOID, "results", VARARGS, STACK, INT, INT);
+    private static final MethodId VARARG = JAVA_CLOSURE.getMethod(TypeId.VOID, "vararg", STACK, INT, INT, VARARGS);
+    private static final MethodId TFORCALL = JAVA_CLOSURE.getMethod(TypeId.VOID, "tforcall", STACK, INT, INT);
+    private static final MethodId TFOREACH = JAVA_CLOSURE.getMethod(TypeId.VOID, "tforeach", STACK, INT, INT);
+    private static final MethodId SETLIST = JAVA_CLOSURE.getMethod(TypeId.VOID, "setlist", STACK, INT, INT, INT, INT, VARARGS);
+    private static final MethodId FORPREP = JAVA_CLOSURE.getMethod(INT, "forprep", STACK, INT);
+    private static final MethodId FORCOUNT = JAVA_CLOSURE.getMethod(LONG, "forcount", LONG, LONG, LONG);
+    private static final MethodId NEWLIST = JAVA_CLOSURE.getMethod(LUA_VALUE, "newlist", INT);
+    private static final MethodId LOADPACKAGE = JAVA_CLOSURE.getMethod(LUA_VALUE, "loadpackage", LUA_VALUE);
+    private static final MethodId CLOSE_UPVALUES = LUA_CLOSURE.getMethod(TypeId.VOID, "closeUpvalues", UP_VALUES, INT);
+    private static final MethodId INTEGER_VALUE_OF = LUA_INTEGER.getMethod(LUA_INTEGER, "valueOf", LONG);
+    private static final MethodId DOUBLE_VALUE_OF = LUA_DOUBLE.getMethod(LUA_NUMBER, "valueOf", DOUBLE);
+    private static final MethodId DEFER = ARRAY_LIST.getMethod(BOOLEAN, "add", OBJECT);
+    private static final MethodId TAILCALL_INIT = TAILCALL.getConstructor(LUA_VALUE, VARARGS);
+    private static final MethodId ILLEGAL_STATE_INIT = ILLEGAL_STATE.getConstructor();
+
+    private final Prototype p;
+    private final TypeId<JavaClosure> type;
+    private final FieldId<JavaClosure, Prototype> protoField;
+    private final FieldId<JavaClosure, UpValue[]> upValuesField;
+    private final FieldId<JavaClosure, Globals> globalsField;
+    private final MethodId<JavaClosure, Void> init;
+
+    private Code code;
+    private Label[] labels;
+    private Local self, stack, varargs, openups, defers;
+    private Local k, upvals, debuglib, noDebuglib;
+    private Local pc, top, idx, n1, n2, n3, mode, zero, cmp, z, no;
+    private Local a1, a2, a3, a4, v, args, result, nothing, tailcall, uv, throwable, error, oops;
+    private Local lz, lone, dz, proto, globals, li;
+    /* for loop state per register: index, count, step, index as double, limit, step as double */
+    private final Local[][] forLocals = new Local[256][];
+
+    private DexGen(Prototype p, String className) {
+        this.p = p;
+        this.type = TypeId.get("L" + className + ";");
+        this.protoField = type.getField(PROTOTYPE, "p");
+        this.upValuesField = type.getField(UP_VALUES, "upValues");
+        this.globalsField = type.getField(GLOBALS, "globals");
+        this.init = type.getConstructor(PROTOTYPE, GLOBALS, LUA_VALUE);
+    }
+
+    /**
+     * Whether {@link #declare} can translate {@code p}.
+     */
+    static boolean supports(Prototype p) {
+        final int[] insns = p.code;
+        final int n = insns.length;
+        boolean argument = false;
+        for (int pc = 0; pc < n; pc++) {
+            int i = Lua.unfuse(insns[pc]);
+            if (argument) {
+                argument = false;
+                continue;
+            }
+            int op = i & 0x3f;
+            switch (op) {
+                case Lua.OP_LOADKX:
+                case Lua.OP_SETLIST:
+                    argument = op == Lua.OP_LOADKX || ((i >> 14) & 0x1ff) == 0;
+                    if (argument && pc + 1 >= n)
+                        return false;
+                    break;
+                case Lua.OP_JMP:
+                case Lua.OP_FORLOOP:
+                case Lua.OP_FORPREP:
+                case Lua.OP_TFORLOOP: {
+                    int target = pc + 1 + (i >>> 14) - 0x1ffff;
+                    if (target < 0 || target + 1 > n)
+                        return false;
+                    break;
+                }
+                case Lua.OP_LOADBOOL:
+                case Lua.OP_EQ:
+                case Lua.OP_LT:
+                case Lua.OP_LE:
+                case Lua.OP_TEST:
+                case Lua.OP_TESTSET:
+                    if (pc + 2 > n)
+                        return false;
+                    break;
+                case Lua.OP_EXTRAARG:
+                    return false;
+                default:
+                    if (op > Lua.OP_EXTRAARG)
+                        return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Find the instructions control can reach, with the end of the code at index {@code n}.
+     * <p>
+     * DexMaker runs no optimizer, and the translation to dex code cannot
+     * handle blocks without predecessors, such as the {@code RETURN} the
+     * parser appends after an explicit one, so only these are translated.
+     * The successors must match the branches {@link #instruction} emits.
+     */
+    static boolean[] reachable(Prototype p) {
+        final int[] insns = p.code;
+        final int n = insns.length;
+        final boolean[] reached = new boolean[n + 1];
+        final int[] pending = new int[n + 1];
+        int count = 0;
+        reached[0] = true;
+        pending[count++] = 0;
+        while (count > 0) {
+            int pc = pending[--count];
+            if (pc == n)
+                continue;
+            int i = Lua.unfuse(insns[pc]);
+            int op = i & 0x3f;
+            int sbx = (i >>> 14) - 0x1ffff;
+            int next = pc + 1, other = -1, third = -1;
+            switch (op) {
+                case Lua.OP_LOADKX:
+                    next = pc + 2; // skip the argument word
+                    break;
+                case Lua.OP_SETLIST:
+                    if (((i >> 14) & 0x1ff) == 0)
+                        next = pc + 2;
+                    break;
+                case Lua.OP_LOADBOOL:
+                    if (((i >> 14) & 0x1ff) != 0)
+                        next = pc + 2;
+                    break;
+                case Lua.OP_JMP:
+                    next = pc + 1 + sbx;
+                    break;
+                case Lua.OP_EQ:
+                case Lua.OP_LT:
+                case Lua.OP_LE:
+                case Lua.OP_TEST:
+                case Lua.OP_TESTSET:
+                    other = pc + 2;
+                    break;
+                case Lua.OP_FORPREP:
+                    other = pc + 1 + sbx;
+                    third = pc + 2 + sbx;
+                    break;
+                case Lua.OP_FORLOOP:
+                case Lua.OP_TFORLOOP:
+                    other = pc + 1 + sbx;
+                    break;
+                case Lua.OP_TAILCALL:
+                case Lua.OP_RETURN:
+                    next = -1;
+                    break;
+            }
+            count = reach(next, reached, pending, count);
+            count = reach(other, reached, pending, count);
+            count = reach(third, reached, pending, count);
+        }
+        return reached;
+    }
+
+    private static int reach(int pc, boolean[] reached, int[] pending, int count) {
+        if (pc >= 0 && !reached[pc]) {
+            reached[pc] = true;
+            pending[count++] = pc;
+        }
+        return count;
+    }
+
+    /**
+     * Declare the {@link JavaClosure} running {@code p} on {@code maker}.
+     * The prototype must be {@link #supports supported}.
+     *
+     * @param className internal name of the class to declare
+     */
+    static void declare(DexMaker maker, Prototype p, String className) {
+        DexGen gen = new DexGen(p, className);
+        maker.declare(gen.type, p.shortsource(), Modifier.PUBLIC | Modifier.FINAL, JAVA_CLOSURE);
+        gen.genInit(maker);
+        gen.genNewInstance(maker);
+        gen.genRun(maker);
+    }
+
+    private void genInit(DexMaker maker) {
+        Code c = maker.declare(init, Modifier.PUBLIC);
+        Local thiz = c.getThis(type);
+        c.invokeDirect(JAVA_CLOSURE.getConstructor(PROTOTYPE, GLOBALS, LUA_VALUE), null, thiz,
+                c.getParameter(0, PROTOTYPE), c.getParameter(1, GLOBALS), c.getParameter(2, LUA_VALUE));
+        c.returnVoid();
+    }
+
+    private void genNewInstance(DexMaker maker) {
+        Code c = maker.declare(type.getMethod(JAVA_CLOSURE, "newInstance", GLOBALS, LUA_VALUE), Modifier.PROTECTED);
+        Local instance = c.newLocal(type);
+        Local result = c.newLocal(JAVA_CLOSURE);
+        Local prototype = c.newLocal(PROTOTYPE);
+        Local thiz = c.getThis(type);
+        c.iget(protoField, prototype, thiz);
+        c.newInstance(instance, init, prototype, c.getParameter(0, GLOBALS), c.getParameter(1, LUA_VALUE));
+        c.move(result, instance);
+        c.returnValue(result);
+    }
+
+    private void genRun(DexMaker maker) {
+        final int[] insns = p.code;
+        final int n = insns.length;
+        code = maker.declare(type.getMethod(VARARGS, "run", STACK, VARARGS, UP_VALUES, ARRAY_LIST), Modifier.PROTECTED);
+        labels = new Label[n + 1];
+        for (int i = 0; i <= n; i++)
+            labels[i] = new Label();
+        newLocals();
+        self = code.getThis(type);
+        stack = code.getParameter(0, STACK);
+        varargs = code.getParameter(1, VARARGS);
+        openups = code.getParameter(2, UP_VALUES);
+        defers = code.getParameter(3, ARRAY_LIST);
+
+        // prologue
+        code.loadConstant(pc, 0);
+        code.loadConstant(top, 0);
+        code.loadConstant(zero, 0);
+        code.loadConstant(no, false);
+        code.loadConstant(lz, 0L);
+        code.loadConstant(lone, 1L);
+        code.loadConstant(dz, 0.0);
+        code.loadConstant(nothing, null);
+        code.loadConstant(noDebuglib, null);
+        code.sget(NONE, v);
+        code.iget(protoField, proto, self);
+        code.iget(K, k, proto);
+        code.iget(upValuesField, upvals, self);
+        code.iget(globalsField, globals, self);
+        code.iget(DEBUGLIB, debuglib, globals);
+        for (Local[] l : forLocals) {
+            if (l == null)
+                continue;
+            for (int j = 0; j < 3; j++)
+                code.loadConstant(l[j], 0L);
+            for (int j = 3; j < 6; j++)
+                code.loadConstant(l[j], 0.0);
+        }
+
+        Label handler = new Label();
+        code.addCatchClause(THROWABLE, handler);
+        final boolean[] reached = reachable(p);
+        for (int i = 0; i < n; i++) {
+            if (!reached[i])
+                continue; // dead code, or the argument word of the previous instruction
+            code.mark(labels[i]);
+            int insn = Lua.unfuse(insns[i]);
+            int op = insn & 0x3f;
+            code.loadConstant(pc, i);
+            Label hooked = new Label();
+            code.compare(Comparison.EQ, hooked, debuglib, noDebuglib);
+            code.invokeVirtual(ON_INSTRUCTION, null, debuglib, pc, top);
+            code.mark(hooked);
+            instruction(i, insn, op);
+        }
+        if (reached[n]) {
+            // running off the end of the code is an error, as in the interpreter
+            code.mark(labels[n]);
+            code.newInstance(oops, ILLEGAL_STATE_INIT);
+            code.throwValue(oops);
+        }
+        code.removeCatchClause(THROWABLE);
+
+        code.mark(handler);
+        code.moveException(throwable);
+        code.invokeVirtual(type.getMethod(LUA_ERROR, "fail", THROWABLE, INT, STACK, ARRAY_LIST),
+                error, self, throwable, pc, stack, defers);
+        code.throwValue(error);
+    }
+
+    /**
+     * Locals have to exist before the first instruction is added.
+     */
+    private void newLocals() {
+        k = code.newLocal(STACK);
+        upvals = code.newLocal(UP_VALUES);
+        debuglib = code.newLocal(DEBUG_LIB);
+        noDebuglib = code.newLocal(DEBUG_LIB);
+        proto = code.newLocal(PROTOTYPE);
+        globals = code.newLocal(GLOBALS);
+        pc = code.newLocal(INT);
+        top = code.newLocal(INT);
+        idx = code.newLocal(INT);
+        n1 = code.newLocal(INT);
+        n2 = code.newLocal(INT);
+        n3 = code.newLocal(INT);
+        mode = code.newLocal(INT);
+        zero = code.newLocal(INT);
+        cmp = code.newLocal(INT);
+        z = code.newLocal(BOOLEAN);
+        no = code.newLocal(BOOLEAN);
+        a1 = code.newLocal(LUA_VALUE);
+        a2 = code.newLocal(LUA_VALUE);
+        a3 = code.newLocal(LUA_VALUE);
+        a4 = code.newLocal(LUA_VALUE);
+        v = code.newLocal(VARARGS);
+        args = code.newLocal(VARARGS);
+        result = code.newLocal(VARARGS);
+        nothing = code.newLocal(VARARGS);
+        tailcall = code.newLocal(TAILCALL);
+        uv = code.newLocal(UP_VALUE);
+        li = code.newLocal(LUA_INTEGER);
+        throwable = code.newLocal(THROWABLE);
+        error = code.newLocal(LUA_ERROR);
+        oops = code.newLocal(ILLEGAL_STATE);
+        lz = code.newLocal(LONG);
+        lone = code.newLocal(LONG);
+        dz = code.newLocal(DOUBLE);
+        for (int insn : p.code) {
+            int op = insn & 0x3f;
+            int a = (insn >> 6) & 0xff;
+            if ((op == Lua.OP_FORPREP || op == Lua.OP_FORLOOP) && forLocals[a] == null)
+                forLocals[a] = new Local[]{
+                        code.newLocal(LONG), code.newLocal(LONG), code.newLocal(LONG),
+                        code.newLocal(DOUBLE), code.newLocal(DOUBLE), code.newLocal(DOUBLE)};
+        }
+    }
+
+    private void instruction(int pc, int i, int op) {
+        final int a = (i >> 6) & 0xff;
+        final int b = i >>> 23;
+        final int c = (i >> 14) & 0x1ff;
+        final int bx = i >>> 14;
+        final int sbx = bx - 0x1ffff;
+        switch (op) {
+            case Lua.OP_MOVE:
+                reg(a1, b);
+                store(a, a1);
+                break;
+            case Lua.OP_LOADK:
+                constant(a1, bx);
+                store(a, a1);
+                break;
+            case Lua.OP_LOADKX:
+                constant(a1, p.code[pc + 1] >>> 6);
+                store(a, a1);
+                break;
+            case Lua.OP_LOADBOOL:
+                code.sget(b != 0 ? TRUE : FALSE, a1);
+                store(a, a1);
+                if (c != 0)
+                    code.jump(labels[pc + 2]);
+                break;
+            case Lua.OP_LOADNIL:
+                code.sget(NIL, a1);
+                for (int r = a; r <= a + b; r++)
+                    store(r, a1);
+                break;
+            case Lua.OP_IMPORT:
+                self(a, "importmodule", bx);
+                break;
+            case Lua.OP_MODULE:
+                self(a, "module", bx);
+                break;
+            case Lua.OP_LOADC:
+                self(a, "loadclass", bx);
+                break;
+            case Lua.OP_LOADP:
+                constant(a2, bx);
+                code.invokeStatic(LOADPACKAGE, a1, a2);
+                store(a, a1);
+                break;
+            case Lua.OP_GETENV:
+                env(a1);
+                store(a, a1);
+                break;
+            case Lua.OP_SETENV:
+                reg(a1, a);
+                code.invokeVirtual(type.getMethod(TypeId.VOID, "setfenv", LUA_VALUE), null, self, a1);
+                break;
+            case Lua.OP_GETGLOBAL:
+                env(a2);
+                constant(a3, bx);
+                cached(pc, a);
+                break;
+            case Lua.OP_SETGLOBAL:
+                env(a1);
+                constant(a2, bx);
+                reg(a3, a);
+                code.invokeVirtual(SET, null, a1, a2, a3);
+                break;
+            case Lua.OP_GETUPVAL:
+                upvalue(b);
+                code.invokeVirtual(GET_VALUE, a1, uv);
+                store(a, a1);
+                break;
+            case Lua.OP_SETUPVAL:
+                upvalue(b);
+                reg(a1, a);
+                code.invokeVirtual(SET_VALUE, null, uv, a1);
+                break;
+            case Lua.OP_GETTABUP:
+                upvalue(b);
+                code.invokeVirtual(GET_VALUE, a2, uv);
+                index(pc, a, c);
+                break;
+            case Lua.OP_GETTABLE:
+                reg(a2, b);
+                index(pc, a, c);
+                break;
+            case Lua.OP_SELF:
+                reg(a2, b);
+                store(a + 1, a2);
+                index(pc, a, c);
+                break;
+            case Lua.OP_SETTABUP:
+                upvalue(a);
+                code.invokeVirtual(GET_VALUE, a1, uv);
+                rk(a2, b);
+                rk(a3, c);
+                code.invokeVirtual(SET, null, a1, a2, a3);
+                break;
+            case Lua.OP_SETTABLE:
+                reg(a1, a);
+                rk(a2, b);
+                rk(a3, c);
+                code.invokeVirtual(SET, null, a1, a2, a3);
+                break;
+            case Lua.OP_NEWTABLE:
+                code.loadConstant(n1, b);
+                code.loadConstant(n2, c);
+                code.invokeVirtual(type.getMethod(LUA_VALUE, "newtable", INT, INT), a1, self, n1, n2);
+                store(a, a1);
+                break;
+            case Lua.OP_NEWLIST:
+                code.loadConstant(n1, b);
+                code.invokeStatic(NEWLIST, a1, n1);
+                store(a, a1);
+                break;
+            case Lua.OP_ADD:
+                arith(a, b, c, ADD);
+                break;
+            case Lua.OP_SUB:
+                arith(a, b, c, SUB);
+                break;
+            case Lua.OP_MUL:
+                arith(a, b, c, MUL);
+                break;
+            case Lua.OP_DIV:
+                arith(a, b, c, DIV);
+                break;
+            case Lua.OP_MOD:
+                arith(a, b, c, "mod");
+                break;
+            case Lua.OP_POW:
+                arith(a, b, c, "pow");
+                break;
+            case Lua.OP_IDIV:
+                arith(a, b, c, "idiv");
+                break;
+            case Lua.OP_BAND:
+                arith(a, b, c, "band");
+                break;
+            case Lua.OP_BOR:
+                arith(a, b, c, "bor");
+                break;
+            case Lua.OP_BXOR:
+                arith(a, b, c, "bxor");
+                break;
+            case Lua.OP_SHL:
+                arith(a, b, c, "shl");
+                break;
+            case Lua.OP_SHR:
+                arith(a, b, c, "shr");
+                break;
+            case Lua.OP_UNM:
+                unary(a, b, "neg");
+                break;
+            case Lua.OP_NOT:
+                unary(a, b, "not");
+                break;
+            case Lua.OP_LEN:
+                unary(a, b, "len");
+                break;
+            case Lua.OP_BNOT:
+                unary(a, b, "bnot");
+                break;
+            case Lua.OP_CONCAT:
+                code.loadConstant(n1, b);
+                code.loadConstant(n2, c);
+                code.invokeStatic(CONCAT, a1, stack, n1, n2);
+                store(a, a1);
+                break;
+            case Lua.OP_JMP:
+                if (a > 0) {
+                    code.loadConstant(n1, a - 1);
+                    code.invokeStatic(CLOSE_UPVALUES, null, openups, n1);
+                }
+                code.jump(labels[pc + 1 + sbx]);
+                break;
+            case Lua.OP_EQ:
+                compare(pc, a, b, c, EQ);
+                break;
+            case Lua.OP_LT:
+                compare(pc, a, b, c, LT);
+                break;
+            case Lua.OP_LE:
+                compare(pc, a, b, c, LE);
+                break;
+            case Lua.OP_TEST:
+                reg(a1, a);
+                code.invokeVirtual(TOBOOLEAN, z, a1);
+                code.compare(c != 0 ? Comparison.EQ : Comparison.NE, labels[pc + 2], z, no);
+                break;
+            case Lua.OP_TESTSET:
+                reg(a1, b);
+                code.invokeVirtual(TOBOOLEAN, z, a1);
+                code.compare(c != 0 ? Comparison.EQ : Comparison.NE, labels[pc + 2], z, no);
+                store(a, a1);
+                break;
+            case Lua.OP_TCALL:
+                code.loadConstant(n1, a);
+                code.loadConstant(n2, b);
+                code.loadConstant(n3, c);
+                code.invokeVirtual(type.getMethod(VARARGS, "tcall", STACK, INT, INT, INT), result, self, stack, n1, n2, n3);
+                code.compare(Comparison.EQ, labels[pc + 1], result, nothing);
+                code.returnValue(result);
+                break;
+            case Lua.OP_CALL:
+                call(a, b, c);
+                break;
+            case Lua.OP_TAILCALL:
+                reg(a1, a);
+                switch (b) {
+                    case 1:
+                        code.sget(NONE, a2);
+                        code.move(args, a2);
+                        break;
+                    case 2:
+                        reg(a2, a + 1);
+                        code.move(args, a2);
+                        break;
+                    case 3:
+                        reg(a2, a + 1);
+                        reg(a3, a + 2);
+                        code.invokeStatic(VARARGS_OF_2, args, a2, a3);
+                        break;
+                    case 4:
+                        reg(a2, a + 1);
+                        reg(a3, a + 2);
+                        reg(a4, a + 3);
+                        code.invokeStatic(VARARGS_OF_3, args, a2, a3, a4);
+                        break;
+                    default:
+                        args(a + 1, b);
+                        code.invokeVirtual(DEALIAS, args, args);
+                        break;
+                }
+                code.newInstance(tailcall, TAILCALL_INIT, a1, args);
+                code.move(result, tailcall);
+                code.returnValue(result);
+                break;
+            case Lua.OP_RETURN:
+                switch (b) {
+                    case 1:
+                        code.sget(NONE, a1);
+                        code.move(result, a1);
+                        break;
+                    case 2:
+                        reg(a1, a);
+                        code.move(result, a1);
+                        break;
+                    default:
+                        args(a, b);
+                        code.invokeVirtual(DEALIAS, result, args);
+                        break;
+                }
+                code.returnValue(result);
+                break;
+            case Lua.OP_FORPREP:
+                forprep(pc, a, sbx);
+                break;
+            case Lua.OP_FORLOOP:
+                forloop(pc, a, sbx);
+                break;
+            case Lua.OP_TFORCALL:
+            case Lua.OP_TFOREACH:
+                code.loadConstant(n1, a);
+                code.loadConstant(n2, c);
+                code.invokeStatic(op == Lua.OP_TFORCALL ? TFORCALL : TFOREACH, null, stack, n1, n2);
+                code.sget(NONE, v);
+                break;
+            case Lua.OP_TFORLOOP:
+                reg(a2, a + 1);
+                code.invokeVirtual(ISNIL, z, a2);
+                code.compare(Comparison.NE, labels[pc + 1], z, no);
+                store(a, a2);
+                code.jump(labels[pc + 1 + sbx]);
+                break;
+            case Lua.OP_SETLIST:
+                code.loadConstant(n1, a);
+                code.loadConstant(n2, b);
+                code.loadConstant(n3, c != 0 ? c : p.code[pc + 1]);
+                code.invokeStatic(SETLIST, null, stack, n1, n2, n3, top, v);
+                break;
+            case Lua.OP_CLOSURE:
+                code.loadConstant(n1, bx);
+                code.invokeVirtual(type.getMethod(LUA_VALUE, "closure", STACK, UP_VALUES, INT), a1, self, stack, openups, n1);
+                store(a, a1);
+                break;
+            case Lua.OP_VARARG:
+                if (b == 0) {
+                    code.invokeVirtual(NARG, n1, varargs);
+                    code.loadConstant(n2, a);
+                    code.op(BinaryOp.ADD, top, n1, n2);
+                    code.move(v, varargs);
+                } else {
+                    code.loadConstant(n1, a);
+                    code.loadConstant(n2, b);
+                    code.invokeStatic(VARARG, null, stack, n1, n2, varargs);
+                }
+                break;
+            case Lua.OP_DEFER:
+                reg(a1, a);
+                code.invokeVirtual(DEFER, null, defers, a1);
+                break;
+            default:
+                throw new IllegalStateException("unsupported opcode " + op + " at " + pc);
+        }
+    }
+
+    private void reg(Local dst, int r) {
+        code.loadConstant(idx, r);
+        code.aget(dst, stack, idx);
+    }
+
+    private void store(int r, Local src) {
+        code.loadConstant(idx, r);
+        code.aput(stack, idx, src);
+    }
+
+    private void constant(Local dst, int index) {
+        code.loadConstant(idx, index);
+        code.aget(dst, k, idx);
+    }
+
+    private void rk(Local dst, int x) {
+        if (x > 0xff)
+            constant(dst, x & 0x0ff);
+        else
+            reg(dst, x);
+    }
+
+    private void upvalue(int index) {
+        code.loadConstant(idx, index);
+        code.aget(uv, upvals, idx);
+    }
+
+    private void env(Local dst) {
+        code.invokeVirtual(type.getMethod(LUA_VALUE, "getfenv"), dst, self);
+    }
+
+    /**
+     * {@code R(A) := this.method(Kst(Bx))}
+     */
+    private void self(int a, String method, int bx) {
+        constant(a2, bx);
+        code.invokeVirtual(type.getMethod(LUA_VALUE, method, LUA_VALUE), a1, self, a2);
+        store(a, a1);
+    }
+
+    /**
+     * {@code R(A) := a2[a3]} through the inline cache of instruction {@code pc}.
+     */
+    private void cached(int pc, int a) {
+        code.loadConstant(n1, pc);
+        code.invokeVirtual(type.getMethod(LUA_VALUE, "getcached", LUA_VALUE, LUA_VALUE, INT), a1, self, a2, a3, n1);
+        store(a, a1);
+    }
+
+    /**
+     * {@code R(A) := a2[RK(C)]}
+     */
+    private void index(int pc, int a, int c) {
+        if (c > 0xff) {
+            constant(a3, c & 0x0ff);
+            cached(pc, a);
+        } else {
+            reg(a3, c);
+            code.invokeVirtual(GET, a1, a2, a3);
+            store(a, a1);
+        }
+    }
+
+    private void arith(int a, int b, int c, MethodId helper) {
+        rk(a2, b);
+        rk(a3, c);
+        code.invokeStatic(helper, a1, a2, a3);
+        store(a, a1);
+    }
+
+    private void arith(int a, int b, int c, String name) {
+        rk(a2, b);
+        rk(a3, c);
+        code.invokeVirtual(LUA_VALUE.getMethod(LUA_VALUE, name, LUA_VALUE), a1, a2, a3);
+        store(a, a1);
+    }
+
+    private void unary(int a, int b, String name) {
+        reg(a2, b);
+        code.invokeVirtual(LUA_VALUE.getMethod(LUA_VALUE, name), a1, a2);
+        store(a, a1);
+    }
+
+    /**
+     * Skip the next instruction when the comparison differs from {@code A}.
+     */
+    private void compare(int pc, int a, int b, int c, MethodId helper) {
+        rk(a2, b);
+        rk(a3, c);
+        code.invokeStatic(helper, z, a2, a3);
+        code.compare(a != 0 ? Comparison.EQ : Comparison.NE, labels[pc + 2], z, no);
+    }
+
+    /**
+     * {@code args := R(from), ... , R(from + b - 2)}, or up to top when {@code b} is 0.
+     */
+    private void args(int from, int b) {
+        code.loadConstant(n1, from);
+        if (b > 0) {
+            code.loadConstant(n2, b - 1);
+            code.invokeStatic(VARARGS_OF, args, stack, n1, n2);
+        } else {
+            code.invokeVirtual(NARG, n2, v);
+            code.op(BinaryOp.SUBTRACT, n2, top, n2);
+            code.op(BinaryOp.SUBTRACT, n2, n2, n1);
+            code.invokeStatic(VARARGS_OF_MORE, args, stack, n1, n2, v);
+        }
+    }
+
+    private void call(int a, int b, int c) {
+        if (c == 0 && (b == 1 || b == 2)) {
+            reg(a1, a);
+            if (b == 1)
+                code.sget(NONE, a2);
+            else
+                reg(a2, a + 1);
+            code.invokeVirtual(INVOKE, v, a1, a2);
+            setTop(a);
+            return;
+        }
+        if ((c == 1 || c == 2) && b >= 1 && b <= 4) {
+            Local[] operands = {a2, a3, a4};
+            reg(a1, a);
+            Local[] params = new Local[b - 1];
+            for (int j = 1; j < b; j++)
+                reg(params[j - 1] = operands[j - 1], a + j);
+            code.invokeVirtual(CALL[b - 1], c == 2 ? a1 : null, a1, params);
+            if (c == 2)
+                store(a, a1);
+            return;
+        }
+        reg(a1, a);
+        args(a + 1, b);
+        code.invokeVirtual(INVOKE, v, a1, args);
+        if (c > 0) {
+            code.loadConstant(n1, a);
+            code.loadConstant(n2, c - 1);
+            code.invokeStatic(RESULTS, null, v, stack, n1, n2);
+            code.sget(NONE, v);
+        } else {
+            setTop(a);
+            code.invokeVirtual(DEALIAS, v, v);
+        }
+    }
+
+    private void setTop(int a) {
+        code.invokeVirtual(NARG, n1, v);
+        code.loadConstant(n2, a);
+        code.op(BinaryOp.ADD, top, n1, n2);
+    }
+
+    private void forprep(int pc, int a, int sbx) {
+        final Local[] l = forLocals[a];
+        Label floating = new Label();
+        code.loadConstant(n1, a);
+        code.invokeStatic(FORPREP, mode, stack, n1);
+        code.compare(Comparison.EQ, labels[pc + sbx + 2], mode, zero);
+        code.loadConstant(n1, 2);
+        code.compare(Comparison.EQ, floating, mode, n1);
+        // integer loop, falls through into the body
+        longValue(l[0], a);
+        longValue(l[2], a + 2);
+        longValue(l[1], a + 1);
+        code.invokeStatic(FORCOUNT, l[1], l[0], l[1], l[2]);
+        code.jump(labels[pc + 1]);
+        // float loop, enters through OP_FORLOOP
+        code.mark(floating);
+        doubleValue(l[3], a);
+        doubleValue(l[4], a + 1);
+        doubleValue(l[5], a + 2);
+        code.jump(labels[pc + 1 + sbx]);
+    }
+
+    private void forloop(int pc, int a, int sbx) {
+        final Local[] l = forLocals[a];
+        final Label body = labels[pc + 1 + sbx];
+        final Label exit = labels[pc + 1];
+        Label floating = new Label();
+        reg(a2, a + 2);
+        code.instanceOfType(z, a2, LUA_INTEGER);
+        code.compare(Comparison.EQ, floating, z, no);
+        code.compareLongs(cmp, l[1], lz);
+        code.compare(Comparison.EQ, exit, cmp, zero);
+        code.op(BinaryOp.SUBTRACT, l[1], l[1], lone);
+        code.op(BinaryOp.ADD, l[0], l[0], l[2]);
+        code.invokeStatic(INTEGER_VALUE_OF, a1, l[0]);
+        store(a + 3, a1);
+        code.jump(body);
+
+        code.mark(floating);
+        Label down = new Label();
+        Label taken = new Label();
+        code.op(BinaryOp.ADD, l[3], l[3], l[5]);
+        code.compareFloatingPoint(cmp, l[5], dz, -1);
+        code.compare(Comparison.LE, down, cmp, zero);
+        code.compareFloatingPoint(cmp, l[3], l[4], 1);
+        code.compare(Comparison.GT, exit, cmp, zero);
+        code.jump(taken);
+        code.mark(down);
+        code.compareFloatingPoint(cmp, l[3], l[4], -1);
+        code.compare(Comparison.LT, exit, cmp, zero);
+        code.mark(taken);
+        code.invokeStatic(DOUBLE_VALUE_OF, a1, l[3]);
+        store(a + 3, a1);
+        code.jump(body);
+    }
+
+    private void longValue(Local dst, int r) {
+        reg(a1, r);
+        code.cast(li, a1);
+        code.iget(INTEGER_V, dst, li);
+    }
+
+    private void doubleValue(Local dst, int r) {
+        reg(a1, r);
+        code.invokeVirtual(TODOUBLE, dst, a1);
+    }
+}
@@ -0,0 +1,270 @@
+package luaj.luajc;
+
+import java.util.ArrayList;
+
+import luaj.Buffer;
+import luaj.FrameStack;
+import luaj.Globals;
+import luaj.Lua;
+import luaj.LuaClosure;
+import luaj.LuaDouble;
+import luaj.LuaInteger;
+import luaj.LuaList;
+import luaj.LuaTable;
+import luaj.LuaValue;
+import luaj.Prototype;
+import luaj.UpValue;
+import luaj.Upvaldesc;
+import luaj.Varargs;
+import luaj.lib.DebugLib;
+import luaj.lib.jse.JavaPackage;
+
+/**
+ * Base class of the closures generated by {@link LuaJC} and {@link LuaDex}.
+ * <p>
+ * A generated subclass implements {@link #run(LuaValue[], Varargs, UpValue[], ArrayList)}
+ * as straight-line JVM or dex code for its {@link Prototype}, with Lua jumps
+ * turned into branches. It is still a {@link LuaClosure} over the same prototype,
+ * so the call entry points, frame pooling, upvalues, debug call frames and
+ * error reporting are shared with the interpreter; the helpers below hold the
+ * parts of each opcode that are too large to be worth emitting inline.
+ */
+public abstract class JavaClosure extends LuaClosure implements Prototype.ClosureFactory {
+
+    protected JavaClosure(Prototype p, Globals globals, LuaValue env) {
+        super(p, globals, env);
+    }
+
+    /**
+     * Create a closure of the same generated class in another environment.
+     */
+    protected abstract JavaClosure newInstance(Globals globals, LuaValue env);
+
+    /**
+     * Unstarted closures are set as the {@link Prototype#factory} of their
+     * prototype, so that both the interpreter and compiled parents make
+     * closures of the generated class.
+     */
+    public final LuaClosure newClosure(Globals globals, LuaValue env) {
+        return newInstance(globals, env);
+    }
+
+    /**
+     * Generated body of the prototype. Errors are passed through
+     * {@link #fail(Throwable, int, LuaValue[], ArrayList)} before leaving it.
+     */
+    protected abstract Varargs run(LuaValue[] stack, Varargs varargs, UpValue[] openups, ArrayList<LuaValue> deferList);
+
+    protected final Varargs execute(FrameStack frames, LuaValue[] stack, Varargs varargs) {
+        final int flags = p.flags;
+        final int size = p.maxstacksize;
+        final UpValue[] openups = (flags & Prototype.HAS_CAPTURED_LOCALS) != 0 ? new UpValue[size] : null;
+        final ArrayList<LuaValue> deferList = (flags & Prototype.USES_DEFER) != 0 ? new ArrayList<LuaValue>() : null;
+        final DebugLib debuglib = globals.debuglib;
+        if (debuglib != null)
+            debuglib.onCall(this, varargs, stack);
+        try {
+            return run(stack, varargs, openups, deferList);
+        } finally {
+            callDefer(deferList, this);
+            if (openups != null)
+                for (int u = openups.length; --u >= 0; )
+                    if (openups[u] != null)
+                        openups[u].close();
+            if (globals != null && globals.debuglib != null)
+                globals.debuglib.onReturn();
+            frames.pop(stack, size);
+        }
+    }
+
+    // ----------------------- opcode helpers -----------------------
+
+    protected static LuaValue add(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return LuaInteger.valueOf(((LuaInteger) rb).v + ((LuaInteger) rc).v);
+        if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+            return LuaDouble.valueOf(rb.todouble() + rc.todouble());
+        return rb.add(rc);
+    }
+
+    protected static LuaValue sub(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return LuaInteger.valueOf(((LuaInteger) rb).v - ((LuaInteger) rc).v);
+        if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+            return LuaDouble.valueOf(rb.todouble() - rc.todouble());
+        return rb.sub(rc);
+    }
+
+    protected static LuaValue mul(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return LuaInteger.valueOf(((LuaInteger) rb).v * ((LuaInteger) rc).v);
+        if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+            return LuaDouble.valueOf(rb.todouble() * rc.todouble());
+        return rb.mul(rc);
+    }
+
+    protected static LuaValue div(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return LuaDouble.ddiv(((LuaInteger) rb).v, ((LuaInteger) rc).v);
+        if (rb instanceof LuaDouble && rc instanceof LuaDouble)
+            return LuaDouble.ddiv(rb.todouble(), rc.todouble());
+        return rb.div(rc);
+    }
+
+    protected static boolean eq(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return ((LuaInteger) rb).v == ((LuaInteger) rc).v;
+        return rb.eq_b(rc);
+    }
+
+    protected static boolean lt(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return ((LuaInteger) rb).v < ((LuaInteger) rc).v;
+        return rb.lt_b(rc);
+    }
+
+    protected static boolean le(LuaValue rb, LuaValue rc) {
+        if (rb instanceof LuaInteger && rc instanceof LuaInteger)
+            return ((LuaInteger) rb).v <= ((LuaInteger) rc).v;
+        return rb.lteq_b(rc);
+    }
+
+    protected static LuaValue concat(LuaValue[] stack, int b, int c) {
+        if (c > b + 1) {
+            Buffer sb = stack[c].buffer();
+            while (--c > b)
+                sb = stack[c].concat(sb);
+            // the first operand last, so that it can be appended to in place
+            return stack[b].concat(sb.value());
+        }
+        return stack[c - 1].concat(stack[c]);
+    }
+
+    /**
+     * Store the results of a call into {@code stack[a]}, ... , {@code stack[a + n - 1]}.
+     */
+    protected static void results(Varargs v, LuaValue[] stack, int a, int n) {
+        for (int j = 0; j < n; ++j)
+            stack[a + j] = v.arg(j + 1);
+    }
+
+    protected static void vararg(LuaValue[] stack, int a, int b, Varargs varargs) {
+        for (int j = 1; j < b; ++j)
+            stack[a + j - 1] = varargs.arg(j);
+    }
+
+    protected static void tforcall(LuaValue[] stack, int a, int c) {
+        Varargs v = stack[a].invoke(LuaValue.varargsOf(stack[a + 1], stack[a + 2]));
+        while (--c >= 0)
+            stack[a + 3 + c] = v.arg(c + 1);
+    }
+
+    protected static void tforeach(LuaValue[] stack, int a, int c) {
+        Varargs v = stack[a].next(stack[a + 2]);
+        while (--c >= 0)
+            stack[a + 3 + c] = v.arg(c + 1);
+    }
+
+    protected static void setlist(LuaValue[] stack, int a, int b, int c, int top, Varargs v) {
+        int offset = (c - 1) * Lua.LFIELDS_PER_FLUSH;
+        LuaValue o = stack[a];
+        if (b == 0) {
+            int m = top - a - 1 - v.narg();
+            if (m > 0)
+                o.checktable().setlist(offset, stack, a + 1, m);
+            o.checktable().setlist(offset + Math.max(m, 0), v);
+        } else {
+            o.checktable().setlist(offset, stack, a + 1, b);
+        }
+    }
+
+    /**
+     * Check and normalize the control registers of a numeric for loop.
+     *
+     * @return 0 to skip the loop, 1 for an integer loop starting at {@code stack[a]},
+     * 2 for a float loop whose first index is {@code stack[a] + stack[a + 2]}
+     */
+    protected static int forprep(LuaValue[] stack, int a) {
+        LuaValue init = stack[a].checknumber("'for' initial value must be a number");
+        LuaValue limit = stack[a + 1].checknumber("'for' limit must be a number");
+        LuaValue step = stack[a + 2].checknumber("'for' step must be a number");
+        if (init instanceof LuaInteger && step instanceof LuaInteger && ((LuaInteger) step).v != 0) {
+            long istart = ((LuaInteger) init).v;
+            long istep = ((LuaInteger) step).v;
+            long ilimit;
+            if (limit instanceof LuaInteger) {
+                ilimit = ((LuaInteger) limit).v;
+            } else {
+                double d = limit.todouble();
+                if (Double.isNaN(d))
+                    return 0;
+                ilimit = (long) (istep > 0 ? Math.floor(d) : Math.ceil(d));
+            }
+            if (istep > 0 ? istart > ilimit : istart < ilimit)
+                return 0;
+            stack[a] = init;
+            stack[a + 1] = LuaInteger.valueOf(ilimit);
+            stack[a + 2] = step;
+            stack[a + 3] = init;
+            return 1;
+        }
+        stack[a] = init.sub(step);
+        stack[a + 1] = limit;
+        stack[a + 2] = new LuaDouble(step.todouble());
+        return 2;
+    }
+
+    /**
+     * Number of iterations left after the first one of an integer for loop.
+     */
+    protected static long forcount(long start, long limit, long step) {
+        return step > 0 ?
+                Long.divideUnsigned(limit - start, step) :
+                Long.divideUnsigned(start - limit, -(step + 1) + 1);
+    }
+
+    protected final LuaValue newtable(int b, int c) {
+        return new LuaTable(globals, Lua.fb2int(b), Lua.fb2int(c));
+    }
+
+    protected static LuaValue newlist(int b) {
+        return new LuaList(Lua.fb2int(b));
+    }
+
+    protected final LuaValue importmodule(LuaValue name) {
+        LuaValue ra = globals.package_.require.call(name.tojstring());
+        if (ra.isboolean())
+            ra = globals.get(name.tojstring());
+        return ra;
+    }
+
+    protected final LuaValue module(LuaValue name) {
+        LuaValue m = globals.package_.module.call(name);
+        setfenv(m);
+        return m;
+    }
+
+    protected final LuaValue loadclass(LuaValue name) throws ClassNotFoundException {
+        return globals.luajavaLib.bindClassForName(name.tojstring());
+    }
+
+    protected static LuaValue loadpackage(LuaValue name) {
+        return new JavaPackage(name.tojstring());
+    }
+
+    /**
+     * Create the closure of nested prototype {@code index}, compiled when possible.
+     */
+    protected final LuaValue closure(LuaValue[] stack, UpValue[] openups, int index) {
+        Prototype newp = p.p[index];
+        LuaClosure ncl = instantiate(newp, globals, getfenv());
+        Upvaldesc[] uv = newp.upvalues;
+        for (int j = 0, nup = uv.length; j < nup; ++j) {
+            if (uv[j].instack)  /* upvalue refes to local variable? */
+                ncl.upValues[j] = findupval(stack, uv[j].idx, openups);
+            else  /* get upvalue from enclosing function */
+                ncl.upValues[j] = upValues[uv[j].idx];
+        }
+        return ncl;
+    }
+}
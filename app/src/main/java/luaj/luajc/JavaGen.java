@@ -0,0 +1,872 @@
+package luaj.luajc;
+
+import luaj.Lua;
+import luaj.Prototype;
+
+/**
+ * Translate the bytecode of one {@link Prototype} into a subclass of {@link JavaClosure}.
+ * <p>
+ * Every Lua instruction becomes a short sequence of JVM instructions working
+ * on the same register array the interpreter uses, so values, upvalues and
+ * debug information stay interchangeable with {@link luaj.LuaClosure}.
+ * Jumps become JVM branches and numeric for loops keep their control
+ * variables in JVM locals. Prototypes using an opcode that is not handled
+ * here throw {@link IllegalStateException} and are left to the interpreter.
+ */
+final class JavaGen {
+
+    /**
+     * Size in bytes above which the JIT of desktop JVMs refuses to compile a method.
+     * Such prototypes run faster in the interpreter, whose dispatch loop does get compiled.
+     */
+    static final int HUGE_METHOD = 8000;
+
+    private static final String JAVA_CLOSURE = "luaj/luajc/JavaClosure";
+    private static final String LUA_CLOSURE = "luaj/LuaClosure";
+    private static final String LUA_VALUE = "luaj/LuaValue";
+    private static final String VARARGS = "luaj/Varargs";
+    private static final String UP_VALUE = "luaj/UpValue";
+    private static final String LUA_INTEGER = "luaj/LuaInteger";
+    private static final String LUA_DOUBLE = "luaj/LuaDouble";
+    private static final String DEBUG_LIB = "luaj/lib/DebugLib";
+    private static final String ARRAY_LIST = "java/util/ArrayList";
+
+    private static final String LV = "Lluaj/LuaValue;";
+    private static final String VA = "Lluaj/Varargs;";
+    private static final String S = "[Lluaj/LuaValue;";
+    private static final String UV = "[Lluaj/UpValue;";
+    private static final String LV_LV = "(" + LV + ")" + LV;
+    private static final String LV_LV_LV = "(" + LV + LV + ")" + LV;
+    private static final String LV_LV_Z = "(" + LV + LV + ")Z";
+    private static final String RUN = "(" + S + VA + UV + "Ljava/util/ArrayList;)" + VA;
+    private static final String INIT = "(Lluaj/Prototype;Lluaj/Globals;" + LV + ")V";
+
+    /* JVM opcodes */
+    private static final int ACONST_NULL = 0x01, LCONST_0 = 0x09, LCONST_1 = 0x0a, DCONST_0 = 0x0e;
+    private static final int ILOAD = 0x15, LLOAD = 0x16, DLOAD = 0x18, ALOAD = 0x19, AALOAD = 0x32;
+    private static final int ISTORE = 0x36, LSTORE = 0x37, DSTORE = 0x39, ASTORE = 0x3a, AASTORE = 0x53;
+    private static final int POP = 0x57, DUP = 0x59, ISUB = 0x64, LADD = 0x61, LSUB = 0x65, DADD = 0x63;
+    private static final int IADD = 0x60, LCMP = 0x94, DCMPL = 0x97, DCMPG = 0x98;
+    private static final int IFEQ = 0x99, IFNE = 0x9a, IFLT = 0x9b, IFGT = 0x9d, IFLE = 0x9e;
+    private static final int IF_ICMPEQ = 0x9f, GOTO = 0xa7, ARETURN = 0xb0, RETURN = 0xb1;
+    private static final int GETSTATIC = 0xb2, GETFIELD = 0xb4;
+    private static final int INVOKEVIRTUAL = 0xb6, INVOKESPECIAL = 0xb7, INVOKESTATIC = 0xb8;
+    private static final int NEW = 0xbb, ATHROW = 0xbf, CHECKCAST = 0xc0, INSTANCEOF = 0xc1, IFNULL = 0xc6;
+
+    /* locals of run() */
+    private static final int THIS = 0, STACK = 1, VARARGS_ = 2, OPENUPS = 3, DEFERS = 4;
+    private static final int PC = 5, TOP = 6, V = 7, K = 8, UPVALUES = 9, DEBUGLIB = 10;
+    private static final int O = 11, RESULT = 12, THROWABLE = 13, MODE = 14, FOR_LOCALS = 15;
+
+    private final Prototype p;
+    private final String className;
+    private final ClassFile cf;
+    private ClassFile.Code code;
+    private ClassFile.Label[] labels;
+    /* first of the 12 local slots holding the for loop state of a register, or -1 */
+    private final int[] forLocals = new int[256];
+    private int nextLocal = FOR_LOCALS;
+
+    private JavaGen(Prototype p, String className) {
+        this.p = p;
+        this.className = className;
+        this.cf = new ClassFile(className, JAVA_CLOSURE);
+        java.util.Arrays.fill(forLocals, -1);
+    }
+
+    /**
+     * Generate the class file of a {@link JavaClosure} running {@code p}.
+     *
+     * @param className internal name of the class to generate
+     * @throws IllegalStateException if the prototype cannot be translated
+     */
+    static byte[] generate(Prototype p, String className) {
+        JavaGen gen = new JavaGen(p, className);
+        gen.genInit();
+        gen.genNewInstance();
+        gen.genRun();
+        return gen.cf.toByteArray();
+    }
+
+    private void genInit() {
+        ClassFile.Code c = new ClassFile.Code(cf);
+        c.local(ALOAD, 0);
+        c.local(ALOAD, 1);
+        c.local(ALOAD, 2);
+        c.local(ALOAD, 3);
+        c.invoke(INVOKESPECIAL, JAVA_CLOSURE, "<init>", INIT);
+        c.op(RETURN);
+        cf.addMethod(ClassFile.ACC_PUBLIC, "<init>", INIT, c);
+    }
+
+    private void genNewInstance() {
+        ClassFile.Code c = new ClassFile.Code(cf);
+        c.type(NEW, className);
+        c.op(DUP);
+        c.local(ALOAD, 0);
+        c.field(GETFIELD, className, "p", "Lluaj/Prototype;");
+        c.local(ALOAD, 1);
+        c.local(ALOAD, 2);
+        c.invoke(INVOKESPECIAL, className, "<init>", INIT);
+        c.op(ARETURN);
+        cf.addMethod(ClassFile.ACC_PROTECTED, "newInstance",
+                "(Lluaj/Globals;" + LV + ")Lluaj/luajc/JavaClosure;", c);
+    }
+
+    private void genRun() {
+        final int[] insns = p.code;
+        final int n = insns.length;
+        code = new ClassFile.Code(cf);
+        labels = new ClassFile.Label[n + 1];
+        for (int pc = 0; pc <= n; pc++)
+            labels[pc] = new ClassFile.Label();
+
+        // prologue: every local is assigned before the body so that all paths verify
+        code.iconst(0);
+        code.local(ISTORE, PC);
+        code.iconst(0);
+        code.local(ISTORE, TOP);
+        code.iconst(0);
+        code.local(ISTORE, MODE);
+        none();
+        code.local(ASTORE, V);
+        code.local(ALOAD, THIS);
+        code.field(GETFIELD, className, "p", "Lluaj/Prototype;");
+        code.field(GETFIELD, "luaj/Prototype", "k", S);
+        code.local(ASTORE, K);
+        code.local(ALOAD, THIS);
+        code.field(GETFIELD, className, "upValues", UV);
+        code.local(ASTORE, UPVALUES);
+        code.local(ALOAD, THIS);
+        code.field(GETFIELD, className, "globals", "Lluaj/Globals;");
+        code.field(GETFIELD, "luaj/Globals", "debuglib", "Lluaj/lib/DebugLib;");
+        code.local(ASTORE, DEBUGLIB);
+        code.op(ACONST_NULL);
+        code.local(ASTORE, O);
+        code.op(ACONST_NULL);
+        code.local(ASTORE, RESULT);
+        for (int pc = 0; pc < n; pc++) {
+            int i = insns[pc];
+            int op = i & 0x3f;
+            if (op == Lua.OP_FORPREP || op == Lua.OP_FORLOOP)
+                forLocals((i >> 6) & 0xff);
+        }
+        for (int slot = FOR_LOCALS; slot < nextLocal; slot += 2) {
+            if ((slot - FOR_LOCALS) % 12 < 6) {
+                code.op(LCONST_0);
+                code.local(LSTORE, slot);
+            } else {
+                code.op(DCONST_0);
+                code.local(DSTORE, slot);
+            }
+        }
+        code.maxLocals = Math.max(code.maxLocals, nextLocal);
+
+        ClassFile.Label start = new ClassFile.Label();
+        ClassFile.Label handler = new ClassFile.Label();
+        ClassFile.Label ret = new ClassFile.Label();
+        code.mark(start);
+        boolean argument = false;
+        for (int pc = 0; pc < n; pc++) {
+            code.mark(labels[pc]);
+            int i = Lua.unfuse(insns[pc]);
+            int op = i & 0x3f;
+            if (argument) {
+                argument = false; // argument word of the previous instruction
+                continue;
+            }
+            argument = skips(i);
+            code.iconst(pc);
+            code.local(ISTORE, PC);
+            ClassFile.Label hooked = new ClassFile.Label();
+            code.local(ALOAD, DEBUGLIB);
+            code.jump(IFNULL, hooked);
+            code.local(ALOAD, DEBUGLIB);
+            code.iconst(pc);
+            code.local(ILOAD, TOP);
+            code.invoke(INVOKEVIRTUAL, DEBUG_LIB, "onInstruction", "(II)V");
+            code.mark(hooked);
+            instruction(pc, i, op, ret);
+        }
+        code.mark(labels[n]);
+        // running off the end of the code is an error, as in the interpreter
+        code.type(NEW, "java/lang/IllegalStateException");
+        code.op(DUP);
+        code.invoke(INVOKESPECIAL, "java/lang/IllegalStateException", "<init>", "()V");
+        code.op(ATHROW);
+
+        code.mark(handler);
+        code.handler(start, handler, handler);
+        code.local(ASTORE, THROWABLE);
+        code.local(ALOAD, THIS);
+        code.local(ALOAD, THROWABLE);
+        code.local(ILOAD, PC);
+        code.local(ALOAD, STACK);
+        code.local(ALOAD, DEFERS);
+        code.invoke(INVOKEVIRTUAL, className, "fail", "(Ljava/lang/Throwable;I" + S + "Ljava/util/ArrayList;)Lluaj/LuaError;");
+        code.op(ATHROW);
+
+        code.mark(ret);
+        code.local(ALOAD, RESULT);
+        code.op(ARETURN);
+        if (code.position() > HUGE_METHOD)
+            throw new IllegalStateException("method too large to be compiled by the JIT");
+        cf.addMethod(ClassFile.ACC_PROTECTED, "run", RUN, code);
+    }
+
+    /**
+     * Whether the word following {@code i} is an argument rather than an instruction.
+     */
+    private static boolean skips(int i) {
+        switch (i & 0x3f) {
+            case Lua.OP_LOADKX:
+                return true;
+            case Lua.OP_SETLIST:
+                return ((i >> 14) & 0x1ff) == 0;
+            default:
+                return false;
+        }
+    }
+
+    private int forLocals(int a) {
+        if (forLocals[a] < 0) {
+            forLocals[a] = nextLocal;
+            nextLocal += 12;
+        }
+        return forLocals[a];
+    }
+
+    private void instruction(int pc, int i, int op, ClassFile.Label ret) {
+        final int a = (i >> 6) & 0xff;
+        final int b = i >>> 23;
+        final int c = (i >> 14) & 0x1ff;
+        final int bx = i >>> 14;
+        final int sbx = bx - 0x1ffff;
+        switch (op) {
+            case Lua.OP_MOVE:
+                storeBegin(a);
+                reg(b);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_LOADK:
+                storeBegin(a);
+                constant(bx);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_LOADKX:
+                storeBegin(a);
+                constant(p.code[pc + 1] >>> 6);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_LOADBOOL:
+                storeBegin(a);
+                code.field(GETSTATIC, LUA_VALUE, b != 0 ? "TRUE" : "FALSE", "Lluaj/LuaBoolean;");
+                code.op(AASTORE);
+                if (c != 0)
+                    code.jump(GOTO, target(pc + 2));
+                break;
+            case Lua.OP_LOADNIL:
+                for (int r = a; r <= a + b; r++) {
+                    storeBegin(r);
+                    code.field(GETSTATIC, LUA_VALUE, "NIL", LV);
+                    code.op(AASTORE);
+                }
+                break;
+            case Lua.OP_IMPORT:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                constant(bx);
+                code.invoke(INVOKEVIRTUAL, className, "importmodule", LV_LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_MODULE:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                constant(bx);
+                code.invoke(INVOKEVIRTUAL, className, "module", LV_LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_LOADC:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                constant(bx);
+                code.invoke(INVOKEVIRTUAL, className, "loadclass", LV_LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_LOADP:
+                storeBegin(a);
+                constant(bx);
+                code.invoke(INVOKESTATIC, JAVA_CLOSURE, "loadpackage", LV_LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_GETENV:
+                storeBegin(a);
+                env();
+                code.op(AASTORE);
+                break;
+            case Lua.OP_SETENV:
+                code.local(ALOAD, THIS);
+                reg(a);
+                code.invoke(INVOKEVIRTUAL, className, "setfenv", "(" + LV + ")V");
+                break;
+            case Lua.OP_GETGLOBAL:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                env();
+                constant(bx);
+                code.iconst(pc);
+                code.invoke(INVOKEVIRTUAL, className, "getcached", "(" + LV + LV + "I)" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_SETGLOBAL:
+                env();
+                constant(bx);
+                reg(a);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "set", "(" + LV + LV + ")V");
+                break;
+            case Lua.OP_GETUPVAL:
+                storeBegin(a);
+                upvalue(b);
+                code.invoke(INVOKEVIRTUAL, UP_VALUE, "getValue", "()" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_SETUPVAL:
+                upvalue(b);
+                reg(a);
+                code.invoke(INVOKEVIRTUAL, UP_VALUE, "setValue", "(" + LV + ")V");
+                break;
+            case Lua.OP_GETTABUP:
+                upvalue(b);
+                code.invoke(INVOKEVIRTUAL, UP_VALUE, "getValue", "()" + LV);
+                code.local(ASTORE, O);
+                index(pc, a, c);
+                break;
+            case Lua.OP_GETTABLE:
+                reg(b);
+                code.local(ASTORE, O);
+                index(pc, a, c);
+                break;
+            case Lua.OP_SELF:
+                reg(b);
+                code.local(ASTORE, O);
+                storeBegin(a + 1);
+                code.local(ALOAD, O);
+                code.op(AASTORE);
+                index(pc, a, c);
+                break;
+            case Lua.OP_SETTABUP:
+                upvalue(a);
+                code.invoke(INVOKEVIRTUAL, UP_VALUE, "getValue", "()" + LV);
+                rk(b);
+                rk(c);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "set", "(" + LV + LV + ")V");
+                break;
+            case Lua.OP_SETTABLE:
+                reg(a);
+                rk(b);
+                rk(c);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "set", "(" + LV + LV + ")V");
+                break;
+            case Lua.OP_NEWTABLE:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                code.iconst(b);
+                code.iconst(c);
+                code.invoke(INVOKEVIRTUAL, className, "newtable", "(II)" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_NEWLIST:
+                storeBegin(a);
+                code.iconst(b);
+                code.invoke(INVOKESTATIC, JAVA_CLOSURE, "newlist", "(I)" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_ADD:
+                arith(a, b, c, JAVA_CLOSURE, "add");
+                break;
+            case Lua.OP_SUB:
+                arith(a, b, c, JAVA_CLOSURE, "sub");
+                break;
+            case Lua.OP_MUL:
+                arith(a, b, c, JAVA_CLOSURE, "mul");
+                break;
+            case Lua.OP_DIV:
+                arith(a, b, c, JAVA_CLOSURE, "div");
+                break;
+            case Lua.OP_MOD:
+                arith(a, b, c, null, "mod");
+                break;
+            case Lua.OP_POW:
+                arith(a, b, c, null, "pow");
+                break;
+            case Lua.OP_IDIV:
+                arith(a, b, c, null, "idiv");
+                break;
+            case Lua.OP_BAND:
+                arith(a, b, c, null, "band");
+                break;
+            case Lua.OP_BOR:
+                arith(a, b, c, null, "bor");
+                break;
+            case Lua.OP_BXOR:
+                arith(a, b, c, null, "bxor");
+                break;
+            case Lua.OP_SHL:
+                arith(a, b, c, null, "shl");
+                break;
+            case Lua.OP_SHR:
+                arith(a, b, c, null, "shr");
+                break;
+            case Lua.OP_UNM:
+                unary(a, b, "neg");
+                break;
+            case Lua.OP_NOT:
+                unary(a, b, "not");
+                break;
+            case Lua.OP_LEN:
+                unary(a, b, "len");
+                break;
+            case Lua.OP_BNOT:
+                unary(a, b, "bnot");
+                break;
+            case Lua.OP_CONCAT:
+                storeBegin(a);
+                code.local(ALOAD, STACK);
+                code.iconst(b);
+                code.iconst(c);
+                code.invoke(INVOKESTATIC, JAVA_CLOSURE, "concat", "(" + S + "II)" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_JMP:
+                if (a > 0) {
+                    code.local(ALOAD, OPENUPS);
+                    code.iconst(a - 1);
+                    code.invoke(INVOKESTATIC, LUA_CLOSURE, "closeUpvalues", "(" + UV + "I)V");
+                }
+                code.jump(GOTO, target(pc + 1 + sbx));
+                break;
+            case Lua.OP_EQ:
+                compare(pc, a, b, c, "eq");
+                break;
+            case Lua.OP_LT:
+                compare(pc, a, b, c, "lt");
+                break;
+            case Lua.OP_LE:
+                compare(pc, a, b, c, "le");
+                break;
+            case Lua.OP_TEST:
+                reg(a);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "toboolean", "()Z");
+                code.jump(c != 0 ? IFEQ : IFNE, target(pc + 2));
+                break;
+            case Lua.OP_TESTSET:
+                reg(b);
+                code.local(ASTORE, O);
+                code.local(ALOAD, O);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "toboolean", "()Z");
+                code.jump(c != 0 ? IFEQ : IFNE, target(pc + 2));
+                storeBegin(a);
+                code.local(ALOAD, O);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_TCALL:
+                code.local(ALOAD, THIS);
+                code.local(ALOAD, STACK);
+                code.iconst(a);
+                code.iconst(b);
+                code.iconst(c);
+                code.invoke(INVOKEVIRTUAL, className, "tcall", "(" + S + "III)" + VA);
+                code.local(ASTORE, RESULT);
+                code.local(ALOAD, RESULT);
+                code.jump(IFNULL, target(pc + 1));
+                code.jump(GOTO, ret);
+                break;
+            case Lua.OP_CALL:
+                call(a, b, c);
+                break;
+            case Lua.OP_TAILCALL:
+                code.type(NEW, "luaj/TailcallVarargs");
+                code.op(DUP);
+                reg(a);
+                switch (b) {
+                    case 1:
+                        none();
+                        break;
+                    case 2:
+                        reg(a + 1);
+                        break;
+                    case 3:
+                        reg(a + 1);
+                        reg(a + 2);
+                        code.invoke(INVOKESTATIC, LUA_VALUE, "varargsOf", "(" + LV + VA + ")" + VA);
+                        break;
+                    case 4:
+                        reg(a + 1);
+                        reg(a + 2);
+                        reg(a + 3);
+                        code.invoke(INVOKESTATIC, LUA_VALUE, "varargsOf", "(" + LV + LV + VA + ")" + VA);
+                        break;
+                    default:
+                        args(a + 1, b);
+                        code.invoke(INVOKEVIRTUAL, VARARGS, "dealias", "()" + VA);
+                        break;
+                }
+                code.invoke(INVOKESPECIAL, "luaj/TailcallVarargs", "<init>", "(" + LV + VA + ")V");
+                code.local(ASTORE, RESULT);
+                code.jump(GOTO, ret);
+                break;
+            case Lua.OP_RETURN:
+                switch (b) {
+                    case 1:
+                        none();
+                        break;
+                    case 2:
+                        reg(a);
+                        break;
+                    default:
+                        args(a, b);
+                        code.invoke(INVOKEVIRTUAL, VARARGS, "dealias", "()" + VA);
+                        break;
+                }
+                code.local(ASTORE, RESULT);
+                code.jump(GOTO, ret);
+                break;
+            case Lua.OP_FORPREP:
+                forprep(pc, a, sbx);
+                break;
+            case Lua.OP_FORLOOP:
+                forloop(pc, a, sbx);
+                break;
+            case Lua.OP_TFORCALL:
+            case Lua.OP_TFOREACH:
+                code.local(ALOAD, STACK);
+                code.iconst(a);
+                code.iconst(c);
+                code.invoke(INVOKESTATIC, JAVA_CLOSURE, op == Lua.OP_TFORCALL ? "tforcall" : "tforeach", "(" + S + "II)V");
+                none();
+                code.local(ASTORE, V);
+                break;
+            case Lua.OP_TFORLOOP:
+                reg(a + 1);
+                code.invoke(INVOKEVIRTUAL, LUA_VALUE, "isnil", "()Z");
+                code.jump(IFNE, target(pc + 1));
+                storeBegin(a);
+                reg(a + 1);
+                code.op(AASTORE);
+                code.jump(GOTO, target(pc + 1 + sbx));
+                break;
+            case Lua.OP_SETLIST:
+                code.local(ALOAD, STACK);
+                code.iconst(a);
+                code.iconst(b);
+                code.iconst(c != 0 ? c : p.code[pc + 1]);
+                code.local(ILOAD, TOP);
+                code.local(ALOAD, V);
+                code.invoke(INVOKESTATIC, JAVA_CLOSURE, "setlist", "(" + S + "IIII" + VA + ")V");
+                break;
+            case Lua.OP_CLOSURE:
+                storeBegin(a);
+                code.local(ALOAD, THIS);
+                code.local(ALOAD, STACK);
+                code.local(ALOAD, OPENUPS);
+                code.iconst(bx);
+                code.invoke(INVOKEVIRTUAL, className, "closure", "(" + S + UV + "I)" + LV);
+                code.op(AASTORE);
+                break;
+            case Lua.OP_VARARG:
+                if (b == 0) {
+                    code.iconst(a);
+                    code.local(ALOAD, VARARGS_);
+                    code.invoke(INVOKEVIRTUAL, VARARGS, "narg", "()I");
+                    code.op(IADD);
+                    code.local(ISTORE, TOP);
+                    code.local(ALOAD, VARARGS_);
+                    code.local(ASTORE, V);
+                } else {
+                    code.local(ALOAD, STACK);
+                    code.iconst(a);
+                    code.iconst(b);
+                    code.local(ALOAD, VARARGS_);
+                    code.invoke(INVOKESTATIC, JAVA_CLOSURE, "vararg", "(" + S + "II" + VA + ")V");
+                }
+                break;
+            case Lua.OP_DEFER:
+                code.local(ALOAD, DEFERS);
+                reg(a);
+                code.invoke(INVOKEVIRTUAL, ARRAY_LIST, "add", "(Ljava/lang/Object;)Z");
+                code.op(POP);
+                break;
+            default:
+                throw new IllegalStateException("unsupported opcode " + op + " at " + pc);
+        }
+    }
+
+    private ClassFile.Label target(int pc) {
+        if (pc < 0 || pc >= labels.length)
+            throw new IllegalStateException("jump out of code at " + pc);
+        return labels[pc];
+    }
+
+    private void storeBegin(int r) {
+        code.local(ALOAD, STACK);
+        code.iconst(r);
+    }
+
+    private void reg(int r) {
+        code.local(ALOAD, STACK);
+        code.iconst(r);
+        code.op(AALOAD);
+    }
+
+    private void constant(int index) {
+        code.local(ALOAD, K);
+        code.iconst(index);
+        code.op(AALOAD);
+    }
+
+    private void rk(int x) {
+        if (x > 0xff)
+            constant(x & 0x0ff);
+        else
+            reg(x);
+    }
+
+    private void upvalue(int index) {
+        code.local(ALOAD, UPVALUES);
+        code.iconst(index);
+        code.op(AALOAD);
+    }
+
+    private void none() {
+        code.field(GETSTATIC, LUA_VALUE, "NONE", LV);
+    }
+
+    private void env() {
+        code.local(ALOAD, THIS);
+        code.invoke(INVOKEVIRTUAL, className, "getfenv", "()" + LV);
+    }
+
+    /**
+     * {@code R(A) := O[RK(C)]}, through the inline cache when the key is a constant.
+     */
+    private void index(int pc, int a, int c) {
+        storeBegin(a);
+        if (c > 0xff) {
+            code.local(ALOAD, THIS);
+            code.local(ALOAD, O);
+            constant(c & 0x0ff);
+            code.iconst(pc);
+            code.invoke(INVOKEVIRTUAL, className, "getcached", "(" + LV + LV + "I)" + LV);
+        } else {
+            code.local(ALOAD, O);
+            reg(c);
+            code.invoke(INVOKEVIRTUAL, LUA_VALUE, "get", LV_LV);
+        }
+        code.op(AASTORE);
+    }
+
+    private void arith(int a, int b, int c, String helper, String name) {
+        storeBegin(a);
+        rk(b);
+        rk(c);
+        if (helper != null)
+            code.invoke(INVOKESTATIC, helper, name, LV_LV_LV);
+        else
+            code.invoke(INVOKEVIRTUAL, LUA_VALUE, name, LV_LV);
+        code.op(AASTORE);
+    }
+
+    private void unary(int a, int b, String name) {
+        storeBegin(a);
+        reg(b);
+        code.invoke(INVOKEVIRTUAL, LUA_VALUE, name, "()" + LV);
+        code.op(AASTORE);
+    }
+
+    /**
+     * Skip the next instruction when the comparison differs from {@code A}.
+     */
+    private void compare(int pc, int a, int b, int c, String name) {
+        rk(b);
+        rk(c);
+        code.invoke(INVOKESTATIC, JAVA_CLOSURE, name, LV_LV_Z);
+        code.jump(a != 0 ? IFEQ : IFNE, target(pc + 2));
+    }
+
+    /**
+     * Push the arguments {@code R(from), ... , R(from + b - 2)}, or up to top when {@code b} is 0.
+     */
+    private void args(int from, int b) {
+        code.local(ALOAD, STACK);
+        code.iconst(from);
+        if (b > 0) {
+            code.iconst(b - 1);
+            code.invoke(INVOKESTATIC, LUA_VALUE, "varargsOf", "(" + S + "II)" + VA);
+        } else {
+            code.local(ILOAD, TOP);
+            code.local(ALOAD, V);
+            code.invoke(INVOKEVIRTUAL, VARARGS, "narg", "()I");
+            code.op(ISUB);
+            code.iconst(from);
+            code.op(ISUB);
+            code.local(ALOAD, V);
+            code.invoke(INVOKESTATIC, LUA_VALUE, "varargsOf", "(" + S + "II" + VA + ")" + VA);
+        }
+    }
+
+    private void call(int a, int b, int c) {
+        if (c == 0 && (b == 1 || b == 2)) {
+            reg(a);
+            if (b == 1)
+                none();
+            else
+                reg(a + 1);
+            code.invoke(INVOKEVIRTUAL, LUA_VALUE, "invoke", "(" + VA + ")" + VA);
+            code.local(ASTORE, V);
+            setTop(a);
+            return;
+        }
+        if ((c == 1 || c == 2) && b >= 1 && b <= 4) {
+            if (c == 2)
+                storeBegin(a);
+            reg(a);
+            StringBuilder desc = new StringBuilder("(");
+            for (int j = 1; j < b; j++) {
+                reg(a + j);
+                desc.append(LV);
+            }
+            code.invoke(INVOKEVIRTUAL, LUA_VALUE, "call", desc.append(')').append(LV).toString());
+            code.op(c == 2 ? AASTORE : POP);
+            return;
+        }
+        reg(a);
+        args(a + 1, b);
+        code.invoke(INVOKEVIRTUAL, LUA_VALUE, "invoke", "(" + VA + ")" + VA);
+        code.local(ASTORE, V);
+        if (c > 0) {
+            code.local(ALOAD, V);
+            code.local(ALOAD, STACK);
+            code.iconst(a);
+            code.iconst(c - 1);
+            code.invoke(INVOKESTATIC, JAVA_CLOSURE, "results", "(" + VA + S + "II)V");
+            none();
+            code.local(ASTORE, V);
+        } else {
+            setTop(a);
+            code.local(ALOAD, V);
+            code.invoke(INVOKEVIRTUAL, VARARGS, "dealias", "()" + VA);
+            code.local(ASTORE, V);
+        }
+    }
+
+    private void setTop(int a) {
+        code.iconst(a);
+        code.local(ALOAD, V);
+        code.invoke(INVOKEVIRTUAL, VARARGS, "narg", "()I");
+        code.op(IADD);
+        code.local(ISTORE, TOP);
+    }
+
+    /* slots of the for loop state relative to forLocals(a): index, count and step as longs, then as doubles */
+    private static final int IDX = 0, CNT = 2, STEP = 4, IDX_D = 6, LIMIT_D = 8, STEP_D = 10;
+
+    private void forprep(int pc, int a, int sbx) {
+        final int l = forLocals(a);
+        ClassFile.Label floating = new ClassFile.Label();
+        code.local(ALOAD, STACK);
+        code.iconst(a);
+        code.invoke(INVOKESTATIC, JAVA_CLOSURE, "forprep", "(" + S + "I)I");
+        code.local(ISTORE, MODE);
+        code.local(ILOAD, MODE);
+        code.jump(IFEQ, target(pc + sbx + 2));
+        code.local(ILOAD, MODE);
+        code.iconst(2);
+        code.jump(IF_ICMPEQ, floating);
+        // integer loop, falls through into the body
+        longValue(a);
+        code.local(LSTORE, l + IDX);
+        longValue(a + 2);
+        code.local(LSTORE, l + STEP);
+        code.local(LLOAD, l + IDX);
+        longValue(a + 1);
+        code.local(LLOAD, l + STEP);
+        code.invoke(INVOKESTATIC, JAVA_CLOSURE, "forcount", "(JJJ)J");
+        code.local(LSTORE, l + CNT);
+        code.jump(GOTO, target(pc + 1));
+        // float loop, enters through OP_FORLOOP
+        code.mark(floating);
+        doubleValue(a);
+        code.local(DSTORE, l + IDX_D);
+        doubleValue(a + 1);
+        code.local(DSTORE, l + LIMIT_D);
+        doubleValue(a + 2);
+        code.local(DSTORE, l + STEP_D);
+        code.jump(GOTO, target(pc + 1 + sbx));
+    }
+
+    private void forloop(int pc, int a, int sbx) {
+        final int l = forLocals(a);
+        final ClassFile.Label body = target(pc + 1 + sbx);
+        final ClassFile.Label exit = target(pc + 1);
+        ClassFile.Label floating = new ClassFile.Label();
+        reg(a + 2);
+        code.type(INSTANCEOF, LUA_INTEGER);
+        code.jump(IFEQ, floating);
+        code.local(LLOAD, l + CNT);
+        code.op(LCONST_0);
+        code.op(LCMP);
+        code.jump(IFEQ, exit);
+        code.local(LLOAD, l + CNT);
+        code.op(LCONST_1);
+        code.op(LSUB);
+        code.local(LSTORE, l + CNT);
+        code.local(LLOAD, l + IDX);
+        code.local(LLOAD, l + STEP);
+        code.op(LADD);
+        code.local(LSTORE, l + IDX);
+        storeBegin(a + 3);
+        code.local(LLOAD, l + IDX);
+        code.invoke(INVOKESTATIC, LUA_INTEGER, "valueOf", "(J)Lluaj/LuaInteger;");
+        code.op(AASTORE);
+        code.jump(GOTO, body);
+
+        code.mark(floating);
+        ClassFile.Label down = new ClassFile.Label();
+        ClassFile.Label taken = new ClassFile.Label();
+        code.local(DLOAD, l + IDX_D);
+        code.local(DLOAD, l + STEP_D);
+        code.op(DADD);
+        code.local(DSTORE, l + IDX_D);
+        code.local(DLOAD, l + STEP_D);
+        code.op(DCONST_0);
+        code.op(DCMPL);
+        code.jump(IFLE, down);
+        code.local(DLOAD, l + IDX_D);
+        code.local(DLOAD, l + LIMIT_D);
+        code.op(DCMPG);
+        code.jump(IFGT, exit);
+        code.jump(GOTO, taken);
+        code.mark(down);
+        code.local(DLOAD, l + IDX_D);
+        code.local(DLOAD, l + LIMIT_D);
+        code.op(DCMPL);
+        code.jump(IFLT, exit);
+        code.mark(taken);
+        storeBegin(a + 3);
+        code.local(DLOAD, l + IDX_D);
+        code.invoke(INVOKESTATIC, LUA_DOUBLE, "valueOf", "(D)Lluaj/LuaNumber;");
+        code.op(AASTORE);
+        code.jump(GOTO, body);
+    }
+
+    private void longValue(int r) {
+        reg(r);
+        code.type(CHECKCAST, LUA_INTEGER);
+        code.field(GETFIELD, LUA_INTEGER, "v", "J");
+    }
+
+    private void doubleValue(int r) {
+        reg(r);
+        code.invoke(INVOKEVIRTUAL, LUA_VALUE, "todouble", "()D");
+    }
+}
@@ -0,0 +1,123 @@
+package luaj.luajc;
+
+import java.io.IOException;
+import java.lang.reflect.Constructor;
+import java.nio.ByteBuffer;
+
+import android.cglib.dx.DexMaker;
+import dalvik.system.InMemoryDexClassLoader;
+import luaj.Globals;
+import luaj.LuaClosure;
+import luaj.LuaFunction;
+import luaj.LuaValue;
+import luaj.Prototype;
+
+/**
+ * {@link Globals.Loader} that compiles prototypes to dex classes with the
+ * bundled {@link DexMaker}, so that ART runs them as compiled code.
+ * <p>
+ * This is the Android counterpart of {@link LuaJC}: the generated classes
+ * extend {@link JavaClosure} in the same way, one class per prototype, and a
+ * whole chunk goes into one dex file loaded by its own
+ * {@link InMemoryDexClassLoader}. Prototypes that {@link DexGen} cannot
+ * translate run in a plain {@link LuaClosure}, as does every chunk when the
+ * runtime cannot load dex files, such as on a desktop JVM.
+ *
+ * @see DexGen
+ */
+public class LuaDex implements Globals.Loader {
+
+    /**
+     * A sharable instance of the loader.
+     */
+    public static final LuaDex instance = new LuaDex();
+
+    /**
+     * Install the loader into {@code globals}, replacing the interpreting one.
+     */
+    public static void install(Globals globals) {
+        globals.loader = instance;
+    }
+
+    /* set once loading dex files failed, to stop trying */
+    private static volatile boolean unsupported;
+
+    protected LuaDex() {
+    }
+
+    public LuaFunction load(Prototype p, String chunkname, Globals globals, LuaValue env) throws IOException {
+        if (!unsupported) {
+            JavaClosure template = compile(p, LuaJC.className(chunkname));
+            if (template != null)
+                return template.newInstance(globals, env);
+        }
+        return new LuaClosure(p, globals, env);
+    }
+
+    /**
+     * Generate the dex file holding the classes of {@code p} and its nested prototypes.
+     *
+     * @param p         main prototype of a chunk
+     * @param chunkname name of the chunk, used to name the classes
+     * @return the bytes of the dex file
+     */
+    public static byte[] generate(Prototype p, String chunkname) {
+        DexMaker maker = new DexMaker();
+        declare(maker, p, LuaJC.className(chunkname));
+        return maker.generate();
+    }
+
+    /**
+     * Compile {@code p} and its nested prototypes into one dex file and load it.
+     * <p>
+     * Errors of the generated code, such as a dex file rejected by DexMaker or
+     * a class rejected by the verifier, are bugs of {@link DexGen} and are
+     * thrown to the caller of the loader rather than hidden by interpreting
+     * the prototype.
+     *
+     * @return an unstarted closure of {@code p}, or null to interpret it
+     */
+    private static JavaClosure compile(Prototype p, String name) {
+        DexMaker maker = new DexMaker();
+        declare(maker, p, name);
+        byte[] dex = maker.generate();
+        ClassLoader loader;
+        try {
+            loader = new InMemoryDexClassLoader(ByteBuffer.wrap(dex), LuaDex.class.getClassLoader());
+        } catch (LinkageError e) {
+            unsupported = true; /* not running on Android */
+            return null;
+        } catch (UnsupportedOperationException e) {
+            unsupported = true;
+            return null;
+        }
+        try {
+            return instantiate(loader, p, name);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot instantiate " + name, e);
+        }
+    }
+
+    private static void declare(DexMaker maker, Prototype p, String name) {
+        for (int j = 0; j < p.p.length; j++)
+            declare(maker, p.p[j], name + "_" + j);
+        if (DexGen.supports(p))
+            DexGen.declare(maker, p, name);
+    }
+
+    /**
+     * Instantiate the classes of {@code p} and its nested prototypes, setting
+     * the {@link Prototype#factory} of each nested one that was compiled.
+     *
+     * @return an unstarted closure of {@code p}, or null to interpret it
+     */
+    private static JavaClosure instantiate(ClassLoader loader, Prototype p, String name) throws ReflectiveOperationException {
+        for (int j = 0; j < p.p.length; j++)
+            p.p[j].factory = instantiate(loader, p.p[j], name + "_" + j);
+        if (!DexGen.supports(p))
+            return null;
+        Constructor<?> c = loader.loadClass(name)
+                .getConstructor(Prototype.class, Globals.class, LuaValue.class);
+        return (JavaClosure) c.newInstance(p, null, null);
+    }
+}
@@ -0,0 +1,119 @@
+package luaj.luajc;
+
+import java.io.IOException;
+
+import luaj.Globals;
+import luaj.LuaClosure;
+import luaj.LuaFunction;
+import luaj.LuaValue;
+import luaj.Prototype;
+
+/**
+ * {@link Globals.Loader} that compiles prototypes to JVM classes instead of
+ * interpreting them.
+ * <p>
+ * Install it after the compiler, so that chunks are still parsed by
+ * {@link luaj.compiler.LuaC} but run as generated code:
+ * <pre> {@code
+ * Globals globals = JsePlatform.standardGlobals();
+ * LuaJC.install(globals);
+ * globals.load(new StringReader("print 'hello'"), "main.lua").call();
+ * } </pre>
+ * <p>
+ * Each loaded chunk gets its own class loader holding one class per
+ * prototype, so the classes are unloaded together with the chunk.
+ * Prototypes that cannot be translated, or that would be too large for the
+ * JIT, run in a plain {@link LuaClosure}; the functions nested in them still
+ * run compiled, as the interpreter creates their closures through
+ * {@link Prototype#factory}. On platforms that cannot define classes at
+ * runtime, such as Android, every chunk is interpreted.
+ *
+ * @see JavaGen
+ * @see JavaClosure
+ */
+public class LuaJC implements Globals.Loader {
+
+    /**
+     * A sharable instance of the loader.
+     */
+    public static final LuaJC instance = new LuaJC();
+
+    /**
+     * Install the loader into {@code globals}, replacing the interpreting one.
+     */
+    public static void install(Globals globals) {
+        globals.loader = instance;
+    }
+
+    /* set once defining classes failed, to stop trying */
+    private static volatile boolean unsupported;
+
+    protected LuaJC() {
+    }
+
+    public LuaFunction load(Prototype p, String chunkname, Globals globals, LuaValue env) throws IOException {
+        if (!unsupported) {
+            JavaClosure template = compile(new JavaLoader(), p, className(chunkname));
+            if (template != null)
+                return template.newInstance(globals, env);
+        }
+        return new LuaClosure(p, globals, env);
+    }
+
+    /**
+     * Compile {@code p} and its nested prototypes, setting the
+     * {@link Prototype#factory} of each nested one that could be compiled.
+     * <p>
+     * A class rejected by the verifier is a bug of {@link JavaGen} and is
+     * thrown as is rather than hidden by interpreting the prototype.
+     *
+     * @return an unstarted closure of {@code p}, or null to interpret it
+     */
+    private static JavaClosure compile(JavaLoader loader, Prototype p, String name) {
+        for (int j = 0; j < p.p.length && !unsupported; j++)
+            p.p[j].factory = compile(loader, p.p[j], name + "_" + j);
+        if (unsupported)
+            return null;
+        byte[] bytes;
+        try {
+            bytes = JavaGen.generate(p, name);
+        } catch (IllegalStateException e) {
+            return null; /* unsupported opcode, or too large to be worth it */
+        }
+        Class<?> c;
+        try {
+            c = loader.define(name, bytes);
+        } catch (UnsupportedOperationException e) {
+            unsupported = true; /* class files cannot be defined here */
+            return null;
+        }
+        try {
+            return (JavaClosure) c.getConstructor(Prototype.class, Globals.class, LuaValue.class)
+                    .newInstance(p, null, null);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("cannot instantiate " + name, e);
+        }
+    }
+
+    /**
+     * Class name for the main prototype of a chunk, made of the identifier characters of its name.
+     */
+    static String className(String chunkname) {
+        StringBuilder sb = new StringBuilder("LuaJC_");
+        for (int i = 0, n = chunkname.length(); i < n; i++) {
+            char ch = chunkname.charAt(i);
+            sb.append(ch < 128 && Character.isJavaIdentifierPart(ch) ? ch : '_');
+        }
+        return sb.toString();
+    }
+
+    private static final class JavaLoader extends ClassLoader {
+        JavaLoader() {
+            super(LuaJC.class.getClassLoader());
+        }
+
+        Class<?> define(String name, byte[] bytes) {
+            return defineClass(name, bytes, 0, bytes.length);
+        }
+    }
+}
@@ -0,0 +1,66 @@
+package android.cglib.proxy;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayOutputStream;
+import java.io.PrintStream;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Generates the dex file of a proxy without loading it, which needs a device.
+ */
+public class EnhancerTest {
+
+    public static class Target {
+        private int total;
+
+        public Target() {
+        }
+
+        public Target(int total) {
+            this.total = total;
+        }
+
+        public int add(int n) {
+            return total += n;
+        }
+
+        public void reset() {
+            total = 0;
+        }
+
+        public String describe(Object o, long l, double d, boolean b) {
+            return o + " " + l + " " + d + " " + b;
+        }
+
+        protected int scale(int n) {
+            return total * n;
+        }
+    }
+
+    @Test
+    public void generatesProxy() {
+        Enhancer enhancer = new Enhancer(null);
+        enhancer.setSuperclass(Target.class);
+        // the Enhancer prints the methods it fails to hook and goes on
+        PrintStream err = System.err;
+        ByteArrayOutputStream printed = new ByteArrayOutputStream();
+        byte[] dex;
+        System.setErr(new PrintStream(printed, true));
+        try {
+            dex = enhancer.declare("android/cglib/proxy/TargetProxy").generate();
+        } finally {
+            System.setErr(err);
+        }
+        assertEquals("", printed.toString());
+
+        String contents = new String(dex, StandardCharsets.ISO_8859_1);
+        assertTrue(contents.startsWith("dex\n"));
+        for (String name : new String[]{"add", "reset", "describe", "scale", "<init>",
+                EnhancerInterface.SET_METHOD_INTERCEPTOR_ENHANCER, EnhancerInterface.EXECUTE_SUPER_METHOD_ENHANCER})
+            assertTrue(name, contents.contains(name));
+    }
+}
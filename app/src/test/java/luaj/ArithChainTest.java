@@ -0,0 +1,133 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+import luaj.lib.DebugLib;
+
+/**
+ * Chains of arithmetic run by {@link Lua#OP_ARITHCHAIN} give the same results
+ * as the same instructions run one at a time, which is how the interpreter
+ * runs them while the debug library is loaded.
+ */
+public class ArithChainTest {
+
+    private static final String[] EXPRESSIONS = {
+            "(a + b) * c",
+            "a * b + c * d",
+            "(a + b) / c - d",
+            "a / b / c * d",
+            "(a - b) * (c + d) / (a + 1)",
+            "((a + b) * c + d) * 2.5",
+            "1 + a * 2 - b / 4",
+            "(a + b) * 0.5 + c",
+            "(x and y or a + b) * c",
+            "(x and a or b - c) / d",
+    };
+
+    private static final LuaValue[] NUMBERS = {
+            LuaValue.valueOf(0), LuaValue.valueOf(3), LuaValue.valueOf(-7),
+            LuaValue.valueOf(Long.MAX_VALUE), LuaValue.valueOf(Long.MIN_VALUE), LuaValue.valueOf(1L << 53),
+            LuaValue.valueOf(0.5), LuaValue.valueOf(-2.25), new LuaDouble(4.0), LuaValue.valueOf(1e300),
+    };
+
+    private static Prototype compile(Globals g, String expression) throws IOException {
+        String script = "local a, b, c, d, x, y = ... return " + expression;
+        return g.compilePrototype(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), expression);
+    }
+
+    private static boolean chained(Prototype p) {
+        for (int i : p.code)
+            if (Lua.GET_OPCODE(i) == Lua.OP_ARITHCHAIN)
+                return true;
+        return false;
+    }
+
+    private static String describe(LuaValue v) {
+        if (v instanceof LuaInteger)
+            return "integer " + v.tolong();
+        if (v instanceof LuaDouble)
+            return "float " + Double.doubleToLongBits(v.todouble()) + " (" + v.todouble() + ")";
+        return v.typename() + " " + v.tojstring();
+    }
+
+    private static String run(LuaValue f, Varargs args) {
+        try {
+            return describe(f.invoke(args).arg1());
+        } catch (LuaError e) {
+            // the debug library adds a traceback
+            return "error " + e.getMessage().split("\n")[0];
+        }
+    }
+
+    @Test
+    public void sameResultsAsSingleInstructions() throws IOException {
+        Globals chaining = TestGlobals.create();
+        Globals single = TestGlobals.create();
+        single.load(new DebugLib());
+        for (String expression : EXPRESSIONS) {
+            Prototype p = compile(chaining, expression);
+            assertTrue(expression, chained(p));
+            LuaValue f = new LuaClosure(p, chaining, chaining);
+            LuaValue g = new LuaClosure(compile(single, expression), single, single);
+            for (LuaValue a : NUMBERS)
+                for (LuaValue b : NUMBERS)
+                    for (LuaValue c : NUMBERS)
+                        for (LuaValue d : new LuaValue[]{LuaValue.valueOf(2), LuaValue.valueOf(-0.75)})
+                            for (LuaValue x : new LuaValue[]{LuaValue.FALSE, LuaValue.TRUE}) {
+                                Varargs args = LuaValue.varargsOf(new LuaValue[]{a, b, c, d, x, LuaValue.valueOf(6)});
+                                assertEquals(expression + " with " + args.tojstring(), run(g, args), run(f, args));
+                            }
+        }
+    }
+
+    /**
+     * The multiplication of {@code (x and y or a + b) * c} is reached from the
+     * addition and by a jump, with {@code y} in the register the addition
+     * would have written.
+     */
+    @Test
+    public void consumerIsAJumpTarget() throws IOException {
+        Globals g = TestGlobals.create();
+        Prototype p = compile(g, "(x and y or a + b) * c");
+        assertTrue(SuperinstructionTest.beforeTarget(p, Lua.OP_ARITHCHAIN) >= 0);
+        LuaValue f = new LuaClosure(p, g, g);
+        for (int pass = 0; pass < 3; pass++) {
+            Varargs added = LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(2), LuaValue.valueOf(3),
+                    LuaValue.valueOf(4), LuaValue.NIL, LuaValue.FALSE, LuaValue.valueOf(100)});
+            assertEquals(20, f.invoke(added).arg1().tolong());
+            Varargs jumped = LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(2), LuaValue.valueOf(3),
+                    LuaValue.valueOf(4), LuaValue.NIL, LuaValue.TRUE, LuaValue.valueOf(100)});
+            assertEquals(400, f.invoke(jumped).arg1().tolong());
+            Varargs floats = LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(0.25), LuaValue.valueOf(0.5),
+                    LuaValue.valueOf(4), LuaValue.NIL, LuaValue.FALSE, LuaValue.valueOf(100)});
+            assertEquals(3.0, f.invoke(floats).arg1().todouble(), 0);
+        }
+    }
+
+    /**
+     * A division in the middle makes the rest of the chain float, and a float
+     * result of integral value ends the chain as it is boxed like
+     * {@link LuaValue#valueOf(double)} does.
+     */
+    @Test
+    public void divisionAndIntegralResults() throws IOException {
+        Globals g = TestGlobals.create();
+        LuaValue f = new LuaClosure(compile(g, "(a + b) / c * d - 1"), g, g);
+        Varargs v = f.invoke(LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(3), LuaValue.valueOf(4),
+                LuaValue.valueOf(2), LuaValue.valueOf(3)}));
+        assertEquals(9.5, v.arg1().todouble(), 0);
+        v = f.invoke(LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(0.25), LuaValue.valueOf(0.75),
+                LuaValue.valueOf(0.5), LuaValue.valueOf(1.5)}));
+        assertEquals(2, v.arg1().todouble(), 0);
+        v = f.invoke(LuaValue.varargsOf(new LuaValue[]{LuaValue.valueOf(1), LuaValue.valueOf(0),
+                LuaValue.valueOf(0), LuaValue.valueOf(1)}));
+        assertTrue(Double.isInfinite(v.arg1().todouble()));
+    }
+}
@@ -0,0 +1,215 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.junit.Test;
+
+/**
+ * Tables after {@link LuaTable#concurrent()}, written and read from Lua on
+ * several threads at once, with the reads going through {@link InlineCache}.
+ */
+public class ConcurrentTableTest {
+
+    private static final int THREADS = 4;
+    private static final int KEYS = 20000;
+
+    private static final String WRITER = ""
+            + "local id, n = ...\n"
+            + "for i = 1, n do\n"
+            + "  _G['t' .. id .. '_' .. i] = i\n"
+            + "  _G['shared' .. i] = id\n"
+            + "  count = i\n"
+            + "end\n"
+            + "for i = 1, n, 2 do\n"
+            + "  _G['t' .. id .. '_' .. i] = nil\n"
+            + "end\n"
+            + "local missing = 0\n"
+            + "for i = 2, n, 2 do\n"
+            + "  if _G['t' .. id .. '_' .. i] ~= i then missing = missing + 1 end\n"
+            + "end\n"
+            + "return missing\n";
+
+    @Test
+    public void noLostUpdates() throws Exception {
+        Globals g = TestGlobals.create();
+        g.concurrent();
+        final LuaValue writer = TestGlobals.load(g, WRITER, "writer");
+        List<Future<LuaValue>> results = run(new Task() {
+            public LuaValue call(int id) {
+                return writer.call(LuaValue.valueOf(id), LuaValue.valueOf(KEYS));
+            }
+        });
+        for (Future<LuaValue> r : results)
+            assertEquals(0, r.get().toint());
+        for (int id = 0; id < THREADS; id++) {
+            for (int i = 1; i <= KEYS; i++) {
+                LuaValue v = g.get("t" + id + "_" + i);
+                if (i % 2 == 0)
+                    assertEquals(i, v.toint());
+                else
+                    assertSame(LuaValue.NIL, v);
+            }
+        }
+        for (int i = 1; i <= KEYS; i++) {
+            int id = g.get("shared" + i).toint();
+            assertTrue(id >= 0 && id < THREADS);
+        }
+        assertEquals(KEYS, g.get("count").toint());
+    }
+
+    @Test
+    public void cachedReadsSeeWritesAndRemovals() {
+        Globals g = TestGlobals.create();
+        g.concurrent();
+        LuaValue read = TestGlobals.load(g, "return function() return x end", "read").call();
+        g.set("x", LuaValue.valueOf(1));
+        assertEquals(1, read.call().toint());
+        g.set("x", LuaValue.valueOf(2));
+        assertEquals(2, read.call().toint());
+        g.set("y", LuaValue.valueOf(3));
+        assertEquals(2, read.call().toint());
+        g.set("x", LuaValue.NIL);
+        assertSame(LuaValue.NIL, read.call());
+        g.set("x", LuaValue.valueOf(4));
+        assertEquals(4, read.call().toint());
+    }
+
+    /**
+     * A reader spinning on a cached global must see the values a writer
+     * stores in order, and never one from before a removal once a later
+     * value was seen.
+     */
+    @Test
+    public void cachedReadsAcrossThreads() throws Exception {
+        final Globals g = TestGlobals.create();
+        g.concurrent();
+        final LuaValue read = TestGlobals.load(g, "return function() return x end", "read").call();
+        final int n = 200000;
+        final AtomicBoolean written = new AtomicBoolean();
+        List<Future<LuaValue>> results = run(new Task() {
+            public LuaValue call(int id) {
+                if (id == 0) {
+                    for (int i = 1; i <= n; i++) {
+                        g.set("x", LuaValue.valueOf(i));
+                        if (i % 7 == 0)
+                            g.set("x", LuaValue.NIL);
+                    }
+                    g.set("x", LuaValue.valueOf(n + 1));
+                    written.set(true);
+                    return LuaValue.TRUE;
+                }
+                int last = 0;
+                for (int after = 0; after < 1000; ) {
+                    if (written.get())
+                        after++;
+                    LuaValue v = read.call();
+                    if (v.isnil())
+                        continue;
+                    if (v.toint() < last)
+                        return LuaValue.valueOf("went back from " + last + " to " + v.toint());
+                    if ((last = v.toint()) == n + 1)
+                        return LuaValue.TRUE;
+                }
+                return LuaValue.valueOf("still reads " + last);
+            }
+        });
+        for (Future<LuaValue> r : results)
+            assertEquals(LuaValue.TRUE, r.get());
+    }
+
+    /**
+     * Lua allows clearing fields during a traversal, here with another
+     * traversal of the same table started in between.
+     */
+    @Test
+    public void clearingDuringNestedTraversals() {
+        Globals g = TestGlobals.create();
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= 100; i++) {
+            t.set("k" + i, LuaValue.valueOf(i));
+            t.set(LuaValue.valueOf(i + 0.5), LuaValue.TRUE);
+        }
+        t.set(LuaValue.TRUE, LuaValue.TRUE);
+        t.set(new LuaTable(), LuaValue.TRUE);
+        t.concurrent();
+        g.set("T", t);
+        LuaValue visited = TestGlobals.load(g, ""
+                + "local n = 0\n"
+                + "for k in pairs(T) do\n"
+                + "  T[k] = nil\n"
+                + "  n = n + 1\n"
+                + "  for _ in pairs(T) do break end\n"
+                + "end\n"
+                + "return n", "clear").call();
+        assertEquals(202, visited.toint());
+        assertSame(LuaValue.NIL, t.next(LuaValue.NIL).arg1());
+    }
+
+    /**
+     * A traversal goes on with the keys taken by traversals on other
+     * threads, which add and remove keys of their own meanwhile.
+     */
+    @Test
+    public void traversalsOnOtherThreads() throws Exception {
+        final LuaTable t = new LuaTable();
+        t.concurrent();
+        final int n = 2000;
+        for (int i = 0; i < n; i++)
+            t.set("stable" + i, LuaValue.valueOf(i));
+        List<Future<LuaValue>> results = run(new Task() {
+            public LuaValue call(int id) {
+                for (int round = 0; round < 20; round++) {
+                    int[] seen = new int[n];
+                    for (LuaValue k = t.next(LuaValue.NIL).arg1(); !k.isnil(); k = t.next(k).arg1()) {
+                        String name = k.tojstring();
+                        if (name.startsWith("stable")) {
+                            int i = Integer.parseInt(name.substring(6));
+                            if (seen[i]++ == 0 && i % 50 == 0)
+                                t.set("t" + id + "_" + round + "_" + i, LuaValue.TRUE);
+                        } else if (name.startsWith("t" + id + "_")) {
+                            t.set(k, LuaValue.NIL);
+                        }
+                    }
+                    for (int i = 0; i < n; i++)
+                        if (seen[i] != 1)
+                            return LuaValue.valueOf("stable" + i + " visited " + seen[i] + " times");
+                }
+                return LuaValue.TRUE;
+            }
+        });
+        for (Future<LuaValue> r : results)
+            assertEquals(LuaValue.TRUE, r.get());
+    }
+
+    private interface Task {
+        LuaValue call(int id);
+    }
+
+    private static List<Future<LuaValue>> run(final Task task) throws InterruptedException {
+        ExecutorService pool = Executors.newFixedThreadPool(THREADS);
+        try {
+            List<Callable<LuaValue>> calls = new ArrayList<Callable<LuaValue>>();
+            for (int id = 0; id < THREADS; id++) {
+                final int i = id;
+                calls.add(new Callable<LuaValue>() {
+                    public LuaValue call() {
+                        return task.call(i);
+                    }
+                });
+            }
+            return pool.invokeAll(calls);
+        } finally {
+            pool.shutdown();
+        }
+    }
+}
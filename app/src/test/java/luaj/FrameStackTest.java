@@ -0,0 +1,174 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import luaj.lib.OneArgFunction;
+
+/**
+ * Frames of {@link FrameStack} have to come back cleared and at the depth they
+ * were taken from, whichever way a call leaves, or values would leak from one
+ * call into the next one made at the same depth.
+ */
+public class FrameStackTest {
+
+    private Globals globals;
+    private int base;
+
+    @Before
+    public void setUp() {
+        globals = TestGlobals.create();
+        base = FrameStack.current().depth();
+    }
+
+    /* every pooled frame from the current depth on is cleared, whatever size
+       it was last taken with */
+    private void assertPoolCleared(int depth) {
+        FrameStack frames = FrameStack.current();
+        assertEquals(base, frames.depth());
+        LuaValue[][] taken = new LuaValue[depth][];
+        for (int d = 0; d < depth; d++) {
+            LuaValue[] frame = taken[d] = frames.push(1);
+            for (int r = 0; r < frame.length; r++)
+                assertNull("register " + r + " at depth " + d, frame[r]);
+        }
+        for (int d = depth; --d >= 0; )
+            frames.pop(taken[d], 1);
+        assertEquals(base, frames.depth());
+    }
+
+    private LuaValue run(String script) {
+        return TestGlobals.load(globals, script, "frames").call();
+    }
+
+    @Test
+    public void returnClearsFrames() {
+        LuaValue r = run("local function f(a, b) local c, d = a .. b, {a, b} return #c + #d end\n" +
+                "local s = 0 for i = 1, 10 do s = s + f('x' .. i, 'y') end return s");
+        assertEquals(9 * 3 + 4 + 10 * 2, r.toint());
+        assertPoolCleared(8);
+    }
+
+    @Test
+    public void luaErrorMidCallUnwindsFrames() {
+        try {
+            run("local function f(n, t) local big = {n} if n == 0 then error('boom') end return f(n - 1, big) + 1 end\n" +
+                    "return f(20, {})");
+            fail("error expected");
+        } catch (LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("boom"));
+        }
+        assertPoolCleared(24);
+    }
+
+    @Test
+    public void javaExceptionMidCallUnwindsFrames() {
+        globals.set("explode", new OneArgFunction() {
+            @Override
+            public LuaValue call(LuaValue arg) {
+                throw new IllegalStateException("from java " + arg);
+            }
+        });
+        try {
+            run("local function f(n) local s = 'local ' .. n if n == 0 then return explode(s) end return (f(n - 1)) end\n" +
+                    "return f(5)");
+            fail("exception expected");
+        } catch (RuntimeException e) {
+            assertTrue(String.valueOf(e.getMessage()), String.valueOf(e.getMessage()).contains("from java local 0"));
+        }
+        assertPoolCleared(8);
+    }
+
+    @Test
+    public void pcallKeepsCallerFramesIntact() {
+        LuaValue r = run("local function deep(n) local v = n * 2 if n == 0 then error({}) end return deep(n - 1) + v end\n" +
+                "local a, b, c = 1, 2, 3\n" +
+                "for i = 1, 5 do assert(not pcall(deep, 10)) end\n" +
+                "local function probe() local x, y, z return x, y, z end\n" +
+                "local x, y, z = probe()\n" +
+                "return a + b + c + (x == nil and y == nil and z == nil and 100 or 0)");
+        assertEquals(106, r.toint());
+        assertPoolCleared(16);
+    }
+
+    /**
+     * Run {@code test} on a thread of its own with a stack deep enough for
+     * a thousand Lua calls whichever way the JIT has compiled the interpreter
+     * so far: frames of a C1-compiled {@link LuaClosure#execute} are much
+     * larger than those of the C2 or interpreted ones.
+     */
+    private void onLargeStack(final Runnable test) throws Throwable {
+        final Throwable[] thrown = new Throwable[1];
+        Thread thread = new Thread(null, new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    base = FrameStack.current().depth();
+                    test.run();
+                } catch (Throwable t) {
+                    thrown[0] = t;
+                }
+            }
+        }, "frames", 64 << 20);
+        thread.start();
+        thread.join();
+        if (thrown[0] != null)
+            throw thrown[0];
+    }
+
+    @Test
+    public void recursionPastPooledDepth() throws Throwable {
+        onLargeStack(new Runnable() {
+            @Override
+            public void run() {
+                int n = FrameStack.MAX_POOLED_DEPTH * 4;
+                LuaValue f = FrameStackTest.this.run("local function sum(n) if n == 0 then return 0 end local v = n return v + sum(n - 1) end return sum");
+                assertEquals((long) n * (n + 1) / 2, f.call(LuaValue.valueOf(n)).tolong());
+                assertEquals(base, FrameStack.current().depth());
+                assertPoolCleared(FrameStack.MAX_POOLED_DEPTH);
+            }
+        });
+    }
+
+    @Test
+    public void errorPastPooledDepthUnwindsFrames() {
+        LuaValue f = run("local function down(n) local t = {n} if n == 0 then error('bottom') end return down(n - 1)[1] end return down");
+        try {
+            f.call(LuaValue.valueOf(FrameStack.MAX_POOLED_DEPTH + 100));
+            fail("error expected");
+        } catch (LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("bottom"));
+        }
+        assertPoolCleared(FrameStack.MAX_POOLED_DEPTH);
+    }
+
+    @Test
+    public void coroutinesKeepTheirOwnFrames() {
+        LuaValue r = run("local function inner(x) local a, b = x, x * 2 coroutine.yield(a + b) return a + b + x end\n" +
+                "local co = coroutine.wrap(function(x) local r = inner(x) coroutine.yield(r) return 'done' end)\n" +
+                "local first = co(5)\n" +
+                "local function clobber(n) local p, q, r = 'p', 'q', 'r' return n end\n" +
+                "for i = 1, 3 do clobber(i) end\n" +
+                "local second = co()\n" +
+                "local third = co()\n" +
+                "return first .. ',' .. second .. ',' .. third");
+        assertEquals("15,20,done", r.tojstring());
+        assertPoolCleared(8);
+    }
+
+    @Test
+    public void coroutineErrorUnwindsItsFrames() {
+        LuaValue r = run("local function fail(n) local t = {} if n == 0 then error('in coroutine') end return fail(n - 1) end\n" +
+                "local co = coroutine.create(function() coroutine.yield(1) fail(10) end)\n" +
+                "local ok1, v = coroutine.resume(co)\n" +
+                "local ok2, err = coroutine.resume(co)\n" +
+                "return tostring(ok1) .. ',' .. v .. ',' .. tostring(ok2) .. ',' .. coroutine.status(co)");
+        assertEquals("true,1,false,dead", r.tojstring());
+        assertPoolCleared(8);
+    }
+}
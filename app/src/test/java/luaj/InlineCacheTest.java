@@ -0,0 +1,149 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Before;
+import org.junit.Test;
+
+/**
+ * Reads through an {@link InlineCache} have to see every change a plain
+ * {@link LuaValue#get(LuaValue)} would, whichever table on the way it was
+ * made to: the receiver, its metatable or the table its {@code __index}
+ * points to.
+ */
+public class InlineCacheTest {
+
+    private static final String SCRIPT = ""
+            + "local A = {name = 'A'}\n"
+            + "function A:m() return 'A.m' end\n"
+            + "local B = {name = 'B'}\n"
+            + "function B:m() return 'B.m' end\n"
+            + "local mt = {__index = A}\n"
+            + "local o = setmetatable({}, mt)\n"
+            + "return o, mt, A, B, function(o) return o.name end, function(o) return o:m() end";
+
+    private Globals globals;
+    private LuaTable o, mt, a, b;
+    private LuaClosure field, method;
+
+    @Before
+    public void setUp() {
+        globals = TestGlobals.create();
+        Varargs v = TestGlobals.load(globals, SCRIPT, "ic").invoke();
+        o = (LuaTable) v.arg(1);
+        mt = (LuaTable) v.arg(2);
+        a = (LuaTable) v.arg(3);
+        b = (LuaTable) v.arg(4);
+        field = (LuaClosure) v.arg(5);
+        method = (LuaClosure) v.arg(6);
+    }
+
+    /* the site of the only instruction with opcode op in f */
+    private static InlineCache site(LuaClosure f, int op) {
+        int[] code = f.p.code;
+        for (int pc = 0; pc < code.length; pc++)
+            if (Lua.GET_OPCODE(Lua.unfuse(code[pc])) == op)
+                return f.p.inlineCaches()[pc];
+        throw new AssertionError("no opcode " + op);
+    }
+
+    /* read a few times, so that the sites are learned and then hit */
+    private void assertReads(String name, String m) {
+        for (int pass = 0; pass < 3; pass++) {
+            assertEquals(name, field.call(o).tojstring());
+            assertEquals(m, method.call(o).tojstring());
+        }
+        for (InlineCache ic : new InlineCache[]{site(field, Lua.OP_GETTABLE), site(method, Lua.OP_SELF)}) {
+            assertNotNull(ic);
+            assertFalse(ic.megamorphic());
+        }
+    }
+
+    @Test
+    public void indexSwapped() {
+        assertReads("A", "A.m");
+        mt.set(LuaValue.INDEX, b);
+        assertReads("B", "B.m");
+        mt.set(LuaValue.INDEX, a);
+        assertReads("A", "A.m");
+        // grow the metatable until __index moves to another hash part
+        int length = mt.getHashLength();
+        for (int i = 0; mt.getHashLength() == length; i++)
+            mt.set("k" + i, LuaValue.valueOf(i));
+        mt.set(LuaValue.INDEX, b);
+        assertReads("B", "B.m");
+        o.setmetatable(TestGlobals.load(globals, "return {__index = ...}", "mt").call(b));
+        assertReads("B", "B.m");
+    }
+
+    @Test
+    public void indexSwappedForAFunction() {
+        assertReads("A", "A.m");
+        mt.set(LuaValue.INDEX, TestGlobals.load(globals,
+                "local B = ... return function(t, k) return B[k] end", "index").call(b));
+        assertReads("B", "B.m");
+    }
+
+    @Test
+    public void holderChangesShape() {
+        assertReads("A", "A.m");
+        a.set("name", LuaValue.valueOf("A2"));
+        assertReads("A2", "A.m");
+        // remove and add back, the key may land in another slot
+        a.set("name", LuaValue.NIL);
+        assertTrue(field.call(o).isnil());
+        for (int i = 0; i < 100; i++)
+            a.set("k" + i, LuaValue.valueOf(i));
+        a.set("name", LuaValue.valueOf("A3"));
+        assertReads("A3", "A.m");
+        // grow the holder until its hash part is rebuilt
+        int length = a.getHashLength();
+        for (int i = 100; a.getHashLength() == length; i++)
+            a.set("k" + i, LuaValue.valueOf(i));
+        assertReads("A3", "A.m");
+        a.set("m", TestGlobals.load(globals, "return function(self) return 'A.m2' end", "m").call());
+        assertReads("A3", "A.m2");
+    }
+
+    @Test
+    public void receiverShadowsAKey() {
+        assertReads("A", "A.m");
+        o.set("name", LuaValue.valueOf("o"));
+        o.set("m", TestGlobals.load(globals, "return function(self) return 'o.m' end", "m").call());
+        assertReads("o", "o.m");
+        o.set("name", LuaValue.NIL);
+        o.set("m", LuaValue.NIL);
+        assertReads("A", "A.m");
+        // a removed key keeps its slot, setting it again must still be seen
+        o.set("name", LuaValue.valueOf("o2"));
+        assertReads("o2", "A.m");
+        o.setmetatable(LuaValue.NIL);
+        assertEquals("o2", field.call(o).tojstring());
+    }
+
+    @Test
+    public void otherReceiversSameClass() {
+        LuaTable other = new LuaTable();
+        other.setmetatable(mt);
+        assertReads("A", "A.m");
+        assertEquals("A", field.call(other).tojstring());
+        other.set("name", LuaValue.valueOf("other"));
+        assertEquals("other", field.call(other).tojstring());
+        assertReads("A", "A.m");
+    }
+
+    @Test
+    public void manyReceiversGiveUp() {
+        for (int i = 0; i <= InlineCache.MAX_MISSES; i++) {
+            LuaTable t = new LuaTable();
+            t.set("name", LuaValue.valueOf(i));
+            assertEquals(i, field.call(t).toint());
+        }
+        assertTrue(site(field, Lua.OP_GETTABLE).megamorphic());
+        o.set("name", LuaValue.valueOf("o"));
+        assertEquals("o", field.call(o).tojstring());
+    }
+}
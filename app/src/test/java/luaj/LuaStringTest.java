@@ -0,0 +1,130 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+/**
+ * Concatenation results that are appended to in place, and the strings that
+ * share their bytes.
+ */
+public class LuaStringTest {
+
+    private static String repeat(char c, int n) {
+        StringBuilder sb = new StringBuilder(n);
+        for (int i = 0; i < n; i++)
+            sb.append(c);
+        return sb.toString();
+    }
+
+    /**
+     * A concatenation of a concatenation longer than the short string cache,
+     * which has room to be appended to in place.
+     */
+    private static LuaString prefix() {
+        LuaValue s = LuaValue.valueOf(repeat('a', 40)).concat(LuaValue.valueOf(repeat('b', 20)))
+                .concat(LuaValue.valueOf(repeat('b', 20)));
+        assertTrue(s instanceof LuaString);
+        return (LuaString) s;
+    }
+
+    @Test
+    public void sharedPrefixAppendedTwoWays() {
+        LuaString a = prefix();
+        String before = a.tojstring();
+        LuaString one = (LuaString) a.concat(LuaValue.valueOf("1"));
+        LuaString two = (LuaString) a.concat(LuaValue.valueOf("2"));
+        assertSame("appended in place", a.m_bytes, one.m_bytes);
+        assertNotSame("the room after a is taken", a.m_bytes, two.m_bytes);
+        assertEquals(before, a.tojstring());
+        assertEquals(before + "1", one.tojstring());
+        assertEquals(before + "2", two.tojstring());
+        LuaString three = (LuaString) one.concat(LuaValue.valueOf("3"));
+        assertEquals(before + "13", three.tojstring());
+        assertEquals(before + "1", one.tojstring());
+        assertEquals(before + "2", two.tojstring());
+    }
+
+    @Test
+    public void substringsOfAppendedStrings() {
+        Globals g = TestGlobals.create();
+        LuaValue sub = g.get("string").get("sub");
+        LuaString a = prefix();
+        LuaString s = (LuaString) a.concat(LuaValue.valueOf("xyz"));
+        LuaValue whole = sub.call(s, LuaValue.valueOf(1), LuaValue.valueOf(-1));
+        LuaValue tail = sub.call(s, LuaValue.valueOf(41), LuaValue.valueOf(-1));
+        LuaValue extended = s.concat(LuaValue.valueOf("!"));
+        assertEquals(a.tojstring() + "xyz!", extended.tojstring());
+        assertEquals(a.tojstring() + "xyz", whole.tojstring());
+        assertEquals(repeat('b', 40) + "xyz", tail.tojstring());
+        assertEquals(a.tojstring() + "xyz?", whole.concat(LuaValue.valueOf("?")).tojstring());
+        assertEquals(repeat('b', 40) + "xyz#", tail.concat(LuaValue.valueOf("#")).tojstring());
+        assertEquals(a.tojstring() + "xyz!", extended.tojstring());
+        assertEquals(a.tojstring() + "xyz", s.tojstring());
+    }
+
+    @Test
+    public void appendedStringsAsTableKeys() {
+        LuaString a = prefix();
+        LuaTable t = new LuaTable();
+        t.set(a, LuaValue.valueOf(1));
+        int hash = a.hashCode();
+        LuaValue longer = a.concat(LuaValue.valueOf("k"));
+        t.set(longer, LuaValue.valueOf(2));
+        assertEquals(hash, a.hashCode());
+        assertEquals(1, t.get(a).toint());
+        assertEquals(2, t.get(longer).toint());
+        assertEquals(1, t.get(LuaValue.valueOf(a.tojstring())).toint());
+        assertEquals(2, t.get(LuaValue.valueOf(a.tojstring() + "k")).toint());
+        assertSame(LuaValue.NIL, t.get(LuaValue.valueOf(a.tojstring() + "j")));
+        assertEquals(2, t.keyCount());
+    }
+
+    /**
+     * Threads race for the room after each of many strings; one of them
+     * appends in place, the others copy.
+     */
+    @Test
+    public void threadsAppendingToTheSameString() throws Exception {
+        final LuaString[] prefixes = new LuaString[20000];
+        for (int i = 0; i < prefixes.length; i++)
+            prefixes[i] = prefix();
+        final String before = prefixes[0].tojstring();
+        ExecutorService pool = Executors.newFixedThreadPool(4);
+        try {
+            List<Callable<String>> appenders = new ArrayList<Callable<String>>();
+            for (int id = 0; id < 4; id++) {
+                final LuaValue suffix = LuaValue.valueOf(repeat((char) ('0' + id), 8));
+                appenders.add(new Callable<String>() {
+                    public String call() {
+                        for (LuaString a : prefixes) {
+                            LuaValue s = a.concat(suffix);
+                            LuaValue more = s.concat(suffix);
+                            if (!s.tojstring().equals(before + suffix))
+                                return s.tojstring();
+                            if (!more.tojstring().equals(before + suffix + suffix))
+                                return more.tojstring();
+                        }
+                        return null;
+                    }
+                });
+            }
+            for (Future<String> wrong : pool.invokeAll(appenders))
+                assertEquals(null, wrong.get());
+        } finally {
+            pool.shutdown();
+        }
+        for (LuaString a : prefixes)
+            assertEquals(before, a.tojstring());
+    }
+}
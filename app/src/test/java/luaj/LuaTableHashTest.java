@@ -0,0 +1,339 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+
+import org.junit.Test;
+
+/**
+ * The open-addressing hash part of tables: removed keys, which keep their
+ * slot, traversals across rehashes, the integer keys kept apart from the
+ * others and the keys that have to find each other whatever number type they
+ * are made of.
+ */
+public class LuaTableHashTest {
+
+    private static Map<Object, LuaValue> contents(LuaTable t) {
+        Map<Object, LuaValue> m = new HashMap<Object, LuaValue>();
+        for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1()))
+            assertSame("visited twice: " + n.arg1(), null, m.put(modelKey(n.arg1()), n.arg(2)));
+        return m;
+    }
+
+    /**
+     * Get a Java key equal for equal Lua keys: integral floats are the same
+     * keys as integers.
+     */
+    private static Object modelKey(LuaValue key) {
+        if (key.isnumber()) {
+            double d = key.todouble();
+            if (key instanceof LuaInteger)
+                return key.tolong();
+            if (d == (long) d && d != 0x1p63)
+                return (long) d;
+            return d;
+        }
+        if (key.isstring())
+            return key.tojstring();
+        return key;
+    }
+
+    @Test
+    public void removedKeysKeepTheirSlot() {
+        LuaTable t = new LuaTable();
+        for (int i = 0; i < 10; i++)
+            t.set("k" + i, LuaValue.valueOf(i));
+        int slot = t.hashentry(LuaValue.valueOf("k3"));
+        t.set("k3", LuaValue.NIL);
+        assertEquals(-1, t.hashentry(LuaValue.valueOf("k3")));
+        for (int i = 0; i < 10; i++)
+            if (i != 3)
+                assertEquals(i, t.get("k" + i).toint());
+        t.set("k3", LuaValue.valueOf(33));
+        assertEquals(slot, t.hashentry(LuaValue.valueOf("k3")));
+        assertEquals(33, t.get("k3").toint());
+    }
+
+    /**
+     * Keys added and removed one at a time reuse removed slots or are
+     * dropped by rehashes, so the hash part does not grow.
+     */
+    @Test
+    public void removedKeysDoNotGrowTheTable() {
+        LuaTable t = new LuaTable();
+        for (int i = 0; i < 10; i++)
+            t.set("k" + i, LuaValue.valueOf(i));
+        int length = t.getHashLength();
+        for (int i = 0; i < 10000; i++) {
+            t.set("temp" + i, LuaValue.TRUE);
+            t.set(LuaValue.valueOf(i + 0.5), LuaValue.TRUE);
+            t.set("temp" + i, LuaValue.NIL);
+            t.set(LuaValue.valueOf(i + 0.5), LuaValue.NIL);
+        }
+        assertTrue(t.getHashLength() <= 2 * length);
+        assertEquals(10, contents(t).size());
+        for (int i = 0; i < 10; i++)
+            assertEquals(i, t.get("k" + i).toint());
+    }
+
+    @Test
+    public void clearingDuringTraversal() {
+        LuaTable t = new LuaTable();
+        for (int i = 0; i < 500; i++)
+            t.set("k" + i, LuaValue.valueOf(i));
+        Set<String> seen = new HashSet<String>();
+        for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1())) {
+            assertTrue(seen.add(n.arg1().tojstring()));
+            t.set(n.arg1(), LuaValue.NIL);
+            // assigning existing fields is allowed too
+            LuaValue other = LuaValue.valueOf("k" + (499 - seen.size()));
+            if (!t.get(other).isnil())
+                t.set(other, LuaValue.valueOf(-1));
+        }
+        assertEquals(500, seen.size());
+        assertSame(LuaValue.NIL, t.next(LuaValue.NIL).arg1());
+    }
+
+    /**
+     * New keys during a traversal are undefined behaviour in Lua, but the
+     * traversal must still end without failing on the current key after the
+     * rehashes they cause.
+     */
+    @Test
+    public void rehashDuringTraversal() {
+        LuaTable t = new LuaTable();
+        for (int i = 0; i < 100; i++)
+            t.set("k" + i, LuaValue.valueOf(i));
+        int added = 0, steps = 0;
+        for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1())) {
+            for (int i = 0; i < 10 && added < 1000; i++)
+                t.set("new" + added++, LuaValue.TRUE);
+            assertTrue(++steps < 10000);
+        }
+        assertEquals(1000, added);
+        assertEquals(1100, contents(t).size());
+        for (int i = 0; i < 100; i++)
+            assertEquals(i, t.get("k" + i).toint());
+    }
+
+    @Test
+    public void integralFloatKeys() {
+        LuaTable t = new LuaTable();
+        double big = 0x1p40;
+        t.set(LuaValue.valueOf((long) big), LuaValue.valueOf("integer"));
+        assertEquals("integer", t.get(new LuaDouble(big)).tojstring());
+        t.set(new LuaDouble(big), LuaValue.valueOf("float"));
+        assertEquals("float", t.get(LuaValue.valueOf((long) big)).tojstring());
+
+        t.set(new LuaDouble(-0x1p52), LuaValue.valueOf("negative"));
+        assertEquals("negative", t.get(LuaValue.valueOf(-(1L << 52))).tojstring());
+        t.set(new LuaDouble(-0.0), LuaValue.valueOf("zero"));
+        assertEquals("zero", t.get(LuaValue.valueOf(0)).tojstring());
+        // 2^63 is no integer, but the cast to long saturates to the largest one
+        t.set(new LuaDouble(0x1p63), LuaValue.valueOf("2^63"));
+        t.set(LuaValue.valueOf(Long.MAX_VALUE), LuaValue.valueOf("max"));
+        assertEquals("2^63", t.get(new LuaDouble(0x1p63)).tojstring());
+        assertEquals("max", t.get(LuaValue.valueOf(Long.MAX_VALUE)).tojstring());
+        t.set(LuaValue.valueOf(1.5), LuaValue.valueOf("fraction"));
+        assertSame(LuaValue.NIL, t.get(LuaValue.valueOf(1)));
+        assertEquals(6, contents(t).size());
+    }
+
+    /**
+     * The smallest integer marks free slots of the integer keys, so it is kept
+     * with the other keys, as is the float of the same value.
+     */
+    @Test
+    public void smallestIntegerKey() {
+        LuaTable t = new LuaTable();
+        LuaValue min = LuaValue.valueOf(Long.MIN_VALUE);
+        for (int i = 0; i < 20; i++)
+            t.set(LuaValue.valueOf(-i * 1000L), LuaValue.valueOf(i));
+        assertSame(LuaValue.NIL, t.get(min));
+        t.set(min, LuaValue.valueOf("min"));
+        assertEquals("min", t.get(min).tojstring());
+        assertEquals("min", t.get(new LuaDouble(-0x1p63)).tojstring());
+        t.set(new LuaDouble(-0x1p63), LuaValue.valueOf("float"));
+        assertEquals("float", t.get(min).tojstring());
+        assertEquals(21, contents(t).size());
+        for (int i = 0; i < 20; i++)
+            assertEquals(i, t.get(LuaValue.valueOf(-i * 1000L)).toint());
+        t.set(min, LuaValue.NIL);
+        assertSame(LuaValue.NIL, t.get(new LuaDouble(-0x1p63)));
+        assertEquals(20, contents(t).size());
+    }
+
+    @Test
+    public void negativeKeys() {
+        LuaTable t = new LuaTable();
+        for (int i = 0; i < 1000; i++)
+            t.set(LuaValue.valueOf(-i), LuaValue.valueOf(i));
+        for (int i = 0; i < 1000; i += 2)
+            t.set(LuaValue.valueOf(-i), LuaValue.NIL);
+        for (int i = 0; i < 1000; i++)
+            assertEquals(i % 2 == 0 ? LuaValue.NIL : LuaValue.valueOf(i), t.get(LuaValue.valueOf(-i)));
+        assertEquals(0, t.length());
+        assertEquals(500, contents(t).size());
+    }
+
+    /**
+     * Sparse ids, hash codes and timestamps stay out of the array part and
+     * find their slot whatever their low bits are.
+     */
+    @Test
+    public void sparseKeys() {
+        LuaTable t = new LuaTable();
+        long[] keys = new long[3000];
+        for (int i = 0; i < 1000; i++) {
+            keys[i] = (long) i << 32;
+            keys[1000 + i] = 1700000000000L + i * 1000L;
+            keys[2000 + i] = ((long) i * 0x9E3779B9L) ^ (i * 31L) | 1L << 62;
+        }
+        for (int i = 0; i < keys.length; i++)
+            t.set(LuaValue.valueOf(keys[i]), LuaValue.valueOf(i));
+        for (int i = 0; i < keys.length; i++)
+            assertEquals(i, t.get(LuaValue.valueOf(keys[i])).toint());
+        assertEquals(keys.length, contents(t).size());
+        assertTrue(t.getArrayLength() <= 1);
+        assertSame(LuaValue.NIL, t.get(LuaValue.valueOf(1L << 33 | 1)));
+    }
+
+    /**
+     * Keys that differ only in their low or only in their high bits spread
+     * over the slots instead of piling up in a few of them.
+     */
+    @Test
+    public void integerKeysSpread() {
+        int mask = 4095;
+        for (int shift : new int[]{0, 12, 20, 32, 40, 52}) {
+            Set<Integer> slots = new HashSet<Integer>();
+            for (long i = 1; i <= 2048; i++)
+                slots.add(LuaTable.intIndex(i << shift, mask));
+            assertTrue("keys shifted by " + shift + " take " + slots.size() + " slots", slots.size() > 1500);
+        }
+    }
+
+    /**
+     * The smallest integer among enough integer keys to rehash their part
+     * several times, while it stays with the other keys.
+     */
+    @Test
+    public void smallestIntegerAmongIntegerKeys() {
+        LuaTable t = new LuaTable();
+        LuaValue min = LuaValue.valueOf(Long.MIN_VALUE);
+        t.set(min, LuaValue.valueOf(-1));
+        for (int i = 0; i < 5000; i++) {
+            t.set(LuaValue.valueOf(Long.MIN_VALUE + 1 + i), LuaValue.valueOf(i));
+            assertEquals(-1, t.get(min).toint());
+        }
+        for (int i = 0; i < 5000; i++)
+            assertEquals(i, t.get(LuaValue.valueOf(Long.MIN_VALUE + 1 + i)).toint());
+        Map<Object, LuaValue> m = contents(t);
+        assertEquals(5001, m.size());
+        assertEquals(LuaValue.valueOf(-1), m.get(Long.MIN_VALUE));
+    }
+
+    /**
+     * Integer keys beyond the range of int are never keys of the array part,
+     * whose int index they would otherwise be cut down to.
+     */
+    @Test
+    public void integerKeysBeyondInt() {
+        LuaTable weak = new LuaTable();
+        weak.setmetatable(LuaValue.tableOf(new LuaValue[]{LuaValue.MODE, LuaValue.valueOf("k")}));
+        for (LuaTable t : new LuaTable[]{new LuaTable(), weak}) {
+            for (int i = 1; i <= 8; i++)
+                t.set(i, LuaValue.valueOf(i));
+            long[] keys = {1L << 32, (1L << 32) + 1, (1L << 40) + 2, -(1L << 32) + 3, Long.MIN_VALUE, Long.MAX_VALUE};
+            for (long k : keys)
+                t.set(LuaValue.valueOf(k), LuaValue.valueOf("k" + k));
+            for (int i = 1; i <= 8; i++)
+                assertEquals(i, t.get(i).toint());
+            for (long k : keys)
+                assertEquals("k" + k, t.get(LuaValue.valueOf(k)).tojstring());
+            assertTrue(t.get(0).isnil());
+            Map<Object, LuaValue> m = contents(t);
+            assertEquals(8 + keys.length, m.size());
+            for (long k : keys) {
+                t.set(LuaValue.valueOf(k), LuaValue.NIL);
+                assertTrue(t.get(LuaValue.valueOf(k)).isnil());
+            }
+            assertEquals(8, contents(t).size());
+        }
+    }
+
+    /**
+     * Random stores, removals, reads and traversals checked against a
+     * {@link HashMap}, with keys of every kind colliding in the same table.
+     */
+    @Test
+    public void randomOperations() {
+        Random random = new Random(20240611);
+        LuaValue[] tables = {new LuaTable(), new LuaTable(), new LuaTable()};
+        for (int round = 0; round < 50; round++) {
+            LuaTable t = new LuaTable();
+            Map<Object, LuaValue> model = new HashMap<Object, LuaValue>();
+            int range = 8 << random.nextInt(8);
+            for (int op = 0; op < 5000; op++) {
+                LuaValue key;
+                switch (random.nextInt(9)) {
+                    case 0:
+                        key = LuaValue.valueOf(random.nextInt(range) + 1);
+                        break;
+                    case 1:
+                        key = LuaValue.valueOf(-random.nextInt(range));
+                        break;
+                    case 2:
+                        key = LuaValue.valueOf((long) random.nextInt(range) << 33);
+                        break;
+                    case 3:
+                        key = new LuaDouble((double) ((long) random.nextInt(range) << 33));
+                        break;
+                    case 4:
+                        key = LuaValue.valueOf(random.nextInt(range) + 0.25);
+                        break;
+                    case 5:
+                        key = LuaValue.valueOf("s" + random.nextInt(range));
+                        break;
+                    case 6:
+                        key = tables[random.nextInt(tables.length)];
+                        break;
+                    case 7:
+                        key = random.nextBoolean() ? LuaValue.TRUE : LuaValue.FALSE;
+                        break;
+                    default:
+                        key = LuaValue.valueOf(random.nextBoolean() ? Long.MIN_VALUE : Long.MAX_VALUE - random.nextInt(4));
+                        break;
+                }
+                Object mk = modelKey(key);
+                int action = random.nextInt(10);
+                if (action < 5) {
+                    LuaValue value = LuaValue.valueOf(op);
+                    t.set(key, value);
+                    model.put(mk, value);
+                } else if (action < 8) {
+                    t.set(key, LuaValue.NIL);
+                    model.remove(mk);
+                } else {
+                    LuaValue expected = model.get(mk);
+                    assertEquals(key.toString(), expected != null ? expected : LuaValue.NIL, t.get(key));
+                }
+                if (op % 500 == 0)
+                    assertEquals(model, contents(t));
+            }
+            assertEquals(model, contents(t));
+            for (Map.Entry<Object, LuaValue> e : model.entrySet())
+                assertEquals(e.getValue(), t.get(e.getKey() instanceof LuaValue ? (LuaValue) e.getKey()
+                        : e.getKey() instanceof String ? LuaValue.valueOf((String) e.getKey())
+                        : e.getKey() instanceof Long ? LuaValue.valueOf((Long) e.getKey())
+                        : LuaValue.valueOf((Double) e.getKey())));
+        }
+    }
+}
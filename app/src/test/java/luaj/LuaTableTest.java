@@ -0,0 +1,237 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.Test;
+
+public class LuaTableTest {
+
+    private static LuaTable integers(int n) {
+        LuaTable t = new LuaTable();
+        for (int i = 1; i <= n; i++)
+            t.rawset(i, LuaValue.valueOf((long) i * 7919 % 1000003));
+        return t;
+    }
+
+    @Test
+    public void unboxedValuesKeepTheirType() {
+        LuaTable t = new LuaTable();
+        t.rawset(1, LuaValue.valueOf(1.5));
+        t.rawset(2, LuaValue.valueOf(2.5));
+        LuaTable u = integers(3);
+        assertTrue(t.rawget(2) instanceof LuaDouble);
+        assertTrue(u.rawget(LuaValue.valueOf(3)) instanceof LuaInteger);
+        assertEquals(2.5, t.get(2).todouble(), 0);
+        assertEquals(3 * 7919, u.get(3).tolong());
+    }
+
+    @Test
+    public void updatesOfTheUnboxedPart() {
+        int n = 1000;
+        LuaTable t = integers(n);
+        for (int pass = 0; pass < 5; pass++)
+            for (int i = 1; i <= n; i++)
+                assertEquals((long) i * 7919 % 1000003, t.rawget(i).tolong());
+        assertEquals(n, t.length());
+        assertSame(LuaValue.NIL, t.rawget(n + 1));
+
+        t.rawset(n + 1, LuaValue.valueOf(1));
+        t.insert(1, LuaValue.valueOf(-1));
+        assertEquals(-1, t.rawget(1).tolong());
+        assertEquals(1, t.remove(0).tolong());
+        t.sort(LuaValue.NIL);
+        for (int i = 1; i < n; i++)
+            assertTrue(t.rawget(i).tolong() <= t.rawget(i + 1).tolong());
+        assertEquals(n + 1, t.length());
+    }
+
+    /**
+     * Tables that are only read may be shared by threads, such as hook
+     * callbacks reading tables reachable from their globals, so a read must
+     * never change the layout of the array part.
+     */
+    @Test
+    public void concurrentReadsOfTheUnboxedPart() throws Exception {
+        final LuaTable[] tables = new LuaTable[20000];
+        for (int i = 0; i < tables.length; i++)
+            tables[i] = integers(8);
+        ExecutorService pool = Executors.newFixedThreadPool(2);
+        try {
+            List<Callable<Integer>> readers = new ArrayList<Callable<Integer>>();
+            for (int r = 0; r < 2; r++) {
+                readers.add(new Callable<Integer>() {
+                    public Integer call() {
+                        int bad = 0;
+                        for (LuaTable t : tables)
+                            for (int pass = 0; pass < 4; pass++)
+                                for (int i = 1; i <= 8; i++)
+                                    if (t.get(i).tolong() != (long) i * 7919 % 1000003)
+                                        bad++;
+                        return bad;
+                    }
+                });
+            }
+            for (Future<Integer> bad : pool.invokeAll(readers))
+                assertEquals(0, bad.get().intValue());
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    @Test
+    public void writesBetweenReads() {
+        int n = 100;
+        LuaTable t = integers(n);
+        for (int pass = 0; pass < 5; pass++) {
+            for (int i = 1; i <= n; i++)
+                t.rawset(i, LuaValue.valueOf(t.rawget(i).tolong() + 1));
+        }
+        for (int i = 1; i <= n; i++)
+            assertEquals((long) i * 7919 % 1000003 + 5, t.rawget(i).tolong());
+        t.rawset(n / 2, LuaValue.valueOf("x"));
+        assertEquals("x", t.rawget(n / 2).tojstring());
+        assertEquals(n, t.length());
+    }
+
+    /**
+     * A comparator that is not a strict order runs the partition scans off
+     * their range, which must end in a Lua error rather than an index out of
+     * bounds.
+     */
+    @Test
+    public void invalidOrderFunction() {
+        Globals g = TestGlobals.create();
+        LuaValue sort = g.get("table").get("sort");
+        LuaValue always = TestGlobals.load(g, "return function(a, b) return true end", "always").call();
+        try {
+            sort.call(integers(100), always);
+            fail("sorted with an invalid order function");
+        } catch (LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("invalid order function for sorting"));
+        }
+
+        LuaValue random = TestGlobals.load(g, "return function(a, b) return math.random(2) == 1 end", "random").call();
+        for (int n = 13; n < 1000; n += 13) {
+            try {
+                sort.call(integers(n), random);
+            } catch (LuaError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("invalid order function for sorting"));
+            }
+        }
+    }
+
+    @Test
+    public void neverLessIsAValidOrder() {
+        Globals g = TestGlobals.create();
+        LuaValue never = TestGlobals.load(g, "return function(a, b) return false end", "never").call();
+        LuaTable t = integers(100);
+        g.get("table").get("sort").call(t, never);
+        assertEquals(100, t.length());
+    }
+
+    @Test
+    public void versionChangesWithTheKeys() {
+        LuaTable t = new LuaTable();
+        LuaString a = LuaValue.valueOf("a");
+        int v = t.version();
+        t.rawset(a, LuaValue.valueOf(1));
+        assertNotEquals("insert", v, v = t.version());
+        t.rawset(a, LuaValue.valueOf(2));
+        assertEquals("reassign", v, t.version());
+        t.rawset(LuaValue.valueOf(1.5), LuaValue.TRUE);
+        assertNotEquals("insert of a number key", v, v = t.version());
+        t.rawset(a, LuaValue.NIL);
+        assertNotEquals("removal", v, v = t.version());
+        t.rawset(a, LuaValue.NIL);
+        assertEquals("removal of an absent key", v, t.version());
+        t.rawset(a, LuaValue.valueOf(3));
+        assertNotEquals("insert over a removed key", v, v = t.version());
+        t.setmetatable(new LuaTable());
+        assertNotEquals("setmetatable", v, v = t.version());
+        t.setmetatable(LuaValue.NIL);
+        assertNotEquals("setmetatable to nil", v, t.version());
+    }
+
+    @Test
+    public void versionIgnoresTheArrayPart() {
+        LuaTable t = integers(10);
+        t.rawset(LuaValue.valueOf("a"), LuaValue.TRUE);
+        int v = t.version();
+        t.rawset(3, LuaValue.valueOf("x"));
+        t.rawset(LuaValue.valueOf(4), LuaValue.valueOf(4.5));
+        t.rawset(11, LuaValue.valueOf(11));
+        t.rawset(10, LuaValue.NIL);
+        t.insert(1, LuaValue.valueOf(0));
+        t.remove(1);
+        t.rawset(LuaValue.valueOf("a"), LuaValue.FALSE);
+        assertEquals(v, t.version());
+    }
+
+    /**
+     * A rehash moves the keys to new slots, so a slot found by
+     * {@link LuaTable#hashentry(LuaValue)} may only be reused while the
+     * version stays the same.
+     */
+    @Test
+    public void versionChangesOnRehash() {
+        LuaTable t = new LuaTable();
+        LuaString a = LuaValue.valueOf("a");
+        t.rawset(a, LuaValue.TRUE);
+        int moves = 0;
+        for (int i = 0; i < 1000; i++) {
+            int slot = t.hashentry(a), v = t.version();
+            t.rawset(LuaValue.valueOf("k" + i), LuaValue.TRUE);
+            if (t.hashentry(a) != slot) {
+                assertNotEquals(v, t.version());
+                moves++;
+            }
+        }
+        assertTrue(moves > 0);
+
+        // growing the array part rehashes, moving 100 there at last
+        t = new LuaTable();
+        t.rawset(100, LuaValue.TRUE);
+        for (int i = 1; i < 100; i++) {
+            int v = t.version(), length = t.getArrayLength();
+            t.rawset(i, LuaValue.TRUE);
+            if (t.getArrayLength() != length)
+                assertNotEquals(v, t.version());
+        }
+        assertTrue(t.getArrayLength() >= 100);
+        assertEquals(0, t.getHashLength());
+    }
+
+    /**
+     * A list has nothing but its array part, so only its metatable changes
+     * the version.
+     */
+    @Test
+    public void listVersionChangesWithTheMetatable() {
+        LuaList l = new LuaList();
+        int v = l.version();
+        for (int i = 1; i <= 20; i++)
+            l.rawset(i, LuaValue.valueOf(i));
+        l.rawset(5, LuaValue.valueOf(500));
+        l.insert(1, LuaValue.valueOf(0));
+        l.remove(1);
+        l.rawset(LuaValue.valueOf("n"), LuaValue.valueOf(30));
+        l.sort(LuaValue.NIL);
+        l.clear();
+        assertEquals(v, l.version());
+        l.setmetatable(new LuaTable());
+        assertNotEquals(v, v = l.version());
+        l.setmetatable(LuaValue.NIL);
+        assertNotEquals(v, l.version());
+    }
+}
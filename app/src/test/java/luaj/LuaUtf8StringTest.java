@@ -0,0 +1,259 @@
+package luaj;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.Random;
+
+import org.junit.Test;
+
+/**
+ * {@link LuaUtf8String} is a range of code points over the UTF-8 bytes of a
+ * {@link LuaString}. The code points are the ones the Java UTF-8 decoder
+ * reads, whatever the default charset, and malformed bytes read as U+FFFD
+ * but are kept as they are in substrings.
+ */
+public class LuaUtf8StringTest {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* ascii, two, three and four byte sequences */
+    private static final String MIXED = "h\u00e9llo \u4e2d\u6587 \ud83d\ude00";
+
+    /* long enough that code points are looked up through the index */
+    private static String text() {
+        StringBuilder sb = new StringBuilder();
+        for (int i = 0; i < 300; i++)
+            sb.append(i % 7 == 0 ? "\u4e2d" : i % 11 == 0 ? "\ud83d\ude00" : i % 3 == 0 ? "\u00e9" : "abc".substring(i % 3));
+        return sb.toString();
+    }
+
+    private static int[] codePoints(String s) {
+        int[] c = new int[s.codePointCount(0, s.length())];
+        for (int i = 0, k = 0; i < c.length; i++, k += Character.charCount(c[i - 1]))
+            c[i] = s.codePointAt(k);
+        return c;
+    }
+
+    private static int[] codePoints(LuaUtf8String s) {
+        int[] c = new int[s.length()];
+        s.copyInto(0, c, 0, c.length);
+        return c;
+    }
+
+    private static LuaString bytes(int... b) {
+        byte[] a = new byte[b.length];
+        for (int i = 0; i < b.length; i++)
+            a[i] = (byte) b[i];
+        return LuaString.valueOf(a);
+    }
+
+    private static byte[] bytes(LuaString s) {
+        byte[] b = new byte[s.rawlen()];
+        s.copyInto(0, b, 0, b.length);
+        return b;
+    }
+
+    @Test
+    public void codePoints() {
+        LuaUtf8String s = LuaUtf8String.valueOfString(MIXED);
+        int[] expected = codePoints(MIXED);
+        assertEquals(10, s.length());
+        assertEquals(10, s.rawlen());
+        assertEquals(10, s.len().toint());
+        for (int i = 0; i < expected.length; i++)
+            assertEquals(expected[i], s.charAt(i));
+        assertArrayEquals(expected, codePoints(s));
+        assertArrayEquals(MIXED.getBytes(UTF8), bytes(s.strvalue()));
+        assertEquals(MIXED, s.tojstring());
+        assertTrue(s.isValidUtf8());
+        for (int index : new int[]{-1, 10}) {
+            try {
+                s.charAt(index);
+                fail("index " + index);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+
+    @Test
+    public void factories() {
+        LuaUtf8String s = LuaUtf8String.valueOfString(MIXED);
+        int[] c = codePoints(MIXED);
+        assertTrue(s.raweq(LuaUtf8String.valueOf(c)));
+        assertTrue(s.raweq(LuaUtf8String.valueUsing(c)));
+        int[] padded = new int[c.length + 4];
+        System.arraycopy(c, 0, padded, 2, c.length);
+        assertTrue(s.raweq(LuaUtf8String.valueOf(padded, 2, c.length)));
+        assertTrue(s.raweq(LuaUtf8String.valueUsing(padded, 2, c.length)));
+        assertEquals(MIXED, LuaUtf8String.toLuaString(padded, 2, c.length).tojstring());
+        assertEquals(MIXED, LuaUtf8String.decodeAsUtf8(c, 0, c.length));
+        assertEquals(13, LuaUtf8String.lengthAsUtf8(codePoints("h\u00e9llo \u4e2d\u6587")));
+    }
+
+    @Test
+    public void sharesTheBytes() {
+        LuaString bytes = LuaString.valueOf(text());
+        LuaUtf8String s = LuaUtf8String.valueOfString(bytes);
+        assertSame(bytes, s.m_utf8);
+        assertSame(bytes, s.strvalue());
+        LuaUtf8String sub = s.substring(40, 240);
+        assertSame(bytes, sub.m_utf8);
+        assertEquals(40, sub.m_offset);
+        assertEquals(200, sub.m_length);
+        assertSame(bytes.m_bytes, sub.strvalue().m_bytes);
+        assertSame(bytes, s.decoded().m_utf8);
+    }
+
+    @Test
+    public void substrings() {
+        String text = text();
+        int[] expected = codePoints(text);
+        LuaUtf8String s = LuaUtf8String.valueOfString(text);
+        assertEquals(expected.length, s.length());
+        for (int i = 0; i <= expected.length; i += 13) {
+            for (int j = i; j <= expected.length; j += 17) {
+                LuaUtf8String sub = s.substring(i, j);
+                String jsub = new String(expected, i, j - i);
+                assertEquals(jsub, sub.tojstring());
+                assertEquals(j - i, sub.length());
+                if (j - i > 10)
+                    assertEquals(new String(expected, i + 3, 5), sub.substring(3, 8).tojstring());
+            }
+        }
+        // in any order, near the last one looked up or far from it
+        Random random = new Random(7);
+        for (int n = 0; n < 2000; n++) {
+            int i = n % 5 == 0 ? random.nextInt(expected.length) : (n * 3 + random.nextInt(9)) % expected.length;
+            assertEquals("code point " + i, expected[i], s.luaByte(i));
+        }
+        LuaUtf8String decoded = s.decoded();
+        assertArrayEquals(expected, codePoints(decoded));
+        assertEquals(new String(expected, 5, 100), decoded.substring(5, 105).tojstring());
+    }
+
+    @Test
+    public void equality() {
+        String text = text();
+        LuaUtf8String a = LuaUtf8String.valueOfString(text);
+        LuaUtf8String b = LuaUtf8String.valueOfString(text.substring(2) + "x");
+        LuaUtf8String one = a.substring(10, 50), other = b.substring(8, 48);
+        assertTrue(one.raweq(other));
+        assertTrue(one.equals(other));
+        assertTrue(one.eq_b(other));
+        assertEquals(one.hashCode(), other.hashCode());
+        assertEquals(one.strvalue().hashCode(), one.hashCode());
+        assertTrue(one.raweq(LuaString.valueOf(one.tojstring())));
+        assertFalse(one.raweq(a.substring(10, 49)));
+        assertFalse(one.raweq(a.substring(11, 51)));
+        assertFalse(one.equals(one.strvalue()));
+        assertTrue(LuaUtf8String.equals(a, 10, b, 8, 40));
+        assertFalse(LuaUtf8String.equals(a, 10, b, 9, 40));
+        assertFalse(LuaUtf8String.equals(a, 280, b, 0, 40));
+
+        assertEquals(0, one.strcmp(other));
+        LuaUtf8String e = LuaUtf8String.valueOfString("\u00e9"), z = LuaUtf8String.valueOfString("z");
+        assertTrue(e.strcmp(z) > 0);
+        assertTrue(z.strcmp(e) < 0);
+        assertTrue(LuaUtf8String.valueOfString("\u4e2d").strcmp(LuaUtf8String.valueOfString("\u4e2d\u6587")) < 0);
+        assertTrue(LuaUtf8String.valueOfString("\ud83d\ude00").strcmp(LuaUtf8String.valueOfString("\uffff")) > 0);
+    }
+
+    @Test
+    public void concatenation() {
+        LuaUtf8String a = LuaUtf8String.valueOfString("\u4e2d"), b = LuaUtf8String.valueOfString("\u6587 ");
+        LuaValue ab = b.concatTo(a);
+        assertTrue(ab instanceof LuaUtf8String);
+        assertEquals(3, ab.rawlen());
+        assertEquals("\u4e2d\u6587 ", ab.tojstring());
+        assertEquals("\u4e2d\u6587 ", a.concat(b).tojstring());
+        assertEquals("\u4e2d1", a.concat(LuaValue.valueOf(1)).tojstring());
+        assertEquals("x\u6587 ", LuaValue.valueOf("x").concat(b).tojstring());
+        assertEquals("\u4e2dx", a.concat(new Buffer(LuaValue.valueOf("x"))).tojstring());
+    }
+
+    @Test
+    public void search() {
+        LuaUtf8String s = LuaUtf8String.valueOfString("a\u4e2d\u6587b\u4e2d\u6587\ud83d\ude00c");
+        LuaUtf8String word = LuaUtf8String.valueOfString("\u4e2d\u6587");
+        assertEquals(1, s.indexOf(word, 0));
+        assertEquals(4, s.indexOf(word, 2));
+        assertEquals(-1, s.indexOf(word, 5));
+        assertEquals(4, s.lastIndexOf(word));
+        assertEquals(-1, word.lastIndexOf(s));
+        assertEquals(3, s.indexOf((byte) 'b', 0));
+        assertEquals(-1, s.indexOf((byte) 'a', 1));
+        assertEquals(2, s.indexOfAny(LuaUtf8String.valueOfString("\ud83d\ude00\u6587")));
+        assertEquals(6, s.indexOfAny(LuaUtf8String.valueOfString("c\ud83d\ude00")));
+        assertEquals(-1, s.indexOfAny(LuaUtf8String.valueOfString("xyz")));
+        int[] c = new int[4];
+        s.copyInto(5, c, 1, 3);
+        assertArrayEquals(new int[]{0, 0x6587, 0x1f600, 'c'}, c);
+    }
+
+    @Test
+    public void numbers() {
+        LuaUtf8String n = LuaUtf8String.valueOfString(" 0x1F ");
+        assertEquals(31, n.tonumber().toint());
+        assertEquals(31, n.checkint());
+        assertEquals(255, LuaUtf8String.valueOfString("ff").tonumber(16).toint());
+        assertTrue(LuaUtf8String.valueOfString("\u4e2d").tonumber().isnil());
+    }
+
+    @Test
+    public void malformedBytes() {
+        LuaString[] malformed = {
+                bytes('h', 0xe9, 'l', 'l', 'o'),    // latin-1
+                bytes(0xe4, 0xb8),                  // truncated
+                bytes(0xe4, 0xb8, 'x'),
+                bytes(0xed, 0xa0, 0x80),            // surrogate
+                bytes(0xc0, 0x80),                  // overlong
+                bytes(0xf4, 0x90, 0x80, 0x80),      // beyond U+10FFFF
+                bytes('a', 0x80, 'b', 0xff, 0xfe),
+        };
+        for (LuaString m : malformed) {
+            byte[] b = bytes(m);
+            int[] expected = codePoints(new String(b, UTF8));
+            LuaUtf8String s = LuaUtf8String.valueOfString(m);
+            assertEquals(Arrays.toString(b), Arrays.toString(expected), Arrays.toString(codePoints(s)));
+            assertFalse(s.isValidUtf8());
+            // substrings keep the bytes rather than encoding U+FFFD
+            assertTrue(s.substring(0, s.length()).strvalue().raweq(m));
+            assertArrayEquals(b, bytes(s.substring(0, 1).concat(s.substring(1, s.length())).strvalue()));
+        }
+        LuaUtf8String s = LuaUtf8String.valueOfString(bytes('a', 0x80, 'b'));
+        assertArrayEquals(new byte[]{(byte) 0x80}, bytes(s.substring(1, 2).strvalue()));
+    }
+
+    /* the library used to decode with the default charset, which counted
+       each byte of a sequence on a JVM whose default is not UTF-8 */
+    @Test
+    public void library() {
+        Varargs r = TestGlobals.load(TestGlobals.create(), ""
+                + "local s = 'h\\195\\169llo'\n"
+                + "local t = '\\228\\184\\173\\230\\150\\135'\n"
+                + "local bad = 'a\\128b'\n"
+                + "return utf8.len(s), utf8.sub(s, 2, 2) == '\\195\\169', utf8.byte(s, 2),\n"
+                + "  utf8.len(t), utf8.sub(t, -1) == '\\230\\150\\135', utf8.find(t, '\\230\\150\\135', 1, true),\n"
+                + "  utf8.len(bad), utf8.byte(bad, 2), utf8.sub(bad, 2, 2) == '\\128',\n"
+                + "  utf8.len(string.toutf8(t)), tostring(string.toutf8(bad)) == bad", "utf8").invoke();
+        assertEquals(5, r.arg(1).toint());
+        assertTrue(r.arg(2).toboolean());
+        assertEquals(0xe9, r.arg(3).toint());
+        assertEquals(2, r.arg(4).toint());
+        assertTrue(r.arg(5).toboolean());
+        assertEquals(2, r.arg(6).toint());
+        assertEquals(3, r.arg(7).toint());
+        assertEquals(0xfffd, r.arg(8).toint());
+        assertTrue(r.arg(9).toboolean());
+        assertEquals(2, r.arg(10).toint());
+        assertTrue(r.arg(11).toboolean());
+    }
+}
@@ -0,0 +1,136 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import org.junit.Test;
+
+/**
+ * Numeric for loops run on long counters when the initial value and the step
+ * are integers, and on doubles otherwise: integer loops count their
+ * iterations up front, so they end at the edges of the integer range instead
+ * of wrapping around.
+ */
+public class NumericForTest {
+
+    private static final String COUNT = ""
+            + "local init, limit, step = ...\n"
+            + "local n, first, last = 0\n"
+            + "for i = init, limit, step do\n"
+            + "  n = n + 1\n"
+            + "  first = first or i\n"
+            + "  last = i\n"
+            + "  if n > 1000 then break end\n"
+            + "end\n"
+            + "return n, first, last";
+
+    private static Varargs count(String init, String limit, String step) {
+        Globals g = TestGlobals.create();
+        LuaValue bounds = TestGlobals.load(g, "local max, min = ... return " + init + ", " + limit + ", " + step, "bounds");
+        return TestGlobals.load(g, COUNT, "count").invoke(bounds.invoke(LuaValue.valueOf(Long.MAX_VALUE), LuaValue.valueOf(Long.MIN_VALUE)));
+    }
+
+    private static void assertLoop(String init, String limit, String step, int n, long first, long last) {
+        String loop = "for i = " + init + ", " + limit + ", " + step;
+        Varargs r = count(init, limit, step);
+        assertEquals(loop, n, r.arg1().toint());
+        if (n > 0) {
+            assertTrue(loop, r.arg(2) instanceof LuaInteger);
+            assertEquals(loop, first, r.arg(2).tolong());
+            assertEquals(loop, last, r.arg(3).tolong());
+        }
+    }
+
+    private static void assertFloatLoop(String init, String limit, String step, int n, double first, double last) {
+        String loop = "for i = " + init + ", " + limit + ", " + step;
+        Varargs r = count(init, limit, step);
+        assertEquals(loop, n, r.arg1().toint());
+        if (n > 0) {
+            assertEquals(loop, first, r.arg(2).todouble(), 0);
+            assertEquals(loop, last, r.arg(3).todouble(), 0);
+        }
+    }
+
+    @Test
+    public void endsAtTheLargestInteger() {
+        assertLoop("max - 2", "max", "1", 3, Long.MAX_VALUE - 2, Long.MAX_VALUE);
+        assertLoop("0", "max", "max", 2, 0, Long.MAX_VALUE);
+        assertLoop("min", "max", "max", 3, Long.MIN_VALUE, Long.MAX_VALUE - 1);
+        assertLoop("max - 10", "max", "4", 3, Long.MAX_VALUE - 10, Long.MAX_VALUE - 2);
+        assertLoop("max", "max - 1", "1", 0, 0, 0);
+    }
+
+    @Test
+    public void endsAtTheSmallestInteger() {
+        assertLoop("min + 2", "min", "-1", 3, Long.MIN_VALUE + 2, Long.MIN_VALUE);
+        assertLoop("max", "min", "min", 2, Long.MAX_VALUE, -1);
+        assertLoop("0", "min", "min", 2, 0, Long.MIN_VALUE);
+        assertLoop("min", "min + 1", "-1", 0, 0, 0);
+    }
+
+    @Test
+    public void integersBeyondDoublePrecision() {
+        long base = 1L << 53;
+        assertLoop("1 << 53", "(1 << 53) + 2", "1", 3, base, base + 2);
+        assertLoop("(1 << 62) + 1", "1 << 62", "-1", 2, (1L << 62) + 1, 1L << 62);
+    }
+
+    @Test
+    public void floatLimitOfAnIntegerLoop() {
+        assertLoop("1", "3.7", "1", 3, 1, 3);
+        assertLoop("3", "0.5", "-1", 3, 3, 1);
+        assertLoop("-1", "-3.5", "-1", 3, -1, -3);
+        assertLoop("1", "0/0", "1", 0, 0, 0);
+        assertLoop("1", "-math.huge", "1", 0, 0, 0);
+        assertLoop("max - 1", "math.huge", "1", 2, Long.MAX_VALUE - 1, Long.MAX_VALUE);
+        assertLoop("min + 1", "-math.huge", "-1", 2, Long.MIN_VALUE + 1, Long.MIN_VALUE);
+        assertLoop("1", "2^1000", "1", 1001, 1, 1001);
+    }
+
+    @Test
+    public void floatLoops() {
+        assertFloatLoop("1", "2", "0.5", 3, 1, 2);
+        assertFloatLoop("0.5", "2", "1", 2, 0.5, 1.5);
+        assertFloatLoop("1", "0", "-0.25", 5, 1, 0);
+        assertFloatLoop("0.1", "0.35", "0.1", 3, 0.1, 0.1 + 0.1 + 0.1);
+        assertFloatLoop("1.5", "1", "1", 0, 0, 0);
+        assertFloatLoop("1", "0/0", "0.5", 0, 0, 0);
+        assertFloatLoop("2^53", "2^53 + 4", "2.0", 3, 0x1p53, 0x1p53 + 4);
+    }
+
+    @Test
+    public void integerAndFloatLoopsShareRegisters() {
+        Varargs r = TestGlobals.load(TestGlobals.create(), ""
+                + "local n, s = 0, 0\n"
+                + "for j = 1, 4 do\n"
+                + "  for i = 1, 2, j % 2 == 1 and 1 or 0.5 do n = n + 1 s = s + i end\n"
+                + "end\n"
+                + "return n, s", "shared").invoke();
+        assertEquals(10, r.arg1().toint());
+        assertEquals(3 + 4.5 + 3 + 4.5, r.arg(2).todouble(), 0);
+    }
+
+    @Test
+    public void assigningTheLoopVariable() {
+        LuaValue r = TestGlobals.load(TestGlobals.create(), ""
+                + "local n = 0\n"
+                + "for i = 1, 3 do i = i * 10 n = n + i end\n"
+                + "for i = 1, 3, 0.5 do i = i * 10 n = n + i end\n"
+                + "return n", "assign").call();
+        assertEquals(60 + 10 + 15 + 20 + 25 + 30, r.todouble(), 0);
+    }
+
+    @Test
+    public void boundsMustBeNumbers() {
+        String[][] loops = {{"'a'", "2", "1", "initial"}, {"1", "{}", "1", "limit"}, {"1", "2", "nil", "step"}};
+        for (String[] loop : loops) {
+            try {
+                count(loop[0], loop[1], loop[2]);
+                fail("error expected");
+            } catch (LuaError e) {
+                assertTrue(e.getMessage(), e.getMessage().contains("'for' " + loop[3]));
+            }
+        }
+    }
+}
@@ -0,0 +1,111 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import org.junit.Before;
+import org.junit.Test;
+
+import luaj.lib.DebugLib;
+
+/**
+ * Counts of {@link Profiler}, and its reports through {@code debug.profile}.
+ */
+public class ProfilerTest {
+
+    private static final String SCRIPT = "" +
+            "local t = {x = 1}\n" +
+            "local function inner(n)\n" +
+            "  local s = 0\n" +
+            "  for i = 1, n do s = s + t.x end\n" +
+            "  return s\n" +
+            "end\n" +
+            "local function outer(n)\n" +
+            "  local s = 0\n" +
+            "  for i = 1, 10 do s = s + inner(n) end\n" +
+            "  return s\n" +
+            "end\n" +
+            "return outer";
+
+    private Globals globals;
+    private LuaValue profile;
+
+    @Before
+    public void setUp() {
+        globals = TestGlobals.create();
+        globals.load(new DebugLib());
+        profile = globals.get("debug").get("profile");
+    }
+
+    private LuaValue outer() {
+        return TestGlobals.load(globals, SCRIPT, "prof").call();
+    }
+
+    @Test
+    public void nothingBeforeStart() {
+        assertSame(LuaValue.NIL, profile.call(LuaValue.valueOf("flat")));
+        assertSame(LuaValue.NIL, profile.call(LuaValue.valueOf("collapsed")));
+        try {
+            profile.call(LuaValue.valueOf("tree"));
+            fail("error expected");
+        } catch (LuaError e) {
+            assertTrue(e.getMessage(), e.getMessage().contains("invalid option 'tree'"));
+        }
+    }
+
+    @Test
+    public void countsInstructionsCallsAndTableReads() {
+        LuaValue outer = outer();
+        Profiler profiler = Profiler.start(globals);
+        assertEquals(10 * 1000, outer.call(LuaValue.valueOf(1000)).toint());
+        assertSame(profiler, Profiler.stop(globals));
+        assertNull(globals.profiler);
+
+        long[] ops = profiler.opcodeCounts();
+        assertEquals(10 + 10 * 1000, ops[Lua.OP_FORLOOP]);
+        assertEquals(10, ops[Lua.OP_CALL]);
+        assertEquals(10 * 1000, ops[Lua.OP_GETTABUP]);
+        assertEquals(10 * 1000, profiler.tableLookups());
+        assertTrue("misses: " + profiler.tableMisses(), profiler.tableMisses() <= 10);
+
+        String flat = profiler.flat();
+        assertTrue(flat, flat.contains("FORLOOP"));
+        assertTrue(flat, Pattern.compile("\\n\\s+10\\s+[0-9.]+\\s+\\d+\\s+prof:2\\n").matcher(flat).find());
+        assertTrue(flat, Pattern.compile("\\n\\s+1\\s+[0-9.]+\\s+\\d+\\s+prof:7\\n").matcher(flat).find());
+        assertTrue(flat, flat.contains("table reads: 10000, cache misses: "));
+
+        // nothing is counted once stopped
+        outer.call(LuaValue.valueOf(1000));
+        assertEquals(10 + 10 * 1000, profiler.opcodeCounts()[Lua.OP_FORLOOP]);
+    }
+
+    @Test
+    public void startAndStopFromLua() {
+        LuaValue outer = outer();
+        assertSame(LuaValue.NONE, profile.invoke(LuaValue.valueOf("start")));
+        outer.call(LuaValue.valueOf(10000));
+        String flat = profile.call(LuaValue.valueOf("stop")).tojstring();
+        assertNull(globals.profiler);
+        Matcher m = Pattern.compile("instructions: (\\d+)").matcher(flat);
+        assertTrue(flat, m.find());
+        assertTrue(flat, Long.parseLong(m.group(1)) > 10 * 10000 * 3);
+        // the report of the stopped profiler stays
+        assertEquals(flat, profile.call().tojstring());
+
+        String collapsed = profile.call(LuaValue.valueOf("collapsed")).tojstring();
+        assertTrue(collapsed, Pattern.compile("(?m)^prof:7;prof:2 \\d+$").matcher(collapsed).find());
+        for (String line : collapsed.split("\n"))
+            assertTrue(line, line.matches("[^ ]+ \\d+"));
+
+        profile.call(LuaValue.valueOf("start"));
+        String fresh = profile.call(LuaValue.valueOf("flat")).tojstring();
+        assertTrue(fresh, fresh.startsWith("instructions: 0\n"));
+        profile.call(LuaValue.valueOf("stop"));
+    }
+}
@@ -0,0 +1,157 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.Test;
+
+/**
+ * Superinstructions whose second instruction is also the target of a jump,
+ * so that it runs on its own as well as after the first one.
+ * <p>
+ * The parser only makes such code for the {@code OP_GETTABLE} pairs: jumps to
+ * the {@code OP_JMP} of a compare or test are joined into jumps to where it
+ * goes, so those pairs are assembled by hand.
+ */
+public class SuperinstructionTest {
+
+    private static int abc(int op, int a, int b, int c) {
+        return op << Lua.POS_OP | a << Lua.POS_A | b << Lua.POS_B | c << Lua.POS_C;
+    }
+
+    private static int abx(int op, int a, int bx) {
+        return op << Lua.POS_OP | a << Lua.POS_A | bx << Lua.POS_Bx;
+    }
+
+    private static int jmp(int sbx) {
+        return abx(Lua.OP_JMP, 0, sbx + Lua.MAXARG_sBx);
+    }
+
+    /**
+     * Find the first instruction with opcode {@code op} right before a jump
+     * target.
+     *
+     * @return its pc, or -1
+     */
+    static int beforeTarget(Prototype p, int op) {
+        boolean[] target = new boolean[p.code.length + 1];
+        for (int pc = 0; pc < p.code.length; pc++) {
+            int i = Lua.unfuse(p.code[pc]);
+            switch (Lua.GET_OPCODE(i)) {
+                case Lua.OP_JMP:
+                case Lua.OP_FORLOOP:
+                case Lua.OP_FORPREP:
+                case Lua.OP_TFORLOOP:
+                    target[pc + 1 + Lua.GETARG_sBx(i)] = true;
+                    break;
+            }
+        }
+        for (int pc = 0; pc + 1 < p.code.length; pc++)
+            if (Lua.GET_OPCODE(p.code[pc]) == op && target[pc + 1])
+                return pc;
+        return -1;
+    }
+
+    private static LuaValue compile(Globals g, String script, int op) throws IOException {
+        Prototype p = g.compilePrototype(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), "fused");
+        assertTrue("opcode " + op + " before a jump target", beforeTarget(p, op) >= 0);
+        return new LuaClosure(p, g, g);
+    }
+
+    /**
+     * Run code of two parameters returning {@code "fell"} or {@code "jumped"}.
+     */
+    private static LuaValue assembled(int[] code) {
+        Prototype p = new Prototype();
+        p.code = code;
+        p.k = new LuaValue[]{LuaValue.valueOf("fell"), LuaValue.valueOf("jumped"), LuaValue.valueOf(10)};
+        p.lineinfo = new int[code.length];
+        p.locvars = new LocVars[0];
+        p.source = LuaValue.valueOf("assembled");
+        p.numparams = 2;
+        p.maxstacksize = 3;
+        return new LuaClosure(p, TestGlobals.create(), LuaValue.NIL);
+    }
+
+    @Test
+    public void getTableAfterAJump() throws IOException {
+        LuaValue f = compile(TestGlobals.create(),
+                "local t, c = ... local x if c then x = t.a end local y = t.b.c return x, y", Lua.OP_GETTABLE2);
+        LuaTable t = new LuaTable();
+        t.set("a", LuaValue.valueOf("a"));
+        LuaTable b = new LuaTable();
+        b.set("c", LuaValue.valueOf("c"));
+        t.set("b", b);
+        for (int pass = 0; pass < 3; pass++) {
+            Varargs taken = f.invoke(t, LuaValue.TRUE);
+            assertEquals("a", taken.arg1().tojstring());
+            assertEquals("c", taken.arg(2).tojstring());
+            Varargs jumped = f.invoke(t, LuaValue.FALSE);
+            assertTrue(jumped.arg1().isnil());
+            assertEquals("c", jumped.arg(2).tojstring());
+        }
+    }
+
+    @Test
+    public void callAfterAJump() throws IOException {
+        Globals g = TestGlobals.create();
+        LuaValue f = compile(g,
+                "local t, c = ... local r = t.f(c and t.a or t.b) return r", Lua.OP_GETTABLECALL);
+        LuaValue t = TestGlobals.load(g,
+                "return {a = 'a', b = 'b', f = function(x) return x .. '!' end}", "t").call();
+        for (int pass = 0; pass < 3; pass++) {
+            assertEquals("a!", f.call(t, LuaValue.TRUE).tojstring());
+            assertEquals("b!", f.call(t, LuaValue.FALSE).tojstring());
+        }
+    }
+
+    @Test
+    public void testJumpAfterAJump() {
+        int test = abc(Lua.OP_TEST, 0, 0, 0);
+        int[] code = {
+                abc(Lua.OP_TEST, 1, 0, 1), // if b then
+                jmp(1), //   goto 3
+                test & Lua.MASK_NOT_OP | Lua.OP_TESTJMP, // if not a then
+                jmp(2), //   goto 6
+                abx(Lua.OP_LOADK, 2, 0),
+                abc(Lua.OP_RETURN, 2, 2, 0),
+                abx(Lua.OP_LOADK, 2, 1),
+                abc(Lua.OP_RETURN, 2, 2, 0),
+        };
+        assertEquals(test, Lua.unfuse(code[2]));
+        LuaValue f = assembled(code);
+        assertEquals("jumped", f.call(LuaValue.TRUE, LuaValue.TRUE).tojstring());
+        assertEquals("jumped", f.call(LuaValue.FALSE, LuaValue.TRUE).tojstring());
+        assertEquals("fell", f.call(LuaValue.TRUE, LuaValue.FALSE).tojstring());
+        assertEquals("jumped", f.call(LuaValue.FALSE, LuaValue.FALSE).tojstring());
+    }
+
+    @Test
+    public void compareJumpAfterAJump() {
+        int lt = abc(Lua.OP_LT, 1, 0, 0x100 | 2);
+        int[] code = {
+                abc(Lua.OP_TEST, 1, 0, 1), // if b then
+                jmp(1), //   goto 3
+                abc(Lua.OP_CMPJMP, (Lua.OP_LT - Lua.OP_EQ) << 1 | 1, 0, 0x100 | 2), // if a < 10 then
+                jmp(2), //   goto 6
+                abx(Lua.OP_LOADK, 2, 0),
+                abc(Lua.OP_RETURN, 2, 2, 0),
+                abx(Lua.OP_LOADK, 2, 1),
+                abc(Lua.OP_RETURN, 2, 2, 0),
+        };
+        assertEquals(lt, Lua.unfuse(code[2]));
+        LuaValue f = assembled(code);
+        for (LuaValue small : new LuaValue[]{LuaValue.valueOf(1), LuaValue.valueOf(1.5)}) {
+            assertEquals("jumped", f.call(small, LuaValue.FALSE).tojstring());
+            assertEquals("jumped", f.call(small, LuaValue.TRUE).tojstring());
+        }
+        for (LuaValue large : new LuaValue[]{LuaValue.valueOf(20), LuaValue.valueOf(20.5)}) {
+            assertEquals("fell", f.call(large, LuaValue.FALSE).tojstring());
+            assertEquals("jumped", f.call(large, LuaValue.TRUE).tojstring());
+        }
+    }
+}
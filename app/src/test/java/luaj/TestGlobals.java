@@ -0,0 +1,75 @@
+package luaj;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+
+import luaj.compiler.LuaC;
+import luaj.lib.Bit32Lib;
+import luaj.lib.CoroutineLib;
+import luaj.lib.PackageLib;
+import luaj.lib.StringLib;
+import luaj.lib.TableLib;
+import luaj.lib.Utf8Lib;
+import luaj.lib.jse.JseBaseLib;
+import luaj.lib.jse.JseMathLib;
+import luaj.lib.jse.JseOsLib;
+import luaj.lib.jse.LuajavaLib;
+
+/**
+ * Globals and scripts shared by the tests and benchmarks.
+ * <p>
+ * The libraries are those of {@link luaj.lib.jse.JsePlatform#standardGlobals()}
+ * without the debug library, which would make the interpreter take its hook
+ * paths on every instruction.
+ */
+public final class TestGlobals {
+
+    private TestGlobals() {
+    }
+
+    public static Globals create() {
+        Globals g = new Globals();
+        g.load(new JseBaseLib());
+        g.load(new PackageLib());
+        g.load(new Bit32Lib());
+        g.load(new TableLib());
+        g.load(new StringLib());
+        g.load(new CoroutineLib());
+        g.load(new JseMathLib());
+        g.load(new JseOsLib());
+        g.load(new LuajavaLib());
+        g.load(new Utf8Lib());
+        LoadState.install(g);
+        LuaC.install(g);
+        return g;
+    }
+
+    /**
+     * Compile {@code script} into a function of {@code g}.
+     */
+    public static LuaValue load(Globals g, String script, String name) {
+        return g.load(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), name, "t", g);
+    }
+
+    /**
+     * Read a script from the test resources.
+     */
+    public static String resource(String path) {
+        InputStream is = TestGlobals.class.getResourceAsStream("/" + path);
+        if (is == null)
+            throw new IllegalArgumentException("no resource " + path);
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buf = new byte[4096];
+            for (int n; (n = is.read(buf)) > 0; )
+                out.write(buf, 0, n);
+            is.close();
+            return new String(out.toByteArray(), StandardCharsets.UTF_8);
+        } catch (IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
@@ -0,0 +1,259 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Generic for loops over {@code pairs} keep the position of the last key, see
+ * {@link LuaTable#next(LuaValue, int, LuaValue[], int, int)}; they have to
+ * visit the same entries in the same order as {@link LuaTable#next(LuaValue)},
+ * whatever the loop body does to the table.
+ */
+public class TraversalTest {
+
+    private interface Maker {
+        LuaTable make();
+    }
+
+    /* what the loop body does to the table after visiting a key */
+    private interface Body {
+        void visit(LuaTable t, LuaValue key, int step);
+    }
+
+    private static abstract class Walk {
+        LuaValue key = LuaValue.NIL, value;
+
+        abstract boolean advance(LuaTable t);
+    }
+
+    private static Walk byNext() {
+        return new Walk() {
+            @Override
+            boolean advance(LuaTable t) {
+                Varargs n = t.next(key);
+                key = n.arg1();
+                value = n.arg(2);
+                return !key.isnil();
+            }
+        };
+    }
+
+    private static Walk byPosition() {
+        return new Walk() {
+            private final LuaValue[] out = new LuaValue[2];
+            private int pos;
+
+            @Override
+            boolean advance(LuaTable t) {
+                pos = t.next(key, pos, out, 0, 2);
+                key = out[0];
+                value = out[1];
+                return !key.isnil();
+            }
+        };
+    }
+
+    private static List<String> walk(Maker maker, Body body, Walk walk) {
+        LuaTable t = maker.make();
+        List<String> seen = new ArrayList<String>();
+        for (int step = 0; walk.advance(t); step++) {
+            assertTrue("endless traversal", step < 100000);
+            seen.add(walk.key.typename() + " " + walk.key.tojstring() + " = " + walk.value.tojstring());
+            body.visit(t, walk.key, step);
+        }
+        return seen;
+    }
+
+    private static void assertSameWalk(Maker maker, Body body) {
+        List<String> expected = walk(maker, body, byNext());
+        assertEquals(expected, walk(maker, body, byPosition()));
+    }
+
+    private static final Maker MIXED = new Maker() {
+        @Override
+        public LuaTable make() {
+            LuaTable t = new LuaTable();
+            for (int i = 1; i <= 40; i++)
+                t.set(i, LuaValue.valueOf("a" + i));
+            t.set(7, LuaValue.NIL);
+            for (int i = 0; i < 40; i++)
+                t.set(LuaValue.valueOf(1000L * i - 5000), LuaValue.valueOf(i));
+            t.set(LuaValue.valueOf(Long.MIN_VALUE), LuaValue.valueOf("min"));
+            t.set(LuaValue.valueOf(1L << 40), LuaValue.valueOf("2^40"));
+            for (int i = 0; i < 60; i++)
+                t.set("s" + i, LuaValue.valueOf(i));
+            t.set(LuaValue.valueOf(1.5), LuaValue.valueOf("float"));
+            t.set(LuaValue.TRUE, LuaValue.valueOf("true"));
+            t.set("s13", LuaValue.NIL);
+            t.set(LuaValue.valueOf(-1000), LuaValue.NIL);
+            return t;
+        }
+    };
+
+    private static final Body NOTHING = new Body() {
+        @Override
+        public void visit(LuaTable t, LuaValue key, int step) {
+        }
+    };
+
+    @Test
+    public void sameOrderAsNext() {
+        assertSameWalk(MIXED, NOTHING);
+        assertSameWalk(new Maker() {
+            @Override
+            public LuaTable make() {
+                return new LuaTable();
+            }
+        }, NOTHING);
+        assertEquals(40 - 1 + 40 - 1 + 2 + 60 - 1 + 2, walk(MIXED, NOTHING, byPosition()).size());
+    }
+
+    @Test
+    public void clearingFields() {
+        assertSameWalk(MIXED, new Body() {
+            @Override
+            public void visit(LuaTable t, LuaValue key, int step) {
+                t.set(key, LuaValue.NIL);
+            }
+        });
+        // clear keys not visited yet, and assign others
+        assertSameWalk(MIXED, new Body() {
+            @Override
+            public void visit(LuaTable t, LuaValue key, int step) {
+                t.set(step * 7 % 40 + 1, LuaValue.NIL);
+                t.set("s" + step * 11 % 60, LuaValue.NIL);
+                LuaValue other = LuaValue.valueOf(1000L * (step % 40) - 5000);
+                if (!t.get(other).isnil())
+                    t.set(other, LuaValue.valueOf(-step));
+            }
+        });
+    }
+
+    @Test
+    public void rehashDuringTraversal() {
+        assertSameWalk(MIXED, new Body() {
+            @Override
+            public void visit(LuaTable t, LuaValue key, int step) {
+                if (step < 100)
+                    for (int i = 0; i < 10; i++)
+                        t.set("new" + step + "." + i, LuaValue.TRUE);
+            }
+        });
+        assertSameWalk(MIXED, new Body() {
+            @Override
+            public void visit(LuaTable t, LuaValue key, int step) {
+                if (step < 50)
+                    t.set(LuaValue.valueOf(100000L * step), LuaValue.TRUE);
+                if (step == 20)
+                    t.presize(200, 400);
+            }
+        });
+    }
+
+    @Test
+    public void positionFromElsewhere() {
+        LuaTable t = MIXED.make();
+        LuaValue[] out = new LuaValue[2];
+        for (Varargs n = t.next(LuaValue.NIL); !n.arg1().isnil(); n = t.next(n.arg1())) {
+            Varargs expected = t.next(n.arg1());
+            for (int pos : new int[]{-1, 1, 41, 60, 300, Integer.MAX_VALUE}) {
+                t.next(n.arg1(), pos, out, 0, 2);
+                assertEquals(expected.arg1().tojstring(), out[0].tojstring());
+                assertEquals(expected.arg(2).tojstring(), out[1].tojstring());
+            }
+        }
+    }
+
+    @Test
+    public void registers() {
+        LuaTable t = new LuaTable();
+        t.set("k", LuaValue.valueOf("v"));
+        LuaValue[] out = {LuaValue.TRUE, LuaValue.TRUE, LuaValue.TRUE, LuaValue.TRUE, LuaValue.TRUE};
+        int pos = t.next(LuaValue.NIL, 0, out, 1, 3);
+        assertSame(LuaValue.TRUE, out[0]);
+        assertEquals("k", out[1].tojstring());
+        assertEquals("v", out[2].tojstring());
+        assertSame(LuaValue.NIL, out[3]);
+        assertSame(LuaValue.TRUE, out[4]);
+        out[1] = LuaValue.valueOf("k");
+        assertEquals(0, t.next(out[1], pos, out, 1, 3));
+        assertSame(LuaValue.NIL, out[1]);
+        assertSame(LuaValue.NIL, out[2]);
+        assertSame(LuaValue.NIL, out[3]);
+        // a single register gets the key only
+        t.next(LuaValue.NIL, 0, out, 0, 1);
+        assertEquals("k", out[0].tojstring());
+        assertSame(LuaValue.NIL, out[1]);
+    }
+
+    /* run the same loop body in a pairs loop, which the interpreter steps by
+       position, and in a loop calling next */
+    private static final String LOOPS = ""
+            + "local t, body = ...\n"
+            + "local seen = {}\n"
+            + "local function show(k, v)\n"
+            + "  assert(#seen < 10000, 'endless traversal')\n"
+            + "  return type(k) .. ' ' .. tostring(k) .. ' = ' .. tostring(v)\n"
+            + "end\n"
+            + "if body == 'pairs' then\n"
+            + "  for k, v in pairs(t) do seen[#seen + 1] = show(k, v) t[k] = nil end\n"
+            + "else\n"
+            + "  local k, v = next(t)\n"
+            + "  while k ~= nil do seen[#seen + 1] = show(k, v) t[k] = nil k, v = next(t, k) end\n"
+            + "end\n"
+            + "return table.concat(seen, '\\n'), next(t) == nil";
+
+    private static void assertSameLoops(Maker maker) {
+        Globals g = TestGlobals.create();
+        LuaValue loops = TestGlobals.load(g, LOOPS, "loops");
+        Varargs byPairs = loops.invoke(maker.make(), LuaValue.valueOf("pairs"));
+        Varargs byNext = loops.invoke(maker.make(), LuaValue.valueOf("next"));
+        assertFalse(byNext.arg1().tojstring().isEmpty());
+        assertEquals(byNext.arg1().tojstring(), byPairs.arg1().tojstring());
+        assertTrue(byPairs.arg(2).toboolean());
+        assertTrue(byNext.arg(2).toboolean());
+    }
+
+    @Test
+    public void pairsLoop() {
+        assertSameLoops(MIXED);
+    }
+
+    @Test
+    public void weakTables() {
+        for (final String mode : new String[]{"k", "v", "kv"}) {
+            assertSameLoops(new Maker() {
+                @Override
+                public LuaTable make() {
+                    LuaTable t = MIXED.make();
+                    LuaTable mt = new LuaTable();
+                    mt.set(LuaValue.MODE, LuaValue.valueOf(mode));
+                    t.setmetatable(mt);
+                    return t;
+                }
+            });
+        }
+    }
+
+    @Test
+    public void lists() {
+        assertSameLoops(new Maker() {
+            @Override
+            public LuaTable make() {
+                LuaList l = new LuaList();
+                for (int i = 1; i <= 50; i++)
+                    l.set(i, LuaValue.valueOf("l" + i));
+                l.set(50, LuaValue.NIL);
+                l.set(17, LuaValue.NIL);
+                return l;
+            }
+        });
+    }
+}
@@ -0,0 +1,171 @@
+package luaj;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertSame;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.Test;
+
+/**
+ * Collection of the entries of tables with a {@code __mode}, waiting on the
+ * garbage collector for at most a few seconds per check.
+ */
+public class WeakTableTest {
+
+    private static LuaTable mode(String mode) {
+        return LuaValue.tableOf(new LuaValue[]{LuaValue.MODE, LuaValue.valueOf(mode)});
+    }
+
+    private static int count(LuaTable t) {
+        int n = 0;
+        for (LuaValue k = t.next(LuaValue.NIL).arg1(); !k.isnil(); k = t.next(k).arg1())
+            n++;
+        return n;
+    }
+
+    /**
+     * Collect garbage until {@code t} has {@code expected} entries.
+     */
+    private static void collect(LuaTable t, int expected) throws InterruptedException {
+        for (int i = 0; i < 200 && count(t) != expected; i++) {
+            System.gc();
+            Thread.sleep(10);
+            t.set("probe", LuaValue.TRUE); // stores drain the queue of collected references
+            t.set("probe", LuaValue.NIL);
+        }
+        assertEquals(expected, count(t));
+    }
+
+    @Test
+    public void weakKeys() throws InterruptedException {
+        LuaTable t = new LuaTable();
+        t.setmetatable(mode("k"));
+        List<LuaValue> kept = new ArrayList<LuaValue>();
+        for (int i = 0; i < 100; i++) {
+            LuaTable key = new LuaTable();
+            t.set(key, LuaValue.valueOf(i));
+            if (i % 10 == 0)
+                kept.add(key);
+        }
+        t.set("name", LuaValue.valueOf("strings are never collected"));
+        collect(t, kept.size() + 1);
+        for (int i = 0; i < kept.size(); i++)
+            assertEquals(i * 10, t.get(kept.get(i)).toint());
+    }
+
+    @Test
+    public void weakValues() throws InterruptedException {
+        LuaTable t = new LuaTable();
+        t.setmetatable(mode("v"));
+        List<LuaValue> kept = new ArrayList<LuaValue>();
+        for (int i = 1; i <= 100; i++) {
+            LuaTable a = new LuaTable(), h = new LuaTable();
+            t.set(i, a);
+            t.set("k" + i, h);
+            if (i % 10 == 0) {
+                kept.add(a);
+                kept.add(h);
+            }
+        }
+        t.set("number", LuaValue.valueOf(1));
+        collect(t, kept.size() + 1);
+        for (int i = 10; i <= 100; i += 10) {
+            assertSame(kept.get(i / 5 - 2), t.get(i));
+            assertSame(kept.get(i / 5 - 1), t.get("k" + i));
+        }
+    }
+
+    @Test
+    public void weakKeysAndValues() throws InterruptedException {
+        LuaTable t = new LuaTable();
+        t.setmetatable(mode("kv"));
+        LuaTable key = new LuaTable(), value = new LuaTable(), both = new LuaTable(), bothValue = new LuaTable();
+        t.set(key, new LuaTable());
+        t.set(new LuaTable(), value);
+        t.set(both, bothValue);
+        t.set(new LuaTable(), new LuaTable());
+        collect(t, 1);
+        assertSame(bothValue, t.get(both));
+        assertSame(LuaValue.NIL, t.get(key));
+        for (LuaValue k = t.next(LuaValue.NIL).arg1(); !k.isnil(); k = t.next(k).arg1())
+            assertNotSame(value, t.get(k));
+    }
+
+    /**
+     * A value of a weak key holds the key only through the table, so it does
+     * not keep the entry alive, while a key held elsewhere keeps its value
+     * even if nothing else does.
+     */
+    @Test
+    public void ephemerons() throws InterruptedException {
+        LuaTable t = new LuaTable();
+        t.setmetatable(mode("k"));
+        for (int i = 0; i < 50; i++) {
+            LuaTable key = new LuaTable();
+            LuaTable value = new LuaTable();
+            value.set("owner", key);
+            t.set(key, value);
+        }
+        LuaTable held = new LuaTable();
+        LuaTable onlyInTable = new LuaTable();
+        onlyInTable.set("owner", held);
+        t.set(held, onlyInTable);
+        onlyInTable = null;
+        collect(t, 1);
+        assertSame(held, t.get(held).get("owner"));
+    }
+
+    @Test
+    public void switchingMode() throws InterruptedException {
+        LuaTable t = new LuaTable();
+        LuaTable kept = new LuaTable();
+        for (int i = 0; i < 20; i++)
+            t.set(new LuaTable(), LuaValue.valueOf(i));
+        t.set(kept, LuaValue.valueOf("kept"));
+        t.setmetatable(mode("k"));
+        collect(t, 1);
+
+        for (int i = 0; i < 20; i++)
+            t.set(new LuaTable(), LuaValue.valueOf(i));
+        t.setmetatable(LuaValue.NIL);
+        System.gc();
+        collect(t, 21);
+
+        t.setmetatable(mode("v"));
+        for (int i = 0; i < 20; i++)
+            t.set("v" + i, new LuaTable());
+        collect(t, 21);
+        t.setmetatable(mode("kv"));
+        collect(t, 1);
+        assertEquals("kept", t.get(kept).tojstring());
+    }
+
+    /**
+     * Integer keys are never weak, but they go to the hash part of weak
+     * tables, and have to be found there after a rehash too.
+     */
+    @Test
+    public void integerKeys() {
+        for (String m : new String[]{"k", "v", "kv"}) {
+            LuaTable t = new LuaTable();
+            t.setmetatable(mode(m));
+            for (int i = 1; i <= 100; i++) {
+                t.set(i, LuaValue.valueOf(i));
+                t.set(-1000 * i, LuaValue.valueOf(-i));
+                assertEquals(m + " " + i, i, t.get(i).toint());
+            }
+            for (int i = 100; i > 0; i -= 2) {
+                t.set(i, LuaValue.NIL);
+                t.set(-1000 * i, LuaValue.NIL);
+            }
+            assertEquals(m, 100, count(t));
+            for (int i = 1; i <= 100; i++) {
+                assertEquals(m + " " + i, i % 2 == 1 ? i : 0, t.get(i).optint(0));
+                assertEquals(m + " " + -1000 * i, i % 2 == 1 ? -i : 0, t.get(-1000 * i).optint(0));
+            }
+        }
+    }
+}
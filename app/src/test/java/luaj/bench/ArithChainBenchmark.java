@@ -0,0 +1,98 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+import luaj.lib.DebugLib;
+
+/**
+ * Number boxes allocated by chains of arithmetic whose intermediate results
+ * only feed the next operation, which {@link luaj.Lua#OP_ARITHCHAIN} hands on
+ * unboxed. Run it with {@code -prof gc}: {@code gc.alloc.rate.norm} is the
+ * bytes allocated per call.
+ * <p>
+ * {@code single} runs the same code with the debug library loaded, which
+ * makes the interpreter run every instruction on its own and box every
+ * result. Only compare the allocations of the two: the times of
+ * {@code single} also include the checks for debug hooks.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ArithChainBenchmark {
+
+    static final String SCRIPT = "" +
+            "local chains = {}\n" +
+            "function chains.polynomial(n)\n" +
+            "  local s = 0\n" +
+            "  for i = 1, n do\n" +
+            "    local x = i * 0.001\n" +
+            "    s = s + ((((3.5 * x - 2.25) * x + 1.75) * x - 0.5) * x + 0.125)\n" +
+            "  end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function chains.hash(n)\n" +
+            "  local h = 17\n" +
+            "  for i = 1, n do h = ((h * 31 + i) * 31 + 7) * 31 - i end\n" +
+            "  return h\n" +
+            "end\n" +
+            "function chains.distance(n)\n" +
+            "  local s, dx, dy, dz = 0, 0.5, -1.25, 2.5\n" +
+            "  for i = 1, n do\n" +
+            "    local x, y, z = dx * i, dy * i, dz * i\n" +
+            "    s = s + (x * x + y * y + z * z) / (i + 0.5)\n" +
+            "  end\n" +
+            "  return s\n" +
+            "end\n" +
+            "return chains";
+
+    private static final LuaValue N = LuaValue.valueOf(10000);
+
+    @Param({"chained", "single"})
+    public String interpreter;
+
+    private LuaValue polynomial, hash, distance;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        if (interpreter.equals("single"))
+            g.load(new DebugLib());
+        LuaValue chains = TestGlobals.load(g, SCRIPT, "chains").call();
+        polynomial = chains.get("polynomial");
+        hash = chains.get("hash");
+        distance = chains.get("distance");
+    }
+
+    @Benchmark
+    public LuaValue polynomial() {
+        return polynomial.call(N);
+    }
+
+    @Benchmark
+    public LuaValue hash() {
+        return hash.call(N);
+    }
+
+    @Benchmark
+    public LuaValue distance() {
+        return distance.call(N);
+    }
+}
@@ -0,0 +1,70 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Arithmetic-heavy scripts from the benchmarks game, run by the interpreter.
+ * <p>
+ * The scripts are under {@code bench/} in the test resources, each returning
+ * the function that is measured. To see what a change to the arithmetic paths
+ * of {@link luaj.LuaClosure} buys, run this suite on the tree before and after
+ * it; {@code -prof gc} also shows the number boxes allocated per run.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ArithmeticBenchmark {
+
+    private LuaValue fib, nbody, spectral, mandelbrot;
+
+    static LuaValue script(Globals g, String name) {
+        return TestGlobals.load(g, TestGlobals.resource("bench/" + name + ".lua"), name).call();
+    }
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        fib = script(g, "fib");
+        nbody = script(g, "nbody");
+        spectral = script(g, "spectral");
+        mandelbrot = script(g, "mandelbrot");
+    }
+
+    @Benchmark
+    public LuaValue fib() {
+        return fib.call(LuaValue.valueOf(25));
+    }
+
+    @Benchmark
+    public LuaValue nbody() {
+        return nbody.call(LuaValue.valueOf(20000));
+    }
+
+    @Benchmark
+    public LuaValue spectralNorm() {
+        return spectral.call(LuaValue.valueOf(100));
+    }
+
+    @Benchmark
+    public LuaValue mandelbrot() {
+        return mandelbrot.call(LuaValue.valueOf(200));
+    }
+}
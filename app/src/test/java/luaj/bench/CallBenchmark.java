@@ -0,0 +1,91 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Cost of calling small Lua functions from Java, as hook callbacks do.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is the number of bytes
+ * allocated per call, which the register frames of {@link luaj.FrameStack} and
+ * the side arrays created only for prototypes that need them keep down to the
+ * values the functions themselves create.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CallBenchmark {
+
+    static final String SCRIPT = "" +
+            "local t = {}\n" +
+            "function t.empty() end\n" +
+            "function t.add(a, b) return a + b end\n" +
+            "function t.loop(n) local s = 0 for i = 1, n do s = s + i end return s end\n" +
+            "local count = 0\n" +
+            "function t.upvalue() count = count + 1 return count end\n" +
+            "function t.varargs(...) return select('#', ...) end\n" +
+            "function t.nested(a) return t.add(a, 1) + t.add(a, 2) end\n" +
+            "return t";
+
+    private LuaValue empty, add, loop, upvalue, varargs, nested;
+    private final LuaValue one = LuaValue.valueOf(1), two = LuaValue.valueOf(2), ten = LuaValue.valueOf(10);
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue t = TestGlobals.load(g, SCRIPT, "calls").call();
+        empty = t.get("empty");
+        add = t.get("add");
+        loop = t.get("loop");
+        upvalue = t.get("upvalue");
+        varargs = t.get("varargs");
+        nested = t.get("nested");
+    }
+
+    @Benchmark
+    public LuaValue empty() {
+        return empty.call();
+    }
+
+    @Benchmark
+    public LuaValue add() {
+        return add.call(one, two);
+    }
+
+    @Benchmark
+    public LuaValue numericFor() {
+        return loop.call(ten);
+    }
+
+    @Benchmark
+    public LuaValue upvalue() {
+        return upvalue.call();
+    }
+
+    @Benchmark
+    public LuaValue varargs() {
+        return varargs.call(one, two, ten);
+    }
+
+    @Benchmark
+    public LuaValue nested() {
+        return nested.call(one);
+    }
+}
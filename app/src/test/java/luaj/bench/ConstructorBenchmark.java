@@ -0,0 +1,140 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Table literals: 200 integers and 200 strings in one literal, the same
+ * integers in a {@code [...]} list, a literal with its last values taken from
+ * a call, JSON-like records, which are mostly hash fields, and a nested
+ * layout table like the ones given to {@code LuaLayout.load}.
+ * <p>
+ * Each call builds the literal a hundred times. Run with {@code -prof gc}:
+ * array parts sized from {@code OP_NEWTABLE} are allocated once, while
+ * regrowing them shows up in {@code gc.alloc.rate.norm}.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConstructorBenchmark {
+
+    static final String SCRIPT = script();
+
+    private static String literal(String open, String close, String format) {
+        StringBuilder sb = new StringBuilder(open);
+        for (int i = 1; i <= 200; i++)
+            sb.append(i > 1 ? ", " : "").append(String.format(format, i));
+        return sb.append(close).toString();
+    }
+
+    private static String script() {
+        return "" +
+                "local literals = {}\n" +
+                "function literals.integers()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do t = " + literal("{", "}", "%d") + " end\n" +
+                "  return t\n" +
+                "end\n" +
+                "function literals.strings()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do t = " + literal("{", "}", "'s%d'") + " end\n" +
+                "  return t\n" +
+                "end\n" +
+                "function literals.list()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do t = " + literal("[", "]", "%d") + " end\n" +
+                "  return t\n" +
+                "end\n" +
+                "local function rest() return 'x', 'y', 'z', 'w' end\n" +
+                "function literals.multret()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do t = {i, i + 1, i + 2, i + 3, i + 4, i + 5, rest()} end\n" +
+                "  return t\n" +
+                "end\n" +
+                "function literals.records()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do\n" +
+                "    t = {id = i, name = 'user' .. i, active = true, score = i * 1.5,\n" +
+                "         tags = {'admin', 'editor'}, address = {city = 'Paris', zip = '75001'}}\n" +
+                "  end\n" +
+                "  return t\n" +
+                "end\n" +
+                "function literals.layout()\n" +
+                "  local t\n" +
+                "  for i = 1, 100 do\n" +
+                "    t = {'LinearLayout', orientation = 'vertical', layout_width = 'fill',\n" +
+                "      {'TextView', id = 'title', text = 'Title', textSize = '18sp'},\n" +
+                "      {'EditText', id = 'name', hint = 'Name', layout_width = 'fill'},\n" +
+                "      {'LinearLayout', orientation = 'horizontal',\n" +
+                "        {'Button', id = 'ok', text = 'OK'},\n" +
+                "        {'Button', id = 'cancel', text = 'Cancel'},\n" +
+                "      },\n" +
+                "      {'ListView', id = 'items', layout_height = 'fill'},\n" +
+                "    }\n" +
+                "  end\n" +
+                "  return t\n" +
+                "end\n" +
+                "return literals";
+    }
+
+    private LuaValue integers, strings, list, multret, records, layout;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue literals = TestGlobals.load(g, SCRIPT, "literals").call();
+        integers = literals.get("integers");
+        strings = literals.get("strings");
+        list = literals.get("list");
+        multret = literals.get("multret");
+        records = literals.get("records");
+        layout = literals.get("layout");
+    }
+
+    @Benchmark
+    public LuaValue integers() {
+        return integers.call();
+    }
+
+    @Benchmark
+    public LuaValue strings() {
+        return strings.call();
+    }
+
+    @Benchmark
+    public LuaValue list() {
+        return list.call();
+    }
+
+    @Benchmark
+    public LuaValue multret() {
+        return multret.call();
+    }
+
+    @Benchmark
+    public LuaValue records() {
+        return records.call();
+    }
+
+    @Benchmark
+    public LuaValue layout() {
+        return layout.call();
+    }
+}
@@ -0,0 +1,125 @@
+package luaj.bench;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashSet;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import luaj.LuaString;
+import luaj.LuaValue;
+
+/**
+ * Lua strings turned into Java Strings and back. {@code names} converts the
+ * distinct names of {@link InternBenchmark} with {@link LuaString#tojstring()},
+ * each time from a new string over the bytes of the name, like keys cut out
+ * of a buffer. {@code asciiText} and {@code chineseText} convert a thousand
+ * bytes of text both ways, which is too long for any cache.
+ * <p>
+ * ASCII is decoded as ISO-8859-1, natively on Android where the UTF-8 decoder
+ * is a loop in Java. A desktop JVM decodes ASCII as fast either way, so there
+ * {@code asciiText} mostly pays for the check that the bytes are ASCII.
+ * <p>
+ * Run with {@code -prof gc} for what a conversion allocates, and
+ * {@link #main(String[])} for how many names get back the very Java String
+ * they got the round before.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConversionBenchmark {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    /* the names laid out one after another in one array */
+    private byte[] buffer;
+    private int[] offsets;
+
+    private byte[] ascii, chinese;
+    private String asciiString, chineseString;
+
+    private static String repeat(String s, int bytes) {
+        StringBuilder sb = new StringBuilder();
+        while (sb.toString().getBytes(UTF8).length < bytes)
+            sb.append(s);
+        return sb.toString();
+    }
+
+    @Setup
+    public void setUp() {
+        String[] names = new LinkedHashSet<String>(Arrays.asList(InternBenchmark.names())).toArray(new String[0]);
+        offsets = new int[names.length + 1];
+        StringBuilder all = new StringBuilder();
+        for (int i = 0; i < names.length; i++) {
+            all.append(names[i]);
+            offsets[i + 1] = offsets[i] + names[i].getBytes(UTF8).length;
+        }
+        buffer = all.toString().getBytes(UTF8);
+        asciiString = repeat("getDeclaredMethod(String, Class[]) ", 1000);
+        chineseString = repeat("字符串的长度，", 1000);
+        ascii = asciiString.getBytes(UTF8);
+        chinese = chineseString.getBytes(UTF8);
+    }
+
+    @Benchmark
+    public void names(Blackhole bh) {
+        for (int i = 0; i < offsets.length - 1; i++)
+            bh.consume(LuaString.valueUsing(buffer, offsets[i], offsets[i + 1] - offsets[i]).tojstring());
+    }
+
+    @Benchmark
+    public String asciiText() {
+        return LuaString.valueUsing(ascii).tojstring();
+    }
+
+    @Benchmark
+    public String chineseText() {
+        return LuaString.valueUsing(chinese).tojstring();
+    }
+
+    @Benchmark
+    public LuaValue asciiToLua() {
+        return LuaValue.valueOf(asciiString);
+    }
+
+    @Benchmark
+    public LuaValue chineseToLua() {
+        return LuaValue.valueOf(chineseString);
+    }
+
+    /**
+     * Print the share of names whose conversion returns the same Java String
+     * as the round before.
+     */
+    public static void main(String[] args) {
+        ConversionBenchmark b = new ConversionBenchmark();
+        b.setUp();
+        int n = b.offsets.length - 1;
+        String[] last = new String[n];
+        for (int round = 0; round < 3; round++) {
+            int same = 0;
+            for (int i = 0; i < n; i++) {
+                String s = LuaString.valueUsing(b.buffer, b.offsets[i], b.offsets[i + 1] - b.offsets[i]).tojstring();
+                if (s == last[i])
+                    same++;
+                last[i] = s;
+            }
+            if (round > 0)
+                System.out.printf("round %d: %d names, %.1f%% same Java String%n", round, n, 100.0 * same / n);
+        }
+    }
+}
@@ -0,0 +1,98 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Method calls and field reads on objects made the usual Lua way, a class
+ * table as the {@code __index} of its instances, which the interpreter reads
+ * through its per-instruction inline caches.
+ * <p>
+ * With one receiver every {@code p:len2()} and {@code self.x} hits the cache;
+ * with {@code 64} receivers going round the sites see a different table on
+ * each run and fall back to plain lookups after a few misses, which is also
+ * what every read cost before the caches. The gap between the two is what
+ * the caches save; run the {@code 64} case against the tree before them to
+ * check that giving up costs nothing more. {@code allocating} calls methods
+ * on a new table every time, as code building values does, so its sites give
+ * up whatever the number of receivers.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class DispatchBenchmark {
+
+    static final String SCRIPT = "" +
+            "local Point = {}\n" +
+            "Point.__index = Point\n" +
+            "function Point.new(x, y) return setmetatable({x = x, y = y}, Point) end\n" +
+            "function Point:add(o) return Point.new(self.x + o.x, self.y + o.y) end\n" +
+            "function Point:len2() return self.x * self.x + self.y * self.y end\n" +
+            "function Point:move(dx, dy) self.x = self.x + dx self.y = self.y + dy end\n" +
+            "local points = {}\n" +
+            "for i = 1, ... do points[i] = Point.new(i, -i) end\n" +
+            "local n = #points\n" +
+            "local t = {}\n" +
+            "function t.methods()\n" +
+            "  local s = 0\n" +
+            "  for i = 1, 10000 do s = s + points[i % n + 1]:len2() end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function t.updates()\n" +
+            "  for i = 1, 10000 do local p = points[i % n + 1] p:move(1, -1) p:move(-1, 1) end\n" +
+            "  return points[1].x\n" +
+            "end\n" +
+            "function t.allocating()\n" +
+            "  local p = Point.new(0, 0)\n" +
+            "  for i = 1, 1000 do p = p:add(points[i % n + 1]) end\n" +
+            "  return p:len2()\n" +
+            "end\n" +
+            "return t";
+
+    @Param({"1", "64"})
+    public int receivers;
+
+    private LuaValue methods, updates, allocating;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue t = TestGlobals.load(g, SCRIPT, "dispatch").call(LuaValue.valueOf(receivers));
+        methods = t.get("methods");
+        updates = t.get("updates");
+        allocating = t.get("allocating");
+    }
+
+    @Benchmark
+    public LuaValue methods() {
+        return methods.call();
+    }
+
+    @Benchmark
+    public LuaValue updates() {
+        return updates.call();
+    }
+
+    @Benchmark
+    public LuaValue allocating() {
+        return allocating.call();
+    }
+}
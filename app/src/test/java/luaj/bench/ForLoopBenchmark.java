@@ -0,0 +1,107 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Numeric for loops of ten million iterations, on integers and on floats.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} divided by ten million
+ * is what an iteration allocates. Integer loops count on longs, but the loop
+ * variable is a register and so boxed once per iteration beyond the
+ * {@link luaj.LuaInteger} cache, which {@code -Dluaj.integer.cache.high}
+ * raises; {@code pixels} walks a buffer indexed below it.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class ForLoopBenchmark {
+
+    static final String SCRIPT = "" +
+            "local N = 10000000\n" +
+            "local loops = {}\n" +
+            "function loops.empty()\n" +
+            "  for i = 1, N do end\n" +
+            "  return N\n" +
+            "end\n" +
+            "function loops.sum()\n" +
+            "  local s = 0\n" +
+            "  for i = 1, N do s = s + i end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function loops.down()\n" +
+            "  local s = 0\n" +
+            "  for i = N, 1, -1 do s = s ~ i end\n" +
+            "  return s\n" +
+            "end\n" +
+            "local buffer = {}\n" +
+            "for i = 1, 1000 do buffer[i] = i * 7 % 256 end\n" +
+            "function loops.pixels()\n" +
+            "  local s = 0\n" +
+            "  for pass = 1, N // 1000 do\n" +
+            "    for i = 1, 1000 do s = s + buffer[i] end\n" +
+            "  end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function loops.float()\n" +
+            "  local s = 0\n" +
+            "  for x = 0.5, N, 1 do s = s + x end\n" +
+            "  return s\n" +
+            "end\n" +
+            "return loops";
+
+    private LuaValue empty, sum, down, pixels, floats;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue loops = TestGlobals.load(g, SCRIPT, "for").call();
+        empty = loops.get("empty");
+        sum = loops.get("sum");
+        down = loops.get("down");
+        pixels = loops.get("pixels");
+        floats = loops.get("float");
+    }
+
+    @Benchmark
+    public LuaValue empty() {
+        return empty.call();
+    }
+
+    @Benchmark
+    public LuaValue sum() {
+        return sum.call();
+    }
+
+    @Benchmark
+    public LuaValue down() {
+        return down.call();
+    }
+
+    @Benchmark
+    public LuaValue pixels() {
+        return pixels.call();
+    }
+
+    @Benchmark
+    public LuaValue floatLoop() {
+        return floats.call();
+    }
+}
@@ -0,0 +1,66 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Reads of globals shared by every benchmark thread, as hook callbacks on app
+ * threads read the globals of {@code LuaHook}.
+ * <p>
+ * The globals are plain or made {@link luaj.LuaTable#concurrent()}; nothing
+ * writes them while the benchmark runs, so both are safe. Run it with
+ * {@code -t 1}, {@code -t 2}, {@code -t 4} and so on, on a machine with at
+ * least that many cores: the time per call should stay flat as threads are
+ * added if reads scale.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GlobalReadBenchmark {
+
+    private static final String SCRIPT = ""
+            + "return function()\n"
+            + "  local s = 0\n"
+            + "  for i = 1, 100 do s = s + x + y + z end\n"
+            + "  return s + #tostring(s)\n"
+            + "end\n";
+
+    @Param({"plain", "concurrent"})
+    public String globals;
+
+    private LuaValue read;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        g.set("x", LuaValue.valueOf(1));
+        g.set("y", LuaValue.valueOf(2.5));
+        g.set("z", LuaValue.valueOf(3));
+        if (globals.equals("concurrent"))
+            g.concurrent();
+        read = TestGlobals.load(g, SCRIPT, "read").call();
+    }
+
+    @Benchmark
+    public LuaValue read() {
+        return read.call();
+    }
+}
@@ -0,0 +1,101 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.LuaTable;
+import luaj.LuaValue;
+import luaj.Varargs;
+
+/**
+ * Inserts, lookups and traversals of the hash part of {@link LuaTable}, with
+ * string and float keys, on tables of 1K, 100K and 1M entries.
+ * <p>
+ * For the memory per entry, run {@link #build()} with {@code -prof gc}:
+ * {@code gc.alloc.rate.norm} divided by {@code size} is the bytes allocated
+ * per entry, the parts outgrown by rehashes included. The keys and values
+ * are made in {@link #setUp()}, so only the table itself is counted.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HashBenchmark {
+
+    @Param({"1000", "100000", "1000000"})
+    public int size;
+
+    private LuaValue[] keys;
+    private LuaValue[] missing;
+    private LuaTable table;
+
+    @Setup
+    public void setUp() {
+        keys = new LuaValue[size];
+        missing = new LuaValue[size];
+        for (int i = 0; i < size; i++) {
+            keys[i] = (i & 1) == 0 ? LuaValue.valueOf("key" + i) : LuaValue.valueOf(i + 0.5);
+            missing[i] = LuaValue.valueOf("missing" + i);
+        }
+        table = build();
+    }
+
+    @Benchmark
+    public LuaTable build() {
+        LuaTable t = new LuaTable();
+        for (LuaValue key : keys)
+            t.rawset(key, LuaValue.TRUE);
+        return t;
+    }
+
+    @Benchmark
+    public int lookup() {
+        int found = 0;
+        for (LuaValue key : keys)
+            if (!table.rawget(key).isnil())
+                found++;
+        return found;
+    }
+
+    @Benchmark
+    public int lookupMissing() {
+        int found = 0;
+        for (LuaValue key : missing)
+            if (!table.rawget(key).isnil())
+                found++;
+        return found;
+    }
+
+    @Benchmark
+    public int traverse() {
+        int n = 0;
+        for (Varargs e = table.next(LuaValue.NIL); !e.arg1().isnil(); e = table.next(e.arg1()))
+            n++;
+        return n;
+    }
+
+    /**
+     * Removes and adds back a quarter of the keys, leaving removed slots.
+     */
+    @Benchmark
+    public LuaTable churn() {
+        for (int i = 0; i < size; i += 4)
+            table.rawset(keys[i], LuaValue.NIL);
+        for (int i = 0; i < size; i += 4)
+            table.rawset(keys[i], LuaValue.TRUE);
+        return table;
+    }
+}
@@ -0,0 +1,107 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Integer keys that do not fit the array part of a table, stored, read and
+ * traversed from Lua: sparse ids, hash codes, millisecond timestamps and ids
+ * a large power of two apart, which all share their low bits.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class IntKeyBenchmark {
+
+    static final String SCRIPT = "" +
+            "local kinds = {}\n" +
+            "function kinds.ids(i) return i * 7919 + 100000 end\n" +
+            "function kinds.hashes(i) return (i * 0x9E3779B1) & 0x7FFFFFFF end\n" +
+            "function kinds.timestamps(i) return 1700000000000 + i * 1000 end\n" +
+            "function kinds.strided(i) return i << 32 end\n" +
+            "return function(kind, n)\n" +
+            "  local key = kinds[kind]\n" +
+            "  local keys = {}\n" +
+            "  for i = 1, n do keys[i] = key(i) end\n" +
+            "  local ops = {}\n" +
+            "  function ops.build()\n" +
+            "    local t = {}\n" +
+            "    for i = 1, n do t[keys[i]] = i end\n" +
+            "    return t\n" +
+            "  end\n" +
+            "  local t = ops.build()\n" +
+            "  function ops.lookup()\n" +
+            "    local s = 0\n" +
+            "    for i = 1, n do s = s + t[keys[i]] end\n" +
+            "    return s\n" +
+            "  end\n" +
+            "  function ops.traverse()\n" +
+            "    local s = 0\n" +
+            "    for k, v in pairs(t) do s = s + v end\n" +
+            "    return s\n" +
+            "  end\n" +
+            "  function ops.churn()\n" +
+            "    for i = 1, n, 4 do t[keys[i]] = nil end\n" +
+            "    for i = 1, n, 4 do t[keys[i]] = i end\n" +
+            "    return t\n" +
+            "  end\n" +
+            "  return ops\n" +
+            "end";
+
+    @Param({"ids", "hashes", "timestamps", "strided"})
+    public String keys;
+
+    @Param({"1000", "100000"})
+    public int size;
+
+    private LuaValue build, lookup, traverse, churn;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue ops = TestGlobals.load(g, SCRIPT, "intkeys").call()
+                .call(LuaValue.valueOf(keys), LuaValue.valueOf(size));
+        build = ops.get("build");
+        lookup = ops.get("lookup");
+        traverse = ops.get("traverse");
+        churn = ops.get("churn");
+    }
+
+    @Benchmark
+    public LuaValue build() {
+        return build.call();
+    }
+
+    @Benchmark
+    public LuaValue lookup() {
+        return lookup.call();
+    }
+
+    @Benchmark
+    public LuaValue traverse() {
+        return traverse.call();
+    }
+
+    @Benchmark
+    public LuaValue churn() {
+        return churn.call();
+    }
+}
@@ -0,0 +1,129 @@
+package luaj.bench;
+
+import java.io.File;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import luaj.LuaTable;
+import luaj.LuaValue;
+
+/**
+ * Java names turned into Lua strings the way hooks do it: one round converts
+ * the class, method and field names of a few common JDK classes, overloads
+ * included, with {@link LuaValue#valueOf(String)}. {@code lookup} also reads
+ * a table keyed by the names, as the member maps of a Java class are.
+ * <p>
+ * Run with {@code -prof gc} for what a round allocates, and
+ * {@link #main(String[])} for how many conversions return the same
+ * {@link luaj.LuaString} as the round before, and what holding on to the
+ * results costs per conversion.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class InternBenchmark {
+
+    private static final Class<?>[] CLASSES = {
+            Object.class, String.class, StringBuilder.class, Integer.class, Math.class,
+            Thread.class, ArrayList.class, HashMap.class, File.class,
+    };
+
+    /**
+     * Get the names converted in one round.
+     */
+    static String[] names() {
+        List<String> names = new ArrayList<String>();
+        for (Class<?> c : CLASSES) {
+            names.add(c.getName());
+            names.add(c.getSimpleName());
+            for (Method m : c.getMethods())
+                names.add(m.getName());
+            for (Field f : c.getFields())
+                names.add(f.getName());
+        }
+        return names.toArray(new String[0]);
+    }
+
+    private String[] names;
+    private LuaTable members;
+
+    @Setup
+    public void setUp() {
+        names = names();
+        members = new LuaTable();
+        for (String name : names)
+            members.set(name, LuaValue.TRUE);
+    }
+
+    @Benchmark
+    public void valueOf(Blackhole bh) {
+        for (String name : names)
+            bh.consume(LuaValue.valueOf(name));
+    }
+
+    @Benchmark
+    public void lookup(Blackhole bh) {
+        for (String name : names)
+            bh.consume(members.get(LuaValue.valueOf(name)));
+    }
+
+    private static long used() throws InterruptedException {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * Print the share of conversions that return the same instance as in the
+     * round before, and the bytes kept alive per conversion by holding the
+     * results of many rounds.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int rounds = args.length > 0 ? Integer.parseInt(args[0]) : 200;
+        String[] names = names();
+        System.out.println(names.length + " conversions per round, "
+                + new HashSet<String>(Arrays.asList(names)).size() + " distinct names");
+
+        LuaValue[] first = new LuaValue[names.length];
+        for (int i = 0; i < names.length; i++)
+            first[i] = LuaValue.valueOf(names[i]);
+        int same = 0;
+        for (int i = 0; i < names.length; i++)
+            if (LuaValue.valueOf(names[i]) == first[i])
+                same++;
+        System.out.printf("same instance: %.1f%%%n", 100.0 * same / names.length);
+
+        LuaValue[][] held = new LuaValue[rounds][names.length];
+        long before = used();
+        for (int r = 0; r < rounds; r++)
+            for (int i = 0; i < names.length; i++)
+                held[r][i] = LuaValue.valueOf(names[i]);
+        long after = used();
+        System.out.printf("%.1f B retained per conversion over %d rounds%n",
+                (after - before) / (double) rounds / names.length, held.length);
+    }
+}
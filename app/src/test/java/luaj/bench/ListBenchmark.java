@@ -0,0 +1,129 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Lists made with {@code [...]}, which are {@link luaj.LuaList}s, against
+ * tables made with <code>{...}</code>: appending, reading, {@code #},
+ * {@code table.unpack}, a list built from varargs and
+ * {@code table.insert}/{@code table.remove} at the front.
+ * <p>
+ * Everything is driven from Lua, so the same benchmark runs against any
+ * version of {@link luaj.LuaList}. {@code length} takes {@code #} a thousand
+ * times, {@code unpack} and {@code varargs} move a thousand values, and
+ * {@code insertRemove} inserts twenty thousand values at index 1 and removes
+ * them again, which takes seconds on a table as it shifts one value at a time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListBenchmark {
+
+    static final String SCRIPT = "" +
+            "return function(kind, n)\n" +
+            "  local new = kind == 'list' and function() return [] end or function() return {} end\n" +
+            "  local pack = kind == 'list' and function(...) return [...] end or function(...) return {...} end\n" +
+            "  local values = {}\n" +
+            "  for i = 1, n do values[i] = 'v' .. i end\n" +
+            "  local ops = {}\n" +
+            "  function ops.append()\n" +
+            "    local l = new()\n" +
+            "    for i = 1, n do l[i] = values[i] end\n" +
+            "    return l\n" +
+            "  end\n" +
+            "  local l = ops.append()\n" +
+            "  function ops.read()\n" +
+            "    local s = 0\n" +
+            "    for i = 1, n do if l[i] ~= nil then s = s + 1 end end\n" +
+            "    return s\n" +
+            "  end\n" +
+            "  function ops.length()\n" +
+            "    local s = 0\n" +
+            "    for i = 1, 1000 do s = s + #l end\n" +
+            "    return s\n" +
+            "  end\n" +
+            "  function ops.unpack()\n" +
+            "    return select('#', table.unpack(l, 1, 1000))\n" +
+            "  end\n" +
+            "  function ops.varargs()\n" +
+            "    return #pack(table.unpack(values, 1, 1000))\n" +
+            "  end\n" +
+            "  function ops.insertRemove()\n" +
+            "    local q = new()\n" +
+            "    for i = 1, 20000 do table.insert(q, 1, values[i]) end\n" +
+            "    for i = 1, 20000 do table.remove(q, 1) end\n" +
+            "    return #q\n" +
+            "  end\n" +
+            "  return ops\n" +
+            "end";
+
+    @Param({"list", "table"})
+    public String kind;
+
+    @Param({"20000", "1000000"})
+    public int size;
+
+    private LuaValue append, read, length, unpack, varargs, insertRemove;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue ops = TestGlobals.load(g, SCRIPT, "lists").call()
+                .call(LuaValue.valueOf(kind), LuaValue.valueOf(size));
+        append = ops.get("append");
+        read = ops.get("read");
+        length = ops.get("length");
+        unpack = ops.get("unpack");
+        varargs = ops.get("varargs");
+        insertRemove = ops.get("insertRemove");
+    }
+
+    @Benchmark
+    public LuaValue append() {
+        return append.call();
+    }
+
+    @Benchmark
+    public LuaValue read() {
+        return read.call();
+    }
+
+    @Benchmark
+    public LuaValue length() {
+        return length.call();
+    }
+
+    @Benchmark
+    public LuaValue unpack() {
+        return unpack.call();
+    }
+
+    @Benchmark
+    public LuaValue varargs() {
+        return varargs.call();
+    }
+
+    @Benchmark
+    public LuaValue insertRemove() {
+        return insertRemove.call();
+    }
+}
@@ -0,0 +1,101 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Loop-heavy scripts that spend their time dispatching small instructions in
+ * {@link luaj.LuaClosure}, for weighing changes to how the interpreter decodes
+ * and runs instructions: register moves, constant operands, compares and
+ * jumps, table reads and writes and method calls.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class LoopBenchmark {
+
+    static final String SCRIPT = "" +
+            "local loops = {}\n" +
+            "function loops.whileLoop(n)\n" +
+            "  local i, s = 0, 0\n" +
+            "  while i < n do i = i + 1 s = s + i % 7 end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function loops.repeatLoop(n)\n" +
+            "  local x, odd = 0, 0\n" +
+            "  repeat\n" +
+            "    x = x + 3\n" +
+            "    if x % 5 == 0 then x = x + 1 elseif x & 1 == 1 then odd = odd + 1 end\n" +
+            "  until x >= n\n" +
+            "  return x + odd\n" +
+            "end\n" +
+            "function loops.tableLoop(n)\n" +
+            "  local t, s = {}, 0\n" +
+            "  for i = 1, 1000 do t[i] = i end\n" +
+            "  for r = 1, n // 1000 do\n" +
+            "    for i = 1, 1000 do s = s + t[i] end\n" +
+            "    t[r % 1000 + 1] = r\n" +
+            "  end\n" +
+            "  return s\n" +
+            "end\n" +
+            "function loops.methodLoop(n)\n" +
+            "  local Counter = {}\n" +
+            "  Counter.__index = Counter\n" +
+            "  function Counter:add(d) self.v = self.v + d end\n" +
+            "  local c = setmetatable({v = 0}, Counter)\n" +
+            "  for i = 1, n do c:add(i) end\n" +
+            "  return c.v\n" +
+            "end\n" +
+            "return loops";
+
+    private static final LuaValue N = LuaValue.valueOf(1000000);
+
+    private LuaValue whileLoop, repeatLoop, tableLoop, methodLoop;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue loops = TestGlobals.load(g, SCRIPT, "loops").call();
+        whileLoop = loops.get("whileLoop");
+        repeatLoop = loops.get("repeatLoop");
+        tableLoop = loops.get("tableLoop");
+        methodLoop = loops.get("methodLoop");
+    }
+
+    @Benchmark
+    public LuaValue whileLoop() {
+        return whileLoop.call(N);
+    }
+
+    @Benchmark
+    public LuaValue repeatLoop() {
+        return repeatLoop.call(N);
+    }
+
+    @Benchmark
+    public LuaValue tableLoop() {
+        return tableLoop.call(N);
+    }
+
+    @Benchmark
+    public LuaValue methodLoop() {
+        return methodLoop.call(N);
+    }
+}
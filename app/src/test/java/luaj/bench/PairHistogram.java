@@ -0,0 +1,122 @@
+package luaj.bench;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import luaj.Globals;
+import luaj.Lua;
+import luaj.Print;
+import luaj.Prototype;
+import luaj.TestGlobals;
+
+/**
+ * Counts the pairs of adjacent instructions in the code of the benchmark
+ * scripts, the data the superinstructions of {@link Lua#OP_CMPJMP} to
+ * {@link Lua#OP_GETTABLECALL} were picked from. Instructions are counted as
+ * the plain ones they were fused from, so the arithmetic pairs taken by
+ * {@link Lua#OP_ARITHCHAIN} show up too. A pair inside loops counts
+ * {@link #LOOP_WEIGHT} times more for each loop around it, as it runs more
+ * often.
+ * <p>
+ * Run {@link #main(String[])} with the paths of more scripts to count them
+ * too.
+ */
+public final class PairHistogram {
+
+    /** weight of an instruction inside each more level of loops */
+    static final int LOOP_WEIGHT = 10;
+
+    private PairHistogram() {
+    }
+
+    /**
+     * Get the scripts of the benchmarks, by name.
+     */
+    public static Map<String, String> scripts() {
+        Map<String, String> scripts = new LinkedHashMap<String, String>();
+        for (String name : new String[]{"fib", "mandelbrot", "nbody", "spectral"})
+            scripts.put(name, TestGlobals.resource("bench/" + name + ".lua"));
+        scripts.put("calls", CallBenchmark.SCRIPT);
+        scripts.put("loops", LoopBenchmark.SCRIPT);
+        scripts.put("strings", StringBenchmark.SCRIPT);
+        scripts.put("intkeys", IntKeyBenchmark.SCRIPT);
+        scripts.put("weak", WeakTableBenchmark.SCRIPT);
+        return scripts;
+    }
+
+    /**
+     * Count the weighted pairs of the functions compiled from {@code scripts},
+     * keyed by the names of both opcodes like {@code "GETTABLE CALL"}.
+     */
+    public static Map<String, Integer> count(Map<String, String> scripts) throws IOException {
+        Globals g = TestGlobals.create();
+        Map<String, Integer> pairs = new HashMap<String, Integer>();
+        for (Map.Entry<String, String> e : scripts.entrySet())
+            count(g.compilePrototype(new ByteArrayInputStream(e.getValue().getBytes(StandardCharsets.UTF_8)),
+                    e.getKey()), pairs);
+        return pairs;
+    }
+
+    private static void count(Prototype p, Map<String, Integer> pairs) {
+        final int[] code = p.code;
+        // loops are the spans jumped back over
+        int[] depth = new int[code.length + 1];
+        for (int pc = 0; pc < code.length; pc++) {
+            int i = Lua.unfuse(code[pc]);
+            int op = Lua.GET_OPCODE(i);
+            if (op == Lua.OP_JMP || op == Lua.OP_FORLOOP || op == Lua.OP_TFORLOOP) {
+                int target = pc + 1 + Lua.GETARG_sBx(i);
+                for (int j = target; j <= pc; j++)
+                    depth[j]++;
+            }
+        }
+        for (int pc = 0; pc + 1 < code.length; pc++) {
+            String pair = Print.OPNAMES[Lua.GET_OPCODE(Lua.unfuse(code[pc]))] + " "
+                    + Print.OPNAMES[Lua.GET_OPCODE(Lua.unfuse(code[pc + 1]))];
+            int weight = 1;
+            for (int d = Math.min(depth[pc], depth[pc + 1]); d > 0; d--)
+                weight *= LOOP_WEIGHT;
+            Integer n = pairs.get(pair);
+            pairs.put(pair, (n != null ? n : 0) + weight);
+        }
+        for (Prototype child : p.p)
+            count(child, pairs);
+    }
+
+    /**
+     * Get the pairs from the most to the least frequent.
+     */
+    public static List<Map.Entry<String, Integer>> ranked(Map<String, Integer> pairs) {
+        List<Map.Entry<String, Integer>> ranked = new ArrayList<Map.Entry<String, Integer>>(pairs.entrySet());
+        Collections.sort(ranked, new Comparator<Map.Entry<String, Integer>>() {
+            @Override
+            public int compare(Map.Entry<String, Integer> a, Map.Entry<String, Integer> b) {
+                int c = b.getValue().compareTo(a.getValue());
+                return c != 0 ? c : a.getKey().compareTo(b.getKey());
+            }
+        });
+        return ranked;
+    }
+
+    public static void main(String[] args) throws IOException {
+        Map<String, String> scripts = scripts();
+        for (String path : args)
+            scripts.put(path, new String(Files.readAllBytes(Paths.get(path)), StandardCharsets.UTF_8));
+        List<Map.Entry<String, Integer>> ranked = ranked(count(scripts));
+        long total = 0;
+        for (Map.Entry<String, Integer> e : ranked)
+            total += e.getValue();
+        for (Map.Entry<String, Integer> e : ranked.subList(0, Math.min(30, ranked.size())))
+            System.out.printf("%-24s %8d %5.1f%%%n", e.getKey(), e.getValue(), 100.0 * e.getValue() / total);
+    }
+}
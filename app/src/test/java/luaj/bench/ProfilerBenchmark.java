@@ -0,0 +1,74 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.Profiler;
+import luaj.TestGlobals;
+
+/**
+ * Cost of the {@link Profiler} checks of the interpreter: a call-heavy and an
+ * instruction-heavy script with the profiler off, as it nearly always is, and
+ * on.
+ * <p>
+ * {@code off} only pays a null check per call and per instruction. To see what
+ * that costs, run it on this tree and on the tree before the profiler was
+ * added, with the same JVM and machine.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ProfilerBenchmark {
+
+    private static final LuaValue CALLS = LuaValue.valueOf(1000);
+    private static final LuaValue N = LuaValue.valueOf(100000);
+
+    @Param({"off", "on"})
+    public String profiler;
+
+    private LuaValue nested, whileLoop, tableLoop;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue calls = TestGlobals.load(g, CallBenchmark.SCRIPT, "calls").call();
+        LuaValue loops = TestGlobals.load(g, LoopBenchmark.SCRIPT, "loops").call();
+        nested = TestGlobals.load(g, "local nested = ... return function(n) local s = 0 " +
+                "for i = 1, n do s = s + nested(i) end return s end", "nested").call(calls.get("nested"));
+        whileLoop = loops.get("whileLoop");
+        tableLoop = loops.get("tableLoop");
+        if (profiler.equals("on"))
+            Profiler.start(g);
+    }
+
+    @Benchmark
+    public LuaValue calls() {
+        return nested.call(CALLS);
+    }
+
+    @Benchmark
+    public LuaValue whileLoop() {
+        return whileLoop.call(N);
+    }
+
+    @Benchmark
+    public LuaValue tableLoop() {
+        return tableLoop.call(N);
+    }
+}
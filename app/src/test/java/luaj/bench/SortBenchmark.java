@@ -0,0 +1,100 @@
+package luaj.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaTable;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+import luaj.Varargs;
+
+/**
+ * {@code table.sort} over a million values.
+ * <p>
+ * The values are random integers, floats, strings or records, the last being
+ * tables ordered by a {@code key} field. Each is sorted with the default
+ * order, which for records comes from an {@code __lt} metamethod, and with a
+ * Lua comparator. A fresh copy of the values is made before every sort,
+ * outside of the measured time.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class SortBenchmark {
+
+    private static final int N = 1000000;
+
+    private static final String SCRIPT = ""
+            + "local record = {__lt = function(a, b) return a.key < b.key end}\n"
+            + "return function(key) return setmetatable({key = key}, record) end,\n"
+            + "    function(a, b) return a < b end,\n"
+            + "    function(a, b) return a.key < b.key end\n";
+
+    @Param({"integers", "floats", "strings", "records"})
+    public String values;
+
+    @Param({"false", "true"})
+    public boolean comparator;
+
+    private LuaValue[] source;
+    private LuaValue sort, order;
+    private LuaTable table;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        Varargs functions = TestGlobals.load(g, SCRIPT, "sort").invoke();
+        LuaValue record = functions.arg(1);
+        sort = g.get("table").get("sort");
+        order = !comparator ? LuaValue.NIL : functions.arg(values.equals("records") ? 3 : 2);
+        Random random = new Random(42);
+        source = new LuaValue[N];
+        for (int i = 0; i < N; i++) {
+            long key = random.nextInt(N);
+            switch (values) {
+                case "integers":
+                    source[i] = LuaValue.valueOf(key);
+                    break;
+                case "floats":
+                    source[i] = LuaValue.valueOf(key + 0.5);
+                    break;
+                case "strings":
+                    source[i] = LuaValue.valueOf("key" + key);
+                    break;
+                default:
+                    source[i] = record.call(LuaValue.valueOf(key));
+                    break;
+            }
+        }
+    }
+
+    @Setup(Level.Invocation)
+    public void copy() {
+        table = new LuaTable();
+        for (int i = 0; i < N; i++)
+            table.rawset(i + 1, source[i]);
+    }
+
+    @Benchmark
+    public LuaTable sort() {
+        sort.call(table, order);
+        return table;
+    }
+}
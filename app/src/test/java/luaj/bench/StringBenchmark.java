@@ -0,0 +1,124 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Building strings from Lua: growing one string with {@code ..} in a loop,
+ * which appends in place to the results of earlier concatenations, and
+ * formatting log lines with {@code ..} and with {@code string.format}.
+ * Slicing the built string with {@code string.sub} is measured too, as
+ * substrings may share its bytes.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class StringBenchmark {
+
+    static final String SCRIPT = "" +
+            "local strings = {}\n" +
+            "function strings.append(n)\n" +
+            "  local s = ''\n" +
+            "  for i = 1, n do s = s .. 'item' .. ',' end\n" +
+            "  return #s\n" +
+            "end\n" +
+            "function strings.appendNumbers(n)\n" +
+            "  local s = ''\n" +
+            "  for i = 1, n do s = s .. i .. ',' end\n" +
+            "  return #s\n" +
+            "end\n" +
+            "function strings.appendLines(n)\n" +
+            "  local line = string.rep('x', 79) .. '\\n'\n" +
+            "  local s = ''\n" +
+            "  for i = 1, n do s = s .. line end\n" +
+            "  return #s\n" +
+            "end\n" +
+            "function strings.logConcat(n)\n" +
+            "  local total = 0\n" +
+            "  for i = 1, n do\n" +
+            "    local line = '[' .. i .. '] ' .. 'hook' .. ' called with ' .. i * 3 .. ' in ' .. 'com.example.App'\n" +
+            "    total = total + #line\n" +
+            "  end\n" +
+            "  return total\n" +
+            "end\n" +
+            "function strings.logFormat(n)\n" +
+            "  local total = 0\n" +
+            "  for i = 1, n do\n" +
+            "    local line = string.format('[%d] %s called with %d in %s', i, 'hook', i * 3, 'com.example.App')\n" +
+            "    total = total + #line\n" +
+            "  end\n" +
+            "  return total\n" +
+            "end\n" +
+            "function strings.slices(n)\n" +
+            "  local s = string.rep('0123456789', 1000)\n" +
+            "  local total = 0\n" +
+            "  for i = 1, n do total = total + #s:sub(i % 5000 + 1, i % 5000 + 5000) end\n" +
+            "  return total\n" +
+            "end\n" +
+            "return strings";
+
+    private static final LuaValue BUILD = LuaValue.valueOf(20000);
+    private static final LuaValue LINES = LuaValue.valueOf(5000);
+    private static final LuaValue LOG = LuaValue.valueOf(50000);
+
+    private LuaValue append, appendNumbers, appendLines, logConcat, logFormat, slices;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue strings = TestGlobals.load(g, SCRIPT, "strings").call();
+        append = strings.get("append");
+        appendNumbers = strings.get("appendNumbers");
+        appendLines = strings.get("appendLines");
+        logConcat = strings.get("logConcat");
+        logFormat = strings.get("logFormat");
+        slices = strings.get("slices");
+    }
+
+    @Benchmark
+    public LuaValue append() {
+        return append.call(BUILD);
+    }
+
+    @Benchmark
+    public LuaValue appendNumbers() {
+        return appendNumbers.call(BUILD);
+    }
+
+    @Benchmark
+    public LuaValue appendLines() {
+        return appendLines.call(LINES);
+    }
+
+    @Benchmark
+    public LuaValue logConcat() {
+        return logConcat.call(LOG);
+    }
+
+    @Benchmark
+    public LuaValue logFormat() {
+        return logFormat.call(LOG);
+    }
+
+    @Benchmark
+    public LuaValue slices() {
+        return slices.call(LOG);
+    }
+}
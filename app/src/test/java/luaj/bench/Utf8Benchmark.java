@@ -0,0 +1,125 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * The {@code utf8} library and {@code string.toutf8} on Chinese text, 530
+ * bytes or so per string.
+ * <p>
+ * Run with {@code -prof gc}: {@code gc.alloc.rate.norm} is what one call
+ * allocates. The code points of a string are counted and indexed the first
+ * time they are needed, and the index is kept with the string, so these are
+ * the costs of the calls after the first one on a string.
+ * <p>
+ * {@link #main(String[])} prints what the results of {@code string.toutf8},
+ * {@code utf8.match} and {@code utf8.sub} keep alive, per result, while the
+ * strings they were taken from are alive too.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class Utf8Benchmark {
+
+    static final String SCRIPT = "" +
+            "local text = string.rep('\u5b57\u7b26\u4e32\u7684\u957f\u5ea6\uff0c', 25)\n" +
+            "local ops = {}\n" +
+            "function ops.text(i) return i .. text end\n" +
+            "function ops.len(s) return utf8.len(s) end\n" +
+            "function ops.sub(s) return utf8.sub(s, 100, 120) end\n" +
+            "function ops.match(s) return utf8.match(s, '(\u957f\u5ea6)\uff0c$') end\n" +
+            "function ops.find(s) return utf8.find(s, '\u957f\u5ea6\uff0c\u5b57', 100, true) end\n" +
+            "function ops.toutf8(s) return string.toutf8(s) end\n" +
+            "function ops.keep(op, texts)\n" +
+            "  local f, results = ops[op], {}\n" +
+            "  for i = 1, #texts do results[i] = f(texts[i]) end\n" +
+            "  return results\n" +
+            "end\n" +
+            "return ops";
+
+    private LuaValue text, len, sub, match, find, toutf8;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue ops = TestGlobals.load(g, SCRIPT, "utf8").call();
+        text = ops.get("text").call(LuaValue.valueOf(1));
+        len = ops.get("len");
+        sub = ops.get("sub");
+        match = ops.get("match");
+        find = ops.get("find");
+        toutf8 = ops.get("toutf8");
+    }
+
+    @Benchmark
+    public LuaValue len() {
+        return len.call(text);
+    }
+
+    @Benchmark
+    public LuaValue sub() {
+        return sub.call(text);
+    }
+
+    @Benchmark
+    public LuaValue match() {
+        return match.call(text);
+    }
+
+    @Benchmark
+    public LuaValue find() {
+        return find.call(text);
+    }
+
+    @Benchmark
+    public LuaValue toutf8() {
+        return toutf8.call(text);
+    }
+
+    private static long used() throws InterruptedException {
+        Runtime r = Runtime.getRuntime();
+        for (int i = 0; i < 4; i++) {
+            System.gc();
+            Thread.sleep(50);
+        }
+        return r.totalMemory() - r.freeMemory();
+    }
+
+    /**
+     * Print the bytes kept alive by a result of each operation, including
+     * its slot in the table that holds the results.
+     */
+    public static void main(String[] args) throws InterruptedException {
+        final int n = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        Globals g = TestGlobals.create();
+        LuaValue ops = TestGlobals.load(g, SCRIPT, "utf8").call();
+        LuaValue texts = LuaValue.tableOf();
+        for (int i = 1; i <= n; i++)
+            texts.set(i, ops.get("text").call(LuaValue.valueOf(i)));
+        System.out.println(n + " strings of " + texts.get(1).rawlen() + " bytes");
+        for (String op : new String[]{"toutf8", "match", "sub"}) {
+            long before = used();
+            LuaValue results = ops.get("keep").call(LuaValue.valueOf(op), texts);
+            long after = used();
+            System.out.println(op + ": " + (after - before) / n + " B retained per result, "
+                    + results.length() + " results");
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package luaj.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * A cache keyed by Lua tables with {@code __mode = "k"}, whose values refer
+ * back to their keys, as scripts keep data about hooked objects. Every call
+ * adds entries for new objects that are dropped right away and looks up an
+ * object that stays alive.
+ * <p>
+ * The entries of the dropped objects must be collected even though their
+ * values hold the keys, so the cache stays bounded however long the
+ * benchmark runs: each iteration ends with a collection and fails if more
+ * than {@link #BOUND} entries are left.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class WeakTableBenchmark {
+
+    static final String SCRIPT = "" +
+            "local data = setmetatable({}, {__mode = 'k'})\n" +
+            "local cache = {}\n" +
+            "local function get(object)\n" +
+            "  local d = data[object]\n" +
+            "  if d == nil then\n" +
+            "    d = {owner = object, calls = 0}\n" +
+            "    data[object] = d\n" +
+            "  end\n" +
+            "  d.calls = d.calls + 1\n" +
+            "  return d\n" +
+            "end\n" +
+            "local held = {}\n" +
+            "function cache.insert(n)\n" +
+            "  for i = 1, n do get({}) end\n" +
+            "  return get(held).calls\n" +
+            "end\n" +
+            "function cache.size()\n" +
+            "  data.probe = true\n" +
+            "  data.probe = nil\n" +
+            "  local n = 0\n" +
+            "  for _ in pairs(data) do n = n + 1 end\n" +
+            "  return n\n" +
+            "end\n" +
+            "return cache";
+
+    static final int BOUND = 100000;
+
+    private static final LuaValue N = LuaValue.valueOf(100);
+
+    private LuaValue insert, size;
+
+    @Setup
+    public void setUp() {
+        Globals g = TestGlobals.create();
+        LuaValue cache = TestGlobals.load(g, SCRIPT, "cache").call();
+        insert = cache.get("insert");
+        size = cache.get("size");
+    }
+
+    @Benchmark
+    public LuaValue insert() {
+        return insert.call(N);
+    }
+
+    @TearDown(Level.Iteration)
+    public void checkSize() {
+        System.gc();
+        int n = size.call().toint();
+        if (n > BOUND)
+            throw new IllegalStateException("the cache grew to " + n + " entries");
+    }
+}
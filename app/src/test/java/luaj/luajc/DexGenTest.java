@@ -0,0 +1,207 @@
+package luaj.luajc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+import org.junit.Test;
+
+import luaj.Globals;
+import luaj.Lua;
+import luaj.Print;
+import luaj.Prototype;
+import luaj.TestGlobals;
+
+/**
+ * Decodes the dex files generated by {@link LuaDex} with the dx
+ * {@link android.cglib.dx.io.CodeReader}, since the desktop JVM cannot load them.
+ * <p>
+ * {@code dexgen/opcodes.golden} holds, for a snippet using each opcode, the
+ * methods the translated instruction invokes, in the order dx lays them out. {@code OP_LOADKX} needs more
+ * constants than a test should build, and the parser never emits
+ * {@code SETGLOBAL}, {@code GETENV} and {@code SETENV}, so these are left out.
+ */
+public class DexGenTest {
+
+    private static final String[][] OPCODES = {
+            {"MOVE", "local a, b = ... b = a return b"},
+            {"LOADK", "local a = 'k' return a"},
+            {"LOADBOOL", "local a = ... return a == 1"},
+            {"LOADNIL", "local a, b return a"},
+            {"GETUPVAL", "local u = ... return function() return u end"},
+            {"GETTABUP", "local t = ... return function() return t.x end"},
+            {"GETTABLE", "local t, k = ... return t[k]"},
+            {"SETTABUP", "local t = ... return function() t.x = 1 end"},
+            {"SETUPVAL", "local u return function(v) u = v end"},
+            {"SETTABLE", "local t, k = ... t[k] = 1"},
+            {"NEWTABLE", "return {}"},
+            {"SELF", "local s = ... return s:upper()"},
+            {"ADD", "local a, b = ... return a + b"},
+            {"SUB", "local a, b = ... return a - b"},
+            {"MUL", "local a, b = ... return a * b"},
+            {"DIV", "local a, b = ... return a / b"},
+            {"MOD", "local a, b = ... return a % b"},
+            {"POW", "local a, b = ... return a ^ b"},
+            {"UNM", "local a = ... return -a"},
+            {"NOT", "local a = ... return not a"},
+            {"LEN", "local a = ... return #a"},
+            {"CONCAT", "local a, b = ... return a .. b"},
+            {"JMP", "local a = ... while a do a = a.next end"},
+            {"EQ", "local a, b = ... if a == b then return 1 end"},
+            {"LT", "local a, b = ... if a < b then return 1 end"},
+            {"LE", "local a, b = ... if a <= b then return 1 end"},
+            {"TEST", "local a = ... if a then return 1 end"},
+            {"TESTSET", "local a, b = ... return a or b"},
+            {"CALL", "local f = ... f()"},
+            {"TAILCALL", "local f = ... return f(1)"},
+            {"RETURN", "return"},
+            {"FORLOOP", "local n = ... for i = 1, n do end"},
+            {"FORPREP", "local n = ... for i = 1, n do end"},
+            {"TFORCALL", "local t = ... for k, v in next, t do end"},
+            {"TFORLOOP", "local t = ... for k, v in next, t do end"},
+            {"SETLIST", "local a = ... return {a, a, a}"},
+            {"CLOSURE", "return function() end"},
+            {"VARARG", "return ..."},
+            {"IDIV", "local a, b = ... return a // b"},
+            {"BAND", "local a, b = ... return a & b"},
+            {"BOR", "local a, b = ... return a | b"},
+            {"BXOR", "local a, b = ... return a ~ b"},
+            {"SHL", "local a, b = ... return a << b"},
+            {"SHR", "local a, b = ... return a >> b"},
+            {"BNOT", "local a = ... return ~a"},
+            {"GETGLOBAL", "return _G"},
+            {"NEWLIST", "return [1, 2]"},
+            {"DEFER", "local f = ... defer f()"},
+            {"TFOREACH", "local t = ... for k, v : t do end"},
+            {"TCALL", "try local x = 1 catch(e) end"},
+            {"IMPORT", "return import 'java.util.ArrayList'"},
+            {"MODULE", "module 'm'"},
+            {"LOADC", "import 'java.util.*' return ArrayList"},
+            {"LOADP", "return import 'java.util.*'"},
+    };
+
+    @Test
+    public void opcodesMatchGolden() throws IOException {
+        Properties golden = new Properties();
+        golden.load(new StringReader(TestGlobals.resource("dexgen/opcodes.golden")));
+        List<String> mismatches = new ArrayList<String>();
+        for (String[] row : OPCODES) {
+            String actual = invoked(row[0], row[1]);
+            if (!actual.equals(golden.getProperty(row[0])))
+                mismatches.add(row[0] + " = " + actual);
+        }
+        if (!mismatches.isEmpty())
+            fail("translation changed:\n" + String.join("\n", mismatches));
+    }
+
+    @Test
+    public void corpusDecodes() throws IOException {
+        String[] scripts = {
+                "conformance/core.lua", "conformance/extensions.lua",
+                "bench/fib.lua", "bench/nbody.lua", "bench/spectral.lua", "bench/mandelbrot.lua",
+        };
+        for (String script : scripts) {
+            Prototype p = compile(TestGlobals.resource(script), script);
+            Map<String, short[]> methods = new DexReader(LuaDex.generate(p, script)).methods();
+            assertRunMethods(methods, p, LuaJC.className(script));
+            for (Map.Entry<String, short[]> e : methods.entrySet())
+                DexReader.verify(e.getKey(), e.getValue());
+        }
+    }
+
+    /**
+     * The parser leaves a RETURN after the returning branches of an if, which
+     * nothing reaches; a block without predecessors breaks the dx translation.
+     */
+    @Test
+    public void deadCodeIsNotTranslated() throws IOException {
+        Prototype p = compile("local a = ... if a then return 1 else return 2 end", "dead");
+        int last = Lua.unfuse(p.code[p.code.length - 1]);
+        assertEquals(Lua.OP_RETURN, Lua.GET_OPCODE(last));
+        Map<String, short[]> methods = new DexReader(LuaDex.generate(p, "dead")).methods();
+        short[] run = methods.get("LuaJC_dead.run");
+        assertNotNull(run);
+        DexReader.verify("run", run);
+        List<String> opcodes = DexReader.opcodes(run);
+        assertFalse(opcodes.isEmpty());
+        assertTrue(opcodes.contains("return-object"));
+    }
+
+    private static void assertRunMethods(Map<String, short[]> methods, Prototype p, String name) {
+        if (DexGen.supports(p))
+            assertTrue(name, methods.containsKey(name + ".run"));
+        for (int j = 0; j < p.p.length; j++)
+            assertRunMethods(methods, p.p[j], name + "_" + j);
+    }
+
+    /**
+     * Methods invoked by the translation of the first instruction with opcode
+     * {@code op} in {@code script}, found between the hook calls that start
+     * every instruction.
+     */
+    private static String invoked(String op, String script) throws IOException {
+        int opcode = opcode(op);
+        Prototype main = compile(script, op);
+        String[] name = {LuaJC.className(op)};
+        Prototype p = find(main, opcode, name);
+        if (p == null)
+            throw new AssertionError(op + " not in " + script);
+        int index = 0;
+        boolean[] reached = DexGen.reachable(p);
+        for (int pc = 0; Lua.GET_OPCODE(Lua.unfuse(p.code[pc])) != opcode; pc++)
+            if (reached[pc])
+                index++;
+
+        DexReader reader = new DexReader(LuaDex.generate(main, op));
+        Map<String, short[]> methods = reader.methods();
+        for (Map.Entry<String, short[]> e : methods.entrySet())
+            DexReader.verify(e.getKey(), e.getValue());
+        StringBuilder sb = new StringBuilder();
+        int instruction = -1;
+        for (String method : reader.invoked(methods.get(name[0] + ".run"))) {
+            if (method.equals("onInstruction"))
+                instruction++;
+            else if (instruction == index && !method.equals("fail")) // fail is the catch handler
+                sb.append(sb.length() > 0 ? " " : "").append(method);
+        }
+        return sb.toString();
+    }
+
+    private static Prototype find(Prototype p, int opcode, String[] name) {
+        for (int insn : p.code)
+            if (Lua.GET_OPCODE(Lua.unfuse(insn)) == opcode)
+                return p;
+        for (int j = 0; j < p.p.length; j++) {
+            String[] child = {name[0] + "_" + j};
+            Prototype found = find(p.p[j], opcode, child);
+            if (found != null) {
+                name[0] = child[0];
+                return found;
+            }
+        }
+        return null;
+    }
+
+    private static int opcode(String op) {
+        for (int i = 0; i < Print.OPNAMES.length; i++)
+            if (op.equals(Print.OPNAMES[i]))
+                return i;
+        throw new IllegalArgumentException(op);
+    }
+
+    private static Prototype compile(String script, String name) throws IOException {
+        Globals g = TestGlobals.create();
+        return g.compilePrototype(new ByteArrayInputStream(script.getBytes(StandardCharsets.UTF_8)), name);
+    }
+}
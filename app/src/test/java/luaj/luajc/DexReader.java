@@ -0,0 +1,139 @@
+package luaj.luajc;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import android.cglib.dx.io.CodeReader;
+import android.cglib.dx.io.OpcodeInfo;
+import android.cglib.dx.io.instructions.DecodedInstruction;
+
+/**
+ * Reads the methods back out of a dex file, just enough to check the code
+ * generated by {@link DexGen} with {@link CodeReader}.
+ */
+final class DexReader {
+
+    private final ByteBuffer dex;
+
+    DexReader(byte[] bytes) {
+        dex = ByteBuffer.wrap(bytes).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * The code units of every method with code, keyed by {@code Class.method}.
+     */
+    Map<String, short[]> methods() {
+        Map<String, short[]> methods = new LinkedHashMap<String, short[]>();
+        int classDefs = dex.getInt(0x60);
+        int classDefsOff = dex.getInt(0x64);
+        for (int c = 0; c < classDefs; c++) {
+            int classDataOff = dex.getInt(classDefsOff + c * 32 + 24);
+            if (classDataOff == 0)
+                continue;
+            dex.position(classDataOff);
+            int staticFields = uleb();
+            int instanceFields = uleb();
+            int directMethods = uleb();
+            int virtualMethods = uleb();
+            for (int f = 0; f < 2 * (staticFields + instanceFields); f++)
+                uleb();
+            for (int kind = 0; kind < 2; kind++) {
+                int method = 0;
+                for (int m = 0, n = kind == 0 ? directMethods : virtualMethods; m < n; m++) {
+                    method += uleb();
+                    uleb(); // access flags
+                    int codeOff = uleb();
+                    if (codeOff != 0)
+                        methods.put(methodName(method), insns(codeOff));
+                }
+            }
+        }
+        return methods;
+    }
+
+    /**
+     * Names of the methods invoked by {@code insns}, in order.
+     */
+    List<String> invoked(short[] insns) {
+        final List<String> names = new ArrayList<String>();
+        CodeReader reader = new CodeReader();
+        reader.setMethodVisitor(new CodeReader.Visitor() {
+            public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                names.add(name(dex.getInt(dex.getInt(0x5c) + one.getIndex() * 8 + 4)));
+            }
+        });
+        reader.visitAll(insns);
+        return names;
+    }
+
+    /**
+     * Names of the dex opcodes of {@code insns}, in order.
+     */
+    static List<String> opcodes(short[] insns) {
+        List<String> names = new ArrayList<String>();
+        for (DecodedInstruction insn : DecodedInstruction.decodeAll(insns))
+            if (insn != null)
+                names.add(OpcodeInfo.getName(insn.getOpcode()));
+        return names;
+    }
+
+    /**
+     * Check that {@code insns} decodes and that every branch lands on an instruction.
+     */
+    static void verify(final String method, short[] insns) {
+        final DecodedInstruction[] all = DecodedInstruction.decodeAll(insns);
+        CodeReader reader = new CodeReader();
+        reader.setFallbackVisitor(new CodeReader.Visitor() {
+            public void visit(DecodedInstruction[] all, DecodedInstruction one) {
+                String name = OpcodeInfo.getName(one.getOpcode());
+                if (name.startsWith("if-") || name.startsWith("goto")) {
+                    int target = one.getTarget();
+                    if (target < 0 || target >= all.length || all[target] == null)
+                        throw new AssertionError(method + ": " + name + " to " + target);
+                }
+            }
+        });
+        reader.visitAll(all);
+    }
+
+    private String methodName(int method) {
+        int id = dex.getInt(0x5c) + method * 8;
+        int type = dex.getShort(id) & 0xffff;
+        String className = name(dex.getInt(dex.getInt(0x44) + type * 4));
+        return className.substring(Math.max(className.lastIndexOf('/'), 0) + 1, className.length() - 1)
+                + "." + name(dex.getInt(id + 4));
+    }
+
+    private short[] insns(int codeOff) {
+        int size = dex.getInt(codeOff + 12);
+        short[] insns = new short[size];
+        for (int i = 0; i < size; i++)
+            insns[i] = dex.getShort(codeOff + 16 + 2 * i);
+        return insns;
+    }
+
+    private String name(int string) {
+        int saved = dex.position();
+        dex.position(dex.getInt(dex.getInt(0x3c) + string * 4));
+        int length = uleb();
+        byte[] bytes = new byte[length];
+        dex.get(bytes); // generated names are ASCII, so MUTF-8 is one byte per char
+        dex.position(saved);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private int uleb() {
+        int result = 0;
+        for (int shift = 0; ; shift += 7) {
+            int b = dex.get() & 0xff;
+            result |= (b & 0x7f) << shift;
+            if (b < 0x80)
+                return result;
+        }
+    }
+}
@@ -0,0 +1,57 @@
+package luaj.luajc;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+import luaj.Globals;
+import luaj.LuaValue;
+import luaj.TestGlobals;
+
+/**
+ * Runs the scripts under {@code conformance/} both interpreted and compiled
+ * by {@link LuaJC}, and expects the same output from each.
+ */
+public class LuaJCConformanceTest {
+
+    @Test
+    public void core() {
+        conforms("core");
+    }
+
+    @Test
+    public void extensions() {
+        conforms("extensions");
+    }
+
+    @Test
+    public void nestedFunctionsOfHugeChunkAreCompiled() {
+        StringBuilder sb = new StringBuilder("local x = 0\n");
+        for (int i = 0; i < 2000; i++)
+            sb.append("x = x + ").append(i).append('\n');
+        sb.append("return function(n) return n + x end\n");
+
+        Globals g = TestGlobals.create();
+        LuaJC.install(g);
+        LuaValue main = TestGlobals.load(g, sb.toString(), "huge");
+        assertFalse(main instanceof JavaClosure);
+        LuaValue f = main.call();
+        assertTrue(f instanceof JavaClosure);
+        assertEquals(1999000 + 1, f.call(LuaValue.valueOf(1)).toint());
+    }
+
+    private static void conforms(String name) {
+        String script = TestGlobals.resource("conformance/" + name + ".lua");
+
+        Globals interpreted = TestGlobals.create();
+        LuaValue expected = TestGlobals.load(interpreted, script, name).call();
+
+        Globals compiled = TestGlobals.create();
+        LuaJC.install(compiled);
+        LuaValue main = TestGlobals.load(compiled, script, name);
+        assertTrue(name + " was not compiled", main instanceof JavaClosure);
+        assertEquals(expected.tojstring(), main.call().tojstring());
+    }
+}
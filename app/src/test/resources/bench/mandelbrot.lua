@@ -0,0 +1,18 @@
+-- Mandelbrot set: float arithmetic and compares on locals
+return function(N)
+  local count = 0
+  for y = 0, N - 1 do
+    local ci = 2.0 * y / N - 1.0
+    for x = 0, N - 1 do
+      local cr = 2.0 * x / N - 1.5
+      local zr, zi = 0.0, 0.0
+      local it = 0
+      while it < 50 and zr * zr + zi * zi < 4.0 do
+        zr, zi = zr * zr - zi * zi + cr, 2.0 * zr * zi + ci
+        it = it + 1
+      end
+      if it == 50 then count = count + 1 end
+    end
+  end
+  return count
+end
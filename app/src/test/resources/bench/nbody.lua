@@ -0,0 +1,37 @@
+-- n-body simulation: float arithmetic on table fields
+local sqrt = math.sqrt
+
+local function bodies()
+  local b = {}
+  for i = 1, 5 do
+    b[i] = {x = i * 1.1, y = i * 0.7, z = i * 0.3, vx = 0.01 * i, vy = 0.02, vz = -0.01 * i, mass = 1.0 + i * 0.1}
+  end
+  return b
+end
+
+local function advance(bodies, dt)
+  local n = #bodies
+  for i = 1, n do
+    local bi = bodies[i]
+    local bix, biy, biz, bimass = bi.x, bi.y, bi.z, bi.mass
+    local bivx, bivy, bivz = bi.vx, bi.vy, bi.vz
+    for j = i + 1, n do
+      local bj = bodies[j]
+      local dx, dy, dz = bix - bj.x, biy - bj.y, biz - bj.z
+      local d2 = dx * dx + dy * dy + dz * dz
+      local mag = dt / (d2 * sqrt(d2))
+      local bm = bj.mass * mag
+      bivx = bivx - (dx * bm); bivy = bivy - (dy * bm); bivz = bivz - (dz * bm)
+      bm = bimass * mag
+      bj.vx = bj.vx + (dx * bm); bj.vy = bj.vy + (dy * bm); bj.vz = bj.vz + (dz * bm)
+    end
+    bi.vx, bi.vy, bi.vz = bivx, bivy, bivz
+    bi.x = bix + dt * bivx; bi.y = biy + dt * bivy; bi.z = biz + dt * bivz
+  end
+end
+
+return function(steps)
+  local b = bodies()
+  for _ = 1, steps do advance(b, 0.01) end
+  return b[1].x
+end
@@ -0,0 +1,97 @@
+-- plain Lua covering the remaining opcodes
+local out = {}
+local function emit(...)
+  local t = {...}
+  for i = 1, select('#', ...) do t[i] = tostring(t[i]) end
+  out[#out + 1] = table.concat(t, " ")
+end
+
+-- arithmetic, compares and concatenation
+local function arithmetic()
+  local a, b = 7, 3
+  emit(a + b, a - b, a * b, a / b, a % b, a ^ 2, -a, a // b)
+  emit(a == b, a ~= b, a < b, a <= b, a > b, a >= b, not a)
+  emit("x" .. a .. b, #"hello", 1.5 + 2, 2^53)
+  emit(a & b, a | b, a ~ b, ~a, a << 2, a >> 1)
+end
+
+-- tables and metatables
+local function tables()
+  local mt = {
+    __index = function(t, k) return k .. "?" end,
+    __add = function(x, y) return x.v + y.v end,
+    __call = function(self, n) return n + 1 end,
+  }
+  local o = setmetatable({v = 5}, mt)
+  emit(o.missing, o + o, o(41))
+  local arr = {}
+  for i = 1, 10 do arr[i] = i * i end
+  emit(#arr, arr[10], table.concat(arr, ",", 1, 4))
+end
+
+-- closures and upvalues
+local function closures()
+  local function counter()
+    local n = 0
+    return function() n = n + 1; return n end
+  end
+  local c1, c2 = counter(), counter()
+  c1(); c1()
+  emit("counter", c1(), c2())
+  local fns = {}
+  for i = 1, 3 do fns[i] = function() return i end end
+  emit("loop upvalues", fns[1](), fns[2](), fns[3]())
+end
+
+-- varargs, multiple results and tail calls
+local function calls()
+  local function va(...) return select('#', ...), ... end
+  emit(va(1, nil, 3))
+  local function pack2(...) return {...} end
+  emit(#pack2(va(1, 2)))
+  local function loop(n, acc) if n == 0 then return acc end return loop(n - 1, acc + n) end
+  emit("tail", loop(10000, 0))
+end
+
+-- control flow
+local function flow()
+  local s = 0
+  for i = 10, 1, -2 do s = s + i end
+  local w = 0
+  while w < 5 do w = w + 1 end
+  repeat w = w - 2 until w < 0
+  for i = 1, 3 do
+    for j = 1, 3 do
+      if j == 2 then goto skip end
+      s = s + i * j
+      ::skip::
+    end
+  end
+  emit("flow", s, w)
+end
+
+-- pcall, error values and coroutines
+local function errors()
+  emit(pcall(error, {code = 1}) == false, select(2, pcall(error, "msg", 0)))
+  local co = coroutine.wrap(function(x)
+    local y = coroutine.yield(x * 2)
+    return x + y
+  end)
+  emit("coroutine", co(5), co(10))
+end
+
+-- strings
+local function strings()
+  emit(string.format("%5.2f|%d|%s", 3.14159, 42, "s"), ("abc"):upper(), ("a,b,c"):gsub(",", ";"))
+end
+
+-- each section is its own function to keep every prototype small enough to compile
+arithmetic()
+tables()
+closures()
+calls()
+flow()
+errors()
+strings()
+
+return table.concat(out, "\n")
@@ -0,0 +1,73 @@
+-- the statements and expressions this fork adds to Lua
+local out = {}
+local function emit(...)
+  local t = {...}
+  for i = 1, select('#', ...) do t[i] = tostring(t[i]) end
+  out[#out + 1] = table.concat(t, " ")
+end
+
+-- try / catch / finally (TCALL)
+local function attempt(fail)
+  try
+    emit("try", fail)
+    if fail then error("oops", 0) end
+    emit("no error")
+  catch(e)
+    emit("caught", e)
+  finally
+    emit("finally", fail)
+  end
+end
+attempt(false)
+attempt(true)
+
+-- defer (DEFER)
+local function withDefer(n)
+  defer emit("deferred", n)
+  defer(m) emit("deferred with", m)
+  emit("body", n)
+  return n * 2
+end
+emit("returned", withDefer(3))
+
+-- foreach (TFOREACH)
+local t = {10, 20, 30}
+local sum = 0
+for i, v : t do sum = sum + i * v end
+emit("foreach", sum)
+local keys = 0
+for k, v : {a = 1, b = 2} do keys = keys + v end
+emit("foreach hash", keys)
+
+-- list literal (NEWLIST)
+local l = [1, 2, 3, "four"]
+emit("list", #l, l[1], l[4])
+
+-- switch
+for i = 1, 4 do
+  switch i
+  case 1 then emit("one")
+  case 2, 3 then emit("two or three", i)
+  default emit("default", i)
+  end
+end
+
+-- lambda
+local sq = lambda(x): x * x
+local pair = lambda(a, b): b, a
+emit("lambda", sq(7), pair(1, 2))
+
+-- import (IMPORT, LOADC, LOADP)
+local ArrayList = import "java.util.ArrayList"
+local al = ArrayList()
+al.add("x")
+al.add("y")
+emit("import", al.size())
+import "java.util.*"
+local hm = HashMap()
+hm.put("k", 1)
+emit("loadc", hm.size())
+local lang = import "java.lang.*"
+emit("loadp", lang ~= nil)
+
+return table.concat(out, "\n")